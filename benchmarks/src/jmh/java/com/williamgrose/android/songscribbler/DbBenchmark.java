@@ -0,0 +1,101 @@
+package com.williamgrose.android.songscribbler;
+
+import android.database.Cursor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The adapter's song operations, each through its public method as the app
+ * calls it, so each write is its own transaction and pays for its commit
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DbBenchmark {
+
+    private final Random mRandom = new Random(1);
+    private final ArrayList<Long> mCreated = new ArrayList<Long>();
+    private int mEdits = 0;
+
+    private long pick(Library library) {
+        return library.rowIds[mRandom.nextInt(library.rowIds.length)];
+    }
+
+    @Benchmark
+    public void fetchSong(Library library, Blackhole blackhole) {
+        Cursor song = library.db.fetchSong(pick(library));
+        try {
+            blackhole.consume(song.getString(1));
+            blackhole.consume(song.getString(2));
+            blackhole.consume(song.getString(3));
+        } finally {
+            song.close();
+        }
+    }
+
+    @Benchmark
+    public boolean updateSong(Library library) {
+        // The song with a line added, as an edit would make it
+        int index = mRandom.nextInt(library.rowIds.length);
+        String body = Library.song(index) + "\n" + Library.line(new Random(mEdits++));
+        return library.db.updateSong(library.rowIds[index], Library.title(index), body, "",
+                SongScribblerDbAdapter.DEFAULT_SCROLLSPEED);
+    }
+
+    @Benchmark
+    public long createSong(Library library) {
+        int index = library.rowIds.length + mCreated.size();
+        long rowId = library.db.createSong(Library.title(index), Library.song(index), "",
+                SongScribblerDbAdapter.DEFAULT_SCROLLSPEED);
+        mCreated.add(rowId);
+        return rowId;
+    }
+
+    /**
+     * Keep the library at its size for the next iteration
+     */
+    @TearDown(Level.Iteration)
+    public void deleteCreated(Library library) {
+        if (mCreated.isEmpty()) {
+            return;
+        }
+        long[] rowIds = new long[mCreated.size()];
+        for (int i = 0; i < rowIds.length; i++) {
+            rowIds[i] = mCreated.get(i);
+        }
+        library.db.deleteSongs(rowIds);
+        mCreated.clear();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void fetchAllSongs(Library library, Blackhole blackhole) {
+        Cursor songs = library.db.fetchAllSongs();
+        try {
+            while (songs.moveToNext()) {
+                blackhole.consume(songs.getString(2));
+                blackhole.consume(songs.getString(3));
+            }
+        } finally {
+            songs.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.williamgrose.android.songscribbler;
+
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * A library of generated songs in a scratch database on the stand-in, at
+ * each of the sizes every benchmark is run at
+ */
+@State(Scope.Benchmark)
+public class Library {
+
+    @Param({"100", "1000", "5000"})
+    public int librarySize;
+
+    private static final String[] WORDS = {
+            "love", "heart", "night", "road", "home", "down", "light", "rain", "river",
+            "never", "again", "baby", "hold", "know", "the", "and", "you", "me", "my",
+            "we", "in", "on", "to", "of", "oh", "yeah", "come", "gone", "world", "dream"};
+    private static final String[] CHORDS = {
+            "G", "C", "D", "Em", "Am", "F", "Bm", "D/F#", "Cadd9", "Dsus4", "E7", "A"};
+
+    SongScribblerDbAdapter db;
+    long[] rowIds;
+    private File mDirectory;
+
+    @Setup(Level.Trial)
+    public void create() throws IOException {
+        mDirectory = File.createTempFile("songscribbler-bench", "");
+        mDirectory.delete();
+        db = new SongScribblerDbAdapter(new Context(mDirectory)).open();
+        rowIds = new long[librarySize];
+        // Filling the library isn't what is timed, so in one transaction
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < librarySize; i++) {
+                rowIds[i] = db.createSong(title(i), song(i), "",
+                        SongScribblerDbAdapter.DEFAULT_SCROLLSPEED);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        db.close();
+        delete(mDirectory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    static String title(int index) {
+        return "Benchmark " + WORDS[index % WORDS.length] + " " + index;
+    }
+
+    /**
+     * A made up chord chart, between a short song and a long medley; the
+     * same one each time for the same index
+     */
+    static String song(int index) {
+        Random random = new Random(index);
+        StringBuilder song = new StringBuilder();
+        int sections = 2 + random.nextInt(10);
+        for (int s = 0; s < sections; s++) {
+            song.append(s % 2 == 0 ? "Verse " + (s / 2 + 1) + ":" : "Chorus:").append('\n');
+            for (int l = 0; l < 4; l++) {
+                song.append(line(random)).append('\n');
+            }
+            song.append('\n');
+        }
+        return song.toString();
+    }
+
+    static String line(Random random) {
+        StringBuilder line = new StringBuilder();
+        for (int w = 0; w < 8; w++) {
+            if (w % 3 == 0) {
+                line.append('[').append(CHORDS[random.nextInt(CHORDS.length)]).append(']');
+            }
+            line.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return line.toString();
+    }
+
+    /**
+     * @return the songs of the library read back, for the benchmarks that
+     *         work on their text
+     */
+    ArrayList<String[]> readSongs(int limit) {
+        ArrayList<String[]> songs = new ArrayList<String[]>();
+        for (int i = 0; i < Math.min(limit, rowIds.length); i++) {
+            android.database.Cursor song = db.fetchSong(rowIds[i]);
+            try {
+                songs.add(new String[] {song.getString(1), song.getString(2),
+                        song.getString(3)});
+            } finally {
+                song.close();
+            }
+        }
+        return songs;
+    }
+}
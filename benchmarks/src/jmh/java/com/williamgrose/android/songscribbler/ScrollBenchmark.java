@@ -0,0 +1,84 @@
+package com.williamgrose.android.songscribbler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One autoscroll frame, the step logic AutoScroller runs in place of the
+ * old SongView.autoScroll, both at a free speed and following a song's
+ * timeline
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScrollBenchmark {
+
+    private static final int SAMPLE = 50;
+    private static final int BLOCK_LINES = 8;
+
+    private final ScrollMotion mMotion = new ScrollMotion();
+    private final ArrayList<ScrollTimeline> mTimelines = new ArrayList<ScrollTimeline>();
+    private long mNow;
+    private int mNext = 0;
+
+    @Setup(Level.Trial)
+    public void buildTimelines(Library library) {
+        SongParser parser = new SongParser();
+        for (String[] song : library.readSongs(SAMPLE)) {
+            // Timed songs as if each had a tempo written in
+            ParsedSong parsed = parser.parse("{tempo: 96}\n" + song[1], song[2]);
+            ScrollTimeline timeline = ScrollTimeline.build(parsed, BLOCK_LINES);
+            if (timeline != null) {
+                mTimelines.add(timeline);
+            }
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void start() {
+        mMotion.reset();
+        mMotion.setVelocity(30);
+        mNow = 0;
+        mMotion.start(mNow);
+    }
+
+    @Benchmark
+    public long freeSpeedTick() {
+        mNow += AutoScrollerFrame.FRAME_MILLIS;
+        mMotion.step(mNow);
+        return mMotion.millisToNextPixel();
+    }
+
+    @Benchmark
+    public float timelineTick() {
+        mNext = (mNext + 1) % mTimelines.size();
+        ScrollTimeline timeline = mTimelines.get(mNext);
+        mNow += AutoScrollerFrame.FRAME_MILLIS;
+        long at = mNow % Math.max(timeline.getDurationMillis(), 1);
+        timeline.millisToNextMove(at);
+        return timeline.positionAt(at);
+    }
+
+    /**
+     * AutoScroller's frame length, which can't be reached from here as the
+     * class needs a View
+     */
+    private static final class AutoScrollerFrame {
+        static final long FRAME_MILLIS = 16;
+    }
+}
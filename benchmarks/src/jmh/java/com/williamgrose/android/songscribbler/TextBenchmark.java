@@ -0,0 +1,64 @@
+package com.williamgrose.android.songscribbler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work done on the body and chords of songs from the library: parsing,
+ * transposing and rendering them as SongView does, and compressing them
+ * as the adapter does when storing them
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TextBenchmark {
+
+    /** Songs taken from the library to work on */
+    private static final int SAMPLE = 200;
+
+    private final SongParser mParser = new SongParser();
+    private final Transposer mTransposer = new Transposer();
+    private final StringBuilder mText = new StringBuilder();
+    private ArrayList<String[]> mSongs;
+    private int mNext = 0;
+
+    @Setup(Level.Trial)
+    public void readSongs(Library library) {
+        mSongs = library.readSongs(SAMPLE);
+    }
+
+    private String[] next() {
+        mNext = (mNext + 1) % mSongs.size();
+        return mSongs.get(mNext);
+    }
+
+    @Benchmark
+    public int parseAndRender() {
+        String[] song = next();
+        ParsedSong parsed = mParser.parse(song[1], song[2]);
+        mTransposer.set(2, 0, parsed);
+        mText.setLength(0);
+        SongRenderer.render(parsed, mTransposer, mText);
+        return mText.length();
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return SongCompression.compress(next()[1]);
+    }
+}
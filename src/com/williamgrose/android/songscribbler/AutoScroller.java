@@ -0,0 +1,158 @@
+package com.williamgrose.android.songscribbler;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Scrolls a SongBodyView at a steady speed from the UI thread. Each step is
+ * scheduled on the UI looper in time with the display refresh and moves the
+ * view by the time actually elapsed, so the speed is smooth and independent
+ * of how often steps run. When the view would not move a whole pixel the next
+ * step is pushed back to the moment it will, so slow songs don't wake the UI
+ * thread every frame for nothing.
+ *
+ * A song with a ScrollTimeline is scrolled to it instead, by the time spent
+ * scrolling, keeping the part of the song being played TIMELINE_ANCHOR of
+ * the way down the view. The speed is not used then, the time is kept from
+ * when scrolling started so a stall never leaves the song behind, and
+ * during a pause steps are only taken often enough to notice it ending.
+ *
+ * Starting and stopping only posts or removes a callback; nothing is
+ * allocated once the scroller has been created. How late each step runs is
+ * recorded in Metrics, a frame dropped for each whole frame late.
+ */
+public class AutoScroller implements Runnable {
+
+    /** Interval between steps, one display refresh at 60Hz */
+    public static final long FRAME_MILLIS = 16;
+    /** How far down the view a timeline's position is kept */
+    static final float TIMELINE_ANCHOR = 1 / 3f;
+
+    private final SongBodyView mView;
+    private final Handler mHandler = new Handler();
+    private final ScrollMotion mMotion = new ScrollMotion();
+    private ScrollTimeline mTimeline;
+    private long mNextFrameMillis;
+
+    public AutoScroller(SongBodyView view) {
+        mView = view;
+    }
+
+    /**
+     * @param pixelsPerSecond scroll speed, may be fractional
+     */
+    public void setVelocity(float pixelsPerSecond) {
+        mMotion.setVelocity(pixelsPerSecond);
+        if (mMotion.isRunning()) {
+            reschedule(SystemClock.uptimeMillis());
+        }
+    }
+
+    /**
+     * @param timeline what to scroll to, or null to scroll at the velocity
+     */
+    public void setTimeline(ScrollTimeline timeline) {
+        mTimeline = timeline;
+        mMotion.setKeepingTime(timeline != null);
+        if (mMotion.isRunning()) {
+            reschedule(SystemClock.uptimeMillis());
+        }
+    }
+
+    public boolean isRunning() {
+        return mMotion.isRunning();
+    }
+
+    public void start() {
+        if (mMotion.isRunning()) {
+            return;
+        }
+        // Carry on from wherever the view has been left
+        if ((int) mMotion.getPosition() != mView.getScrollY()) {
+            mMotion.setPosition(mView.getScrollY());
+            if (mTimeline != null) {
+                // The time the timeline reaches what is showing
+                float position = mView.positionAt(mView.getScrollY() + anchorOffset());
+                if (position >= 0) {
+                    mMotion.setElapsedMillis(mTimeline.timeAt(position));
+                }
+            }
+        }
+        long now = SystemClock.uptimeMillis();
+        mMotion.start(now);
+        reschedule(now);
+    }
+
+    public void stop() {
+        mMotion.pause();
+        mHandler.removeCallbacks(this);
+    }
+
+    /**
+     * Stop and rewind to the top
+     */
+    public void reset() {
+        stop();
+        mMotion.reset();
+        mView.scrollTo(0, 0);
+    }
+
+    public void run() {
+        long now = SystemClock.uptimeMillis();
+        if (Metrics.isEnabled()) {
+            long late = Math.max(now - mNextFrameMillis, 0);
+            Metrics.SCROLL_FRAME_LATENESS.record(late * 1000);
+            Metrics.SCROLL_FRAMES.add(1);
+            Metrics.SCROLL_DROPPED_FRAMES.add(late / FRAME_MILLIS);
+        }
+        int y = (int) mMotion.step(now);
+        int height = mView.getContentHeight();
+        if (height < 0) {
+            reschedule(now);
+            return;
+        }
+        if (mTimeline != null) {
+            y = Math.max(mView.yAt(mTimeline.positionAt(mMotion.getElapsedMillis()))
+                    - anchorOffset(), 0);
+            mMotion.setPosition(y);
+        }
+        int maxY = height - mView.getHeight();
+        if (y >= maxY) {
+            if (maxY > mView.getScrollY()) {
+                mView.scrollTo(0, maxY);
+            }
+            mMotion.setPosition(Math.max(maxY, 0));
+            stop();
+            return;
+        }
+        if (y != mView.getScrollY()) {
+            mView.scrollTo(0, y);
+        }
+        reschedule(now);
+    }
+
+    private void reschedule(long now) {
+        mHandler.removeCallbacks(this);
+        long wait = mTimeline != null
+                ? Math.min(mTimeline.millisToNextMove(mMotion.getElapsedMillis()),
+                        ScrollMotion.MAX_STEP_MILLIS)
+                : mMotion.millisToNextPixel();
+        if (wait == Long.MAX_VALUE) {
+            // Not moving, nothing to do until the velocity changes
+            return;
+        }
+        // Keep to the frame grid rather than drifting with each late step
+        mNextFrameMillis += FRAME_MILLIS;
+        if (mNextFrameMillis < now || mNextFrameMillis > now + FRAME_MILLIS) {
+            mNextFrameMillis = now + FRAME_MILLIS;
+        }
+        if (wait > FRAME_MILLIS) {
+            mNextFrameMillis = now + wait;
+        }
+        mHandler.postAtTime(this, mNextFrameMillis);
+    }
+
+    private int anchorOffset() {
+        return (int) (mView.getHeight() * TIMELINE_ANCHOR);
+    }
+}
@@ -0,0 +1,97 @@
+package com.williamgrose.android.songscribbler;
+
+import android.app.Activity;
+import android.content.pm.ApplicationInfo;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.util.Log;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Runs SongBenchmark on the device. It is in the manifest of every build,
+ * but finishes straight away unless the build is debuggable, and can only
+ * be started from adb, with
+ *
+ *   adb shell am start -n com.williamgrose.android.songscribbler/.BenchmarkActivity
+ *
+ * It runs in a process of its own against a scratch database that is made
+ * empty first and deleted after, so the library, and the app's writer, are
+ * never touched.
+ */
+public class BenchmarkActivity extends Activity {
+
+    private static final String TAG = "BenchmarkActivity";
+
+    private static final String DATABASE_NAME = "benchmark";
+    /** Where SongBenchmark results are written, on external storage */
+    private static final String RESULTS_DIRECTORY = "SongScribbler/benchmark";
+
+    /** Only one run at a time, however often this is started */
+    private static boolean sRunning = false;
+
+    private final Handler mHandler = new Handler();
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0) {
+            finish();
+            return;
+        }
+        TextView text = new TextView(this);
+        text.setText(R.string.benchmark_started);
+        setContentView(text);
+        if (!sRunning) {
+            sRunning = true;
+            run();
+        }
+    }
+
+    private void run() {
+        File directory = new File(Environment.getExternalStorageDirectory(),
+                RESULTS_DIRECTORY);
+        directory.mkdirs();
+        String name = "benchmark-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())
+                + ".json";
+        final File results = new File(directory, name);
+        new Thread(new Runnable() {
+            public void run() {
+                boolean done = false;
+                deleteDatabase(DATABASE_NAME);
+                SongScribblerDbAdapter.useDatabase(DATABASE_NAME);
+                SongScribblerDbAdapter db = new SongScribblerDbAdapter(BenchmarkActivity.this);
+                try {
+                    db.open();
+                    new SongBenchmark(db).run(results);
+                    done = true;
+                } catch (IOException e) {
+                    Log.e(TAG, "Writing " + results + " failed", e);
+                } finally {
+                    db.close();
+                    deleteDatabase(DATABASE_NAME);
+                }
+                finished(done ? results : null);
+            }
+        }, "benchmark").start();
+    }
+
+    private void finished(final File results) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                sRunning = false;
+                if (results != null) {
+                    Toast.makeText(BenchmarkActivity.this, getString(R.string.benchmark_done,
+                            results.getPath()), Toast.LENGTH_LONG).show();
+                }
+                finish();
+            }
+        });
+    }
+}
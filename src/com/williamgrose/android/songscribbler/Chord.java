@@ -0,0 +1,195 @@
+package com.williamgrose.android.songscribbler;
+
+/**
+ * One chord symbol, split into the parts that transposing needs: the root
+ * and bass notes as semitones above C, and whatever follows the root
+ * ("m7", "sus4", ...) kept as written.
+ *
+ * Chords are immutable and parsed once, when the song is parsed.
+ */
+public final class Chord {
+
+    /** Value of bass for a chord without a slash bass note */
+    public static final int NO_BASS = -1;
+
+    /** Semitones above C of the natural notes, indexed by letter - 'A' */
+    private static final int[] NATURALS = {9, 11, 0, 2, 4, 5, 7};
+
+    /** Names of each semitone when spelled with sharps and with flats */
+    static final String[] SHARP_NAMES =
+            {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
+    static final String[] FLAT_NAMES =
+            {"C", "Db", "D", "Eb", "E", "F", "Gb", "G", "Ab", "A", "Bb", "B"};
+
+    /**
+     * Words a suffix is made of, longest first so "maj" isn't read as "m".
+     * Any of them may be followed by a number, as in "m7" or "sus4".
+     */
+    private static final String[] SUFFIX_WORDS =
+            {"maj", "min", "dim", "aug", "sus", "alt", "m", "M", "+", "-", "^", "(", ")"};
+    /** Words that only mean something with a number after, as in "add9" or "b5" */
+    private static final String[] SUFFIX_PREFIXES = {"add", "o", "#", "b"};
+    /** Longest number in a suffix, as in "13" */
+    private static final int MAX_DIGITS = 2;
+
+    public final int root;
+    public final boolean flat;
+    public final String suffix;
+    public final int bass;
+    public final boolean bassFlat;
+
+    public Chord(int root, boolean flat, String suffix, int bass, boolean bassFlat) {
+        this.root = root;
+        this.flat = flat;
+        this.suffix = suffix;
+        this.bass = bass;
+        this.bassFlat = bassFlat;
+    }
+
+    /**
+     * Parse text[start, end) as a chord symbol
+     *
+     * @return the chord, or null if the text isn't one
+     */
+    public static Chord parse(CharSequence text, int start, int end) {
+        int rootEnd = noteEnd(text, start, end);
+        if (rootEnd < 0) {
+            return null;
+        }
+        int slash = -1;
+        for (int i = rootEnd; i < end && slash < 0; i++) {
+            if (text.charAt(i) == '/') {
+                slash = i;
+            }
+        }
+        if (!isSuffix(text, rootEnd, slash >= 0 ? slash : end)) {
+            return null;
+        }
+        int bass = NO_BASS;
+        boolean bassFlat = false;
+        int suffixEnd = end;
+        if (slash >= 0) {
+            if (noteEnd(text, slash + 1, end) != end) {
+                return null;
+            }
+            bass = note(text, slash + 1, end);
+            bassFlat = text.charAt(end - 1) == 'b' && end - slash > 2;
+            suffixEnd = slash;
+        }
+        boolean flat = rootEnd - start > 1 && text.charAt(start + 1) == 'b';
+        return new Chord(note(text, start, rootEnd), flat,
+                text.subSequence(rootEnd, suffixEnd).toString(), bass, bassFlat);
+    }
+
+    /**
+     * Whether text[start, end) is made wholly of known suffix words, so that
+     * words such as "Bad" or "Go" aren't taken for chords
+     */
+    private static boolean isSuffix(CharSequence text, int start, int end) {
+        int i = start;
+        while (i < end) {
+            int wordEnd = wordEnd(text, i, end, SUFFIX_WORDS);
+            if (wordEnd >= 0) {
+                i = digitsEnd(text, wordEnd, end);
+                if (i < 0) {
+                    return false;
+                }
+                continue;
+            }
+            wordEnd = wordEnd(text, i, end, SUFFIX_PREFIXES);
+            if (wordEnd < 0) {
+                wordEnd = i;
+            }
+            int numberEnd = digitsEnd(text, wordEnd, end);
+            if (numberEnd == wordEnd || numberEnd < 0) {
+                return false;
+            }
+            i = numberEnd;
+        }
+        return true;
+    }
+
+    /**
+     * @return the end of whichever of words text has at start, or -1
+     */
+    private static int wordEnd(CharSequence text, int start, int end, String[] words) {
+        for (String word : words) {
+            int length = word.length();
+            if (start + length > end) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && text.charAt(start + i) == word.charAt(i)) {
+                i++;
+            }
+            if (i == length) {
+                return start + length;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the end of the number at start, start if there is none, or -1
+     *         if it is too long to be part of a chord
+     */
+    private static int digitsEnd(CharSequence text, int start, int end) {
+        int i = start;
+        while (i < end && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+            i++;
+        }
+        return i - start > MAX_DIGITS ? -1 : i;
+    }
+
+    /**
+     * @return the end of the note name starting at start, or -1 if there
+     *         isn't one
+     */
+    private static int noteEnd(CharSequence text, int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+        char letter = text.charAt(start);
+        if (letter < 'A' || letter > 'G') {
+            return -1;
+        }
+        if (start + 1 < end) {
+            char accidental = text.charAt(start + 1);
+            if (accidental == '#' || accidental == 'b') {
+                return start + 2;
+            }
+        }
+        return start + 1;
+    }
+
+    private static int note(CharSequence text, int start, int end) {
+        int semitone = NATURALS[text.charAt(start) - 'A'];
+        if (start + 1 < end) {
+            char accidental = text.charAt(start + 1);
+            if (accidental == '#') {
+                semitone++;
+            } else if (accidental == 'b') {
+                semitone--;
+            }
+        }
+        return (semitone + 12) % 12;
+    }
+
+    /**
+     * Append the chord as it was written
+     */
+    public void appendTo(StringBuilder out) {
+        out.append(flat ? FLAT_NAMES[root] : SHARP_NAMES[root]);
+        out.append(suffix);
+        if (bass != NO_BASS) {
+            out.append('/').append(bassFlat ? FLAT_NAMES[bass] : SHARP_NAMES[bass]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        appendTo(out);
+        return out.toString();
+    }
+}
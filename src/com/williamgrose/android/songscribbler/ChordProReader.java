@@ -0,0 +1,165 @@
+package com.williamgrose.android.songscribbler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashSet;
+
+/**
+ * Reads one song from a ChordPro or plain text file.
+ *
+ * The title comes from a {title:} (or {t:}) directive, falling back on the
+ * name of the file. Everything else is kept in the body as written,
+ * including inline [C] chords and section directives such as
+ * {start_of_chorus}, so nothing about where the chords fall is lost. The
+ * chords field gets each distinct inline chord once, in the order they are
+ * first played, which is how songs entered by hand use it.
+ *
+ * A reader is meant to be reused for file after file; its buffers are kept
+ * between songs.
+ */
+public class ChordProReader {
+
+    /** Songs longer than this are assumed not to be songs */
+    public static final int MAX_SONG_CHARS = 256 * 1024;
+
+    private final StringBuilder mBody = new StringBuilder();
+    private final StringBuilder mChords = new StringBuilder();
+    private final HashSet<String> mSeenChords = new HashSet<String>();
+    private String mTitle;
+    private String mProblem;
+
+    /**
+     * Read a song, leaving the reader open
+     *
+     * @param in the song text
+     * @param fallbackTitle title to use if the song doesn't name itself
+     * @return false if the file can't be used as a song, see getProblem
+     * @throws IOException if in fails
+     */
+    public boolean read(Reader in, String fallbackTitle) throws IOException {
+        mBody.setLength(0);
+        mChords.setLength(0);
+        mSeenChords.clear();
+        mTitle = null;
+        mProblem = null;
+
+        BufferedReader lines = new BufferedReader(in);
+        String line;
+        int blankLines = 0;
+        while ((line = lines.readLine()) != null) {
+            if (line.indexOf('\u0000') >= 0) {
+                mProblem = "binary file";
+                return false;
+            }
+            if (mBody.length() + line.length() > MAX_SONG_CHARS) {
+                mProblem = "longer than " + MAX_SONG_CHARS + " characters";
+                return false;
+            }
+            String trimmed = line.trim();
+            if (trimmed.startsWith("{")) {
+                if (!trimmed.endsWith("}")) {
+                    flag("unterminated directive");
+                } else if (readDirective(trimmed)) {
+                    continue;
+                }
+            } else {
+                readChords(line);
+            }
+            if (trimmed.length() == 0) {
+                // Leading blank lines are dropped, inner ones kept
+                if (mBody.length() > 0) {
+                    blankLines++;
+                }
+                continue;
+            }
+            for (; blankLines > 0; blankLines--) {
+                mBody.append('\n');
+            }
+            if (mBody.length() > 0) {
+                mBody.append('\n');
+            }
+            mBody.append(line);
+        }
+
+        if (mTitle == null || mTitle.length() == 0) {
+            mTitle = fallbackTitle;
+        }
+        if (mBody.length() == 0) {
+            mProblem = "no lyrics";
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the directive was used up and shouldn't be kept in the
+     *         body
+     */
+    private boolean readDirective(String directive) {
+        int colon = directive.indexOf(':');
+        if (colon < 0) {
+            return false;
+        }
+        String name = directive.substring(1, colon).trim().toLowerCase();
+        String value = directive.substring(colon + 1, directive.length() - 1).trim();
+        if (name.equals("title") || name.equals("t")) {
+            mTitle = value;
+            return true;
+        }
+        if (name.equals("subtitle") || name.equals("st")) {
+            // Usually the artist; the app has nowhere to put it
+            return true;
+        }
+        return false;
+    }
+
+    private void readChords(String line) {
+        int open = line.indexOf('[');
+        while (open >= 0) {
+            int close = line.indexOf(']', open + 1);
+            if (close < 0) {
+                flag("unclosed chord");
+                return;
+            }
+            String chord = line.substring(open + 1, close).trim();
+            if (chord.length() > 0 && chord.charAt(0) >= 'A' && chord.charAt(0) <= 'G'
+                    && mSeenChords.add(chord)) {
+                if (mChords.length() > 0) {
+                    mChords.append(' ');
+                }
+                mChords.append(chord);
+            }
+            open = line.indexOf('[', close + 1);
+        }
+    }
+
+    /**
+     * Note a problem that doesn't stop the song being imported
+     */
+    private void flag(String problem) {
+        if (mProblem == null) {
+            mProblem = problem;
+        }
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    public String getBody() {
+        return mBody.toString();
+    }
+
+    public String getChords() {
+        return mChords.toString();
+    }
+
+    /**
+     * @return why the last song could not be read, or what was odd about it
+     *         if it could; null if nothing was wrong
+     */
+    public String getProblem() {
+        return mProblem;
+    }
+}
@@ -0,0 +1,406 @@
+package com.williamgrose.android.songscribbler;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * The edits made to a song in SongEdit, kept in a file as they are typed so
+ * that a crash loses at most the last moment of them. Each edit is written
+ * as the range of a field it replaced and the text put there, so keeping
+ * up with typing costs the size of the edit, not of the song; the song's
+ * row is only written when the journal is compacted.
+ *
+ * The file starts with the fields as the journal was begun, which is what
+ * was in the database then, followed by the edits since. Compacting writes
+ * the song to the database and begins a new file from it. Opening the
+ * song again replays the edits over the start; if the database still has
+ * the start, the edits were never saved and are given back to be put in
+ * the fields. Anything else means the edits were saved, or the song has
+ * been changed since by something else, and the journal is left alone.
+ *
+ * Edits are collected in memory on the UI thread and appended to the file
+ * in a batch by flush, on a thread of its own. Each edit carries a
+ * checksum, so replaying stops at one that was only half written.
+ *
+ * SongRepository deletes a song's journal along with the song, and sweeps
+ * away the journals of songs that went some other way when it starts.
+ */
+final class EditJournal {
+
+    /**
+     * Receives the edits found by recover, on the UI thread
+     */
+    interface Recovery {
+        /** @param fields indexed like SongScribblerDbAdapter.SYNC_FIELDS */
+        void onRecovered(String[] fields);
+    }
+
+    private static final String TAG = "EditJournal";
+    private static final String DIRECTORY = "journal";
+    private static final String EXTENSION = ".journal";
+    private static final int FORMAT = 1;
+    /** Larger than any edit, so a bad length isn't taken as one */
+    private static final int MAX_RECORD = 16 * 1024 * 1024;
+
+    private static final ExecutorService sWriter = Executors.newSingleThreadExecutor();
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final File mFile;
+    /** Edits not yet handed to the writer; UI thread only */
+    private final ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream();
+    private final DataOutputStream mRecordOut = new DataOutputStream(mRecord);
+    private final CRC32 mCrc = new CRC32();
+    /** Bytes of edits since the journal was begun; UI thread only */
+    private long mLength = 0;
+    /** Set on the writer once an append fails, until the next begin */
+    private boolean mBroken = false;
+
+    EditJournal(Context ctx, long rowId) {
+        mFile = file(ctx, rowId);
+    }
+
+    private static File file(Context ctx, long rowId) {
+        return new File(ctx.getDir(DIRECTORY, Context.MODE_PRIVATE), rowId + EXTENSION);
+    }
+
+    /**
+     * @return the songs that have a journal
+     */
+    static long[] journaled(Context ctx) {
+        String[] names = ctx.getDir(DIRECTORY, Context.MODE_PRIVATE).list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] rowIds = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.endsWith(EXTENSION)) {
+                try {
+                    long rowId = Long.parseLong(name.substring(0,
+                            name.length() - EXTENSION.length()));
+                    rowIds[count++] = rowId;
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        long[] found = new long[count];
+        System.arraycopy(rowIds, 0, found, 0, count);
+        return found;
+    }
+
+    /**
+     * Delete the journal of a song that has been deleted, after any of its
+     * edits still being written
+     */
+    static void delete(Context ctx, final long rowId) {
+        final File file = file(ctx, rowId);
+        sWriter.execute(new Runnable() {
+            public void run() {
+                file.delete();
+                new File(file.getPath() + ".tmp").delete();
+            }
+        });
+    }
+
+    /**
+     * Look for edits to the song that didn't get saved, before the journal
+     * is begun again
+     *
+     * @param stored the fields as they are in the database
+     */
+    void recover(final String[] stored, final Recovery recovery) {
+        sWriter.execute(new Runnable() {
+            public void run() {
+                String[][] journal = read();
+                if (journal == null || Arrays.equals(journal[1], stored)) {
+                    return;
+                }
+                if (!Arrays.equals(journal[0], stored)) {
+                    Log.i(TAG, "Ignoring " + mFile + ", the song has changed since");
+                    return;
+                }
+                final String[] fields = journal[1];
+                sMainHandler.post(new Runnable() {
+                    public void run() {
+                        recovery.onRecovered(fields);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Start the journal again from the fields given, dropping the edits
+     * made so far, once what is written before it is in the database
+     *
+     * @param written done once the database has the fields
+     */
+    void begin(String[] fields, final Future<?> written) {
+        mPending.reset();
+        mLength = 0;
+        final String[] start = fields.clone();
+        sWriter.execute(new Runnable() {
+            public void run() {
+                if (await(written)) {
+                    writeStart(start);
+                }
+            }
+        });
+    }
+
+    /**
+     * Note that the text from start to start + deleted in the field has
+     * been replaced with inserted
+     */
+    void record(int field, int start, int deleted, CharSequence inserted) {
+        try {
+            mRecord.reset();
+            mRecordOut.writeByte(field);
+            mRecordOut.writeInt(start);
+            mRecordOut.writeInt(deleted);
+            writeText(mRecordOut, inserted);
+            mCrc.reset();
+            mCrc.update(mRecord.toByteArray());
+            DataOutputStream out = new DataOutputStream(mPending);
+            out.writeInt(mRecord.size());
+            out.writeInt((int) mCrc.getValue());
+            mRecord.writeTo(out);
+            mLength += 8 + mRecord.size();
+        } catch (IOException e) {
+            // Never thrown writing to memory
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return bytes of edits recorded since the journal was begun
+     */
+    long length() {
+        return mLength;
+    }
+
+    /**
+     * Append the edits recorded since the last flush to the file
+     */
+    void flush() {
+        if (mPending.size() == 0) {
+            return;
+        }
+        final byte[] edits = mPending.toByteArray();
+        mPending.reset();
+        sWriter.execute(new Runnable() {
+            public void run() {
+                append(edits);
+            }
+        });
+    }
+
+    /**
+     * Delete the journal once what is written before it is in the
+     * database, when the song is closed
+     */
+    void discard(final Future<?> written) {
+        mPending.reset();
+        mLength = 0;
+        sWriter.execute(new Runnable() {
+            public void run() {
+                if (await(written)) {
+                    mFile.delete();
+                }
+            }
+        });
+    }
+
+    private static boolean await(Future<?> written) {
+        try {
+            written.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Saving the song failed, keeping its journal", e.getCause());
+            return false;
+        }
+    }
+
+    /**
+     * Written to a new file that then replaces the old one, so the journal
+     * always has a whole start
+     */
+    private void writeStart(String[] fields) {
+        File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            FileOutputStream file = new FileOutputStream(temp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+                out.writeByte(FORMAT);
+                out.writeByte(fields.length);
+                for (String field : fields) {
+                    writeText(out, field);
+                }
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Renaming " + temp + " failed");
+            }
+            mBroken = false;
+        } catch (IOException e) {
+            Log.w(TAG, "Beginning " + mFile + " failed", e);
+            temp.delete();
+            mBroken = true;
+        }
+    }
+
+    private void append(byte[] edits) {
+        // Edits after a failed append would be replayed over the wrong text
+        if (mBroken || !mFile.exists()) {
+            return;
+        }
+        long start = Metrics.start();
+        try {
+            FileOutputStream out = new FileOutputStream(mFile, true);
+            try {
+                out.write(edits);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            Metrics.JOURNAL_APPEND.end(start);
+        } catch (IOException e) {
+            Log.w(TAG, "Appending to " + mFile + " failed", e);
+            mBroken = true;
+        }
+    }
+
+    /**
+     * @return the fields the journal started from and the fields after its
+     *         edits, or null if there is no journal or its start can't be
+     *         read
+     */
+    private String[][] read() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readByte() != FORMAT) {
+                return null;
+            }
+            String[] start = new String[in.readByte()];
+            StringBuilder[] fields = new StringBuilder[start.length];
+            for (int i = 0; i < start.length; i++) {
+                start[i] = readText(in);
+                fields[i] = new StringBuilder(start[i]);
+            }
+            int edits = replay(in, fields);
+            Log.i(TAG, "Replayed " + edits + " edits from " + mFile);
+            String[] end = new String[fields.length];
+            for (int i = 0; i < end.length; i++) {
+                end[i] = fields[i].toString();
+            }
+            return new String[][] {start, end};
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Reading " + mFile + " failed", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing was written
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply edits until the end of the journal, or one that was cut short
+     * or doesn't fit the text
+     *
+     * @return the edits applied
+     */
+    private int replay(DataInputStream in, StringBuilder[] fields) throws IOException {
+        CRC32 crc = new CRC32();
+        int count = 0;
+        try {
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || length > MAX_RECORD) {
+                    return count;
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum) {
+                    return count;
+                }
+                DataInputStream edit = new DataInputStream(new ByteArrayInputStream(record));
+                int field = edit.readByte();
+                int start = edit.readInt();
+                int deleted = edit.readInt();
+                String inserted = readText(edit);
+                if (field < 0 || field >= fields.length || start < 0 || deleted < 0
+                        || start + deleted > fields[field].length()) {
+                    return count;
+                }
+                fields[field].replace(start, start + deleted, inserted);
+                count++;
+            }
+        } catch (EOFException e) {
+            return count;
+        }
+    }
+
+    /**
+     * Text is kept as UTF-16, so an edit that splits a surrogate pair still
+     * replays to the same chars
+     */
+    private static void writeText(DataOutputStream out, CharSequence text) throws IOException {
+        int length = text.length();
+        out.writeInt(length);
+        for (int i = 0; i < length; i++) {
+            out.writeChar(text.charAt(i));
+        }
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_RECORD) {
+            throw new IOException("Bad text length " + length);
+        }
+        char[] text = new char[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = in.readChar();
+        }
+        return new String(text);
+    }
+}
@@ -0,0 +1,264 @@
+package com.williamgrose.android.songscribbler;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and counters for the places users notice being slow:
+ * database calls, autoscroll frames and activity startup. They are shown
+ * and exported by SongStats.
+ *
+ * Recording only touches atomics that exist from the start, so it takes no
+ * lock and allocates nothing, and can be done from any thread. It is off
+ * until turned on from the stats screen; while it is off start returns 0,
+ * which end and the other recording calls ignore, so an instrumented call
+ * costs one volatile read.
+ */
+public final class Metrics {
+
+    private static final String PREFS = "metrics";
+    private static final String PREF_ENABLED = "enabled";
+
+    private static volatile boolean sEnabled = false;
+    private static boolean sInitialised = false;
+
+    /**
+     * Times recorded in microseconds, in buckets a quarter of a power of two
+     * wide, so percentiles read from them are within 25%
+     */
+    public static final class Histogram {
+        /** Four buckets per power of two, up to more than a day */
+        static final int BUCKETS = 4 * 36;
+
+        public final String name;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        Histogram(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Record the time since startNanos, from Metrics.start
+         */
+        public void end(long startNanos) {
+            if (startNanos != 0) {
+                record((System.nanoTime() - startNanos) / 1000);
+            }
+        }
+
+        public void record(long micros) {
+            if (!sEnabled) {
+                return;
+            }
+            if (micros < 0) {
+                micros = 0;
+            }
+            mBuckets.incrementAndGet(bucket(micros));
+            mCount.incrementAndGet();
+            mSum.addAndGet(micros);
+            long max = mMax.get();
+            while (micros > max && !mMax.compareAndSet(max, micros)) {
+                max = mMax.get();
+            }
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getMeanMicros() {
+            long count = mCount.get();
+            return count > 0 ? mSum.get() / count : 0;
+        }
+
+        public long getMaxMicros() {
+            return mMax.get();
+        }
+
+        /**
+         * @param fraction e.g. 0.99 for the 99th percentile
+         * @return the upper bound of the bucket the percentile falls in, or
+         *         0 if nothing has been recorded
+         */
+        public long getPercentileMicros(double fraction) {
+            long[] counts = getBuckets();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long wanted = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= wanted) {
+                    return Math.min(lowerBound(i + 1) - 1, mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        /**
+         * @return a copy of the count in each bucket, see lowerBound
+         */
+        public long[] getBuckets() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = mBuckets.get(i);
+            }
+            return counts;
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                mBuckets.set(i, 0);
+            }
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        static int bucket(long micros) {
+            if (micros < 4) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int bucket = 4 * (exponent - 1) + (int) ((micros >> (exponent - 2)) & 3);
+            return Math.min(bucket, BUCKETS - 1);
+        }
+
+        /**
+         * @return the smallest time, in microseconds, that goes in bucket
+         */
+        static long lowerBound(int bucket) {
+            if (bucket < 4) {
+                return bucket;
+            }
+            int exponent = bucket / 4 + 1;
+            return (4L + bucket % 4) << (exponent - 2);
+        }
+    }
+
+    /**
+     * A running total
+     */
+    public static final class Counter {
+        public final String name;
+        private final AtomicLong mCount = new AtomicLong();
+
+        Counter(String name) {
+            this.name = name;
+        }
+
+        public void add(long n) {
+            if (sEnabled) {
+                mCount.addAndGet(n);
+            }
+        }
+
+        public long get() {
+            return mCount.get();
+        }
+
+        void reset() {
+            mCount.set(0);
+        }
+    }
+
+    public static final Histogram DB_FETCH_SONG = new Histogram("db.fetchSong");
+    public static final Histogram DB_FETCH_SONG_TITLES = new Histogram("db.fetchSongTitles");
+    /** Section counts and the position of a row, for the fast scroller */
+    public static final Histogram DB_SONG_SECTIONS = new Histogram("db.songSections");
+    public static final Histogram DB_SEARCH_SONGS = new Histogram("db.searchSongs");
+    public static final Histogram DB_FETCH_PARSE = new Histogram("db.fetchParse");
+    public static final Histogram DB_SAVE_PARSE = new Histogram("db.saveParse");
+    public static final Histogram DB_CREATE_SONG = new Histogram("db.createSong");
+    public static final Histogram DB_UPDATE_SONG = new Histogram("db.updateSong");
+    public static final Histogram DB_UPDATE_SONG_FIELDS = new Histogram("db.updateSongFields");
+    public static final Histogram DB_DELETE_SONG = new Histogram("db.deleteSong");
+    public static final Histogram DB_SETLISTS = new Histogram("db.setlists");
+    public static final Histogram DB_REVISIONS = new Histogram("db.revisions");
+    public static final Histogram DB_IMPORT = new Histogram("db.importSongs");
+    public static final Histogram DB_BACKUP = new Histogram("db.backupSongs");
+    public static final Histogram DB_RESTORE = new Histogram("db.restoreSongs");
+    public static final Histogram DB_MIGRATE = new Histogram("db.migrateNextBatch");
+    /** A whole sync with the server, network included */
+    public static final Histogram SYNC = new Histogram("sync");
+    /** Writing a batch of typed edits to SongEdit's journal */
+    public static final Histogram JOURNAL_APPEND = new Histogram("journal.append");
+    /** Time from asking for a song to having it parsed and rendered */
+    public static final Histogram PREPARE_SONG = new Histogram("prepareSong");
+    /** How late each autoscroll step ran after the time it was posted for */
+    public static final Histogram SCROLL_FRAME_LATENESS = new Histogram("scroll.frameLateness");
+    public static final Counter SCROLL_FRAMES = new Counter("scroll.frames");
+    /** Frames an autoscroll step ran too late to be drawn in */
+    public static final Counter SCROLL_DROPPED_FRAMES = new Counter("scroll.droppedFrames");
+    /** From onCreate to the activity first showing its content */
+    public static final Histogram STARTUP_LIST = new Histogram("startup.SongScribbler");
+    public static final Histogram STARTUP_EDIT = new Histogram("startup.SongEdit");
+    public static final Histogram STARTUP_VIEW = new Histogram("startup.SongView");
+
+    static final Histogram[] HISTOGRAMS = {
+            DB_FETCH_SONG, DB_FETCH_SONG_TITLES, DB_SONG_SECTIONS, DB_SEARCH_SONGS,
+            DB_FETCH_PARSE, DB_SAVE_PARSE, DB_CREATE_SONG, DB_UPDATE_SONG,
+            DB_UPDATE_SONG_FIELDS, DB_DELETE_SONG, DB_SETLISTS, DB_REVISIONS, DB_IMPORT,
+            DB_BACKUP, DB_RESTORE, DB_MIGRATE, SYNC, JOURNAL_APPEND, PREPARE_SONG,
+            SCROLL_FRAME_LATENESS, STARTUP_LIST, STARTUP_EDIT, STARTUP_VIEW};
+    static final Counter[] COUNTERS = {SCROLL_FRAMES, SCROLL_DROPPED_FRAMES};
+
+    private Metrics() {
+    }
+
+    /**
+     * Pick up whether recording was left on. Called at the start of each
+     * activity's onCreate, as any of them can be the first to run.
+     */
+    public static synchronized void init(Context context) {
+        if (!sInitialised) {
+            sInitialised = true;
+            sEnabled = prefs(context).getBoolean(PREF_ENABLED, false);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static synchronized void setEnabled(Context context, boolean enabled) {
+        sEnabled = enabled;
+        prefs(context).edit().putBoolean(PREF_ENABLED, enabled).commit();
+    }
+
+    /**
+     * @return the time to pass to Histogram.end, or 0 if not recording
+     */
+    public static long start() {
+        if (!sEnabled) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        return now != 0 ? now : 1;
+    }
+
+    public static void reset() {
+        for (Histogram histogram : HISTOGRAMS) {
+            histogram.reset();
+        }
+        for (Counter counter : COUNTERS) {
+            counter.reset();
+        }
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS,
+                Context.MODE_PRIVATE);
+    }
+}
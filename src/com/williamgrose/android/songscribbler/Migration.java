@@ -0,0 +1,165 @@
+package com.williamgrose.android.songscribbler;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * One step in the history of the database schema, taking it to version.
+ *
+ * A step comes in two halves. upgradeSchema makes the structural changes
+ * (tables, columns, indexes, triggers) and is run from
+ * SQLiteOpenHelper.onUpgrade, so it must not walk every row of a big table.
+ * Any per-row work goes in migrateRows, which is run after the database is
+ * open, a bounded batch at a time, each batch in its own transaction.
+ *
+ * The rows still to do are recorded in the migrations table in the same
+ * transaction as each batch, so a process killed halfway through carries on
+ * after the last batch that committed. A step only covers the rows that
+ * existed when its schema half ran; anything written after that already
+ * goes through the new schema.
+ */
+public abstract class Migration {
+
+    /**
+     * Told how far a row migration has got, measured in rowIds
+     */
+    public interface ProgressListener {
+        void onProgress(int version, long done, long total);
+    }
+
+    private static final String STATE_TABLE = "migrations";
+    static final String STATE_CREATE =
+            "create table if not exists " + STATE_TABLE + " (version integer primary key, "
+                    + "last_rowid integer not null, end_rowid integer not null);";
+
+    final int version;
+
+    Migration(int version) {
+        this.version = version;
+    }
+
+    /**
+     * Make the schema changes for this version
+     */
+    abstract void upgradeSchema(SQLiteDatabase db);
+
+    /**
+     * @return the table whose rows migrateRows works through, or null if this
+     *         step has no per-row work
+     */
+    String rowTable() {
+        return null;
+    }
+
+    /**
+     * Migrate the rows of rowTable with rowIds after afterRowId, up to and
+     * including endRowId, at most limit of them.
+     *
+     * @return the last rowId migrated, or afterRowId if there were none
+     */
+    long migrateRows(SQLiteDatabase db, long afterRowId, long endRowId, int limit) {
+        return afterRowId;
+    }
+
+    /**
+     * Run the schema half of every step after oldVersion, in order, and
+     * record the row work they leave to do. Called from onUpgrade.
+     */
+    static void upgrade(SQLiteDatabase db, Migration[] steps, int oldVersion, int newVersion) {
+        db.execSQL(STATE_CREATE);
+        for (Migration step : steps) {
+            if (step.version <= oldVersion || step.version > newVersion) {
+                continue;
+            }
+            step.upgradeSchema(db);
+            scheduleRows(db, step);
+        }
+    }
+
+    /**
+     * Run the row half of the step for version again, over every row there
+     * is now, for row data that has gone stale without the schema changing
+     */
+    static void rerunRows(SQLiteDatabase db, Migration[] steps, int version) {
+        db.execSQL(STATE_CREATE);
+        for (Migration step : steps) {
+            if (step.version == version) {
+                scheduleRows(db, step);
+            }
+        }
+    }
+
+    private static void scheduleRows(SQLiteDatabase db, Migration step) {
+        String table = step.rowTable();
+        if (table != null) {
+            long endRowId = DatabaseUtils.longForQuery(db,
+                    "select ifnull(max(rowid), 0) from " + table, null);
+            db.execSQL("insert or replace into " + STATE_TABLE
+                    + " (version, last_rowid, end_rowid) values (?, 0, ?)",
+                    new Object[] {step.version, endRowId});
+        }
+    }
+
+    /**
+     * @return whether the row half of the step for version is still to finish
+     */
+    static boolean pending(SQLiteDatabase db, int version) {
+        return DatabaseUtils.longForQuery(db, "select count(*) from " + STATE_TABLE
+                + " where version = ?", new String[] {Integer.toString(version)}) > 0;
+    }
+
+    /**
+     * Run the next batch of the oldest unfinished row migration
+     *
+     * @return true if there may be more to do, false once all are done
+     */
+    static boolean migrateBatch(SQLiteDatabase db, Migration[] steps, int batchSize,
+            ProgressListener listener) {
+        int version;
+        long lastRowId;
+        long endRowId;
+        Cursor state = db.rawQuery("select version, last_rowid, end_rowid from "
+                + STATE_TABLE + " order by version limit 1", null);
+        try {
+            if (!state.moveToFirst()) {
+                return false;
+            }
+            version = state.getInt(0);
+            lastRowId = state.getLong(1);
+            endRowId = state.getLong(2);
+        } finally {
+            state.close();
+        }
+
+        Migration step = null;
+        for (Migration candidate : steps) {
+            if (candidate.version == version) {
+                step = candidate;
+            }
+        }
+
+        long migrated = endRowId;
+        db.beginTransaction();
+        try {
+            if (step != null && lastRowId < endRowId) {
+                migrated = step.migrateRows(db, lastRowId, endRowId, batchSize);
+            }
+            if (migrated >= endRowId || migrated == lastRowId) {
+                db.execSQL("delete from " + STATE_TABLE + " where version = ?",
+                        new Object[] {version});
+                migrated = endRowId;
+            } else {
+                db.execSQL("update " + STATE_TABLE + " set last_rowid = ? where version = ?",
+                        new Object[] {migrated, version});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (listener != null) {
+            listener.onProgress(version, migrated, endRowId);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,193 @@
+package com.williamgrose.android.songscribbler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A song broken down by SongParser into sections of lines, each line being
+ * its lyrics and the chords played over it. A chord is anchored to the
+ * character of the lyrics it falls on, so the song can be laid out (or
+ * transposed) without going back to the text it came from.
+ *
+ * Parsed songs are immutable, which lets one parse be shared by everything
+ * showing the song. They are stored alongside the song as a blob, see
+ * toBytes and fromBytes.
+ */
+public final class ParsedSong {
+
+    public static final class Line {
+        static final int[] NO_OFFSETS = new int[0];
+        static final Chord[] NO_CHORDS = new Chord[0];
+
+        /** The lyrics, without any chords; empty for a line of chords only */
+        public final String text;
+        /** Where in text each chord falls, in increasing order */
+        public final int[] chordOffsets;
+        public final Chord[] chords;
+
+        Line(String text, int[] chordOffsets, Chord[] chords) {
+            this.text = text;
+            this.chordOffsets = chordOffsets;
+            this.chords = chords;
+        }
+    }
+
+    public static final class Section {
+        /** "Chorus", "Verse 2" and so on, or null for an unnamed stanza */
+        public final String name;
+        public final Line[] lines;
+        /** Beats a minute through this section, or 0 for the song's tempo */
+        public final int tempo;
+        /** How long to hold at the top of the section before playing it */
+        public final int pauseMillis;
+
+        Section(String name, Line[] lines, int tempo, int pauseMillis) {
+            this.name = name;
+            this.lines = lines;
+            this.tempo = tempo;
+            this.pauseMillis = pauseMillis;
+        }
+    }
+
+    /** Format of the stored blob, bumped whenever it changes */
+    private static final int FORMAT = 2;
+
+    /** SongParser.hash of the text this was parsed from */
+    public final long hash;
+    /** The song's chords field, as a line of chords with no lyrics */
+    public final Line chordLine;
+    public final Section[] sections;
+    /** How long the song plays for, or 0 if not given */
+    public final int durationMillis;
+    /** Beats a minute, or 0 if not given */
+    public final int tempo;
+    public final int beatsPerBar;
+
+    ParsedSong(long hash, Line chordLine, Section[] sections, int durationMillis, int tempo,
+            int beatsPerBar) {
+        this.hash = hash;
+        this.chordLine = chordLine;
+        this.sections = sections;
+        this.durationMillis = durationMillis;
+        this.tempo = tempo;
+        this.beatsPerBar = beatsPerBar;
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(FORMAT);
+            writeLine(out, chordLine);
+            out.writeInt(durationMillis);
+            out.writeInt(tempo);
+            out.writeInt(beatsPerBar);
+            out.writeInt(sections.length);
+            for (Section section : sections) {
+                out.writeBoolean(section.name != null);
+                if (section.name != null) {
+                    writeString(out, section.name);
+                }
+                out.writeInt(section.tempo);
+                out.writeInt(section.pauseMillis);
+                out.writeInt(section.lines.length);
+                for (Line line : section.lines) {
+                    writeLine(out, line);
+                }
+            }
+        } catch (IOException e) {
+            // Can't happen writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IOException if data is damaged or was stored in another format,
+     *         in which case the song should just be parsed again
+     */
+    public static ParsedSong fromBytes(long hash, byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != FORMAT) {
+            throw new IOException("Stored parse is in an old format");
+        }
+        Line chordLine = readLine(in);
+        int durationMillis = in.readInt();
+        int tempo = in.readInt();
+        int beatsPerBar = in.readInt();
+        Section[] sections = new Section[readCount(in)];
+        for (int i = 0; i < sections.length; i++) {
+            String name = in.readBoolean() ? readString(in) : null;
+            int sectionTempo = in.readInt();
+            int pauseMillis = in.readInt();
+            Line[] lines = new Line[readCount(in)];
+            for (int j = 0; j < lines.length; j++) {
+                lines[j] = readLine(in);
+            }
+            sections[i] = new Section(name, lines, sectionTempo, pauseMillis);
+        }
+        return new ParsedSong(hash, chordLine, sections, durationMillis, tempo, beatsPerBar);
+    }
+
+    private static void writeLine(DataOutputStream out, Line line) throws IOException {
+        writeString(out, line.text);
+        out.writeInt(line.chords.length);
+        for (int i = 0; i < line.chords.length; i++) {
+            Chord chord = line.chords[i];
+            out.writeInt(line.chordOffsets[i]);
+            out.writeByte(chord.root);
+            out.writeByte(chord.bass);
+            out.writeByte((chord.flat ? 1 : 0) | (chord.bassFlat ? 2 : 0));
+            writeString(out, chord.suffix);
+        }
+    }
+
+    private static Line readLine(DataInputStream in) throws IOException {
+        String text = readString(in);
+        int count = readCount(in);
+        if (count == 0) {
+            return new Line(text, Line.NO_OFFSETS, Line.NO_CHORDS);
+        }
+        int[] offsets = new int[count];
+        Chord[] chords = new Chord[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = in.readInt();
+            int root = in.readByte();
+            int bass = in.readByte();
+            int flags = in.readByte();
+            if (root < 0 || root > 11 || bass < Chord.NO_BASS || bass > 11) {
+                throw new IOException("Stored parse is corrupt");
+            }
+            chords[i] = new Chord(root, (flags & 1) != 0, readString(in), bass,
+                    (flags & 2) != 0);
+        }
+        return new Line(text, offsets, chords);
+    }
+
+    /**
+     * Strings are length prefixed UTF-8 rather than writeUTF, which can't
+     * hold a line longer than 64K
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readCount(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available()) {
+            throw new IOException("Stored parse is corrupt");
+        }
+        return count;
+    }
+}
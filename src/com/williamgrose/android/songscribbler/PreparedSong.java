@@ -0,0 +1,48 @@
+package com.williamgrose.android.songscribbler;
+
+import java.util.ArrayList;
+
+/**
+ * Everything SongView needs to put a song on screen: the song, its parse,
+ * and its body rendered into blocks at the song's saved transposition. A
+ * prepared song can be made on a background thread ahead of time, so that
+ * showing it is only a matter of handing the blocks to the body view.
+ */
+public final class PreparedSong {
+
+    public final Song song;
+    public final ParsedSong parsed;
+    /** The body, from SongRenderer.renderBlocks */
+    public final String[] blocks;
+    /** Transposer.renderedHash of the blocks */
+    public final long renderedHash;
+    public final String chordLine;
+    /** Timing for autoscroll, or null to scroll at the song's speed */
+    public final ScrollTimeline timeline;
+
+    private PreparedSong(Song song, ParsedSong parsed, String[] blocks, long renderedHash,
+            String chordLine, ScrollTimeline timeline) {
+        this.song = song;
+        this.parsed = parsed;
+        this.blocks = blocks;
+        this.renderedHash = renderedHash;
+        this.chordLine = chordLine;
+        this.timeline = timeline;
+    }
+
+    /**
+     * Render a parsed song at its transposition
+     *
+     * @param blockLines lyric lines per block, see SongRenderer.renderBlocks
+     */
+    public static PreparedSong prepare(Song song, ParsedSong parsed, int blockLines) {
+        Transposer transposer = new Transposer();
+        transposer.set(song.transpose, song.capo, parsed);
+        ArrayList<String> blocks = new ArrayList<String>();
+        SongRenderer.renderBlocks(parsed, transposer, blockLines, blocks, new StringBuilder());
+        return new PreparedSong(song, parsed, blocks.toArray(new String[blocks.size()]),
+                transposer.renderedHash(parsed.hash),
+                SongRenderer.renderChordLine(parsed, transposer),
+                ScrollTimeline.build(parsed, blockLines));
+    }
+}
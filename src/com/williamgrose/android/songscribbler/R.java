@@ -16,35 +16,99 @@ public final class R {
     public static final class id {
         public static final int body=0x7f050002;
         public static final int chords=0x7f050001;
+        public static final int flag_conflicts=0x7f05000e;
         public static final int scroll_body=0x7f050005;
         public static final int scroll_chords=0x7f050003;
         public static final int scroll_speed=0x7f050004;
+        public static final int search=0x7f050007;
+        public static final int server=0x7f05000d;
+        public static final int snippetRow=0x7f050008;
+        public static final int stats=0x7f05000c;
         public static final int textRow=0x7f050006;
         public static final int title=0x7f050000;
+        public static final int transpose_down=0x7f050009;
+        public static final int transpose_label=0x7f05000a;
+        public static final int transpose_up=0x7f05000b;
     }
     public static final class layout {
         public static final int song_edit=0x7f030000;
         public static final int song_view=0x7f030001;
         public static final int songs_list=0x7f030002;
         public static final int songs_row=0x7f030003;
+        public static final int songs_search_row=0x7f030004;
+        public static final int stats=0x7f030005;
+        public static final int sync_settings=0x7f030006;
     }
     public static final class string {
         public static final int activity_edit_name=0x7f040001;
         public static final int activity_list_name=0x7f040000;
+        public static final int activity_stats_name=0x7f04002d;
         public static final int activity_view_name=0x7f040002;
+        public static final int backup_done=0x7f040018;
+        public static final int benchmark_done=0x7f04002c;
+        public static final int benchmark_started=0x7f04002b;
+        public static final int capo_fret=0x7f040022;
+        public static final int capo_none=0x7f040021;
+        public static final int delete_confirm=0x7f040037;
         public static final int edit_body=0x7f04000a;
         public static final int edit_chords=0x7f040009;
         public static final int edit_song=0x7f04000b;
         public static final int edit_title=0x7f040008;
+        public static final int history_none=0x7f040029;
+        public static final int history_unreadable=0x7f04002a;
+        public static final int import_done=0x7f040015;
+        public static final int import_missing=0x7f040013;
+        public static final int import_started=0x7f040014;
+        public static final int journal_recovered=0x7f040045;
+        public static final int menu_add_to_setlist=0x7f040023;
+        public static final int menu_backup=0x7f040016;
+        public static final int menu_cancel=0x7f040036;
+        public static final int menu_capo=0x7f040020;
         public static final int menu_delete=0x7f040005;
+        public static final int menu_delete_selected=0x7f040035;
+        public static final int menu_history=0x7f040028;
+        public static final int menu_import=0x7f040012;
         public static final int menu_insert=0x7f040004;
+        public static final int menu_play_setlist=0x7f040024;
+        public static final int menu_restore=0x7f040017;
         public static final int menu_save=0x7f040006;
         public static final int menu_scroll_reset=0x7f04000e;
         public static final int menu_scroll_start=0x7f04000c;
         public static final int menu_scroll_stop=0x7f04000d;
+        public static final int menu_stats_disable=0x7f040030;
+        public static final int menu_stats_enable=0x7f04002f;
+        public static final int menu_stats_export=0x7f040032;
+        public static final int menu_stats_reset=0x7f040031;
+        public static final int menu_sync=0x7f040038;
         public static final int menu_view=0x7f040007;
         public static final int no_songs=0x7f040003;
+        public static final int restore_confirm=0x7f04001a;
+        public static final int restore_done=0x7f04001b;
+        public static final int restore_missing=0x7f040019;
         public static final int scroll_speed=0x7f04000f;
         public static final int scroll_speed_prompt=0x7f040010;
+        public static final int search_hint=0x7f040011;
+        public static final int setlist_added=0x7f040026;
+        public static final int setlist_new=0x7f040025;
+        public static final int setlist_none=0x7f040027;
+        public static final int stats_disabled=0x7f04002e;
+        public static final int stats_export_failed=0x7f040034;
+        public static final int stats_exported=0x7f040033;
+        public static final int sync_conflict=0x7f040042;
+        public static final int sync_done=0x7f04003e;
+        public static final int sync_done_conflicts=0x7f04003f;
+        public static final int sync_failed=0x7f040040;
+        public static final int sync_flag_conflicts=0x7f04003a;
+        public static final int sync_keep_mine=0x7f040043;
+        public static final int sync_now=0x7f04003b;
+        public static final int sync_off=0x7f04003c;
+        public static final int sync_server_hint=0x7f040039;
+        public static final int sync_started=0x7f04003d;
+        public static final int sync_stopped=0x7f040041;
+        public static final int sync_use_theirs=0x7f040044;
+        public static final int transpose_capo_label=0x7f04001f;
+        public static final int transpose_down=0x7f04001c;
+        public static final int transpose_label=0x7f04001e;
+        public static final int transpose_up=0x7f04001d;
     }
 }
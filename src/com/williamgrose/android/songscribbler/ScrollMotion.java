@@ -0,0 +1,137 @@
+package com.williamgrose.android.songscribbler;
+
+/**
+ * Time based scroll position. The position moves at a fractional velocity in
+ * pixels per second and is advanced by however much time has really passed
+ * between steps, so a late frame moves further instead of slowing the song
+ * down. Time spent paused is not counted.
+ *
+ * When following a timeline the elapsed time is instead kept from when
+ * scrolling started, so that no stall, however long, puts the song behind
+ * the music; the position is then left to the caller.
+ *
+ * Plain java so that the stepping can be exercised away from a device.
+ */
+public class ScrollMotion {
+
+    /**
+     * Longest step taken in one go at a free speed. A stall longer than this
+     * (the process being descheduled, say) is treated as a pause rather than
+     * a jump.
+     */
+    public static final long MAX_STEP_MILLIS = 250;
+
+    private float mVelocity;
+    private float mPosition;
+    private long mElapsedMillis;
+    private long mLastStepMillis = -1;
+    /** When the elapsed time was 0, on the clock given to start */
+    private long mStartMillis;
+    private boolean mKeepingTime = false;
+
+    /**
+     * @param velocity scroll speed in pixels per second
+     */
+    public void setVelocity(float velocity) {
+        mVelocity = velocity;
+    }
+
+    public float getVelocity() {
+        return mVelocity;
+    }
+
+    public void setPosition(float position) {
+        mPosition = position;
+    }
+
+    public float getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * @return milliseconds spent running, excluding any time paused
+     */
+    public long getElapsedMillis() {
+        return mElapsedMillis;
+    }
+
+    public void setElapsedMillis(long elapsedMillis) {
+        mElapsedMillis = elapsedMillis;
+        mStartMillis = mLastStepMillis - elapsedMillis;
+    }
+
+    /**
+     * @param keepingTime whether the elapsed time is kept from the start,
+     *        stalls and all, as following a timeline needs, rather than
+     *        stepped at a free speed
+     */
+    public void setKeepingTime(boolean keepingTime) {
+        mKeepingTime = keepingTime;
+    }
+
+    public boolean isRunning() {
+        return mLastStepMillis >= 0;
+    }
+
+    /**
+     * Start counting time from now
+     */
+    public void start(long nowMillis) {
+        mLastStepMillis = nowMillis;
+        mStartMillis = nowMillis - mElapsedMillis;
+    }
+
+    /**
+     * Stop counting time until the next start
+     */
+    public void pause() {
+        mLastStepMillis = -1;
+    }
+
+    /**
+     * Rewind to the top with no elapsed time
+     */
+    public void reset() {
+        mPosition = 0;
+        setElapsedMillis(0);
+    }
+
+    /**
+     * Advance the position by the time passed since the previous step
+     *
+     * @param nowMillis current time, on the same clock given to start
+     * @return the new position in pixels
+     */
+    public float step(long nowMillis) {
+        if (mLastStepMillis < 0) {
+            return mPosition;
+        }
+        long delta = nowMillis - mLastStepMillis;
+        mLastStepMillis = nowMillis;
+        if (delta <= 0) {
+            return mPosition;
+        }
+        if (mKeepingTime) {
+            mElapsedMillis = nowMillis - mStartMillis;
+            return mPosition;
+        }
+        if (delta > MAX_STEP_MILLIS) {
+            delta = MAX_STEP_MILLIS;
+        }
+        mElapsedMillis += delta;
+        mPosition += mVelocity * delta / 1000f;
+        return mPosition;
+    }
+
+    /**
+     * @return milliseconds until the position next crosses a whole pixel, or
+     *         Long.MAX_VALUE when not moving
+     */
+    public long millisToNextPixel() {
+        if (mVelocity <= 0) {
+            return Long.MAX_VALUE;
+        }
+        float remaining = (float) Math.floor(mPosition) + 1f - mPosition;
+        return (long) Math.ceil(remaining * 1000f / mVelocity);
+    }
+}
@@ -0,0 +1,193 @@
+package com.williamgrose.android.songscribbler;
+
+/**
+ * Where a song should be scrolled to at each moment of playing it, worked
+ * out from the timing written into the song: its {duration} or {tempo},
+ * and the {tempo} and {pause} of each section (see SongParser).
+ *
+ * The timeline is a list of keyframes, each a time and a position, with the
+ * position moving linearly between them. A position is a block index (see
+ * SongRenderer.renderBlocks) plus how far through that block, rather than
+ * pixels, so the same timeline holds however the text is broken into lines
+ * at the current width and text size; SongBodyView turns it into pixels
+ * against its measurement. There is a keyframe at the start of every block
+ * and at each end of a pause.
+ *
+ * Built once per parse; looking up a time or a position is a binary search
+ * over the keyframes and allocates nothing. Plain java like ScrollMotion.
+ */
+public final class ScrollTimeline {
+
+    /** A line of lyrics is taken to be two bars long */
+    static final int BARS_PER_LINE = 2;
+
+    /** Keyframe times in milliseconds, never decreasing */
+    private final long[] mTimes;
+    /** Keyframe positions, never decreasing */
+    private final float[] mPositions;
+
+    private ScrollTimeline(long[] times, float[] positions) {
+        mTimes = times;
+        mPositions = positions;
+    }
+
+    /**
+     * @param blockLines lyric lines per block, as given to renderBlocks
+     * @return the song's timeline, or null if the song doesn't say enough
+     *         about its timing to have one
+     */
+    public static ScrollTimeline build(ParsedSong song, int blockLines) {
+        // Lines played at the song's tempo, or in whatever time the song's
+        // duration leaves once sections with a tempo of their own and
+        // pauses are taken off
+        long fixedMillis = 0;
+        int freeLines = 0;
+        int blockCount = 0;
+        for (ParsedSong.Section section : song.sections) {
+            int lines = Math.max(section.lines.length, 1);
+            fixedMillis += section.pauseMillis;
+            if (section.tempo > 0) {
+                fixedMillis += lines * lineMillis(section.tempo, song.beatsPerBar);
+            } else {
+                freeLines += lines;
+            }
+            blockCount += blocks(section, blockLines);
+        }
+        double freeLineMillis;
+        if (song.tempo > 0) {
+            freeLineMillis = lineMillis(song.tempo, song.beatsPerBar);
+        } else if (song.durationMillis > 0) {
+            freeLineMillis = freeLines > 0
+                    ? Math.max(song.durationMillis - fixedMillis, 0) / (double) freeLines : 0;
+        } else if (freeLines == 0 && fixedMillis > 0) {
+            freeLineMillis = 0;
+        } else {
+            return null;
+        }
+
+        long[] times = new long[song.sections.length + blockCount + 1];
+        float[] positions = new float[times.length];
+        int count = 1;
+        double time = 0;
+        int block = 0;
+        for (ParsedSong.Section section : song.sections) {
+            if (section.pauseMillis > 0) {
+                time += section.pauseMillis;
+                times[count] = Math.round(time);
+                positions[count] = block;
+                count++;
+            }
+            double perLine = section.tempo > 0
+                    ? lineMillis(section.tempo, song.beatsPerBar) : freeLineMillis;
+            int remaining = Math.max(section.lines.length, 1);
+            for (int i = blocks(section, blockLines); i > 0; i--) {
+                int lines = Math.min(remaining, blockLines);
+                remaining -= lines;
+                time += lines * perLine;
+                block++;
+                times[count] = Math.round(time);
+                positions[count] = block;
+                count++;
+            }
+        }
+        long[] trimmedTimes = new long[count];
+        float[] trimmedPositions = new float[count];
+        System.arraycopy(times, 0, trimmedTimes, 0, count);
+        System.arraycopy(positions, 0, trimmedPositions, 0, count);
+        return new ScrollTimeline(trimmedTimes, trimmedPositions);
+    }
+
+    /**
+     * @return the blocks renderBlocks splits a section into
+     */
+    private static int blocks(ParsedSong.Section section, int blockLines) {
+        return Math.max((section.lines.length + blockLines - 1) / blockLines, 1);
+    }
+
+    private static double lineMillis(int tempo, int beatsPerBar) {
+        return 60000.0 * beatsPerBar * BARS_PER_LINE / tempo;
+    }
+
+    public long getDurationMillis() {
+        return mTimes[mTimes.length - 1];
+    }
+
+    /**
+     * @return the position to be at millis into the song
+     */
+    public float positionAt(long millis) {
+        int i = keyframeAt(millis);
+        if (i == mTimes.length - 1) {
+            return mPositions[i];
+        }
+        long span = mTimes[i + 1] - mTimes[i];
+        if (span <= 0) {
+            return mPositions[i + 1];
+        }
+        return mPositions[i] + (mPositions[i + 1] - mPositions[i]) * (millis - mTimes[i]) / span;
+    }
+
+    /**
+     * @return the earliest time the song is at position, so carrying on from
+     *         the top of a section still holds for its pause
+     */
+    public long timeAt(float position) {
+        if (position <= mPositions[0]) {
+            return 0;
+        }
+        int last = mTimes.length - 1;
+        if (position >= mPositions[last]) {
+            return mTimes[last];
+        }
+        // The first keyframe at or past position
+        int low = 1;
+        int high = last;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mPositions[mid] >= position) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        float span = mPositions[low] - mPositions[low - 1];
+        if (span <= 0 || mPositions[low] == position) {
+            return mTimes[low];
+        }
+        return mTimes[low - 1]
+                + (long) ((mTimes[low] - mTimes[low - 1]) * (position - mPositions[low - 1]) / span);
+    }
+
+    /**
+     * @return 0 if the position is moving at millis, how long until it
+     *         moves again if it is held for a pause, or Long.MAX_VALUE once
+     *         the song is over
+     */
+    public long millisToNextMove(long millis) {
+        int i = keyframeAt(millis);
+        if (i == mTimes.length - 1) {
+            return Long.MAX_VALUE;
+        }
+        if (mPositions[i + 1] == mPositions[i]) {
+            return mTimes[i + 1] - millis;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the last keyframe at or before millis
+     */
+    private int keyframeAt(long millis) {
+        int low = 0;
+        int high = mTimes.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mTimes[mid] <= millis) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+}
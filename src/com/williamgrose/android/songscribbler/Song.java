@@ -0,0 +1,68 @@
+package com.williamgrose.android.songscribbler;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+/**
+ * One song as stored, read once from its row and then passed around and
+ * cached as it is. Changes make a new Song rather than altering this one,
+ * so a Song can be shared between threads and activities freely.
+ */
+public final class Song {
+
+    public final long rowId;
+    public final String title;
+    public final String body;
+    public final String chords;
+    public final int scrollspeed;
+    public final int transpose;
+    public final int capo;
+
+    public Song(long rowId, String title, String body, String chords, int scrollspeed,
+            int transpose, int capo) {
+        this.rowId = rowId;
+        this.title = title;
+        this.body = body;
+        this.chords = chords;
+        this.scrollspeed = scrollspeed;
+        this.transpose = transpose;
+        this.capo = capo;
+    }
+
+    /**
+     * @param song a cursor from SongScribblerDbAdapter.fetchSong, positioned
+     *        at the song
+     */
+    static Song fromCursor(Cursor song) {
+        return new Song(
+                song.getLong(song.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_ROWID)),
+                song.getString(song.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_TITLE)),
+                song.getString(song.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_BODY)),
+                song.getString(song.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_CHORDS)),
+                song.getInt(song.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_SCROLLSPEED)),
+                song.getInt(song.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_TRANSPOSE)),
+                song.getInt(song.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_CAPO)));
+    }
+
+    /**
+     * @param values columns to change, as given to
+     *        SongScribblerDbAdapter.updateSongFields
+     * @return this song with the values applied
+     */
+    Song with(ContentValues values) {
+        return new Song(rowId,
+                values.containsKey(SongScribblerDbAdapter.KEY_TITLE)
+                        ? values.getAsString(SongScribblerDbAdapter.KEY_TITLE) : title,
+                values.containsKey(SongScribblerDbAdapter.KEY_BODY)
+                        ? values.getAsString(SongScribblerDbAdapter.KEY_BODY) : body,
+                values.containsKey(SongScribblerDbAdapter.KEY_CHORDS)
+                        ? values.getAsString(SongScribblerDbAdapter.KEY_CHORDS) : chords,
+                values.containsKey(SongScribblerDbAdapter.KEY_SCROLLSPEED)
+                        ? values.getAsInteger(SongScribblerDbAdapter.KEY_SCROLLSPEED)
+                        : scrollspeed,
+                values.containsKey(SongScribblerDbAdapter.KEY_TRANSPOSE)
+                        ? values.getAsInteger(SongScribblerDbAdapter.KEY_TRANSPOSE) : transpose,
+                values.containsKey(SongScribblerDbAdapter.KEY_CAPO)
+                        ? values.getAsInteger(SongScribblerDbAdapter.KEY_CAPO) : capo);
+    }
+}
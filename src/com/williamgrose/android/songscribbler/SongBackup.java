@@ -0,0 +1,545 @@
+package com.williamgrose.android.songscribbler;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Backs the song library up to, and restores it from, a single archive file.
+ *
+ * The archive is a header followed by blocks of songs:
+ *
+ * <pre>
+ * header:  "SSBK"  int version  int flags (FLAG_DEFLATE)
+ * block:   int rawLength  int storedLength  int crc32(raw)  byte[storedLength]
+ * end:     int 0  int 0  int 0  long songCount
+ * </pre>
+ *
+ * followed, from version 3, by blocks of setlists with an end of their
+ * own, holding the setlist count. Each block holds whole songs, each a
+ * record of its title, body and chords (length prefixed UTF-8), scroll
+ * speed and, from version 2, transpose and capo; or whole setlists, each
+ * its name and a length prefixed list of its songs, as their positions in
+ * the archive, since restored songs get new rowIds. Each block is deflated
+ * on its own if FLAG_DEFLATE is set. Backups stream through a cursor and
+ * restores through the file a block at a time, so memory use is bounded by
+ * the block size and the largest song, whatever the size of the library.
+ *
+ * Restore checks every block's checksum before touching the database, so
+ * a damaged archive is turned away whole rather than half restored. The
+ * archive is read on the thread calling restore, and the songs handed to
+ * the writer a batch per task, so other writes get a turn between. They
+ * are held aside until the whole archive is in, then swapped into the
+ * library in one transaction; see SongScribblerDbAdapter.beginRestore. A
+ * restore that fails or is killed part way leaves the library as it was.
+ * What a restore does to the library isn't logged for SongSync: it is put
+ * back on this device only.
+ */
+public class SongBackup {
+
+    public static final String EXTENSION = ".ssbk";
+
+    private static final String TAG = "SongBackup";
+    private static final byte[] MAGIC = {'S', 'S', 'B', 'K'};
+    private static final int VERSION = 3;
+    private static final int FLAG_DEFLATE = 1;
+
+    /** Blocks are closed once they hold at least this many bytes of songs */
+    private static final int BLOCK_SIZE = 64 * 1024;
+    /** Largest block restore will accept, well past any real song */
+    private static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+    /** Songs held per transaction, and per task on the writer */
+    private static final int RESTORE_BATCH_SIZE = 200;
+
+    private byte[] mRaw = new byte[BLOCK_SIZE * 2];
+    private byte[] mStored = new byte[BLOCK_SIZE * 2];
+    private int mRawLength;
+    private final CRC32 mCrc = new CRC32();
+    /** Songs read and not yet restored */
+    private final ArrayList<Song> mBatch = new ArrayList<Song>();
+
+    private static final class Song {
+        String title;
+        String body;
+        String chords;
+        int scrollspeed;
+        int transpose;
+        int capo;
+    }
+
+    /**
+     * Write every song and setlist to file
+     *
+     * @param compress whether to deflate the blocks
+     * @return the number of songs written
+     */
+    public int backup(SongScribblerDbAdapter dbHelper, File file, boolean compress)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        int count = 0;
+        boolean written = false;
+        Cursor songs = dbHelper.fetchAllSongs();
+        try {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(compress ? FLAG_DEFLATE : 0);
+
+            int titleColumn = songs.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_TITLE);
+            int bodyColumn = songs.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_BODY);
+            int chordsColumn = songs.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_CHORDS);
+            int speedColumn = songs.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_SCROLLSPEED);
+            int transposeColumn =
+                    songs.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_TRANSPOSE);
+            int capoColumn = songs.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_CAPO);
+            int rowIdColumn = songs.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_ROWID);
+            HashMap<Long, Integer> positions = new HashMap<Long, Integer>();
+            mRawLength = 0;
+            while (songs.moveToNext()) {
+                positions.put(songs.getLong(rowIdColumn), count);
+                writeSong(songs.getString(titleColumn), songs.getString(bodyColumn),
+                        songs.getString(chordsColumn), songs.getInt(speedColumn),
+                        songs.getInt(transposeColumn), songs.getInt(capoColumn));
+                count++;
+                if (mRawLength >= BLOCK_SIZE) {
+                    writeBlock(out, deflater);
+                }
+            }
+            if (mRawLength > 0) {
+                writeBlock(out, deflater);
+            }
+            writeEnd(out, count);
+            writeSetlists(dbHelper, out, deflater, positions);
+            written = true;
+        } finally {
+            songs.close();
+            if (deflater != null) {
+                deflater.end();
+            }
+            out.close();
+            if (!written) {
+                file.delete();
+            }
+        }
+        Log.i(TAG, "Backed up " + count + " songs to " + file);
+        return count;
+    }
+
+    /**
+     * Restore the songs in file, after checking the whole archive is intact
+     *
+     * @param dbHelper an open adapter, only used on writer
+     * @param replace whether to delete the songs already in the library
+     * @return the number of songs restored
+     * @throws IOException if file can't be read or isn't an intact backup,
+     *         or the database fails, in which case the library is left alone
+     */
+    public int restore(final SongScribblerDbAdapter dbHelper, ExecutorService writer, File file,
+            final boolean replace) throws IOException {
+        long expected = read(file, null, null);
+        onWriter(writer, new Callable<Void>() {
+            public Void call() {
+                dbHelper.beginRestore();
+                return null;
+            }
+        });
+        boolean finished = false;
+        try {
+            read(file, dbHelper, writer);
+            int restored = onWriter(writer, new Callable<Integer>() {
+                public Integer call() {
+                    return dbHelper.finishRestore(replace);
+                }
+            });
+            finished = true;
+            Log.i(TAG, "Restored " + restored + " of " + expected + " songs from " + file);
+            return restored;
+        } finally {
+            if (!finished) {
+                // Not waited for, as this may be an interrupt
+                writer.submit(new Runnable() {
+                    public void run() {
+                        dbHelper.abandonRestore();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * One pass over the archive, checking every block and, if given a
+     * writer, holding its songs and setlists for the restore on it
+     *
+     * @return the number of songs in the archive
+     */
+    private long read(File file, SongScribblerDbAdapter dbHelper, ExecutorService writer)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        Inflater inflater = null;
+        boolean insert = writer != null;
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) {
+                    throw new IOException("Not a song backup");
+                }
+            }
+            int version = in.readInt();
+            if (version > VERSION) {
+                throw new IOException("Backup version " + version + " is too new");
+            }
+            if ((in.readInt() & FLAG_DEFLATE) != 0) {
+                inflater = new Inflater();
+            }
+
+            long count = 0;
+            DataInputStream songs;
+            for (int block = 0; (songs = nextBlock(in, inflater, block)) != null; block++) {
+                while (songs.available() > 0) {
+                    count++;
+                    if (!insert) {
+                        // Checking only needs the record boundaries
+                        skipString(songs);
+                        skipString(songs);
+                        skipString(songs);
+                        songs.readInt();
+                        if (version >= 2) {
+                            songs.readInt();
+                            songs.readInt();
+                        }
+                        continue;
+                    }
+                    Song song = new Song();
+                    song.title = readString(songs);
+                    song.body = readString(songs);
+                    song.chords = readString(songs);
+                    song.scrollspeed = songs.readInt();
+                    if (version >= 2) {
+                        song.transpose = songs.readInt();
+                        song.capo = songs.readInt();
+                    }
+                    mBatch.add(song);
+                    if (mBatch.size() == RESTORE_BATCH_SIZE) {
+                        writeBatch(dbHelper, writer);
+                    }
+                }
+            }
+            checkTotal(in, count, "songs");
+            if (insert) {
+                writeBatch(dbHelper, writer);
+            }
+            if (version >= 3) {
+                readSetlists(in, inflater, count, dbHelper, writer);
+            }
+            return count;
+        } catch (EOFException e) {
+            throw new IOException("Backup is truncated");
+        } finally {
+            // Songs after a bad block aren't restored
+            mBatch.clear();
+            if (inflater != null) {
+                inflater.end();
+            }
+            in.close();
+        }
+    }
+
+    /**
+     * Check the setlists that follow the songs and, if given a writer, hold
+     * them for the restore on it
+     *
+     * @param songCount songs in the archive, which the setlists refer to by
+     *        their position in it
+     */
+    private void readSetlists(DataInputStream in, Inflater inflater, long songCount,
+            final SongScribblerDbAdapter dbHelper, ExecutorService writer)
+            throws IOException {
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<int[]> entries = new ArrayList<int[]>();
+        long count = 0;
+        DataInputStream setlists;
+        for (int block = 0; (setlists = nextBlock(in, inflater, block)) != null; block++) {
+            while (setlists.available() > 0) {
+                count++;
+                String name = readString(setlists);
+                int length = setlists.readInt();
+                if (length < 0 || length > setlists.available() / 4) {
+                    throw new IOException("Backup setlist is corrupt");
+                }
+                int[] songs = new int[length];
+                for (int i = 0; i < length; i++) {
+                    songs[i] = setlists.readInt();
+                    if (songs[i] < 0 || songs[i] >= songCount) {
+                        throw new IOException("Backup setlist has a song it doesn't hold");
+                    }
+                }
+                if (writer != null) {
+                    names.add(name);
+                    entries.add(songs);
+                }
+            }
+        }
+        checkTotal(in, count, "setlists");
+        if (writer == null || names.isEmpty()) {
+            return;
+        }
+        onWriter(writer, new Callable<Void>() {
+            public Void call() {
+                dbHelper.beginTransaction();
+                try {
+                    for (int i = 0; i < names.size(); i++) {
+                        dbHelper.stageRestoredSetlist(names.get(i), entries.get(i));
+                    }
+                    dbHelper.setTransactionSuccessful();
+                } finally {
+                    dbHelper.endTransaction();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Read and check the next block of records into mRaw
+     *
+     * @return the block's records, or null at the end of them
+     */
+    private DataInputStream nextBlock(DataInputStream in, Inflater inflater, int block)
+            throws IOException {
+        int rawLength = in.readInt();
+        int storedLength = in.readInt();
+        int crc = in.readInt();
+        if (rawLength == 0) {
+            return null;
+        }
+        readBlock(in, inflater, rawLength, storedLength);
+        mCrc.reset();
+        mCrc.update(mRaw, 0, rawLength);
+        if ((int) mCrc.getValue() != crc) {
+            throw new IOException("Backup block " + block + " is corrupt");
+        }
+        return new DataInputStream(new ByteArrayInputStream(mRaw, 0, rawLength));
+    }
+
+    /**
+     * Check the count of records written after the last block
+     */
+    private static void checkTotal(DataInputStream in, long count, String records)
+            throws IOException {
+        long total = in.readLong();
+        if (total != count) {
+            throw new IOException("Backup holds " + count + " " + records + ", expected "
+                    + total);
+        }
+    }
+
+    /**
+     * Hold the songs read so far in one transaction on the writer, and wait
+     * for it
+     */
+    private void writeBatch(final SongScribblerDbAdapter dbHelper, ExecutorService writer)
+            throws IOException {
+        if (mBatch.isEmpty()) {
+            return;
+        }
+        final Song[] songs = mBatch.toArray(new Song[mBatch.size()]);
+        mBatch.clear();
+        onWriter(writer, new Callable<Void>() {
+            public Void call() {
+                dbHelper.beginTransaction();
+                try {
+                    for (Song song : songs) {
+                        dbHelper.stageRestoredSong(song.title, song.body, song.chords,
+                                song.scrollspeed, song.transpose, song.capo);
+                    }
+                    dbHelper.setTransactionSuccessful();
+                } finally {
+                    dbHelper.endTransaction();
+                }
+                return null;
+            }
+        });
+    }
+
+    private static <T> T onWriter(ExecutorService writer, Callable<T> step)
+            throws IOException {
+        try {
+            return writer.submit(step).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Restore interrupted");
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Restore database step failed", e.getCause());
+            throw new IOException("Database: " + e.getCause());
+        }
+    }
+
+    /**
+     * Write every setlist, as its name and the positions of its songs in
+     * the archive
+     */
+    private void writeSetlists(SongScribblerDbAdapter dbHelper, DataOutputStream out,
+            Deflater deflater, HashMap<Long, Integer> positions) throws IOException {
+        int count = 0;
+        Cursor setlists = dbHelper.fetchSetlists();
+        try {
+            while (setlists.moveToNext()) {
+                long[] rowIds = dbHelper.fetchSetlistSongs(setlists.getLong(0));
+                writeString(setlists.getString(1));
+                writeInt(rowIds.length);
+                for (long rowId : rowIds) {
+                    writeInt(positions.get(rowId));
+                }
+                count++;
+                if (mRawLength >= BLOCK_SIZE) {
+                    writeBlock(out, deflater);
+                }
+            }
+        } finally {
+            setlists.close();
+        }
+        if (mRawLength > 0) {
+            writeBlock(out, deflater);
+        }
+        writeEnd(out, count);
+    }
+
+    private static void writeEnd(DataOutputStream out, long count) throws IOException {
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeLong(count);
+    }
+
+    private void writeSong(String title, String body, String chords, int scrollspeed,
+            int transpose, int capo) throws UnsupportedEncodingException {
+        writeString(title);
+        writeString(body);
+        writeString(chords);
+        writeInt(scrollspeed);
+        writeInt(transpose);
+        writeInt(capo);
+    }
+
+    private void writeString(String value) throws UnsupportedEncodingException {
+        byte[] bytes = value.getBytes("UTF-8");
+        writeInt(bytes.length);
+        ensureRaw(mRawLength + bytes.length);
+        System.arraycopy(bytes, 0, mRaw, mRawLength, bytes.length);
+        mRawLength += bytes.length;
+    }
+
+    private void writeInt(int value) {
+        ensureRaw(mRawLength + 4);
+        mRaw[mRawLength++] = (byte) (value >>> 24);
+        mRaw[mRawLength++] = (byte) (value >>> 16);
+        mRaw[mRawLength++] = (byte) (value >>> 8);
+        mRaw[mRawLength++] = (byte) value;
+    }
+
+    private void writeBlock(DataOutputStream out, Deflater deflater) throws IOException {
+        mCrc.reset();
+        mCrc.update(mRaw, 0, mRawLength);
+        byte[] stored = mRaw;
+        int storedLength = mRawLength;
+        if (deflater != null) {
+            deflater.reset();
+            deflater.setInput(mRaw, 0, mRawLength);
+            deflater.finish();
+            storedLength = 0;
+            while (!deflater.finished()) {
+                if (storedLength == mStored.length) {
+                    mStored = grow(mStored, storedLength, mStored.length * 2);
+                }
+                storedLength += deflater.deflate(mStored, storedLength,
+                        mStored.length - storedLength);
+            }
+            stored = mStored;
+        }
+        out.writeInt(mRawLength);
+        out.writeInt(storedLength);
+        out.writeInt((int) mCrc.getValue());
+        out.write(stored, 0, storedLength);
+        mRawLength = 0;
+    }
+
+    private void readBlock(DataInputStream in, Inflater inflater, int rawLength,
+            int storedLength) throws IOException {
+        if (rawLength < 0 || storedLength < 0 || rawLength > MAX_BLOCK_SIZE
+                || storedLength > MAX_BLOCK_SIZE) {
+            throw new IOException("Backup block has a bad length");
+        }
+        ensureRaw(rawLength);
+        if (inflater == null) {
+            in.readFully(mRaw, 0, rawLength);
+            return;
+        }
+        if (storedLength > mStored.length) {
+            mStored = new byte[storedLength];
+        }
+        in.readFully(mStored, 0, storedLength);
+        inflater.reset();
+        inflater.setInput(mStored, 0, storedLength);
+        try {
+            if (inflater.inflate(mRaw, 0, rawLength) != rawLength || !inflater.finished()) {
+                throw new IOException("Backup block does not inflate to its length");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Backup block is corrupt");
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void skipString(DataInputStream in) throws IOException {
+        in.skipBytes(readLength(in));
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Backup song is corrupt");
+        }
+        return length;
+    }
+
+    private void ensureRaw(int size) {
+        if (size > mRaw.length) {
+            mRaw = grow(mRaw, mRawLength, Math.max(size, mRaw.length * 2));
+        }
+    }
+
+    private static byte[] grow(byte[] buffer, int used, int size) {
+        byte[] grown = new byte[size];
+        System.arraycopy(buffer, 0, grown, 0, used);
+        return grown;
+    }
+}
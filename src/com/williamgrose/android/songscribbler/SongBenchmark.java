@@ -0,0 +1,316 @@
+package com.williamgrose.android.songscribbler;
+
+import android.database.Cursor;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Times the hot paths of storage, text processing and scrolling on the
+ * device, against SQLite and the same code the app runs, at a few library
+ * sizes. It is run by BenchmarkActivity, see there; the same paths are
+ * timed on the JVM by the JMH benchmarks in benchmarks/.
+ *
+ * Each benchmark is run for a few warm up rounds and then timed over
+ * ROUNDS rounds; the score is the mean time per operation. Results are
+ * written as JSON, one file per run, so that runs before and after a change
+ * can be compared.
+ *
+ * The library is grown to each size with generated songs. Every write is
+ * its own transaction, as it is in the app, so its commit is timed too;
+ * the database should be a scratch one, as the songs are left in it.
+ */
+class SongBenchmark {
+
+    private static final String TAG = "SongBenchmark";
+
+    /** Songs in the library at each round of benchmarks */
+    static final int[] LIBRARY_SIZES = {100, 1000, 5000};
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int ROUNDS = 5;
+    /** Operations per round of the per-song benchmarks */
+    private static final int OPS = 100;
+    /** Frames per round of the scroll benchmark */
+    private static final int TICKS = 10000;
+    private static final int BLOCK_LINES = 8;
+    /** Height given to each rendered line when laying out blocks */
+    private static final int LINE_PIXELS = 20;
+
+    private static final String[] WORDS = {
+            "love", "heart", "night", "road", "home", "down", "light", "rain", "river",
+            "never", "again", "baby", "hold", "know", "the", "and", "you", "me", "my",
+            "we", "in", "on", "to", "of", "oh", "yeah", "come", "gone", "world", "dream"};
+    private static final String[] CHORDS = {
+            "G", "C", "D", "Em", "Am", "F", "Bm", "D/F#", "Cadd9", "Dsus4", "E7", "A"};
+
+    private final SongScribblerDbAdapter mDb;
+    private final Random mRandom = new Random(1);
+    private final SongParser mParser = new SongParser();
+    private final Transposer mTransposer = new Transposer();
+    private final StringBuilder mText = new StringBuilder();
+    private final ArrayList<Long> mGenerated = new ArrayList<Long>();
+    private Writer mOut;
+    private boolean mFirstResult = true;
+    private int mLibrarySize;
+
+    SongBenchmark(SongScribblerDbAdapter db) {
+        mDb = db;
+    }
+
+    /**
+     * Run every benchmark at every library size, on a thread of its own
+     */
+    void run(File file) throws IOException {
+        mOut = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            mOut.write("{\"device\": \"" + escape(Build.MODEL) + "\", \"sdk\": "
+                    + Build.VERSION.SDK_INT + ", \"results\": [\n");
+            for (int size : LIBRARY_SIZES) {
+                while (mGenerated.size() < size) {
+                    mGenerated.add(createSong());
+                }
+                mLibrarySize = countSongs();
+                Log.i(TAG, "Library of " + mLibrarySize + " songs");
+                runAll();
+            }
+            mOut.write("\n]}\n");
+        } finally {
+            mOut.close();
+        }
+    }
+
+    private void runAll() throws IOException {
+        time("fetchSong", OPS, new Op() {
+            public void run(int i) {
+                Cursor song = mDb.fetchSong(pick());
+                try {
+                    song.getString(1);
+                    song.getString(2);
+                    song.getString(3);
+                } finally {
+                    song.close();
+                }
+            }
+        });
+        final String[] edits = new String[OPS];
+        time("updateSong", OPS, new Op() {
+            public void setUp() {
+                // Made up front so only the update is timed; each is the
+                // song with one line added, as an edit would make it
+                for (int i = 0; i < OPS; i++) {
+                    edits[i] = song(i) + "\n" + line();
+                }
+            }
+
+            public void run(int i) {
+                mDb.updateSong(mGenerated.get(i), "Benchmark " + i, edits[i],
+                        "", SongScribblerDbAdapter.DEFAULT_SCROLLSPEED);
+            }
+        });
+        time("fetchAllSongs", 1, new Op() {
+            public void run(int i) {
+                Cursor songs = mDb.fetchAllSongs();
+                try {
+                    while (songs.moveToNext()) {
+                        songs.getString(2);
+                        songs.getString(3);
+                    }
+                } finally {
+                    songs.close();
+                }
+            }
+        });
+
+        // The text and scrolling benchmarks work on songs from the library
+        final String[] bodies = new String[OPS];
+        final String[] chords = new String[OPS];
+        for (int i = 0; i < OPS; i++) {
+            Cursor song = mDb.fetchSong(pick());
+            try {
+                bodies[i] = song.getString(2);
+                chords[i] = song.getString(3);
+            } finally {
+                song.close();
+            }
+        }
+        time("parseAndRender", OPS, new Op() {
+            public void run(int i) {
+                ParsedSong parsed = mParser.parse(bodies[i], chords[i]);
+                mTransposer.set(2, 0, parsed);
+                mText.setLength(0);
+                SongRenderer.render(parsed, mTransposer, mText);
+            }
+        });
+        time("compress", OPS, new Op() {
+            public void run(int i) {
+                SongCompression.compress(bodies[i]);
+            }
+        });
+        final SongLayoutCache.Blocks[] layouts = new SongLayoutCache.Blocks[OPS];
+        for (int i = 0; i < OPS; i++) {
+            layouts[i] = blocks(mParser.parse(bodies[i], chords[i]));
+        }
+        final ScrollMotion motion = new ScrollMotion();
+        time("scrollTick", TICKS, new Op() {
+            private long mNow;
+            private SongLayoutCache.Blocks mBlocks;
+
+            public void setUp() {
+                mBlocks = layouts[mRandom.nextInt(OPS)];
+                motion.reset();
+                motion.setVelocity(30);
+                mNow = 0;
+                motion.start(mNow);
+            }
+
+            public void run(int i) {
+                // What AutoScroller.run and SongBodyView.onDraw do each frame
+                mNow += AutoScroller.FRAME_MILLIS;
+                int y = (int) motion.step(mNow) % Math.max(mBlocks.getHeight(), 1);
+                mBlocks.blockAt(y - 200);
+                mBlocks.blockAt(y + 600);
+                motion.millisToNextPixel();
+            }
+        });
+
+        // Last, as it grows the library
+        time("createSong", OPS, new Op() {
+            public void run(int i) {
+                mGenerated.add(createSong());
+            }
+        });
+    }
+
+    /**
+     * One operation of a benchmark
+     */
+    private abstract static class Op {
+        /** Untimed work before each round */
+        public void setUp() {
+        }
+
+        public abstract void run(int i);
+    }
+
+    private void time(String name, int ops, Op op) throws IOException {
+        double[] scores = new double[ROUNDS];
+        for (int round = -WARMUP_ROUNDS; round < ROUNDS; round++) {
+            op.setUp();
+            long start = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                op.run(i);
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round >= 0) {
+                scores[round] = elapsed / 1000.0 / ops;
+            }
+        }
+        double sum = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        StringBuilder rounds = new StringBuilder();
+        for (double score : scores) {
+            sum += score;
+            min = Math.min(min, score);
+            max = Math.max(max, score);
+            rounds.append(rounds.length() > 0 ? ", " : "").append(format(score));
+        }
+        double mean = sum / ROUNDS;
+        Log.i(TAG, name + " at " + mLibrarySize + " songs: " + format(mean) + " us/op");
+        mOut.write((mFirstResult ? "" : ",\n") + "  {\"benchmark\": \"" + name
+                + "\", \"librarySize\": " + mLibrarySize + ", \"mode\": \"avgt\", "
+                + "\"unit\": \"us/op\", \"score\": " + format(mean) + ", \"min\": "
+                + format(min) + ", \"max\": " + format(max) + ", \"rounds\": [" + rounds
+                + "]}");
+        mFirstResult = false;
+    }
+
+    private int countSongs() {
+        Cursor songs = mDb.fetchSongTitles(null, 0, Integer.MAX_VALUE);
+        try {
+            return songs.getCount();
+        } finally {
+            songs.close();
+        }
+    }
+
+    private long pick() {
+        return mGenerated.get(mRandom.nextInt(mGenerated.size()));
+    }
+
+    private long createSong() {
+        int index = mGenerated.size();
+        return mDb.createSong("Benchmark " + index, song(index), "",
+                SongScribblerDbAdapter.DEFAULT_SCROLLSPEED);
+    }
+
+    /**
+     * A made up chord chart, between a short song and a long medley; the
+     * same one each time for the same index
+     */
+    private String song(int index) {
+        Random random = new Random(index);
+        StringBuilder song = new StringBuilder();
+        int sections = 2 + random.nextInt(10);
+        for (int s = 0; s < sections; s++) {
+            song.append(s % 2 == 0 ? "Verse " + (s / 2 + 1) + ":" : "Chorus:").append('\n');
+            for (int l = 0; l < 4; l++) {
+                song.append(line(random)).append('\n');
+            }
+            song.append('\n');
+        }
+        return song.toString();
+    }
+
+    private String line() {
+        return line(mRandom);
+    }
+
+    private static String line(Random random) {
+        StringBuilder line = new StringBuilder();
+        for (int w = 0; w < 8; w++) {
+            if (w % 3 == 0) {
+                line.append('[').append(CHORDS[random.nextInt(CHORDS.length)]).append(']');
+            }
+            line.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return line.toString();
+    }
+
+    /**
+     * Blocks as SongBodyView would have them measured, with every line the
+     * same height rather than broken to a screen width
+     */
+    private SongLayoutCache.Blocks blocks(ParsedSong parsed) {
+        ArrayList<String> text = new ArrayList<String>();
+        SongRenderer.renderBlocks(parsed, mTransposer, BLOCK_LINES, text, new StringBuilder());
+        int[] tops = new int[text.size() + 1];
+        for (int i = 0; i < text.size(); i++) {
+            int lines = 1;
+            String block = text.get(i);
+            for (int c = 0; c < block.length(); c++) {
+                if (block.charAt(c) == '\n') {
+                    lines++;
+                }
+            }
+            tops[i + 1] = tops[i] + lines * LINE_PIXELS;
+        }
+        return new SongLayoutCache.Blocks(text.toArray(new String[text.size()]), tops);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.3f", value);
+    }
+
+    private static String escape(String value) {
+        return value == null ? "" : value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,261 @@
+package com.williamgrose.android.songscribbler;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.text.Layout;
+import android.text.TextPaint;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Shows a song body, split into blocks by SongRenderer.renderBlocks,
+ * laying out and drawing only the blocks on screen and a little either side
+ * of it. Block heights are measured in the background by SongLayoutCache,
+ * and the layouts of the blocks in view are held in slots that are handed
+ * on to new blocks as the old ones scroll away, so drawing a frame and the
+ * memory held cost the same for a medley as for a short song. There are
+ * always enough slots for every block in view, more being added when short
+ * blocks or small text bring more in, so a block in view is never laid out
+ * twice.
+ *
+ * Until the measurement for the current text and width is ready the view
+ * keeps showing whatever it showed before.
+ */
+public class SongBodyView extends View {
+
+    /** Same size the body had as a TextView */
+    private static final float TEXT_SIZE_SP = 16;
+    /** Block layouts kept to begin with; more than fit on most screens */
+    private static final int RESIDENT_BLOCKS = 12;
+
+    private final TextPaint mPaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+    private final SongLayoutCache mLayouts = SongLayoutCache.getInstance();
+    private SongLayoutCache.Blocks mBlocks;
+    private int mBlocksWidth;
+
+    private int[] mSlotBlocks = new int[RESIDENT_BLOCKS];
+    private Layout[] mSlotLayouts = new Layout[RESIDENT_BLOCKS];
+    private int mNextSlot = 0;
+
+    private long mRowId;
+    private long mContentHash;
+    private String[] mText;
+    /** Width of the measurement last asked for, to drop any stale ones */
+    private int mWantedWidth = -1;
+
+    public SongBodyView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mPaint.setColor(Color.WHITE);
+        mPaint.setTypeface(Typeface.MONOSPACE);
+        mPaint.setTextSize(TEXT_SIZE_SP * getResources().getDisplayMetrics().scaledDensity);
+        clearSlots();
+    }
+
+    /**
+     * @param rowId the song the text belongs to
+     * @param contentHash hash of the text, which together with the song, the
+     *        width and the text size picks out its measurement
+     * @param blocks the text, from SongRenderer.renderBlocks
+     */
+    public void setText(long rowId, long contentHash, String[] blocks) {
+        mRowId = rowId;
+        mContentHash = contentHash;
+        mText = blocks;
+        mWantedWidth = -1;
+        requestMeasure();
+    }
+
+    /**
+     * Measure text that is about to be shown, at this view's width, so its
+     * measurement is cached by the time it is
+     */
+    public void prefetch(long rowId, long contentHash, String[] blocks) {
+        int width = textWidth();
+        if (width <= 0
+                || mLayouts.get(rowId, contentHash, width, mPaint.getTextSize()) != null) {
+            return;
+        }
+        mLayouts.build(rowId, contentHash, width, mPaint, blocks,
+                new SongRepository.Callback<SongLayoutCache.Blocks>() {
+            public void onResult(SongLayoutCache.Blocks result) {
+            }
+        });
+    }
+
+    /**
+     * @return the height of the whole body, or -1 if it hasn't been measured
+     */
+    public int getContentHeight() {
+        return mBlocks != null ? mBlocks.getHeight() : -1;
+    }
+
+    /**
+     * @param position a block index and how far through it, as a
+     *        ScrollTimeline gives it
+     * @return the y of that point in the body, or -1 if it hasn't been
+     *         measured
+     */
+    public int yAt(float position) {
+        SongLayoutCache.Blocks blocks = mBlocks;
+        if (blocks == null) {
+            return -1;
+        }
+        int block = (int) position;
+        if (block < 0) {
+            return 0;
+        }
+        if (block >= blocks.text.length) {
+            return blocks.getHeight();
+        }
+        int top = blocks.tops[block];
+        return top + (int) ((position - block) * (blocks.tops[block + 1] - top));
+    }
+
+    /**
+     * @return the position at y, the reverse of yAt, or -1 if the body
+     *         hasn't been measured
+     */
+    public float positionAt(int y) {
+        SongLayoutCache.Blocks blocks = mBlocks;
+        if (blocks == null || blocks.text.length == 0) {
+            return -1;
+        }
+        int block = blocks.blockAt(y);
+        int top = blocks.tops[block];
+        int height = blocks.tops[block + 1] - top;
+        if (height <= 0) {
+            return block;
+        }
+        return block + Math.max(0f, Math.min(1f, (y - top) / (float) height));
+    }
+
+    private int textWidth() {
+        return getWidth() - getPaddingLeft() - getPaddingRight();
+    }
+
+    private void requestMeasure() {
+        final int width = textWidth();
+        if (mText == null || width <= 0 || width == mWantedWidth) {
+            return;
+        }
+        mWantedWidth = width;
+        SongLayoutCache.Blocks cached = mLayouts.get(mRowId, mContentHash, width,
+                mPaint.getTextSize());
+        if (cached != null) {
+            setBlocks(cached, width);
+            return;
+        }
+        final long contentHash = mContentHash;
+        mLayouts.build(mRowId, contentHash, width, mPaint, mText,
+                new SongRepository.Callback<SongLayoutCache.Blocks>() {
+            public void onResult(SongLayoutCache.Blocks blocks) {
+                if (contentHash == mContentHash && width == mWantedWidth) {
+                    setBlocks(blocks, width);
+                }
+            }
+        });
+    }
+
+    private void setBlocks(SongLayoutCache.Blocks blocks, int width) {
+        mBlocks = blocks;
+        mBlocksWidth = width;
+        clearSlots();
+        int maxY = Math.max(blocks.getHeight() - getHeight(), 0);
+        if (getScrollY() > maxY) {
+            scrollTo(0, maxY);
+        }
+        invalidate();
+    }
+
+    private void clearSlots() {
+        for (int i = 0; i < mSlotBlocks.length; i++) {
+            mSlotBlocks[i] = -1;
+            mSlotLayouts[i] = null;
+        }
+    }
+
+    /**
+     * Add slots, keeping the layouts already made, until there are at least
+     * count
+     */
+    private void ensureSlots(int count) {
+        int size = mSlotBlocks.length;
+        if (count <= size) {
+            return;
+        }
+        int grown = Math.max(count, size * 3 / 2);
+        int[] blocks = new int[grown];
+        Layout[] layouts = new Layout[grown];
+        System.arraycopy(mSlotBlocks, 0, blocks, 0, size);
+        System.arraycopy(mSlotLayouts, 0, layouts, 0, size);
+        for (int i = size; i < grown; i++) {
+            blocks[i] = -1;
+        }
+        mSlotBlocks = blocks;
+        mSlotLayouts = layouts;
+    }
+
+    /**
+     * @return the layout of block, made in a slot not holding any block
+     *         between first and last if it isn't already resident; there
+     *         has to be a slot for each of them, see ensureSlots
+     */
+    private Layout blockLayout(int block, int first, int last) {
+        int size = mSlotBlocks.length;
+        for (int i = 0; i < size; i++) {
+            if (mSlotBlocks[i] == block) {
+                return mSlotLayouts[i];
+            }
+        }
+        int slot = -1;
+        for (int i = 0; i < size && slot < 0; i++) {
+            int held = mSlotBlocks[(mNextSlot + i) % size];
+            if (held < first || held > last) {
+                slot = (mNextSlot + i) % size;
+            }
+        }
+        mNextSlot = (slot + 1) % size;
+        mSlotBlocks[slot] = block;
+        mSlotLayouts[slot] = SongLayoutCache.layout(mBlocks.text[block], mPaint, mBlocksWidth);
+        return mSlotLayouts[slot];
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        requestMeasure();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        SongLayoutCache.Blocks blocks = mBlocks;
+        if (blocks == null || blocks.text.length == 0) {
+            return;
+        }
+        // Half a screen either side is laid out ahead of being scrolled to,
+        // but only what is on screen is drawn
+        int top = getScrollY();
+        int bottom = top + getHeight();
+        int overscan = getHeight() / 2;
+        int first = blocks.blockAt(top - overscan);
+        int last = blocks.blockAt(bottom + overscan);
+        ensureSlots(last - first + 1);
+        for (int i = first; i <= last; i++) {
+            Layout layout = blockLayout(i, first, last);
+            if (blocks.tops[i + 1] <= top || blocks.tops[i] >= bottom) {
+                continue;
+            }
+            canvas.save();
+            canvas.translate(getPaddingLeft(), getPaddingTop() + blocks.tops[i]);
+            layout.draw(canvas);
+            canvas.restore();
+        }
+    }
+
+    @Override
+    protected int computeVerticalScrollRange() {
+        return Math.max(getContentHeight(), 0);
+    }
+}
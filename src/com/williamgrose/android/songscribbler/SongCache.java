@@ -0,0 +1,81 @@
+package com.williamgrose.android.songscribbler;
+
+import android.content.ContentValues;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The most recently used songs, keyed by rowId. Writes go through to the
+ * cache as they are made, ahead of reaching the database, so a song read
+ * from here is never older than the last save of it.
+ *
+ * A song loaded from the database could have been read before a write that
+ * has since gone through to the cache, so loads are only cached if no write
+ * has been made since they started; see generation. Safe to use from any
+ * thread.
+ */
+class SongCache {
+
+    private final LinkedHashMap<Long, Song> mSongs;
+    private long mGeneration = 0;
+
+    SongCache(final int maxEntries) {
+        mSongs = new LinkedHashMap<Long, Song>(maxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Song> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    synchronized Song get(long rowId) {
+        return mSongs.get(rowId);
+    }
+
+    /**
+     * @return a count of the writes made, to be handed to putLoaded
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache a song read from the database, unless it has been written to
+     * since generation was taken
+     */
+    synchronized void putLoaded(Song song, long generation) {
+        if (generation == mGeneration) {
+            mSongs.put(song.rowId, song);
+        }
+    }
+
+    /**
+     * A song has been created or saved whole
+     */
+    synchronized void put(Song song) {
+        mGeneration++;
+        mSongs.put(song.rowId, song);
+    }
+
+    /**
+     * Some columns of a song are being changed
+     */
+    synchronized void update(long rowId, ContentValues values) {
+        mGeneration++;
+        Song song = mSongs.get(rowId);
+        if (song != null) {
+            mSongs.put(rowId, song.with(values));
+        }
+    }
+
+    synchronized void remove(long rowId) {
+        mGeneration++;
+        mSongs.remove(rowId);
+    }
+
+    synchronized void clear() {
+        mGeneration++;
+        mSongs.clear();
+    }
+}
@@ -0,0 +1,159 @@
+package com.williamgrose.android.songscribbler;
+
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the long text columns of a song. Values of at least
+ * MIN_CHARS are deflated against a preset dictionary of the words and
+ * markup that turn up in lyrics and chord charts, and kept only if that
+ * saves a worthwhile amount; everything else is stored as plain text.
+ *
+ * A compressed value is a blob starting with a zero byte, which no text
+ * typed or imported into a song can start with, then the format, the
+ * dictionary it was deflated against, and the length of the text in UTF-8
+ * bytes. Changing the dictionary means adding a new one alongside the old,
+ * since values deflated against the old one stay in the database.
+ */
+final class SongCompression {
+
+    /** Text shorter than this is never compressed */
+    static final int MIN_CHARS = 1024;
+    /** Compressed values must be at most this fraction of the plain text */
+    private static final float MAX_RATIO = 0.9f;
+
+    private static final byte MARKER = 0;
+    private static final byte FORMAT = 1;
+    private static final byte DICTIONARY_LYRICS = 1;
+    private static final int HEADER_LENGTH = 7;
+
+    /*
+     * Built from the words, chord names and ChordPro directives that are
+     * most common across a set of chord charts. Deflate finds matches
+     * nearer the end of the dictionary in fewer bits, so the most frequent
+     * strings come last.
+     */
+    private static final byte[] LYRICS = utf8(
+            "{title: }{subtitle: }{artist: }{key: }{tempo: }{capo: }{comment: }"
+            + "{start_of_tab}\n{end_of_tab}\n{start_of_bridge}\n{end_of_bridge}\n"
+            + "{start_of_verse}\n{end_of_verse}\n{start_of_chorus}\n{end_of_chorus}\n"
+            + "{sot}\n{eot}\n{sob}\n{eob}\n{sov}\n{eov}\n{soc}\n{eoc}\n{c: }\n"
+            + "Intro:\nOutro:\nInstrumental\nPre-Chorus\nBridge:\n[Bridge]\n"
+            + "Verse 1:\nVerse 2:\nVerse 3:\n[Verse 1]\n[Verse 2]\n[Verse 3]\n"
+            + "Chorus:\n[Chorus]\nRepeat Chorus\nx2\n(x2)\n"
+            + "Cmaj7 Fmaj7 Gsus4 Dsus4 Asus4 Dsus2 Asus2 Cadd9 Gadd9 "
+            + "C/G D/F# G/B A/C# C/E F/C "
+            + "Bbm Ebm F#m C#m G#m Bb Eb Ab Db F# C# "
+            + "A7 B7 C7 D7 E7 G7 Am7 Bm7 Dm7 Em7 F#m7 "
+            + "Am Bm Cm Dm Em Fm Gm "
+            + "[Am][Bm][Dm][Em][A][B][C][D][E][F][G]"
+            + " forever never again tonight tomorrow yesterday morning "
+            + "heaven world river water fire light night dream heart "
+            + " gonna wanna gotta 'cause ain't can't won't don't I'm I'll I've "
+            + "you're we're they're it's that's there's "
+            + "baby darling honey sweet home road rain sun sky "
+            + "down up out away back again around through "
+            + "come go know see feel say take make give find hold "
+            + "love oh yeah la na hey whoa ooh "
+            + " with your what when where will would could should have "
+            + "this that they them then there from like just all not "
+            + " me my we our us he she his her it "
+            + " and the you to of in on is be "
+            + "\n\n");
+
+    private SongCompression() {
+    }
+
+    /**
+     * @return text compressed, or null if it should be stored as it is
+     */
+    static byte[] compress(String text) {
+        if (text == null || text.length() < MIN_CHARS) {
+            return null;
+        }
+        byte[] plain = utf8(text);
+        int limit = (int) (plain.length * MAX_RATIO);
+        byte[] out = new byte[HEADER_LENGTH + limit];
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setDictionary(LYRICS);
+            deflater.setInput(plain);
+            deflater.finish();
+            int length = HEADER_LENGTH;
+            while (!deflater.finished() && length < out.length) {
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            if (!deflater.finished()) {
+                // Didn't save enough to be worth inflating on every read
+                return null;
+            }
+            out[0] = MARKER;
+            out[1] = FORMAT;
+            out[2] = DICTIONARY_LYRICS;
+            out[3] = (byte) (plain.length >>> 24);
+            out[4] = (byte) (plain.length >>> 16);
+            out[5] = (byte) (plain.length >>> 8);
+            out[6] = (byte) plain.length;
+            byte[] result = new byte[length];
+            System.arraycopy(out, 0, result, 0, length);
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return true if value was made by compress, rather than being the
+     *         bytes of plain text
+     */
+    static boolean isCompressed(byte[] value) {
+        return value != null && value.length >= HEADER_LENGTH && value[0] == MARKER;
+    }
+
+    /**
+     * @throws DataFormatException if value is not a compressed value this
+     *         version can read
+     */
+    static String decompress(byte[] value) throws DataFormatException {
+        if (!isCompressed(value) || value[1] != FORMAT || value[2] != DICTIONARY_LYRICS) {
+            throw new DataFormatException("Unknown compressed text format");
+        }
+        int length = (value[3] & 0xff) << 24 | (value[4] & 0xff) << 16
+                | (value[5] & 0xff) << 8 | (value[6] & 0xff);
+        byte[] plain = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(value, HEADER_LENGTH, value.length - HEADER_LENGTH);
+            int done = 0;
+            while (done < length) {
+                int n = inflater.inflate(plain, done, length - done);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(LYRICS);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new DataFormatException("Compressed text is truncated");
+                    }
+                }
+                done += n;
+            }
+        } finally {
+            inflater.end();
+        }
+        try {
+            return new String(plain, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] utf8(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Every Java platform has UTF-8
+            throw new AssertionError(e);
+        }
+    }
+}
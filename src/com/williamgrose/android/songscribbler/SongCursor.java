@@ -0,0 +1,67 @@
+package com.williamgrose.android.songscribbler;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.SQLException;
+import android.os.Build;
+
+import java.util.zip.DataFormatException;
+
+/**
+ * A cursor over songs that gives back the body and chords as text whether
+ * they are stored plain or compressed (see SongCompression). Values are
+ * only inflated when they are read, so a caller that never asks for the
+ * body never pays for it; the last value inflated is kept in case it is
+ * read again from the same row.
+ */
+class SongCursor extends CursorWrapper {
+
+    private final int mBodyColumn;
+    private final int mChordsColumn;
+    private int mInflatedPosition = -1;
+    private int mInflatedColumn = -1;
+    private String mInflated;
+
+    SongCursor(Cursor cursor) {
+        super(cursor);
+        mBodyColumn = cursor.getColumnIndex(SongScribblerDbAdapter.KEY_BODY);
+        mChordsColumn = cursor.getColumnIndex(SongScribblerDbAdapter.KEY_CHORDS);
+    }
+
+    @Override
+    public String getString(int column) {
+        if (column < 0 || (column != mBodyColumn && column != mChordsColumn)) {
+            return super.getString(column);
+        }
+        int position = getPosition();
+        if (position == mInflatedPosition && column == mInflatedColumn) {
+            return mInflated;
+        }
+        byte[] compressed = compressedValue(column);
+        if (compressed == null) {
+            return super.getString(column);
+        }
+        try {
+            mInflated = SongCompression.decompress(compressed);
+        } catch (DataFormatException e) {
+            throw new SQLException("Unreadable " + getColumnName(column) + " at row "
+                    + position + ": " + e.getMessage());
+        }
+        mInflatedPosition = position;
+        mInflatedColumn = column;
+        return mInflated;
+    }
+
+    /**
+     * @return the value in column if it is compressed, otherwise null
+     */
+    private byte[] compressedValue(int column) {
+        if (Build.VERSION.SDK_INT >= 11) {
+            return getType(column) == FIELD_TYPE_BLOB ? super.getBlob(column) : null;
+        }
+        // Text read as a blob comes back as its bytes, which never start
+        // with the marker a compressed value does
+        byte[] value = super.getBlob(column);
+        return SongCompression.isCompressed(value) ? value : null;
+    }
+}
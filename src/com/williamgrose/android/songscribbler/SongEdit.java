@@ -1,34 +1,81 @@
 package com.williamgrose.android.songscribbler;
 
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.ContentValues;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.EditText;
+import android.widget.Toast;
+
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class SongEdit extends Activity {
 
     private EditText mTitleText;
     private EditText mBodyText;
     private EditText mChordsText;
-    private int scrollspeed;
     private Long mRowId;
-    private SongScribblerDbAdapter mDbHelper;
-    private boolean hasSavedInstanceState = false;
+    /**
+     * Set while the first save of a new song is waiting for its rowId. It
+     * is never waited for here; later saves are queued against it, and the
+     * rowId is picked up from mCreated.
+     */
+    private Future<Long> mPendingCreate;
+    private SongRepository mRepository;
+
+    /** Fields changed since the last save, any of the DIRTY_ flags */
+    private int mDirty = 0;
+    /** Set while the fields are being filled from the database */
+    private boolean mPopulating = false;
+    /** The song last put in the fields */
+    private Song mShown;
+    /** From Metrics.start in onCreate, until the song is first shown */
+    private long mStartNanos;
+    /** Edits typed since the last compaction, once the song has a rowId */
+    private EditJournal mJournal;
+    private final Handler mHandler = new Handler();
+    private boolean mJournalFlushScheduled = false;
+    /** SystemClock.uptimeMillis of the last compaction */
+    private long mCompactedAt;
+
+    private static final int DIRTY_TITLE = 1;
+    private static final int DIRTY_BODY = 2;
+    private static final int DIRTY_CHORDS = 4;
+
+    /** How long typed edits are collected before the journal is written */
+    private static final long JOURNAL_FLUSH_MILLIS = 500;
+    /** How much the journal holds, or for how long, before compaction */
+    private static final long COMPACT_BYTES = 64 * 1024;
+    private static final long COMPACT_MILLIS = 60 * 1000;
+
+    private static final String TAG = "SongEdit";
 
 
     private static final int ACTIVITY_VIEW=2;
     private static final int SAVE_ID = Menu.FIRST;
     private static final int VIEW_ID = Menu.FIRST+1;
+    private static final int HISTORY_ID = Menu.FIRST+2;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        mDbHelper = new SongScribblerDbAdapter(this);
-        mDbHelper.open();
+        Metrics.init(this);
+        mStartNanos = Metrics.start();
+        mRepository = SongRepository.getInstance(this);
         setContentView(R.layout.song_edit);
         
         mTitleText = (EditText) findViewById(R.id.title);
@@ -46,12 +93,21 @@ public class SongEdit extends Activity {
                 		extras.getLong(SongScribblerDbAdapter.KEY_ROWID)
                 		: null;
         }
+        if (mRowId == null && getLastNonConfigurationInstance() != null) {
+            // Rotated while a new song was being created
+            @SuppressWarnings("unchecked")
+            Future<Long> created = (Future<Long>) getLastNonConfigurationInstance();
+            mPendingCreate = created;
+            mRepository.createdRowId(mPendingCreate, mCreated);
+        }
 
-        populateFields();
-        
+        // Filled in by onResume, which always follows
         mTitleText.setOnFocusChangeListener(editTextListener);
         mChordsText.setOnFocusChangeListener(editTextListener);
         mBodyText.setOnFocusChangeListener(editTextListener);
+        mTitleText.addTextChangedListener(new DirtyWatcher(DIRTY_TITLE, 0));
+        mBodyText.addTextChangedListener(new DirtyWatcher(DIRTY_BODY, 1));
+        mChordsText.addTextChangedListener(new DirtyWatcher(DIRTY_CHORDS, 2));
 	
     }
     
@@ -78,38 +134,246 @@ public class SongEdit extends Activity {
     			}
     		}
     	};
+
+    /**
+     * Marks a field as needing to be saved whenever the user changes it,
+     * and journals the change
+     */
+    private class DirtyWatcher implements TextWatcher {
+        private final int mField;
+        /** Index of the field in the journal */
+        private final int mJournalField;
+
+        DirtyWatcher(int field, int journalField) {
+            mField = field;
+            mJournalField = journalField;
+        }
+
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            if (mPopulating) {
+                return;
+            }
+            if (mJournal != null) {
+                mJournal.record(mJournalField, start, before, s.subSequence(start, start + count));
+            }
+            if (!mJournalFlushScheduled) {
+                mJournalFlushScheduled = true;
+                mHandler.postDelayed(mFlushJournal, JOURNAL_FLUSH_MILLIS);
+            }
+        }
+        public void afterTextChanged(Editable s) {
+            if (!mPopulating) {
+                mDirty |= mField;
+            }
+        }
+    }
      
 
     private void populateFields() {
-        if (mRowId != null) {
-            Cursor song = mDbHelper.fetchSong(mRowId);
-            startManagingCursor(song);
-            mTitleText.setText(song.getString(
-                    song.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_TITLE)));
-            mBodyText.setText(song.getString(
-                    song.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_BODY)));
-            mChordsText.setText(song.getString(
-                    song.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_CHORDS)));
-            scrollspeed = song.getInt(
-                    song.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_SCROLLSPEED));
+        if (mRowId == null) {
+            // A new song, with nothing to wait for
+            Metrics.STARTUP_EDIT.end(mStartNanos);
+            mStartNanos = 0;
+        } else {
+            mRepository.getSong(mRowId, new SongRepository.Callback<Song>() {
+                public void onResult(Song song) {
+                    if (song != null && !isFinishing()) {
+                        showSong(song);
+                    }
+                }
+            });
+            checkSyncConflicts();
+        }
+    }
+
+    /**
+     * Offer to settle edits from another device that clashed with edits
+     * made here, kept aside by SongSync
+     */
+    private void checkSyncConflicts() {
+        final long rowId = mRowId;
+        mRepository.fetchSyncConflicts(rowId, new SongRepository.Callback<Cursor>() {
+            public void onResult(Cursor conflicts) {
+                int count = conflicts.getCount();
+                conflicts.close();
+                if (count == 0 || isFinishing()) {
+                    return;
+                }
+                new AlertDialog.Builder(SongEdit.this)
+                        .setMessage(R.string.sync_conflict)
+                        .setPositiveButton(R.string.sync_keep_mine,
+                                new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                mRepository.resolveSyncConflicts(rowId, true, null);
+                            }
+                        })
+                        .setNegativeButton(R.string.sync_use_theirs,
+                                new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                useTheirs(rowId);
+                            }
+                        })
+                        .show();
+            }
+        });
+    }
+
+    private void useTheirs(long rowId) {
+        // Written first so theirs is applied over it, then shown
+        saveState();
+        mRepository.resolveSyncConflicts(rowId, false,
+                new SongRepository.Callback<ContentValues>() {
+            public void onResult(ContentValues theirs) {
+                if (!isFinishing()) {
+                    populateFields();
+                }
+            }
+        });
+    }
+
+    private void showSong(Song song) {
+        // Only text changed since it was shown is set again, as setting it
+        // loses the cursor. The cache makes a new Song for a change to the
+        // speed, transpose or capo too, so it is the text that is compared.
+        Song shown = mShown;
+        boolean title = shown == null || !song.title.equals(shown.title);
+        boolean body = shown == null || !song.body.equals(shown.body);
+        boolean chords = shown == null || !song.chords.equals(shown.chords);
+        mShown = song;
+        if (!title && !body && !chords) {
+            return;
+        }
+        mPopulating = true;
+        try {
+            // Anything typed since the last save is newer than the database
+            if (title && (mDirty & DIRTY_TITLE) == 0) {
+                mTitleText.setText(song.title);
+            }
+            if (body && (mDirty & DIRTY_BODY) == 0) {
+                mBodyText.setText(song.body);
+            }
+            if (chords && (mDirty & DIRTY_CHORDS) == 0) {
+                mChordsText.setText(song.chords);
+            }
+        } finally {
+            mPopulating = false;
+        }
+        Metrics.STARTUP_EDIT.end(mStartNanos);
+        mStartNanos = 0;
+        if (mJournal == null) {
+            mJournal = new EditJournal(this, song.rowId);
+            mJournal.recover(new String[] {song.title, song.body, song.chords},
+                    new EditJournal.Recovery() {
+                public void onRecovered(String[] fields) {
+                    if (isFinishing()) {
+                        return;
+                    }
+                    // Journaled and marked dirty like any other edit
+                    mTitleText.setText(fields[0]);
+                    mBodyText.setText(fields[1]);
+                    mChordsText.setText(fields[2]);
+                    Toast.makeText(SongEdit.this, R.string.journal_recovered,
+                            Toast.LENGTH_LONG).show();
+                }
+            });
+        }
+        // The journal starts from what is in the fields now
+        compact();
+    }
+
+    /**
+     * Takes the rowId of a new song once it has been created, and journals
+     * it from then on
+     */
+    private final SongRepository.Callback<Long> mCreated = new SongRepository.Callback<Long>() {
+        public void onResult(Long rowId) {
+            if (mRowId != null || rowId < 0) {
+                return;
+            }
+            mRowId = rowId;
+            mPendingCreate = null;
+            if (!isFinishing()) {
+                compact();
+            }
         }
+    };
+
+    private final Runnable mFlushJournal = new Runnable() {
+        public void run() {
+            mJournalFlushScheduled = false;
+            if (mJournal == null || mJournal.length() > COMPACT_BYTES
+                    || SystemClock.uptimeMillis() - mCompactedAt > COMPACT_MILLIS) {
+                compact();
+            } else {
+                mJournal.flush();
+            }
+        }
+    };
+
+    /**
+     * Save the edits journaled so far into the song and begin the journal
+     * again from it. A new song is created by the first compaction and
+     * journaled from the one after it has its rowId.
+     */
+    private void compact() {
+        saveState();
+        resolveRowId();
+        beginJournal();
+    }
+
+    /**
+     * Begin the journal again from the fields as they are, once what has
+     * been saved is written
+     */
+    private void beginJournal() {
+        if (mRowId == null) {
+            return;
+        }
+        if (mJournal == null) {
+            mJournal = new EditJournal(this, mRowId);
+        }
+        mJournal.begin(new String[] {mTitleText.getText().toString(),
+                mBodyText.getText().toString(), mChordsText.getText().toString()},
+                mRepository.flush());
+        mCompactedAt = SystemClock.uptimeMillis();
     }
 
     @Override
     protected void onSaveInstanceState(Bundle outState) {
-    	hasSavedInstanceState = true;
     	saveState();
+    	resolveRowId();
+        beginJournal();
     	if(mRowId != null){
     		outState.putLong(SongScribblerDbAdapter.KEY_ROWID, mRowId);
     	}
         super.onSaveInstanceState(outState);
     }
 
+    /**
+     * A create still queued is handed to the next instance, which would
+     * otherwise create the song again
+     */
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        return mRowId == null ? mPendingCreate : null;
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
-        if(!hasSavedInstanceState){
-        	saveState();
+        // A no-op if onSaveInstanceState has just saved
+        saveState();
+        mHandler.removeCallbacks(mFlushJournal);
+        mJournalFlushScheduled = false;
+        if (isFinishing()) {
+            if (mJournal != null) {
+                mJournal.discard(mRepository.flush());
+            }
+        } else {
+            // From what was just saved, which is what the database will have
+            // when the song is shown again
+            beginJournal();
         }
     }
 
@@ -124,6 +388,7 @@ public class SongEdit extends Activity {
         super.onCreateOptionsMenu(menu);
         menu.add(0, SAVE_ID, 0, R.string.menu_save);
         menu.add(0, VIEW_ID, 0,  R.string.menu_view);
+        menu.add(0, HISTORY_ID, 0, R.string.menu_history);
         return true;
     }
 
@@ -137,36 +402,169 @@ public class SongEdit extends Activity {
         case VIEW_ID:
             viewSong();
             return true;
+        case HISTORY_ID:
+            showHistory();
+            return true;
         }
         return super.onMenuItemSelected(featureId, item);
     }
 
     private void viewSong() {
         saveState();
+        resolveRowId();
+        if (mRowId == null && mPendingCreate != null) {
+            mRepository.createdRowId(mPendingCreate, new SongRepository.Callback<Long>() {
+                public void onResult(Long rowId) {
+                    if (rowId >= 0 && !isFinishing()) {
+                        viewSong(rowId);
+                    }
+                }
+            });
+            return;
+        }
+        viewSong(mRowId);
+    }
+
+    private void viewSong(Long rowId) {
         Intent i = new Intent(this, SongView.class);
-        i.putExtra(SongScribblerDbAdapter.KEY_ROWID, mRowId);
+        i.putExtra(SongScribblerDbAdapter.KEY_ROWID, rowId);
         startActivityForResult(i, ACTIVITY_VIEW);
     }
 
+    /**
+     * Offer the song's earlier versions, newest first. Picking one puts it
+     * back in the fields, where it is saved like any other edit, so going
+     * back to it can itself be undone.
+     */
+    private void showHistory() {
+        saveState();
+        resolveRowId();
+        // A song still being created has no history before it
+        if (mRowId == null) {
+            Toast.makeText(this, R.string.history_none, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mRepository.fetchRevisions(mRowId, new SongRepository.Callback<Cursor>() {
+            public void onResult(Cursor revisions) {
+                // The newest revision is the song as it was just saved
+                final long[] ids = new long[Math.max(revisions.getCount() - 1, 0)];
+                CharSequence[] saved = new CharSequence[ids.length];
+                DateFormat format = DateFormat.getDateTimeInstance(DateFormat.MEDIUM,
+                        DateFormat.SHORT);
+                try {
+                    revisions.moveToFirst();
+                    for (int i = 0; revisions.moveToNext(); i++) {
+                        ids[i] = revisions.getLong(0);
+                        saved[i] = format.format(new Date(revisions.getLong(1)));
+                    }
+                } finally {
+                    revisions.close();
+                }
+                if (isFinishing()) {
+                    return;
+                }
+                if (ids.length == 0) {
+                    Toast.makeText(SongEdit.this, R.string.history_none,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                new AlertDialog.Builder(SongEdit.this)
+                        .setTitle(R.string.menu_history)
+                        .setItems(saved, new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                restoreRevision(ids[which]);
+                            }
+                        })
+                        .show();
+            }
+        });
+    }
+
+    private void restoreRevision(long revisionId) {
+        mRepository.fetchRevision(revisionId,
+                new SongRepository.Callback<SongRevisions.Version>() {
+            public void onResult(SongRevisions.Version version) {
+                if (version == null) {
+                    Toast.makeText(SongEdit.this, R.string.history_unreadable,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                // Marks the fields dirty, so they're saved on the way out
+                mTitleText.setText(version.title);
+                mBodyText.setText(version.body);
+                mChordsText.setText(version.chords);
+            }
+        });
+    }
+
+    /**
+     * Save whatever has changed since the last save. A new song is created
+     * whole; an existing one only has its changed columns written, and the
+     * repository merges saves that follow each other closely.
+     */
     private void saveState() {
-        String title = mTitleText.getText().toString();
-        String body = mBodyText.getText().toString();
-        String chords = mChordsText.getText().toString();
-        Boolean isSongEdited = !(title.equals(getString(R.string.edit_title))
-				&& body.equals(getString(R.string.edit_body))
-				&& chords.equals(getString(R.string.edit_chords))
-				);
-        if(isSongEdited){
-	        if (mRowId == null) {
-	    		long id = mDbHelper.createSong(title, body,
-					chords, SongScribblerDbAdapter.DEFAULT_SCROLLSPEED);    		
-	    		if (id > 0) {
-	    			mRowId = id;
-	    		}
-	        } else {
-	            mDbHelper.updateSong(mRowId, title, body, chords, scrollspeed);
-	        }
+        if (mDirty == 0) {
+            return;
+        }
+        resolveRowId();
+        if (mRowId == null && mPendingCreate == null) {
+            String title = mTitleText.getText().toString();
+            String body = mBodyText.getText().toString();
+            String chords = mChordsText.getText().toString();
+            Boolean isSongEdited = !(title.equals(getString(R.string.edit_title))
+    				&& body.equals(getString(R.string.edit_body))
+    				&& chords.equals(getString(R.string.edit_chords))
+    				);
+            if(isSongEdited){
+	    		mPendingCreate = mRepository.createSong(title, body,
+					chords, SongScribblerDbAdapter.DEFAULT_SCROLLSPEED, mCreated);
+            }
+        } else {
+            ContentValues values = new ContentValues();
+            if ((mDirty & DIRTY_TITLE) != 0) {
+                values.put(SongScribblerDbAdapter.KEY_TITLE, mTitleText.getText().toString());
+            }
+            if ((mDirty & DIRTY_BODY) != 0) {
+                values.put(SongScribblerDbAdapter.KEY_BODY, mBodyText.getText().toString());
+            }
+            if ((mDirty & DIRTY_CHORDS) != 0) {
+                values.put(SongScribblerDbAdapter.KEY_CHORDS, mChordsText.getText().toString());
+            }
+            if (mRowId != null) {
+                mRepository.updateSongFields(mRowId, values);
+            } else {
+                // Only one create per song, later saves update the new row
+                mRepository.updateSongFields(mPendingCreate, values);
+            }
+        }
+        mDirty = 0;
+    }
+
+    /**
+     * Pick up the rowId of a new song if its create has finished, before
+     * mCreated is told of it, without waiting for one still queued. A
+     * create that failed leaves the song to be created again by the next
+     * save.
+     */
+    private void resolveRowId() {
+        if (mPendingCreate == null || !mPendingCreate.isDone()) {
+            return;
+        }
+        try {
+            long id = mPendingCreate.get();
+            if (id >= 0) {
+                mRowId = id;
+            } else {
+                mDirty = DIRTY_TITLE | DIRTY_BODY | DIRTY_CHORDS;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Creating song failed", e.getCause());
+            mDirty = DIRTY_TITLE | DIRTY_BODY | DIRTY_CHORDS;
         }
+        mPendingCreate = null;
     }
 
 }
@@ -0,0 +1,229 @@
+package com.williamgrose.android.songscribbler;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Imports songbooks into the database: single ChordPro or text files,
+ * directories of them, and zip archives of them. Files and zip entries are
+ * streamed one at a time, so only a batch of songs is ever in memory.
+ *
+ * Files are read on the thread calling importFrom. Songs are inserted
+ * through the adapter's compiled insert on the writer given, a batch of
+ * them per transaction and per task, so the import is not paying for a
+ * journal sync per song and other writes, and the reads waiting on them,
+ * get a turn between batches.
+ * Files that can't be read as songs are skipped and reported in the Result,
+ * as are songs that were imported despite looking odd.
+ */
+public class SongImporter {
+
+    /**
+     * What an import did
+     */
+    public static class Result {
+        public int imported;
+        public int skipped;
+        public long elapsedMillis;
+        /** One line per file skipped or flagged, naming the file and why */
+        public final List<String> problems = new ArrayList<String>();
+
+        public float songsPerSecond() {
+            return elapsedMillis > 0 ? imported * 1000f / elapsedMillis : imported;
+        }
+    }
+
+    private static final String TAG = "SongImporter";
+
+    /**
+     * Songs inserted per transaction, few enough that a write queued behind
+     * a batch isn't kept waiting long
+     */
+    private static final int BATCH_SIZE = 200;
+
+    private static final String[] SONG_EXTENSIONS = {
+            ".cho", ".chopro", ".chordpro", ".crd", ".pro", ".txt"};
+
+    private final SongScribblerDbAdapter mDbHelper;
+    private final ExecutorService mWriter;
+    private final ChordProReader mReader = new ChordProReader();
+    private Result mResult;
+    /** Songs read and not yet inserted, each its name, title, body and chords */
+    private final ArrayList<String[]> mBatch = new ArrayList<String[]>();
+
+    /**
+     * @param dbHelper an open adapter to import into, only used on writer
+     */
+    public SongImporter(SongScribblerDbAdapter dbHelper, ExecutorService writer) {
+        mDbHelper = dbHelper;
+        mWriter = writer;
+    }
+
+    /**
+     * Import a song file, a zip of them, or everything under a directory
+     *
+     * @throws IOException if source can't be read at all; problems with
+     *         single files are reported in the result instead
+     */
+    public Result importFrom(File source) throws IOException {
+        mResult = new Result();
+        long start = SystemClock.elapsedRealtime();
+        try {
+            importFile(source);
+            writeBatch();
+        } finally {
+            mBatch.clear();
+        }
+        mResult.elapsedMillis = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, "Imported " + mResult.imported + " songs in " + mResult.elapsedMillis
+                + "ms (" + mResult.songsPerSecond() + "/s), skipped " + mResult.skipped);
+        return mResult;
+    }
+
+    private void importFile(File file) throws IOException {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    importFile(child);
+                }
+            }
+            return;
+        }
+        String name = file.getName();
+        if (name.toLowerCase().endsWith(".zip")) {
+            importZip(file);
+        } else if (isSong(name)) {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                importSong(in, name);
+            } catch (IOException e) {
+                skip(name, e.getMessage());
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private void importZip(File file) throws IOException {
+        ZipInputStream zip = new ZipInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (!entry.isDirectory() && isSong(name)) {
+                    importSong(zip, file.getName() + "/" + name);
+                }
+                zip.closeEntry();
+            }
+        } catch (IOException e) {
+            // A corrupt archive loses the rest of itself, not the import
+            skip(file.getName(), e.getMessage());
+        } finally {
+            zip.close();
+        }
+    }
+
+    private void importSong(InputStream in, String name) throws IOException {
+        if (!mReader.read(new InputStreamReader(in, "UTF-8"), titleFromName(name))) {
+            skip(name, mReader.getProblem());
+            return;
+        }
+        if (mReader.getProblem() != null) {
+            mResult.problems.add(name + ": " + mReader.getProblem());
+        }
+        mBatch.add(new String[] {name, mReader.getTitle(), mReader.getBody(),
+                mReader.getChords()});
+        if (mBatch.size() >= BATCH_SIZE) {
+            writeBatch();
+        }
+    }
+
+    /**
+     * Insert the songs read so far in one transaction on the writer, and
+     * wait for it
+     */
+    private void writeBatch() {
+        if (mBatch.isEmpty()) {
+            return;
+        }
+        final String[][] songs = mBatch.toArray(new String[mBatch.size()][]);
+        mBatch.clear();
+        onWriter(new Callable<Void>() {
+            public Void call() {
+                mDbHelper.beginTransaction();
+                try {
+                    for (String[] song : songs) {
+                        long rowId = mDbHelper.createSong(song[1], song[2], song[3],
+                                SongScribblerDbAdapter.DEFAULT_SCROLLSPEED);
+                        if (rowId < 0) {
+                            skip(song[0], "insert failed");
+                        } else {
+                            mResult.imported++;
+                        }
+                    }
+                    mDbHelper.setTransactionSuccessful();
+                } finally {
+                    mDbHelper.endTransaction();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * A failure on the writer is thrown on as it would be had the insert
+     * run here, unchecked, so it gets past the handlers for unreadable files
+     */
+    private void onWriter(Callable<Void> step) {
+        try {
+            mWriter.submit(step).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void skip(String name, String why) {
+        mResult.skipped++;
+        mResult.problems.add(name + ": skipped, " + why);
+    }
+
+    private static boolean isSong(String name) {
+        String lower = name.toLowerCase();
+        for (String extension : SONG_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String titleFromName(String name) {
+        int slash = name.lastIndexOf('/');
+        int dot = name.lastIndexOf('.');
+        if (dot <= slash) {
+            dot = name.length();
+        }
+        return name.substring(slash + 1, dot).replace('_', ' ').trim();
+    }
+}
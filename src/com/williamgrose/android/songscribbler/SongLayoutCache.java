@@ -0,0 +1,209 @@
+package com.williamgrose.android.songscribbler;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Measures song bodies on a background thread and keeps the most recently
+ * used measurements, up to a memory budget, so that reopening a song,
+ * rotating the screen or coming back from editing it doesn't measure and
+ * break every line again.
+ *
+ * A body is measured as a list of blocks (see SongRenderer.renderBlocks),
+ * and only the height of each block is kept. That is all SongBodyView
+ * needs to find the blocks on screen, which it lays out itself, so the
+ * memory a measurement takes grows with the number of blocks rather than
+ * with the number of lines and glyphs in the song.
+ *
+ * Measurements are keyed by song, a hash of the text as shown, the width it
+ * was broken to and the text size.
+ */
+public class SongLayoutCache {
+
+    /** Memory the cached measurements may take, by the estimate in sizeOf */
+    private static final int MAX_BYTES = 1024 * 1024;
+
+    private static SongLayoutCache sInstance;
+
+    /**
+     * A song body measured at one width and text size
+     */
+    public static final class Blocks {
+        public final String[] text;
+        /** Top of each block, with the height of the whole body at the end */
+        public final int[] tops;
+
+        Blocks(String[] text, int[] tops) {
+            this.text = text;
+            this.tops = tops;
+        }
+
+        public int getHeight() {
+            return tops[text.length];
+        }
+
+        /**
+         * @return the index of the block at y, clamped to the first and last
+         */
+        public int blockAt(int y) {
+            int low = 0;
+            int high = text.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (tops[mid] <= y) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    private static final class Key {
+        final long rowId;
+        final long contentHash;
+        final int width;
+        final float textSize;
+
+        Key(long rowId, long contentHash, int width, float textSize) {
+            this.rowId = rowId;
+            this.contentHash = contentHash;
+            this.width = width;
+            this.textSize = textSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return rowId == other.rowId && contentHash == other.contentHash
+                    && width == other.width && textSize == other.textSize;
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = rowId * 31 + contentHash;
+            return (int) (bits ^ (bits >>> 32)) * 31 * 31 + width * 31
+                    + Float.floatToIntBits(textSize);
+        }
+    }
+
+    private final LinkedHashMap<Key, Blocks> mMeasured =
+            new LinkedHashMap<Key, Blocks>(16, 0.75f, true);
+    private int mBytes = 0;
+    private final ExecutorService mBuilder;
+    private final Handler mMainHandler;
+
+    /**
+     * @return the cache shared by the whole process
+     */
+    public static synchronized SongLayoutCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new SongLayoutCache();
+        }
+        return sInstance;
+    }
+
+    private SongLayoutCache() {
+        mBuilder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        android.os.Process.setThreadPriority(
+                                android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "SongScribbler layout");
+            }
+        });
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * @return the cached measurement, or null if it has to be made
+     */
+    public synchronized Blocks get(long rowId, long contentHash, int width, float textSize) {
+        return mMeasured.get(new Key(rowId, contentHash, width, textSize));
+    }
+
+    /**
+     * Measure blocks of text in the background and cache the result
+     *
+     * @param paint the paint to measure with; a copy is taken, so it may be
+     *        changed once this returns
+     * @param callback given the measurement on the UI thread
+     */
+    public void build(long rowId, long contentHash, final int width, TextPaint paint,
+            final String[] text, final SongRepository.Callback<Blocks> callback) {
+        final Key key = new Key(rowId, contentHash, width, paint.getTextSize());
+        final TextPaint measure = new TextPaint(paint);
+        mBuilder.submit(new Runnable() {
+            public void run() {
+                Blocks blocks = get(key.rowId, key.contentHash, key.width, key.textSize);
+                if (blocks == null) {
+                    blocks = measure(text, measure, width);
+                    put(key, blocks);
+                }
+                final Blocks built = blocks;
+                mMainHandler.post(new Runnable() {
+                    public void run() {
+                        callback.onResult(built);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Each block's layout is thrown away as soon as its height is known
+     */
+    static Blocks measure(String[] text, TextPaint paint, int width) {
+        int[] tops = new int[text.length + 1];
+        for (int i = 0; i < text.length; i++) {
+            tops[i + 1] = tops[i] + layout(text[i], paint, width).getHeight();
+        }
+        return new Blocks(text, tops);
+    }
+
+    static Layout layout(String text, TextPaint paint, int width) {
+        return new StaticLayout(text, paint, width, Layout.Alignment.ALIGN_NORMAL,
+                1.0f, 0.0f, false);
+    }
+
+    private synchronized void put(Key key, Blocks blocks) {
+        Blocks old = mMeasured.put(key, blocks);
+        if (old != null) {
+            mBytes -= sizeOf(old);
+        }
+        mBytes += sizeOf(blocks);
+        Iterator<Map.Entry<Key, Blocks>> eldest = mMeasured.entrySet().iterator();
+        while (mBytes > MAX_BYTES && mMeasured.size() > 1) {
+            mBytes -= sizeOf(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Rough size of a measurement: its text and a top for each block
+     */
+    private static int sizeOf(Blocks blocks) {
+        int size = blocks.tops.length * 4;
+        for (String block : blocks.text) {
+            size += 40 + block.length() * 2;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,508 @@
+package com.williamgrose.android.songscribbler;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.CheckedTextView;
+import android.widget.SectionIndexer;
+
+/**
+ * List adapter over the song titles, in the order TitleKey sorts them.
+ * Titles are loaded a page at a time through
+ * SongScribblerDbAdapter.fetchSongTitles and further pages are only
+ * requested once the list scrolls close to the edge of what has been
+ * loaded, so opening the list costs the same however big the library is.
+ *
+ * The rows loaded are a window onto the whole list, starting at mStart.
+ * The list is as long as the library, from the count of songs in each
+ * section, which the database keeps as songs change. Scrolling to a row
+ * far outside the window, as the fast scroller does, moves the window to
+ * the start of that row's section and pages on from there; rows not loaded
+ * yet show empty until they are.
+ *
+ * Pages are read through the SongRepository and added when they arrive.
+ * Until the first one does the list can be shown from a TitleSnapshot, and
+ * each first page that arrives is saved as the snapshot for next time.
+ *
+ * Songs changing are applied to the rows already loaded as they are
+ * reported by SongRepository, see applyChange, rather than loading the list
+ * again, so what has been scrolled to stays and only the rows on screen are
+ * bound again.
+ */
+public class SongListAdapter extends BaseAdapter implements SectionIndexer {
+
+    /** Start loading the next page when this many rows are left to show */
+    private static final int PREFETCH_DISTANCE = 10;
+    private static final int PAGE_SIZE = SongScribblerDbAdapter.TITLE_PAGE_SIZE;
+
+    private static final int PAGE_REPLACE = 0;
+    private static final int PAGE_APPEND = 1;
+    private static final int PAGE_PREPEND = 2;
+
+    private final Context mContext;
+    private final LayoutInflater mInflater;
+    private final SongRepository mRepository;
+
+    private long[] mIds = new long[PAGE_SIZE];
+    private String[] mTitles = new String[PAGE_SIZE];
+    private String[] mKeys = new String[PAGE_SIZE];
+    /** Position in the list of the first row loaded */
+    private int mStart = 0;
+    private int mCount = 0;
+    /** Whether the last row loaded is the last in the list */
+    private boolean mExhausted = false;
+    private boolean mLoadPending = false;
+    /** Set while the rows loaded are waiting to be replaced by a new window */
+    private boolean mReplacePending = false;
+    /** Where the new window starts, as a sort key, null for the top */
+    private String mReplaceKey;
+    private int mReplacePosition;
+    /** Whether rows show a tick box, for picking songs */
+    private boolean mSelecting = false;
+    /** Bumped by reload so pages asked for before it are dropped */
+    private int mGeneration = 0;
+
+    /** The sections with songs in them, in list order */
+    private String[] mSections = new String[0];
+    /** The position of the first row of each section */
+    private int[] mSectionStarts = new int[0];
+    /** Songs in the list, or -1 until the sections have loaded */
+    private int mTotal = -1;
+    private int mSectionGeneration = 0;
+
+    public SongListAdapter(Context ctx, SongRepository repository) {
+        mContext = ctx.getApplicationContext();
+        mInflater = LayoutInflater.from(ctx);
+        mRepository = repository;
+    }
+
+    /**
+     * Show the titles saved from an earlier run until reload brings in the
+     * real ones. Nothing more is paged in meanwhile, as the rows that follow
+     * the snapshot might not follow it any more.
+     */
+    void showSnapshot(TitleSnapshot snapshot) {
+        if (snapshot == null) {
+            return;
+        }
+        int count = snapshot.ids.length;
+        ensureCapacity(count);
+        System.arraycopy(snapshot.ids, 0, mIds, 0, count);
+        System.arraycopy(snapshot.titles, 0, mTitles, 0, count);
+        mStart = 0;
+        mCount = count;
+        mLoadPending = true;
+        mReplacePending = true;
+        mReplaceKey = null;
+        mReplacePosition = 0;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Load the first page again. What is showing stays until it arrives.
+     */
+    public void reload() {
+        replaceWindow(null, 0);
+        loadSections();
+    }
+
+    /**
+     * Apply a change reported through SongRepository.SongObserver to the
+     * rows loaded so far. A row that moves outside the window is left for a
+     * later page to bring in.
+     */
+    public void applyChange(int change, long rowId, String title) {
+        if (rowId == SongRepository.ALL_SONGS) {
+            reload();
+            return;
+        }
+        int index = indexOf(rowId);
+        if (change == SongRepository.SONG_UPDATED
+                && (title == null || (index >= 0 && title.equals(mTitles[index])))) {
+            // Only titles are shown
+            return;
+        }
+        loadSections();
+        if (mReplacePending) {
+            // The window on its way could have been read before the change
+            replaceWindow(mReplaceKey, mReplacePosition);
+            return;
+        }
+        // Whether the row's old place, if it had one, is known
+        boolean placed = index >= 0 || change == SongRepository.SONG_INSERTED;
+        if (index >= 0) {
+            System.arraycopy(mIds, index + 1, mIds, index, mCount - index - 1);
+            System.arraycopy(mTitles, index + 1, mTitles, index, mCount - index - 1);
+            System.arraycopy(mKeys, index + 1, mKeys, index, mCount - index - 1);
+            mCount--;
+            mTitles[mCount] = null;
+            mKeys[mCount] = null;
+        }
+        if (change != SongRepository.SONG_DELETED) {
+            String key = TitleKey.get().sortKey(title);
+            int position = insertionPoint(key, rowId);
+            if (position == 0 && mStart > 0) {
+                // Before the window
+                if (placed) {
+                    mStart++;
+                }
+            } else if (position < mCount || mExhausted) {
+                ensureCapacity(mCount + 1);
+                System.arraycopy(mIds, position, mIds, position + 1, mCount - position);
+                System.arraycopy(mTitles, position, mTitles, position + 1, mCount - position);
+                System.arraycopy(mKeys, position, mKeys, position + 1, mCount - position);
+                mIds[position] = rowId;
+                mTitles[position] = title;
+                mKeys[position] = key;
+                mCount++;
+            }
+        }
+        if (!placed && mStart > 0) {
+            // It might have been before the window
+            recountStart();
+        }
+        if (mLoadPending) {
+            // The page on its way could have been read before the change;
+            // binding the rows again asks for it again
+            mGeneration++;
+            mLoadPending = false;
+        }
+        if (mStart == 0) {
+            TitleSnapshot.save(mContext, mIds, mTitles, mCount);
+        }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Show a tick box on each row, reflecting the list's checked items
+     */
+    public void setSelecting(boolean selecting) {
+        mSelecting = selecting;
+        notifyDataSetChanged();
+    }
+
+    private int indexOf(long rowId) {
+        for (int i = 0; i < mCount; i++) {
+            if (mIds[i] == rowId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return where a row goes among those loaded, in the order
+     *         fetchSongTitles keeps, by sort key and then rowId
+     */
+    private int insertionPoint(String key, long rowId) {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int order = mKeys[mid].compareTo(key);
+            if (order < 0 || (order == 0 && mIds[mid] < rowId)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Move the window to start at position, whose row is the first with a
+     * sort key of at least key
+     */
+    private void replaceWindow(String key, int position) {
+        mGeneration++;
+        mLoadPending = true;
+        mReplacePending = true;
+        mReplaceKey = key;
+        mReplacePosition = position;
+        requestPage(key, 0, PAGE_REPLACE);
+    }
+
+    private void requestPage(String key, long rowId, final int placement) {
+        final int generation = mGeneration;
+        SongRepository.Callback<Cursor> callback = new SongRepository.Callback<Cursor>() {
+            public void onResult(Cursor page) {
+                if (generation != mGeneration) {
+                    page.close();
+                    return;
+                }
+                mLoadPending = false;
+                if (placement == PAGE_PREPEND) {
+                    prependPage(page);
+                } else {
+                    if (placement == PAGE_REPLACE) {
+                        mReplacePending = false;
+                        mStart = mReplacePosition;
+                        mCount = 0;
+                    }
+                    appendPage(page);
+                    if (placement == PAGE_REPLACE && mStart == 0) {
+                        TitleSnapshot.save(mContext, mIds, mTitles, mCount);
+                    }
+                }
+                notifyDataSetChanged();
+            }
+        };
+        if (placement == PAGE_PREPEND) {
+            mRepository.fetchSongTitlesBefore(key, rowId, PAGE_SIZE, callback);
+        } else {
+            mRepository.fetchSongTitles(key, rowId, PAGE_SIZE, callback);
+        }
+    }
+
+    private void appendPage(Cursor page) {
+        try {
+            int loaded = 0;
+            while (page.moveToNext()) {
+                ensureCapacity(mCount + 1);
+                mIds[mCount] = page.getLong(0);
+                mTitles[mCount] = page.getString(1);
+                mKeys[mCount] = page.getString(2);
+                mCount++;
+                loaded++;
+            }
+            mExhausted = loaded < PAGE_SIZE;
+        } finally {
+            page.close();
+        }
+    }
+
+    /**
+     * Put a page from fetchSongTitlesBefore, nearest row first, ahead of the
+     * rows loaded
+     */
+    private void prependPage(Cursor page) {
+        try {
+            int loaded = page.getCount();
+            ensureCapacity(mCount + loaded);
+            System.arraycopy(mIds, 0, mIds, loaded, mCount);
+            System.arraycopy(mTitles, 0, mTitles, loaded, mCount);
+            System.arraycopy(mKeys, 0, mKeys, loaded, mCount);
+            for (int i = loaded - 1; page.moveToNext(); i--) {
+                mIds[i] = page.getLong(0);
+                mTitles[i] = page.getString(1);
+                mKeys[i] = page.getString(2);
+            }
+            mCount += loaded;
+            // Reaching the top puts the window right, if it was out
+            mStart = loaded < PAGE_SIZE ? 0 : Math.max(mStart - loaded, 0);
+        } finally {
+            page.close();
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > mIds.length) {
+            int capacity = Math.max(size, mIds.length * 2);
+            long[] ids = new long[capacity];
+            String[] titles = new String[capacity];
+            String[] keys = new String[capacity];
+            System.arraycopy(mIds, 0, ids, 0, mCount);
+            System.arraycopy(mTitles, 0, titles, 0, mCount);
+            System.arraycopy(mKeys, 0, keys, 0, mCount);
+            mIds = ids;
+            mTitles = titles;
+            mKeys = keys;
+        }
+    }
+
+    /*
+     * Pages arrive through a posted callback, so the list never sees its
+     * data change while it is asking for views
+     */
+
+    private void requestNextPage() {
+        if (mExhausted || mLoadPending || mCount == 0) {
+            return;
+        }
+        mLoadPending = true;
+        requestPage(mKeys[mCount - 1], mIds[mCount - 1], PAGE_APPEND);
+    }
+
+    private void requestPreviousPage() {
+        if (mStart == 0 || mLoadPending || mCount == 0) {
+            return;
+        }
+        mLoadPending = true;
+        requestPage(mKeys[0], mIds[0], PAGE_PREPEND);
+    }
+
+    /**
+     * Bring position into the window, paging towards it if it is near and
+     * moving the window to its section if not
+     */
+    private void requestPosition(int position) {
+        if (mLoadPending || mSections.length == 0) {
+            return;
+        }
+        int section = getSectionForPosition(position);
+        int sectionStart = mSectionStarts[section];
+        if (position >= mStart + mCount) {
+            if (sectionStart <= mStart + mCount) {
+                requestNextPage();
+                return;
+            }
+        } else if (position >= mStart - PAGE_SIZE) {
+            requestPreviousPage();
+            return;
+        }
+        replaceWindow(TitleKey.get().sectionStart(mSections[section]), sectionStart);
+    }
+
+    /**
+     * Find out where the window starts after a change that may have been
+     * before it
+     */
+    private void recountStart() {
+        if (mCount == 0) {
+            return;
+        }
+        final long rowId = mIds[0];
+        final String key = mKeys[0];
+        mRepository.countSongsBefore(key, rowId, new SongRepository.Callback<Integer>() {
+            public void onResult(Integer count) {
+                if (mCount > 0 && mIds[0] == rowId && key.equals(mKeys[0])
+                        && count != mStart) {
+                    mStart = count;
+                    notifyDataSetChanged();
+                }
+            }
+        });
+    }
+
+    private void loadSections() {
+        final int generation = ++mSectionGeneration;
+        mRepository.fetchSongSections(new SongRepository.Callback<Cursor>() {
+            public void onResult(Cursor sections) {
+                try {
+                    if (generation == mSectionGeneration) {
+                        setSections(sections);
+                        notifyDataSetChanged();
+                    }
+                } finally {
+                    sections.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Put the sections in list order, the order of the keys they start at,
+     * and work out where each starts
+     */
+    private void setSections(Cursor cursor) {
+        int count = cursor.getCount();
+        String[] sections = new String[count];
+        String[] keys = new String[count];
+        int[] sizes = new int[count];
+        TitleKey titleKey = TitleKey.get();
+        for (int i = 0; cursor.moveToNext(); i++) {
+            String section = cursor.getString(0);
+            String key = titleKey.sectionStart(section);
+            int size = cursor.getInt(1);
+            // Insertion sort, there are a few dozen at most
+            int j = i;
+            for (; j > 0 && (key == null
+                    || (keys[j - 1] != null && keys[j - 1].compareTo(key) > 0)); j--) {
+                sections[j] = sections[j - 1];
+                keys[j] = keys[j - 1];
+                sizes[j] = sizes[j - 1];
+            }
+            sections[j] = section;
+            keys[j] = key;
+            sizes[j] = size;
+        }
+        int[] starts = new int[count];
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            starts[i] = total;
+            total += sizes[i];
+        }
+        mSections = sections;
+        mSectionStarts = starts;
+        mTotal = total;
+    }
+
+    public Object[] getSections() {
+        return mSections;
+    }
+
+    public int getPositionForSection(int section) {
+        if (mSections.length == 0) {
+            return 0;
+        }
+        return mSectionStarts[Math.max(Math.min(section, mSections.length - 1), 0)];
+    }
+
+    public int getSectionForPosition(int position) {
+        int low = 0;
+        int high = mSectionStarts.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mSectionStarts[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return Math.max(low, 0);
+    }
+
+    private boolean isLoaded(int position) {
+        return position >= mStart && position < mStart + mCount;
+    }
+
+    public int getCount() {
+        return Math.max(mTotal, mStart + mCount);
+    }
+
+    public Object getItem(int position) {
+        return isLoaded(position) ? mTitles[position - mStart] : null;
+    }
+
+    public long getItemId(int position) {
+        // Rows not loaded have ids no song has
+        return isLoaded(position) ? mIds[position - mStart] : -1 - position;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public boolean areAllItemsEnabled() {
+        return false;
+    }
+
+    @Override
+    public boolean isEnabled(int position) {
+        return isLoaded(position);
+    }
+
+    public View getView(int position, View convertView, ViewGroup parent) {
+        CheckedTextView row = (CheckedTextView) (convertView != null ? convertView
+                : mInflater.inflate(R.layout.songs_row, parent, false));
+        row.setCheckMarkDrawable(mSelecting ? android.R.drawable.btn_check : 0);
+        if (!isLoaded(position)) {
+            requestPosition(position);
+            row.setText(null);
+            return row;
+        }
+        int index = position - mStart;
+        if (index >= mCount - PREFETCH_DISTANCE) {
+            requestNextPage();
+        } else if (index < PREFETCH_DISTANCE) {
+            requestPreviousPage();
+        }
+        row.setText(mTitles[index]);
+        return row;
+    }
+}
@@ -0,0 +1,31 @@
+package com.williamgrose.android.songscribbler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The most recently used parses, keyed by the hash of the text they came
+ * from, so a song that is opened again, or a copy of one, isn't parsed
+ * again. Safe to use from any thread.
+ */
+class SongParseCache {
+
+    private final LinkedHashMap<Long, ParsedSong> mParses;
+
+    SongParseCache(final int maxEntries) {
+        mParses = new LinkedHashMap<Long, ParsedSong>(maxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, ParsedSong> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    synchronized ParsedSong get(long hash) {
+        return mParses.get(hash);
+    }
+
+    synchronized void put(ParsedSong parsed) {
+        mParses.put(parsed.hash, parsed);
+    }
+}
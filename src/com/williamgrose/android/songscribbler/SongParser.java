@@ -0,0 +1,387 @@
+package com.williamgrose.android.songscribbler;
+
+import java.util.ArrayList;
+
+/**
+ * Parses a song's body and chords fields into a ParsedSong.
+ *
+ * Two ways of writing chords are understood: ChordPro style, with each
+ * chord in brackets at the point in the lyrics where it is played, and the
+ * usual plain text style, with a line of chords spaced out over the line of
+ * lyrics they go with. Sections start at {start_of_chorus} style directives
+ * and at headings such as "Chorus:", "[Verse 2]" or a {comment: Bridge}, and
+ * a blank line ends a stanza.
+ *
+ * The timing directives {duration: 3:30}, {tempo: 96} and {time: 3/4} are
+ * kept for ScrollTimeline. A {tempo} inside a section, or a {pause: 8} in
+ * seconds, applies to that section alone.
+ *
+ * A parser keeps its scratch lists between songs, so reuse one where there
+ * are many songs to parse.
+ */
+public class SongParser {
+
+    /**
+     * Bumped whenever the parser changes what it produces, so that parses
+     * stored by an older version no longer match any song's hash
+     */
+    static final int VERSION = 2;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final int DEFAULT_BEATS_PER_BAR = 4;
+    private static final int MAX_TEMPO = 400;
+    /** Longest duration or pause taken, a day */
+    private static final int MAX_SECONDS = 24 * 60 * 60;
+
+    private static final String[] SECTION_NAMES = {
+            "verse", "chorus", "refrain", "pre-chorus", "prechorus", "bridge", "intro",
+            "outro", "solo", "instrumental", "interlude", "break", "tag", "coda", "ending"};
+
+    private final ArrayList<ParsedSong.Section> mSections = new ArrayList<ParsedSong.Section>();
+    private final ArrayList<ParsedSong.Line> mLines = new ArrayList<ParsedSong.Line>();
+    private final ArrayList<Chord> mChords = new ArrayList<Chord>();
+    private final StringBuilder mText = new StringBuilder();
+    private int[] mOffsets = new int[16];
+    private String mSectionName;
+    private int mSectionTempo;
+    private int mSectionPause;
+    private int mDuration;
+    private int mTempo;
+    private int mBeatsPerBar;
+    /** A line of chords still waiting to see if lyrics follow it */
+    private ParsedSong.Line mPendingChords;
+
+    /**
+     * 64 bit FNV-1a hash of a song's text, which is what its parse is cached
+     * under
+     */
+    public static long hash(String body, String chords) {
+        long hash = FNV_OFFSET ^ VERSION;
+        hash = hash(hash, body);
+        // A char that can't appear in either field keeps "ab","c" apart
+        // from "a","bc"
+        hash = (hash ^ 0xffff) * FNV_PRIME;
+        return hash(hash, chords);
+    }
+
+    private static long hash(long hash, String text) {
+        for (int i = 0, length = text.length(); i < length; i++) {
+            hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    public ParsedSong parse(String body, String chords) {
+        mSections.clear();
+        mLines.clear();
+        mSectionName = null;
+        mSectionTempo = 0;
+        mSectionPause = 0;
+        mDuration = 0;
+        mTempo = 0;
+        mBeatsPerBar = DEFAULT_BEATS_PER_BAR;
+        mPendingChords = null;
+
+        int length = body.length();
+        int start = 0;
+        while (start < length) {
+            int end = body.indexOf('\n', start);
+            if (end < 0) {
+                end = length;
+            }
+            int lineEnd = end;
+            if (lineEnd > start && body.charAt(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            parseLine(body, start, lineEnd);
+            start = end + 1;
+        }
+        flushPendingChords();
+        endSection();
+
+        // The chords field has no lyrics to anchor to, so any chords in it
+        // are laid out left to right
+        ParsedSong.Line chordLine = chordLine(chords, 0, chords.length());
+        if (chordLine == null) {
+            chordLine = new ParsedSong.Line(chords.trim(), ParsedSong.Line.NO_OFFSETS,
+                    ParsedSong.Line.NO_CHORDS);
+        }
+        return new ParsedSong(hash(body, chords), chordLine,
+                mSections.toArray(new ParsedSong.Section[mSections.size()]), mDuration, mTempo,
+                mBeatsPerBar);
+    }
+
+    private void parseLine(String text, int start, int end) {
+        int first = start;
+        while (first < end && Character.isWhitespace(text.charAt(first))) {
+            first++;
+        }
+        while (end > first && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        if (first == end) {
+            flushPendingChords();
+            if (!mLines.isEmpty()) {
+                endSection();
+            }
+            return;
+        }
+        if (text.charAt(first) == '{' && text.charAt(end - 1) == '}') {
+            directive(text.substring(first + 1, end - 1));
+            return;
+        }
+        String heading = heading(text, first, end);
+        if (heading != null) {
+            startSection(heading);
+            return;
+        }
+        ParsedSong.Line chords = chordLine(text, start, end);
+        if (chords != null) {
+            flushPendingChords();
+            mPendingChords = chords;
+            return;
+        }
+
+        ParsedSong.Line line = lyricLine(text, start, end);
+        if (mPendingChords != null && line.chords.length == 0) {
+            // Chords written over the lyrics fall on the same column
+            line = new ParsedSong.Line(line.text, mPendingChords.chordOffsets,
+                    mPendingChords.chords);
+            mPendingChords = null;
+        } else {
+            flushPendingChords();
+        }
+        mLines.add(line);
+    }
+
+    private void directive(String directive) {
+        int colon = directive.indexOf(':');
+        String name = (colon < 0 ? directive : directive.substring(0, colon)).trim()
+                .toLowerCase();
+        String value = colon < 0 ? "" : directive.substring(colon + 1).trim();
+        if (name.equals("soc") || name.equals("start_of_chorus")) {
+            startSection(value.length() > 0 ? value : "Chorus");
+        } else if (name.equals("sov") || name.equals("start_of_verse")) {
+            startSection(value.length() > 0 ? value : "Verse");
+        } else if (name.equals("sob") || name.equals("start_of_bridge")) {
+            startSection(value.length() > 0 ? value : "Bridge");
+        } else if (name.startsWith("eo") || name.startsWith("end_of_")) {
+            flushPendingChords();
+            endSection();
+        } else if (name.equals("c") || name.equals("comment") || name.equals("ci")
+                || name.equals("comment_italic") || name.equals("cb")) {
+            if (isSectionName(value, 0, value.length())) {
+                startSection(value);
+            } else if (value.length() > 0) {
+                flushPendingChords();
+                mLines.add(new ParsedSong.Line(value, ParsedSong.Line.NO_OFFSETS,
+                        ParsedSong.Line.NO_CHORDS));
+            }
+        } else if (name.equals("duration")) {
+            mDuration = parseDuration(value);
+        } else if (name.equals("tempo")) {
+            int tempo = parseNumber(value, MAX_TEMPO);
+            if (mSectionName == null && mLines.isEmpty() && mSections.isEmpty()) {
+                mTempo = tempo;
+            } else {
+                mSectionTempo = tempo;
+            }
+        } else if (name.equals("time")) {
+            int slash = value.indexOf('/');
+            int beats = parseNumber(slash < 0 ? value : value.substring(0, slash), 32);
+            mBeatsPerBar = beats > 0 ? beats : DEFAULT_BEATS_PER_BAR;
+        } else if (name.equals("pause")) {
+            mSectionPause = parseDuration(value);
+        }
+        // Anything else (title, key...) has no place in the layout
+    }
+
+    /**
+     * @return "210", "3:30" or "1:02:30" in milliseconds, or 0 if it isn't
+     *         a time
+     */
+    private static int parseDuration(String value) {
+        int seconds = 0;
+        for (String part : value.split(":", 3)) {
+            seconds = seconds * 60 + parseNumber(part, MAX_SECONDS);
+        }
+        return seconds <= MAX_SECONDS ? seconds * 1000 : 0;
+    }
+
+    /**
+     * @return the leading whole number in value, or 0 if there isn't one or
+     *         it is over max
+     */
+    private static int parseNumber(String value, int max) {
+        value = value.trim();
+        int end = 0;
+        while (end < value.length() && end < 9 && Character.isDigit(value.charAt(end))) {
+            end++;
+        }
+        if (end == 0) {
+            return 0;
+        }
+        int number = Integer.parseInt(value.substring(0, end));
+        return number <= max ? number : 0;
+    }
+
+    private void startSection(String name) {
+        flushPendingChords();
+        endSection();
+        mSectionName = name;
+    }
+
+    private void endSection() {
+        if (mLines.isEmpty() && mSectionName == null) {
+            return;
+        }
+        mSections.add(new ParsedSong.Section(mSectionName,
+                mLines.toArray(new ParsedSong.Line[mLines.size()]), mSectionTempo,
+                mSectionPause));
+        mLines.clear();
+        mSectionName = null;
+        mSectionTempo = 0;
+        mSectionPause = 0;
+    }
+
+    private void flushPendingChords() {
+        if (mPendingChords != null) {
+            mLines.add(mPendingChords);
+            mPendingChords = null;
+        }
+    }
+
+    /**
+     * @return the section named by a heading line such as "Chorus:" or
+     *         "[Verse 2]", or null if the line isn't one
+     */
+    private static String heading(String text, int start, int end) {
+        if (text.charAt(start) == '[' && text.charAt(end - 1) == ']') {
+            start++;
+            end--;
+        } else if (text.charAt(end - 1) == ':') {
+            end--;
+        }
+        if (!isSectionName(text, start, end)) {
+            return null;
+        }
+        return text.substring(start, end).trim();
+    }
+
+    /**
+     * A known section name, optionally followed by a number or a repeat
+     * count: "Verse 2", "Chorus (x2)"
+     */
+    private static boolean isSectionName(String text, int start, int end) {
+        int wordEnd = start;
+        while (wordEnd < end && (Character.isLetter(text.charAt(wordEnd))
+                || text.charAt(wordEnd) == '-')) {
+            wordEnd++;
+        }
+        if (wordEnd == start) {
+            return false;
+        }
+        String word = text.substring(start, wordEnd).toLowerCase();
+        boolean known = false;
+        for (String name : SECTION_NAMES) {
+            if (name.equals(word)) {
+                known = true;
+                break;
+            }
+        }
+        if (!known) {
+            return false;
+        }
+        for (int i = wordEnd; i < end; i++) {
+            char c = text.charAt(i);
+            if (!Character.isDigit(c) && " \tx#.()".indexOf(c) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the line as a line of chords, each at its column, or null if
+     *         anything in it isn't a chord
+     */
+    private ParsedSong.Line chordLine(String text, int start, int end) {
+        mChords.clear();
+        int i = start;
+        while (i < end) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c) || c == '|') {
+                i++;
+                continue;
+            }
+            int tokenEnd = i;
+            while (tokenEnd < end && !Character.isWhitespace(text.charAt(tokenEnd))) {
+                tokenEnd++;
+            }
+            Chord chord = Chord.parse(text, i, tokenEnd);
+            if (chord == null) {
+                return null;
+            }
+            addChord(i - start, chord);
+            i = tokenEnd;
+        }
+        if (mChords.isEmpty()) {
+            return null;
+        }
+        return new ParsedSong.Line("", offsets(), chords());
+    }
+
+    /**
+     * @return the lyrics with any inline [C] chords taken out and anchored
+     *         where they were
+     */
+    private ParsedSong.Line lyricLine(String text, int start, int end) {
+        mChords.clear();
+        mText.setLength(0);
+        int i = start;
+        while (i < end) {
+            char c = text.charAt(i);
+            if (c == '[') {
+                int close = text.indexOf(']', i + 1);
+                if (close >= 0 && close < end) {
+                    Chord chord = Chord.parse(text, i + 1, close);
+                    if (chord != null) {
+                        addChord(mText.length(), chord);
+                        i = close + 1;
+                        continue;
+                    }
+                }
+            }
+            mText.append(c);
+            i++;
+        }
+        if (mChords.isEmpty()) {
+            return new ParsedSong.Line(mText.toString(), ParsedSong.Line.NO_OFFSETS,
+                    ParsedSong.Line.NO_CHORDS);
+        }
+        return new ParsedSong.Line(mText.toString(), offsets(), chords());
+    }
+
+    private void addChord(int offset, Chord chord) {
+        int count = mChords.size();
+        if (count == mOffsets.length) {
+            int[] grown = new int[count * 2];
+            System.arraycopy(mOffsets, 0, grown, 0, count);
+            mOffsets = grown;
+        }
+        mOffsets[count] = offset;
+        mChords.add(chord);
+    }
+
+    private int[] offsets() {
+        int[] offsets = new int[mChords.size()];
+        System.arraycopy(mOffsets, 0, offsets, 0, offsets.length);
+        return offsets;
+    }
+
+    private Chord[] chords() {
+        return mChords.toArray(new Chord[mChords.size()]);
+    }
+}
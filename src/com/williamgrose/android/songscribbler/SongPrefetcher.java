@@ -0,0 +1,76 @@
+package com.williamgrose.android.songscribbler;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Keeps the songs around the current one in a setlist prepared, so that
+ * moving to the next (or back to the previous) song needs no database read,
+ * parse, render or measurement. Only a fixed window of songs is ever held:
+ * the one before the current song and the next few after it.
+ *
+ * Used from the UI thread only.
+ */
+class SongPrefetcher {
+
+    /** Songs after the current one kept ready */
+    static final int AHEAD = 3;
+
+    private final SongRepository mRepository;
+    private final SongBodyView mBodyView;
+    private final int mBlockLines;
+    private final HashMap<Long, PreparedSong> mReady = new HashMap<Long, PreparedSong>();
+    private final HashSet<Long> mWanted = new HashSet<Long>();
+    private final HashSet<Long> mPending = new HashSet<Long>();
+
+    SongPrefetcher(SongRepository repository, SongBodyView bodyView, int blockLines) {
+        mRepository = repository;
+        mBodyView = bodyView;
+        mBlockLines = blockLines;
+    }
+
+    /**
+     * Prepare the window of songs around position, and drop any others
+     */
+    void prefetch(long[] setlist, int position) {
+        mWanted.clear();
+        int first = Math.max(position - 1, 0);
+        int last = Math.min(position + AHEAD, setlist.length - 1);
+        for (int i = first; i <= last; i++) {
+            if (i != position) {
+                mWanted.add(setlist[i]);
+            }
+        }
+        Iterator<Long> ready = mReady.keySet().iterator();
+        while (ready.hasNext()) {
+            if (!mWanted.contains(ready.next())) {
+                ready.remove();
+            }
+        }
+        for (int i = first; i <= last; i++) {
+            final long rowId = setlist[i];
+            if (i == position || mReady.containsKey(rowId) || !mPending.add(rowId)) {
+                continue;
+            }
+            mRepository.prepareSong(rowId, mBlockLines,
+                    new SongRepository.Callback<PreparedSong>() {
+                public void onResult(PreparedSong song) {
+                    mPending.remove(rowId);
+                    if (song != null && mWanted.contains(rowId)) {
+                        mReady.put(rowId, song);
+                        // Measured now, so the layout is cached when it's shown
+                        mBodyView.prefetch(rowId, song.renderedHash, song.blocks);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the prepared song, or null if it isn't ready
+     */
+    PreparedSong get(long rowId) {
+        return mReady.get(rowId);
+    }
+}
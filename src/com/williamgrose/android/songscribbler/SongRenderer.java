@@ -0,0 +1,122 @@
+package com.williamgrose.android.songscribbler;
+
+import java.util.List;
+
+/**
+ * Lays a ParsedSong out as plain text for a monospaced view: section names
+ * on a line of their own, and each line's chords on the line above its
+ * lyrics, lined up with the characters they are anchored to.
+ *
+ * Rendering into a StringBuilder that is kept and reused makes no garbage
+ * beyond the builder growing, so a song can be rendered again each time
+ * its transposition changes.
+ */
+public class SongRenderer {
+
+    /**
+     * Append the whole song to out, with its chords written by transposer
+     */
+    public static void render(ParsedSong song, Transposer transposer, StringBuilder out) {
+        for (int i = 0; i < song.sections.length; i++) {
+            ParsedSong.Section section = song.sections[i];
+            if (i > 0) {
+                out.append('\n');
+            }
+            if (section.name != null) {
+                out.append(section.name).append('\n');
+            }
+            for (ParsedSong.Line line : section.lines) {
+                if (line.chords.length > 0) {
+                    appendChords(line, transposer, out);
+                    out.append('\n');
+                }
+                if (line.text.length() > 0 || line.chords.length == 0) {
+                    out.append(line.text).append('\n');
+                }
+            }
+        }
+        // No newline after the last line, as typed
+        if (out.length() > 0 && out.charAt(out.length() - 1) == '\n') {
+            out.setLength(out.length() - 1);
+        }
+    }
+
+    /**
+     * Render the song as a list of blocks, each a section or part of one of
+     * at most maxLines lyric lines, so a view can lay out and draw just the
+     * blocks on screen. Joined with newlines the blocks read the same as
+     * render's text; a line's chords always share its block.
+     *
+     * @param scratch reused while building each block
+     */
+    public static void renderBlocks(ParsedSong song, Transposer transposer, int maxLines,
+            List<String> blocks, StringBuilder scratch) {
+        for (int i = 0; i < song.sections.length; i++) {
+            ParsedSong.Section section = song.sections[i];
+            scratch.setLength(0);
+            if (i > 0) {
+                // The gap between sections goes at the top of the next one
+                scratch.append('\n');
+            }
+            if (section.name != null) {
+                scratch.append(section.name).append('\n');
+            }
+            int lines = 0;
+            for (ParsedSong.Line line : section.lines) {
+                if (lines == maxLines) {
+                    endBlock(blocks, scratch);
+                    lines = 0;
+                }
+                if (line.chords.length > 0) {
+                    appendChords(line, transposer, scratch);
+                    scratch.append('\n');
+                }
+                if (line.text.length() > 0 || line.chords.length == 0) {
+                    scratch.append(line.text).append('\n');
+                }
+                lines++;
+            }
+            endBlock(blocks, scratch);
+        }
+    }
+
+    private static void endBlock(List<String> blocks, StringBuilder block) {
+        if (block.length() > 0 && block.charAt(block.length() - 1) == '\n') {
+            block.setLength(block.length() - 1);
+        }
+        blocks.add(block.toString());
+        block.setLength(0);
+    }
+
+    /**
+     * Append a line's chords, padded out to their columns. A chord that
+     * would run into the previous one is pushed along by a space.
+     */
+    public static void appendChords(ParsedSong.Line line, Transposer transposer,
+            StringBuilder out) {
+        int lineStart = out.length();
+        for (int i = 0; i < line.chords.length; i++) {
+            int column = lineStart + line.chordOffsets[i];
+            if (i > 0 && out.length() >= column) {
+                out.append(' ');
+            }
+            while (out.length() < column) {
+                out.append(' ');
+            }
+            transposer.appendTo(line.chords[i], out);
+        }
+    }
+
+    /**
+     * @return the song's chords field laid out on one line
+     */
+    public static String renderChordLine(ParsedSong song, Transposer transposer) {
+        ParsedSong.Line line = song.chordLine;
+        if (line.chords.length == 0) {
+            return line.text;
+        }
+        StringBuilder out = new StringBuilder();
+        appendChords(line, transposer, out);
+        return out.toString();
+    }
+}
@@ -0,0 +1,976 @@
+package com.williamgrose.android.songscribbler;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous front end to SongScribblerDbAdapter, so that the activities
+ * never touch the database from the UI thread.
+ *
+ * Reads run on a small pool of background threads. All writes go through a
+ * single writer thread and so are applied one at a time in the order they
+ * were made. A read always waits for the writes submitted before it, which
+ * means an activity reading a song straight after another one saved it sees
+ * the saved version; when there are none it doesn't go near the writer.
+ *
+ * Imports and restores run on a thread of their own and hand their songs to
+ * the writer a batch at a time, so a save or a read made meanwhile waits
+ * for one batch rather than the whole job.
+ *
+ * Partial updates made with updateSongFields are held back for a short
+ * window and merged per song, so a burst of saves becomes one UPDATE of the
+ * columns that changed. Any other write or read flushes them first, so the
+ * ordering guarantees above still hold.
+ *
+ * The songs most recently read or written are cached in memory, and every
+ * write goes through to that cache as it is made, so going back to a song
+ * that was just shown or saved doesn't read it again. Observers are told
+ * of each song that is created, changed or deleted, with enough to update a
+ * list of titles without reading it again.
+ *
+ * Parsed songs are cached in memory and stored alongside each song, both
+ * keyed by a hash of the song's text, so a song is only parsed again once
+ * its text has changed.
+ *
+ * Row migrations left behind by a schema upgrade are run on the writer
+ * thread a batch at a time, in between any other writes.
+ *
+ * Syncing with a server runs on a thread of its own, so the writer only
+ * waits on the database, never on the network; see SongSync.
+ *
+ * Results are handed back on the UI thread through a Callback. Cursors are
+ * already filled when they arrive and belong to the callback, which has to
+ * close (or manage) them.
+ */
+public class SongRepository {
+
+    /**
+     * Receives the result of a repository call on the UI thread
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    /**
+     * Told on the UI thread of songs being created, changed or deleted
+     */
+    public interface SongObserver {
+        /**
+         * @param change SONG_INSERTED, SONG_UPDATED or SONG_DELETED
+         * @param rowId the song, or ALL_SONGS after a change to many songs
+         *        such as an import, which could be anything
+         * @param title the song's title if it is new or may have changed,
+         *        otherwise null
+         */
+        void onSongChanged(int change, long rowId, String title);
+    }
+
+    public static final long ALL_SONGS = -1;
+    public static final int SONG_INSERTED = 1;
+    public static final int SONG_UPDATED = 2;
+    public static final int SONG_DELETED = 3;
+
+    private static final String TAG = "SongRepository";
+    private static final int READER_THREADS = 2;
+    /** How long partial updates are held to be merged with later ones */
+    private static final long COALESCE_MILLIS = 300;
+    /** Parses kept in memory, a setlist's worth or so */
+    private static final int PARSE_CACHE_SIZE = 32;
+    /** Songs kept in memory */
+    private static final int SONG_CACHE_SIZE = 16;
+
+    private static SongRepository sInstance;
+
+    private final SongScribblerDbAdapter mDbHelper;
+    private final ExecutorService mReaders;
+    private final ScheduledExecutorService mWriter;
+    /** Runs one sync at a time */
+    private final ExecutorService mSyncer;
+    /** Runs imports and restores, one at a time */
+    private final ExecutorService mJobs;
+    /** Writes submitted and not yet done, which reads have to wait for */
+    private final AtomicInteger mWritesQueued = new AtomicInteger();
+    private final Context mContext;
+    private final Handler mMainHandler;
+    private boolean mOpen = false;
+    private final SongParseCache mParses = new SongParseCache(PARSE_CACHE_SIZE);
+    private final SongCache mSongs = new SongCache(SONG_CACHE_SIZE);
+    /** Only touched on the UI thread */
+    private final ArrayList<SongObserver> mObservers = new ArrayList<SongObserver>();
+
+    /** Partial updates waiting to be written, guarded by itself */
+    private final HashMap<Long, ContentValues> mPendingUpdates =
+            new HashMap<Long, ContentValues>();
+    private boolean mFlushScheduled = false;
+
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            flushPendingUpdates();
+        }
+    };
+
+    private Migration.ProgressListener mMigrationListener;
+
+    private final Runnable mMigrate = new Runnable() {
+        public void run() {
+            long start = Metrics.start();
+            try {
+                boolean more = db().migrateNextBatch(mMigrationProgress);
+                Metrics.DB_MIGRATE.end(start);
+                if (more) {
+                    // Requeue rather than loop so other writes get a turn
+                    mWriter.submit(mMigrate);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Migrating database failed", e);
+            }
+        }
+    };
+
+    /** Only touched on the writer thread */
+    private boolean mCompactionQueued = false;
+
+    /**
+     * Thin out one song's revisions at a time, queued behind the saves that
+     * built them up rather than slowing those down
+     */
+    private final Runnable mCompactRevisions = new Runnable() {
+        public void run() {
+            mCompactionQueued = false;
+            try {
+                if (db().compactNextRevisions()) {
+                    mCompactionQueued = true;
+                    mWriter.submit(mCompactRevisions);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Compacting revisions failed", e);
+            }
+        }
+    };
+
+    /**
+     * Delete the journals of songs that have gone some other way than
+     * deleteSong, such as a restore or a delete from SongSync
+     */
+    private final Runnable mDeleteStaleJournals = new Runnable() {
+        public void run() {
+            try {
+                for (long rowId : EditJournal.journaled(mContext)) {
+                    Cursor song = db().fetchSong(rowId);
+                    try {
+                        if (song.getCount() == 0) {
+                            EditJournal.delete(mContext, rowId);
+                        }
+                    } finally {
+                        song.close();
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Deleting stale journals failed", e);
+            }
+        }
+    };
+
+    private final Migration.ProgressListener mMigrationProgress =
+            new Migration.ProgressListener() {
+        public void onProgress(final int version, final long done, final long total) {
+            Log.i(TAG, "Migrating to version " + version + ": " + done + "/" + total);
+            mMainHandler.post(new Runnable() {
+                public void run() {
+                    if (mMigrationListener != null) {
+                        mMigrationListener.onProgress(version, done, total);
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * @return the repository shared by the whole process
+     */
+    public static synchronized SongRepository getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new SongRepository(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Only made directly by tests, as the app shares getInstance's
+     */
+    SongRepository(Context ctx) {
+        mDbHelper = new SongScribblerDbAdapter(ctx);
+        mReaders = Executors.newFixedThreadPool(READER_THREADS, new DbThreadFactory("reader"));
+        mWriter = Executors.newSingleThreadScheduledExecutor(new DbThreadFactory("writer"));
+        mSyncer = Executors.newSingleThreadExecutor(new DbThreadFactory("sync"));
+        mJobs = Executors.newSingleThreadExecutor(new DbThreadFactory("job"));
+        mContext = ctx;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mWriter.submit(mDeleteStaleJournals);
+        mWriter.submit(mMigrate);
+    }
+
+    /**
+     * Finish the work queued and close the database, for tests; the app's
+     * repository lasts as long as the process
+     */
+    void close() throws InterruptedException {
+        // Jobs and syncs write through the writer, so they go first
+        ExecutorService[] executors = {mJobs, mSyncer, mReaders, mWriter};
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        synchronized (this) {
+            if (mOpen) {
+                mDbHelper.close();
+                mOpen = false;
+            }
+        }
+    }
+
+    /**
+     * @param listener told on the UI thread how any row migration is getting
+     *        on, or null to stop listening
+     */
+    public void setMigrationListener(Migration.ProgressListener listener) {
+        mMigrationListener = listener;
+    }
+
+    /**
+     * Must be called on the UI thread, and matched by unregisterObserver
+     */
+    public void registerObserver(SongObserver observer) {
+        mObservers.add(observer);
+    }
+
+    public void unregisterObserver(SongObserver observer) {
+        mObservers.remove(observer);
+    }
+
+    private void notifyChanged(final int change, final long rowId, final String title) {
+        mMainHandler.post(new Runnable() {
+            public void run() {
+                // Copied so observers can unregister as they are told
+                for (SongObserver observer : mObservers.toArray(
+                        new SongObserver[mObservers.size()])) {
+                    observer.onSongChanged(change, rowId, title);
+                }
+            }
+        });
+    }
+
+    /**
+     * The database is opened by whichever background thread needs it first,
+     * so that creating or upgrading it never happens on the UI thread
+     */
+    private synchronized SongScribblerDbAdapter db() {
+        if (!mOpen) {
+            mDbHelper.open();
+            mOpen = true;
+        }
+        return mDbHelper;
+    }
+
+    /**
+     * Fetch a song, straight from memory if it has been read or saved lately
+     *
+     * @return the song, or null if there is no such song
+     */
+    public Future<Song> getSong(final long rowId, Callback<Song> callback) {
+        Song cached = mSongs.get(rowId);
+        if (cached != null) {
+            return done(cached, callback);
+        }
+        return read(null, new Callable<Song>() {
+            public Song call() {
+                return loadSong(rowId);
+            }
+        }, callback);
+    }
+
+    /**
+     * Only run on a reader, so that it sees every write made before it
+     */
+    private Song loadSong(long rowId) {
+        Song song = mSongs.get(rowId);
+        if (song != null) {
+            return song;
+        }
+        long generation = mSongs.generation();
+        long start = Metrics.start();
+        Cursor row = db().fetchSong(rowId);
+        try {
+            if (row == null || row.getCount() == 0) {
+                return null;
+            }
+            song = Song.fromCursor(row);
+        } finally {
+            if (row != null) {
+                row.close();
+            }
+            Metrics.DB_FETCH_SONG.end(start);
+        }
+        mSongs.putLoaded(song, generation);
+        return song;
+    }
+
+    /**
+     * @see SongScribblerDbAdapter#fetchSongTitles(String, long, int)
+     */
+    public Future<Cursor> fetchSongTitles(final String afterKey, final long afterRowId,
+            final int limit, Callback<Cursor> callback) {
+        return read(Metrics.DB_FETCH_SONG_TITLES, new Callable<Cursor>() {
+            public Cursor call() {
+                return fill(db().fetchSongTitles(afterKey, afterRowId, limit));
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SongScribblerDbAdapter#fetchSongTitlesBefore(String, long, int)
+     */
+    public Future<Cursor> fetchSongTitlesBefore(final String beforeKey,
+            final long beforeRowId, final int limit, Callback<Cursor> callback) {
+        return read(Metrics.DB_FETCH_SONG_TITLES, new Callable<Cursor>() {
+            public Cursor call() {
+                return fill(db().fetchSongTitlesBefore(beforeKey, beforeRowId, limit));
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SongScribblerDbAdapter#fetchSongSections()
+     */
+    public Future<Cursor> fetchSongSections(Callback<Cursor> callback) {
+        return read(Metrics.DB_SONG_SECTIONS, new Callable<Cursor>() {
+            public Cursor call() {
+                return fill(db().fetchSongSections());
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SongScribblerDbAdapter#countSongsBefore(String, long)
+     */
+    public Future<Integer> countSongsBefore(final String key, final long rowId,
+            Callback<Integer> callback) {
+        return read(Metrics.DB_SONG_SECTIONS, new Callable<Integer>() {
+            public Integer call() {
+                return db().countSongsBefore(key, rowId);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SongScribblerDbAdapter#searchSongs(String, int)
+     */
+    public Future<Cursor> searchSongs(final String text, final int limit,
+            Callback<Cursor> callback) {
+        return read(Metrics.DB_SEARCH_SONGS, new Callable<Cursor>() {
+            public Cursor call() {
+                return db().searchSongs(text, limit);
+            }
+        }, callback);
+    }
+
+    /**
+     * Read a song, find or make its parse and render it, ready to be shown
+     * without any more work on the UI thread
+     *
+     * @param blockLines lyric lines per block, see SongRenderer.renderBlocks
+     * @return the prepared song, or null if there is no such song
+     */
+    public Future<PreparedSong> prepareSong(final long rowId, final int blockLines,
+            Callback<PreparedSong> callback) {
+        return read(Metrics.PREPARE_SONG, new Callable<PreparedSong>() {
+            public PreparedSong call() {
+                return prepare(rowId, blockLines);
+            }
+        }, callback);
+    }
+
+    private PreparedSong prepare(long rowId, int blockLines) {
+        Song song = loadSong(rowId);
+        if (song == null) {
+            return null;
+        }
+        return PreparedSong.prepare(song, findParse(rowId, song.body, song.chords), blockLines);
+    }
+
+    /**
+     * The parse of a song's text, from memory, from the one stored with the
+     * song if its hash still matches, or else made now and stored for next
+     * time on the writer thread
+     */
+    private ParsedSong findParse(final long rowId, String body, String chords) {
+        long hash = SongParser.hash(body, chords);
+        ParsedSong parsed = mParses.get(hash);
+        if (parsed != null) {
+            return parsed;
+        }
+        long start = Metrics.start();
+        parsed = db().fetchParse(rowId, hash);
+        Metrics.DB_FETCH_PARSE.end(start);
+        if (parsed == null) {
+            parsed = new SongParser().parse(body, chords);
+            final ParsedSong fresh = parsed;
+            write(Metrics.DB_SAVE_PARSE, new Callable<Void>() {
+                public Void call() {
+                    db().saveParse(rowId, fresh);
+                    return null;
+                }
+            }, null);
+        }
+        mParses.put(parsed);
+        return parsed;
+    }
+
+    /**
+     * @see SongScribblerDbAdapter#fetchSetlists()
+     */
+    public Future<Cursor> fetchSetlists(Callback<Cursor> callback) {
+        return read(Metrics.DB_SETLISTS, new Callable<Cursor>() {
+            public Cursor call() {
+                return fill(db().fetchSetlists());
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SongScribblerDbAdapter#fetchSetlistSongs(long)
+     */
+    public Future<long[]> fetchSetlistSongs(final long setlistId, Callback<long[]> callback) {
+        return read(Metrics.DB_SETLISTS, new Callable<long[]>() {
+            public long[] call() {
+                return db().fetchSetlistSongs(setlistId);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SongScribblerDbAdapter#createSetlist(String)
+     */
+    public Future<Long> createSetlist(final String name, Callback<Long> callback) {
+        return write(Metrics.DB_SETLISTS, new Callable<Long>() {
+            public Long call() {
+                return db().createSetlist(name);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SongScribblerDbAdapter#addToSetlist(long, long)
+     */
+    public Future<Void> addToSetlist(final long setlistId, final long rowId,
+            Callback<Void> callback) {
+        return write(Metrics.DB_SETLISTS, new Callable<Void>() {
+            public Void call() {
+                db().addToSetlist(setlistId, rowId);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SongScribblerDbAdapter#fetchRevisions(long)
+     */
+    public Future<Cursor> fetchRevisions(final long rowId, Callback<Cursor> callback) {
+        return read(Metrics.DB_REVISIONS, new Callable<Cursor>() {
+            public Cursor call() {
+                return fill(db().fetchRevisions(rowId));
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SongScribblerDbAdapter#fetchRevision(long)
+     */
+    public Future<SongRevisions.Version> fetchRevision(final long revisionId,
+            Callback<SongRevisions.Version> callback) {
+        return read(Metrics.DB_REVISIONS, new Callable<SongRevisions.Version>() {
+            public SongRevisions.Version call() {
+                return db().fetchRevision(revisionId);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SongScribblerDbAdapter#createSong(String, String, String, int)
+     * @return the new rowId, once the writer gets to it
+     */
+    public Future<Long> createSong(final String title, final String body,
+            final String chords, final int scrollspeed, Callback<Long> callback) {
+        return write(Metrics.DB_CREATE_SONG, new Callable<Long>() {
+            public Long call() {
+                long rowId = db().createSong(title, body, chords, scrollspeed);
+                if (rowId >= 0) {
+                    mSongs.put(new Song(rowId, title, body, chords, scrollspeed, 0, 0));
+                    notifyChanged(SONG_INSERTED, rowId, title);
+                }
+                return rowId;
+            }
+        }, callback);
+    }
+
+    /**
+     * Hand back the rowId of a song whose create may still be queued, once
+     * the writer has made it, rather than waiting for it on the UI thread
+     *
+     * @param created from createSong
+     */
+    public Future<Long> createdRowId(final Future<Long> created, Callback<Long> callback) {
+        return write(null, new Callable<Long>() {
+            public Long call() throws Exception {
+                // Queued behind the create, so already done
+                return created.get();
+            }
+        }, callback);
+    }
+
+    /**
+     * Update just the given columns of a song whose create may still be
+     * queued, once the writer has made it
+     *
+     * @param created from createSong
+     * @see SongScribblerDbAdapter#updateSongFields(long, ContentValues)
+     */
+    public void updateSongFields(final Future<Long> created, final ContentValues values) {
+        write(Metrics.DB_UPDATE_SONG_FIELDS, new Callable<Void>() {
+            public Void call() throws Exception {
+                long rowId = created.get();
+                if (rowId < 0) {
+                    return null;
+                }
+                mSongs.update(rowId, values);
+                db().updateSongFields(rowId, values);
+                compactRevisionsLater();
+                notifyChanged(SONG_UPDATED, rowId,
+                        values.getAsString(SongScribblerDbAdapter.KEY_TITLE));
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * @see SongScribblerDbAdapter#updateSong(long, String, String, String, int)
+     */
+    public Future<Boolean> updateSong(final long rowId, final String title,
+            final String body, final String chords, final int scrollspeed,
+            Callback<Boolean> callback) {
+        ContentValues values = new ContentValues();
+        values.put(SongScribblerDbAdapter.KEY_TITLE, title);
+        values.put(SongScribblerDbAdapter.KEY_BODY, body);
+        values.put(SongScribblerDbAdapter.KEY_CHORDS, chords);
+        values.put(SongScribblerDbAdapter.KEY_SCROLLSPEED, scrollspeed);
+        mSongs.update(rowId, values);
+        notifyChanged(SONG_UPDATED, rowId, title);
+        return write(Metrics.DB_UPDATE_SONG, new Callable<Boolean>() {
+            public Boolean call() {
+                boolean updated = db().updateSong(rowId, title, body, chords, scrollspeed);
+                if (!updated) {
+                    mSongs.remove(rowId);
+                }
+                compactRevisionsLater();
+                return updated;
+            }
+        }, callback);
+    }
+
+    /**
+     * Import songs, a batch at a time on the writer thread
+     *
+     * @see SongImporter#importFrom(File)
+     */
+    public Future<SongImporter.Result> importSongs(final File source,
+            Callback<SongImporter.Result> callback) {
+        return job(Metrics.DB_IMPORT, new Callable<SongImporter.Result>() {
+            public SongImporter.Result call() throws IOException {
+                try {
+                    return new SongImporter(db(), mWriter).importFrom(source);
+                } finally {
+                    notifyChanged(SONG_UPDATED, ALL_SONGS, null);
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Back the library up, seeing every write made before the call
+     *
+     * @see SongBackup#backup(SongScribblerDbAdapter, File, boolean)
+     */
+    public Future<Integer> backupSongs(final File file, Callback<Integer> callback) {
+        return read(Metrics.DB_BACKUP, new Callable<Integer>() {
+            public Integer call() throws IOException {
+                return new SongBackup().backup(db(), file, true);
+            }
+        }, callback);
+    }
+
+    /**
+     * Replace the library with the songs in a backup, a batch at a time on
+     * the writer thread
+     *
+     * @see SongBackup#restore(SongScribblerDbAdapter, ExecutorService, File, boolean)
+     */
+    public Future<Integer> restoreSongs(final File file, Callback<Integer> callback) {
+        return job(Metrics.DB_RESTORE, new Callable<Integer>() {
+            public Integer call() throws IOException {
+                try {
+                    return new SongBackup().restore(db(), mWriter, file, true);
+                } finally {
+                    mSongs.clear();
+                    notifyChanged(SONG_UPDATED, ALL_SONGS, null);
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Sync the library with the server in SongSync's settings. Partial
+     * updates held back are written first, so they go with it.
+     *
+     * @see SongSync#sync()
+     */
+    public Future<SongSync.Result> syncSongs(final Callback<SongSync.Result> callback) {
+        flush();
+        return mSyncer.submit(new Callable<SongSync.Result>() {
+            public SongSync.Result call() throws Exception {
+                return run(Metrics.SYNC, new Callable<SongSync.Result>() {
+                    public SongSync.Result call() {
+                        // Made here as opening the database may take a while
+                        SongSync sync = new SongSync(db(), mWriter, mContext, new Runnable() {
+                            public void run() {
+                                mSongs.clear();
+                                notifyChanged(SONG_UPDATED, ALL_SONGS, null);
+                            }
+                        });
+                        return sync.sync();
+                    }
+                }, callback);
+            }
+        });
+    }
+
+    /**
+     * Stop logging changes for sync, after the last sync has finished. It
+     * waits on the sync thread, as a sync still running needs the writer to
+     * finish.
+     *
+     * @see SongScribblerDbAdapter#setSyncEnabled(boolean)
+     */
+    public Future<Void> stopSync(final Callback<Void> callback) {
+        return mSyncer.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                Future<Void> stopped = write(null, new Callable<Void>() {
+                    public Void call() {
+                        db().setSyncEnabled(false);
+                        return null;
+                    }
+                }, callback);
+                try {
+                    return stopped.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw (Error) e.getCause();
+                }
+            }
+        });
+    }
+
+    /**
+     * @see SongScribblerDbAdapter#fetchSyncConflicts(long)
+     */
+    public Future<Cursor> fetchSyncConflicts(final long rowId, Callback<Cursor> callback) {
+        return read(null, new Callable<Cursor>() {
+            public Cursor call() {
+                return fill(db().fetchSyncConflicts(rowId));
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SongScribblerDbAdapter#resolveSyncConflicts(long, boolean)
+     */
+    public Future<ContentValues> resolveSyncConflicts(final long rowId, final boolean keepMine,
+            Callback<ContentValues> callback) {
+        return write(Metrics.DB_UPDATE_SONG_FIELDS, new Callable<ContentValues>() {
+            public ContentValues call() {
+                ContentValues theirs = db().resolveSyncConflicts(rowId, keepMine);
+                if (theirs.size() > 0) {
+                    mSongs.remove(rowId);
+                    notifyChanged(SONG_UPDATED, rowId,
+                            theirs.getAsString(SongScribblerDbAdapter.KEY_TITLE));
+                }
+                return theirs;
+            }
+        }, callback);
+    }
+
+    /**
+     * Queue an update of just the given columns. Updates to the same song
+     * made within a short window are merged and written together.
+     *
+     * @see SongScribblerDbAdapter#updateSongFields(long, ContentValues)
+     */
+    public void updateSongFields(long rowId, ContentValues values) {
+        mSongs.update(rowId, values);
+        notifyChanged(SONG_UPDATED, rowId, values.getAsString(SongScribblerDbAdapter.KEY_TITLE));
+        synchronized (mPendingUpdates) {
+            ContentValues pending = mPendingUpdates.get(rowId);
+            if (pending == null) {
+                mPendingUpdates.put(rowId, new ContentValues(values));
+            } else {
+                pending.putAll(values);
+            }
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mWriter.schedule(mFlush, COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Write any held back partial updates now rather than at the end of
+     * their window
+     *
+     * @return done once every write made before the call is in the database
+     */
+    public Future<?> flush() {
+        return mWriter.submit(mFlush);
+    }
+
+    /**
+     * Only ever run on the writer thread
+     */
+    private void flushPendingUpdates() {
+        Map<Long, ContentValues> updates;
+        synchronized (mPendingUpdates) {
+            mFlushScheduled = false;
+            if (mPendingUpdates.isEmpty()) {
+                return;
+            }
+            updates = new HashMap<Long, ContentValues>(mPendingUpdates);
+            mPendingUpdates.clear();
+            // Still to be waited for by reads, until written
+            mWritesQueued.incrementAndGet();
+        }
+        try {
+            for (Map.Entry<Long, ContentValues> update : updates.entrySet()) {
+                long start = Metrics.start();
+                try {
+                    db().updateSongFields(update.getKey(), update.getValue());
+                    Metrics.DB_UPDATE_SONG_FIELDS.end(start);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Updating song " + update.getKey() + " failed", e);
+                    // The cache has the update the database doesn't
+                    mSongs.remove(update.getKey());
+                }
+            }
+        } finally {
+            mWritesQueued.decrementAndGet();
+        }
+        compactRevisionsLater();
+    }
+
+    /**
+     * Queue mCompactRevisions if a save has left a song with too many
+     * revisions. Only ever run on the writer thread.
+     */
+    private void compactRevisionsLater() {
+        if (!mCompactionQueued && db().hasRevisionsToCompact()) {
+            mCompactionQueued = true;
+            mWriter.submit(mCompactRevisions);
+        }
+    }
+
+    /**
+     * @see SongScribblerDbAdapter#deleteSong(long)
+     */
+    public Future<Boolean> deleteSong(final long rowId, Callback<Boolean> callback) {
+        mSongs.remove(rowId);
+        return write(Metrics.DB_DELETE_SONG, new Callable<Boolean>() {
+            public Boolean call() {
+                boolean deleted = db().deleteSong(rowId);
+                EditJournal.delete(mContext, rowId);
+                notifyChanged(SONG_DELETED, rowId, null);
+                return deleted;
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SongScribblerDbAdapter#deleteSongs(long[])
+     */
+    public Future<Integer> deleteSongs(final long[] rowIds, Callback<Integer> callback) {
+        for (long rowId : rowIds) {
+            mSongs.remove(rowId);
+        }
+        return write(Metrics.DB_DELETE_SONG, new Callable<Integer>() {
+            public Integer call() {
+                int deleted = db().deleteSongs(rowIds);
+                for (long rowId : rowIds) {
+                    EditJournal.delete(mContext, rowId);
+                    notifyChanged(SONG_DELETED, rowId, null);
+                }
+                return deleted;
+            }
+        }, callback);
+    }
+
+    /**
+     * @param timer where the time the query takes is recorded, or null if it
+     *        times itself
+     */
+    private <T> Future<T> read(final Metrics.Histogram timer, final Callable<T> query,
+            final Callback<T> callback) {
+        final Future<?> writesBefore = writesBefore();
+        return mReaders.submit(new Callable<T>() {
+            public T call() throws Exception {
+                if (writesBefore != null) {
+                    writesBefore.get();
+                }
+                return run(timer, query, callback);
+            }
+        });
+    }
+
+    /**
+     * @return done once every write made so far is, or null if there are
+     *         none waiting
+     */
+    private Future<?> writesBefore() {
+        synchronized (mPendingUpdates) {
+            if (mPendingUpdates.isEmpty() && mWritesQueued.get() == 0) {
+                return null;
+            }
+        }
+        // Queued behind every write made so far, so the read sees them
+        return mWriter.submit(mFlush);
+    }
+
+    private <T> Future<T> write(final Metrics.Histogram timer, final Callable<T> update,
+            final Callback<T> callback) {
+        mWritesQueued.incrementAndGet();
+        return mWriter.submit(new Callable<T>() {
+            public T call() throws Exception {
+                try {
+                    flushPendingUpdates();
+                    return run(timer, update, callback);
+                } finally {
+                    mWritesQueued.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Run a long job on mJobs, which does its own writes on the writer
+     */
+    private <T> Future<T> job(final Metrics.Histogram timer, final Callable<T> job,
+            final Callback<T> callback) {
+        flush();
+        return mJobs.submit(new Callable<T>() {
+            public T call() throws Exception {
+                return run(timer, job, callback);
+            }
+        });
+    }
+
+    /**
+     * A result already to hand, given to the callback like any other
+     */
+    private <T> Future<T> done(final T result, final Callback<T> callback) {
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            public T call() {
+                return result;
+            }
+        });
+        task.run();
+        if (callback != null) {
+            mMainHandler.post(new Runnable() {
+                public void run() {
+                    callback.onResult(result);
+                }
+            });
+        }
+        return task;
+    }
+
+    private <T> T run(Metrics.Histogram timer, Callable<T> task, final Callback<T> callback)
+            throws Exception {
+        final T result;
+        long start = timer != null ? Metrics.start() : 0;
+        try {
+            result = task.call();
+        } catch (Exception e) {
+            Log.e(TAG, "Database call failed", e);
+            throw e;
+        }
+        if (timer != null) {
+            timer.end(start);
+        }
+        if (callback != null) {
+            mMainHandler.post(new Runnable() {
+                public void run() {
+                    callback.onResult(result);
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Make the cursor run its query now, on this thread, rather than the
+     * first time the UI thread asks it for a row
+     */
+    private static Cursor fill(Cursor cursor) {
+        if (cursor != null) {
+            cursor.getCount();
+        }
+        return cursor;
+    }
+
+    private static class DbThreadFactory implements ThreadFactory {
+        private final String mName;
+        private int mCount = 0;
+
+        DbThreadFactory(String name) {
+            mName = name;
+        }
+
+        public synchronized Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    android.os.Process.setThreadPriority(
+                            android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "SongScribbler db " + mName + " " + (++mCount));
+            return thread;
+        }
+    }
+}
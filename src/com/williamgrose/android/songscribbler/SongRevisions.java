@@ -0,0 +1,242 @@
+package com.williamgrose.android.songscribbler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.TimeZone;
+import java.util.zip.DataFormatException;
+
+/**
+ * The encoding and the keeping policy of song revisions, which
+ * SongScribblerDbAdapter stores as a song is edited.
+ *
+ * A revision is either a snapshot of the whole song or a delta against the
+ * revision before it. A delta holds, for each field that changed, the span
+ * of the old text that was replaced and what replaced it, so its size goes
+ * with the size of the edit rather than of the song. A snapshot is taken
+ * every SNAPSHOT_INTERVAL revisions, or sooner once the deltas since the
+ * last one add up to more than the song, so any revision is rebuilt from
+ * one snapshot and a bounded run of deltas.
+ */
+final class SongRevisions {
+
+    /** Revisions from one snapshot to the next */
+    static final int SNAPSHOT_INTERVAL = 16;
+    /** Everything saved this recently is kept */
+    static final long KEEP_ALL_MILLIS = 24 * 60 * 60 * 1000L;
+    /** Beyond that, the last revision of each day, up to this many in all */
+    static final int MAX_REVISIONS = 100;
+    /** Revisions a song may build up before they are thinned out */
+    static final int COMPACT_AT = 120;
+
+    private static final int FORMAT = 1;
+    private static final int TITLE = 1;
+    private static final int BODY = 2;
+    private static final int CHORDS = 4;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * The text of a song at one revision
+     */
+    static final class Version {
+        final String title;
+        final String body;
+        final String chords;
+
+        Version(String title, String body, String chords) {
+            this.title = title;
+            this.body = body;
+            this.chords = chords;
+        }
+
+        /**
+         * @return the length of the text, which deltas are weighed against
+         */
+        int length() {
+            return title.length() + body.length() + chords.length();
+        }
+    }
+
+    private SongRevisions() {
+    }
+
+    static byte[] snapshot(Version version) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(FORMAT);
+            writeText(out, version.title);
+            writeText(out, version.body);
+            writeText(out, version.chords);
+        } catch (IOException e) {
+            // Not thrown writing to memory
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Version readSnapshot(byte[] data) throws IOException {
+        DataInputStream in = open(data);
+        return new Version(readText(in), readText(in), readText(in));
+    }
+
+    /**
+     * @return the delta taking from to to, or null if they are the same
+     */
+    static byte[] delta(Version from, Version to) {
+        int changed = (from.title.equals(to.title) ? 0 : TITLE)
+                | (from.body.equals(to.body) ? 0 : BODY)
+                | (from.chords.equals(to.chords) ? 0 : CHORDS);
+        if (changed == 0) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(FORMAT);
+            out.writeByte(changed);
+            if ((changed & TITLE) != 0) {
+                writeEdit(out, from.title, to.title);
+            }
+            if ((changed & BODY) != 0) {
+                writeEdit(out, from.body, to.body);
+            }
+            if ((changed & CHORDS) != 0) {
+                writeEdit(out, from.chords, to.chords);
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Version apply(Version from, byte[] delta) throws IOException {
+        DataInputStream in = open(delta);
+        int changed = in.readByte();
+        String title = (changed & TITLE) != 0 ? readEdit(in, from.title) : from.title;
+        String body = (changed & BODY) != 0 ? readEdit(in, from.body) : from.body;
+        String chords = (changed & CHORDS) != 0 ? readEdit(in, from.chords) : from.chords;
+        return new Version(title, body, chords);
+    }
+
+    /**
+     * Pick the revisions to keep: all of those saved within KEEP_ALL_MILLIS
+     * of now, and the last of each earlier day, dropping the oldest once
+     * there are more than MAX_REVISIONS. The newest is always kept.
+     *
+     * @param saved when each revision was saved, oldest first
+     */
+    static boolean[] keep(long[] saved, long now) {
+        boolean[] keep = new boolean[saved.length];
+        int kept = 0;
+        long nextDay = Long.MIN_VALUE;
+        TimeZone zone = TimeZone.getDefault();
+        for (int i = saved.length - 1; i >= 0 && kept < MAX_REVISIONS; i--) {
+            long day = (saved[i] + zone.getOffset(saved[i])) / DAY_MILLIS;
+            if (i == saved.length - 1 || now - saved[i] < KEEP_ALL_MILLIS
+                    || day != nextDay) {
+                keep[i] = true;
+                kept++;
+            }
+            nextDay = day;
+        }
+        return keep;
+    }
+
+    /**
+     * Write the span of from that to replaces. Only the ends the two share
+     * are compared, which is all an edit in one place changes.
+     */
+    private static void writeEdit(DataOutputStream out, String from, String to)
+            throws IOException {
+        int shorter = Math.min(from.length(), to.length());
+        int prefix = 0;
+        while (prefix < shorter && from.charAt(prefix) == to.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < shorter - prefix && from.charAt(from.length() - 1 - suffix)
+                == to.charAt(to.length() - 1 - suffix)) {
+            suffix++;
+        }
+        // Never split a surrogate pair, which wouldn't survive UTF-8
+        if (prefix > 0 && Character.isHighSurrogate(from.charAt(prefix - 1))) {
+            prefix--;
+        }
+        if (suffix > 0 && Character.isLowSurrogate(from.charAt(from.length() - suffix))) {
+            suffix--;
+        }
+        out.writeInt(prefix);
+        out.writeInt(from.length() - prefix - suffix);
+        writeString(out, to.substring(prefix, to.length() - suffix));
+    }
+
+    private static String readEdit(DataInputStream in, String from) throws IOException {
+        int prefix = in.readInt();
+        int removed = in.readInt();
+        String inserted = readString(in);
+        if (prefix < 0 || removed < 0 || prefix + removed > from.length()) {
+            throw new IOException("Stored revision is corrupt");
+        }
+        return new StringBuilder(from.length() - removed + inserted.length())
+                .append(from, 0, prefix).append(inserted)
+                .append(from, prefix + removed, from.length()).toString();
+    }
+
+    private static DataInputStream open(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readByte() != FORMAT) {
+            throw new IOException("Unknown revision format");
+        }
+        return in;
+    }
+
+    /**
+     * Long text in snapshots is compressed like it is in the songs table
+     */
+    private static void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] compressed = SongCompression.compress(text);
+        out.writeBoolean(compressed != null);
+        if (compressed != null) {
+            out.writeInt(compressed.length);
+            out.write(compressed);
+        } else {
+            writeString(out, text);
+        }
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return readString(in);
+        }
+        byte[] compressed = new byte[readCount(in)];
+        in.readFully(compressed);
+        try {
+            return SongCompression.decompress(compressed);
+        } catch (DataFormatException e) {
+            throw new IOException("Stored revision is corrupt");
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readCount(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available()) {
+            throw new IOException("Stored revision is corrupt");
+        }
+        return count;
+    }
+}
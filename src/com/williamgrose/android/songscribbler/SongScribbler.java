@@ -1,14 +1,33 @@
 package com.williamgrose.android.songscribbler;
 
+import android.app.AlertDialog;
 import android.app.ListActivity;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.graphics.Typeface;
 import android.os.Bundle;
+import android.os.Environment;
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import android.text.TextWatcher;
+import android.text.style.StyleSpan;
+import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.Window;
+import android.widget.CheckBox;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 
 public class SongScribbler extends ListActivity {
     private static final int ACTIVITY_CREATE=0;
@@ -17,35 +36,217 @@ public class SongScribbler extends ListActivity {
 
     private static final int INSERT_ID = Menu.FIRST;
     private static final int DELETE_ID = Menu.FIRST + 1;
+    private static final int IMPORT_ID = Menu.FIRST + 2;
+    private static final int BACKUP_ID = Menu.FIRST + 3;
+    private static final int RESTORE_ID = Menu.FIRST + 4;
+    private static final int SETLIST_ID = Menu.FIRST + 5;
+    private static final int CANCEL_ID = Menu.FIRST + 6;
+    private static final int SYNC_ID = Menu.FIRST + 7;
+
+    /** Where songbooks to import are picked up from, on external storage */
+    private static final String IMPORT_DIRECTORY = "SongScribbler/import";
+    /** Where backups are written to and restored from, on external storage */
+    private static final String BACKUP_DIRECTORY = "SongScribbler/backup";
+
+    private static final int SEARCH_LIMIT = 50;
 
-    private SongScribblerDbAdapter mDbHelper;
+    private SongRepository mRepository;
+    private SongListAdapter mSongs;
+    private EditText mSearchText;
+    private SimpleCursorAdapter mSearchResults;
+    /** Bumped by every search so results arriving out of order are dropped */
+    private int mSearchGeneration = 0;
+    private boolean mResumed = false;
+    /** Set when songs change while the list isn't showing */
+    private boolean mStale = false;
+    /** Picking songs to delete together, see startSelecting */
+    private boolean mSelecting = false;
+    /** From Metrics.start in onCreate, until the first songs are listed */
+    private long mStartNanos;
 
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        Metrics.init(this);
+        mStartNanos = Metrics.start();
+        requestWindowFeature(Window.FEATURE_PROGRESS);
         setContentView(R.layout.songs_list);
         //ListView od = (ListView)findViewById(android.R.id.list);
         //od.setDividerHeight(15); 
-        mDbHelper = new SongScribblerDbAdapter(this);
-        mDbHelper.open();
+        mRepository = SongRepository.getInstance(this);
+        mRepository.setMigrationListener(migrationListener);
+        mSongs = new SongListAdapter(this, mRepository);
+        mSongs.registerDataSetObserver(new DataSetObserver() {
+            @Override
+            public void onChanged() {
+                Metrics.STARTUP_LIST.end(mStartNanos);
+                mStartNanos = 0;
+            }
+        });
+        setListAdapter(mSongs);
+        // Jumps by the adapter's sections
+        getListView().setFastScrollEnabled(true);
+        // Something to show in the first frame; fillData below replaces it
+        // once the database has been opened in the background
+        mSongs.showSnapshot(TitleSnapshot.load(this));
+        mSearchText = (EditText) findViewById(R.id.search);
+        mSearchText.addTextChangedListener(searchWatcher);
+        mRepository.registerObserver(songObserver);
         fillData();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mRepository.setMigrationListener(null);
+        mRepository.unregisterObserver(songObserver);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mResumed = true;
+        if (mStale) {
+            fillData();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mResumed = false;
+    }
+
+    /**
+     * Applies each change to the list of titles as it happens. Search
+     * results can't be patched like that, so a search showing is run again,
+     * or once it is next shown if songs change while another activity is in
+     * front.
+     */
+    private SongRepository.SongObserver songObserver = new SongRepository.SongObserver() {
+        public void onSongChanged(int change, long rowId, String title) {
+            mSongs.applyChange(change, rowId, title);
+            if (mSearchResults == null) {
+                return;
+            }
+            if (mResumed) {
+                fillData();
+            } else {
+                mStale = true;
+            }
+        }
+    };
+
+    /**
+     * Shows an upgrade of a big library in the title bar progress
+     */
+    private Migration.ProgressListener migrationListener = new Migration.ProgressListener() {
+        public void onProgress(int version, long done, long total) {
+            setProgressBarVisibility(done < total);
+            setProgress(total > 0 ? (int) (done * 10000 / total) : 10000);
+            if (done >= total) {
+                // Making the sort keys is one, and may have moved every row
+                mSongs.reload();
+            }
+        }
+    };
+
     private void fillData() {
-        Cursor songsCursor = mDbHelper.fetchAllSongs();
-        startManagingCursor(songsCursor);
+        mStale = false;
+        String query = mSearchText.getText().toString();
+        if (query.trim().length() > 0) {
+            search(query);
+            return;
+        }
+        mSearchGeneration++;
+        if (mSearchResults != null) {
+            mSearchResults.changeCursor(null);
+            mSearchResults = null;
+        }
+        // Only the first page of titles is loaded here, the adapter pulls in
+        // the rest as the list is scrolled
+        mSongs.reload();
+        if (getListAdapter() != mSongs) {
+            setListAdapter(mSongs);
+        }
+    }
+
+    private void search(String query) {
+        final int generation = ++mSearchGeneration;
+        mRepository.searchSongs(query, SEARCH_LIMIT, new SongRepository.Callback<Cursor>() {
+            public void onResult(Cursor results) {
+                if (generation != mSearchGeneration || isFinishing()) {
+                    results.close();
+                    return;
+                }
+                showSearchResults(results);
+            }
+        });
+    }
 
-        // Create an array to specify the fields we want to display in the list (only TITLE)
-        String[] from = new String[]{SongScribblerDbAdapter.KEY_TITLE};
+    private void showSearchResults(Cursor results) {
+        if (mSearchResults == null) {
+            String[] from = new String[]{SongScribblerDbAdapter.KEY_TITLE,
+                    SongScribblerDbAdapter.KEY_SNIPPET};
+            int[] to = new int[]{R.id.textRow, R.id.snippetRow};
+            mSearchResults = new SimpleCursorAdapter(this, R.layout.songs_search_row,
+                    results, from, to);
+            mSearchResults.setViewBinder(snippetBinder);
+            setListAdapter(mSearchResults);
+        } else {
+            mSearchResults.changeCursor(results);
+        }
+    }
+
+    private TextWatcher searchWatcher = new TextWatcher() {
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+        public void onTextChanged(CharSequence s, int start, int before, int count) {}
+        public void afterTextChanged(Editable s) {
+            stopSelecting();
+            if (SongStats.STATS_QUERY.equals(s.toString().trim())) {
+                s.clear();
+                startActivity(new Intent(SongScribbler.this, SongStats.class));
+                return;
+            }
+            fillData();
+        }
+    };
 
-        // and an array of the fields we want to bind those fields to (in this case just text1)
-        int[] to = new int[]{R.id.textRow};
+    /**
+     * Shows search snippets with the matched words in bold
+     */
+    private SimpleCursorAdapter.ViewBinder snippetBinder =
+        new SimpleCursorAdapter.ViewBinder() {
+            public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
+                if (view.getId() != R.id.snippetRow) {
+                    return false;
+                }
+                ((TextView) view).setText(highlight(cursor.getString(columnIndex)));
+                return true;
+            }
+        };
 
-        // Now create a simple cursor adapter and set it to display
-        SimpleCursorAdapter songs =
-                    new SimpleCursorAdapter(this, R.layout.songs_row, songsCursor, from, to);
-        setListAdapter(songs);
+    private static CharSequence highlight(String snippet) {
+        SpannableStringBuilder text = new SpannableStringBuilder();
+        if (snippet == null) {
+            return text;
+        }
+        int start = -1;
+        for (int i = 0; i < snippet.length(); i++) {
+            char c = snippet.charAt(i);
+            if (c == SongScribblerDbAdapter.SNIPPET_START) {
+                start = text.length();
+            } else if (c == SongScribblerDbAdapter.SNIPPET_END) {
+                if (start >= 0) {
+                    text.setSpan(new StyleSpan(Typeface.BOLD), start, text.length(), 0);
+                    start = -1;
+                }
+            } else {
+                text.append(c == '\n' ? ' ' : c);
+            }
+        }
+        return text;
     }
 
     @Override
@@ -53,6 +254,29 @@ public class SongScribbler extends ListActivity {
         super.onCreateOptionsMenu(menu);
         menu.add(0, INSERT_ID, 0, R.string.menu_insert);
         menu.add(0, DELETE_ID, 0,  R.string.menu_delete);
+        menu.add(0, IMPORT_ID, 0,  R.string.menu_import);
+        menu.add(0, BACKUP_ID, 0,  R.string.menu_backup);
+        menu.add(0, RESTORE_ID, 0,  R.string.menu_restore);
+        menu.add(0, SETLIST_ID, 0,  R.string.menu_play_setlist);
+        menu.add(0, SYNC_ID, 0,  R.string.menu_sync);
+        menu.add(0, CANCEL_ID, 0,  R.string.menu_cancel);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        menu.findItem(DELETE_ID).setTitle(mSelecting
+                ? R.string.menu_delete_selected : R.string.menu_delete);
+        // Only the list of titles can be picked from
+        menu.findItem(DELETE_ID).setVisible(mSearchResults == null);
+        menu.findItem(CANCEL_ID).setVisible(mSelecting);
+        menu.findItem(INSERT_ID).setVisible(!mSelecting);
+        menu.findItem(IMPORT_ID).setVisible(!mSelecting);
+        menu.findItem(BACKUP_ID).setVisible(!mSelecting);
+        menu.findItem(RESTORE_ID).setVisible(!mSelecting);
+        menu.findItem(SETLIST_ID).setVisible(!mSelecting);
+        menu.findItem(SYNC_ID).setVisible(!mSelecting);
         return true;
     }
 
@@ -63,14 +287,245 @@ public class SongScribbler extends ListActivity {
             createSong();
             return true;
         case DELETE_ID:
-            mDbHelper.deleteSong(getListView().getSelectedItemId());
-            fillData();
+            if (mSelecting) {
+                deleteSelected();
+            } else {
+                startSelecting();
+            }
+            return true;
+        case CANCEL_ID:
+            stopSelecting();
+            return true;
+        case IMPORT_ID:
+            importSongs();
+            return true;
+        case BACKUP_ID:
+            backupSongs();
+            return true;
+        case RESTORE_ID:
+            restoreSongs();
+            return true;
+        case SETLIST_ID:
+            playSetlist();
+            return true;
+        case SYNC_ID:
+            showSyncSettings();
             return true;
         }
  
         return super.onMenuItemSelected(featureId, item);
     }
 
+    /**
+     * Let songs be ticked in the list, to be deleted together
+     */
+    private void startSelecting() {
+        mSelecting = true;
+        getListView().setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
+        mSongs.setSelecting(true);
+    }
+
+    private void stopSelecting() {
+        if (!mSelecting) {
+            return;
+        }
+        mSelecting = false;
+        getListView().clearChoices();
+        getListView().setChoiceMode(ListView.CHOICE_MODE_NONE);
+        mSongs.setSelecting(false);
+    }
+
+    private void deleteSelected() {
+        final long[] rowIds = getListView().getCheckItemIds();
+        if (rowIds.length == 0) {
+            stopSelecting();
+            return;
+        }
+        new AlertDialog.Builder(this)
+                .setMessage(getString(R.string.delete_confirm, rowIds.length))
+                .setPositiveButton(R.string.menu_delete,
+                        new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        stopSelecting();
+                        mRepository.deleteSongs(rowIds, null);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        if (keyCode == KeyEvent.KEYCODE_BACK && mSelecting) {
+            stopSelecting();
+            return true;
+        }
+        return super.onKeyDown(keyCode, event);
+    }
+
+    private void importSongs() {
+        File source = new File(Environment.getExternalStorageDirectory(), IMPORT_DIRECTORY);
+        if (!source.exists()) {
+            Toast.makeText(this, getString(R.string.import_missing, source.getPath()),
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        Toast.makeText(this, getString(R.string.import_started, source.getPath()),
+                Toast.LENGTH_SHORT).show();
+        mRepository.importSongs(source, new SongRepository.Callback<SongImporter.Result>() {
+            public void onResult(SongImporter.Result result) {
+                Toast.makeText(SongScribbler.this, getString(R.string.import_done,
+                        result.imported, Math.round(result.songsPerSecond()), result.skipped),
+                        Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    private void backupSongs() {
+        File directory = new File(Environment.getExternalStorageDirectory(), BACKUP_DIRECTORY);
+        directory.mkdirs();
+        String name = "songs-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())
+                + SongBackup.EXTENSION;
+        final File file = new File(directory, name);
+        mRepository.backupSongs(file, new SongRepository.Callback<Integer>() {
+            public void onResult(Integer count) {
+                Toast.makeText(SongScribbler.this, getString(R.string.backup_done,
+                        count, file.getPath()), Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * Offer to replace the library with the newest backup
+     */
+    private void restoreSongs() {
+        File directory = new File(Environment.getExternalStorageDirectory(), BACKUP_DIRECTORY);
+        File[] backups = directory.listFiles();
+        File newest = null;
+        if (backups != null) {
+            for (File backup : backups) {
+                if (backup.getName().endsWith(SongBackup.EXTENSION)
+                        && (newest == null || backup.lastModified() > newest.lastModified())) {
+                    newest = backup;
+                }
+            }
+        }
+        if (newest == null) {
+            Toast.makeText(this, getString(R.string.restore_missing, directory.getPath()),
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        final File file = newest;
+        new AlertDialog.Builder(this)
+                .setMessage(getString(R.string.restore_confirm, file.getName()))
+                .setPositiveButton(R.string.menu_restore, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        mRepository.restoreSongs(file, new SongRepository.Callback<Integer>() {
+                            public void onResult(Integer count) {
+                                Toast.makeText(SongScribbler.this, getString(
+                                        R.string.restore_done, count), Toast.LENGTH_LONG).show();
+                            }
+                        });
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Ask where to sync with, then sync
+     */
+    private void showSyncSettings() {
+        final View settings = getLayoutInflater().inflate(R.layout.sync_settings, null);
+        final EditText server = (EditText) settings.findViewById(R.id.server);
+        final CheckBox flagConflicts = (CheckBox) settings.findViewById(R.id.flag_conflicts);
+        server.setText(SongSync.getServer(this));
+        flagConflicts.setChecked(SongSync.getFlagConflicts(this));
+        AlertDialog.Builder dialog = new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_sync)
+                .setView(settings)
+                .setPositiveButton(R.string.sync_now, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        String address = server.getText().toString().trim();
+                        if (address.length() == 0) {
+                            return;
+                        }
+                        SongSync.setSettings(SongScribbler.this, address,
+                                flagConflicts.isChecked());
+                        syncSongs();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null);
+        if (SongSync.getServer(this) != null) {
+            dialog.setNeutralButton(R.string.sync_off, new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    SongSync.clearSettings(SongScribbler.this);
+                    mRepository.stopSync(new SongRepository.Callback<Void>() {
+                        public void onResult(Void result) {
+                            Toast.makeText(SongScribbler.this, R.string.sync_stopped,
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                }
+            });
+        }
+        dialog.show();
+    }
+
+    private void syncSongs() {
+        Toast.makeText(this, getString(R.string.sync_started, SongSync.getServer(this)),
+                Toast.LENGTH_SHORT).show();
+        mRepository.syncSongs(new SongRepository.Callback<SongSync.Result>() {
+            public void onResult(SongSync.Result result) {
+                String message;
+                if (result.error != null) {
+                    message = getString(R.string.sync_failed, result.error);
+                } else if (result.conflicts > 0) {
+                    message = getString(R.string.sync_done_conflicts, result.sent,
+                            result.received, result.conflicts);
+                } else {
+                    message = getString(R.string.sync_done, result.sent, result.received);
+                }
+                Toast.makeText(SongScribbler.this, message, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * Pick a setlist and play through it in SongView's performance mode
+     */
+    private void playSetlist() {
+        mRepository.fetchSetlists(new SongRepository.Callback<Cursor>() {
+            public void onResult(Cursor setlists) {
+                final long[] ids = new long[setlists.getCount()];
+                CharSequence[] names = new CharSequence[ids.length];
+                try {
+                    for (int i = 0; setlists.moveToNext(); i++) {
+                        ids[i] = setlists.getLong(0);
+                        names[i] = setlists.getString(1);
+                    }
+                } finally {
+                    setlists.close();
+                }
+                if (ids.length == 0) {
+                    Toast.makeText(SongScribbler.this, R.string.setlist_none,
+                            Toast.LENGTH_LONG).show();
+                    return;
+                }
+                new AlertDialog.Builder(SongScribbler.this)
+                        .setTitle(R.string.menu_play_setlist)
+                        .setItems(names, new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                Intent i = new Intent(SongScribbler.this, SongView.class);
+                                i.putExtra(SongScribblerDbAdapter.KEY_SETLIST, ids[which]);
+                                startActivity(i);
+                            }
+                        })
+                        .show();
+            }
+        });
+    }
+
     private void createSong() {
         Intent i = new Intent(this, SongEdit.class);
         startActivityForResult(i, ACTIVITY_CREATE);
@@ -80,15 +535,13 @@ public class SongScribbler extends ListActivity {
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
         super.onListItemClick(l, v, position, id);
+        if (mSelecting) {
+            // The list has ticked it
+            return;
+        }
         Intent i = new Intent(this, SongEdit.class);
         i.putExtra(SongScribblerDbAdapter.KEY_ROWID, id);
         startActivityForResult(i, ACTIVITY_EDIT);
     }
 
-    @Override
-    protected void onActivityResult(int requestCode, int resultCode,
-                                    Intent intent) {
-        super.onActivityResult(requestCode, resultCode, intent);
-        fillData();
-    }
 }
@@ -3,11 +3,26 @@ package com.williamgrose.android.songscribbler;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
 public class SongScribblerDbAdapter {
 
     public static final String KEY_TITLE = "title";
@@ -15,47 +30,712 @@ public class SongScribblerDbAdapter {
     public static final String KEY_CHORDS = "chords";    
     public static final String KEY_SCROLLSPEED = "scrollspeed";
     public static final String KEY_ROWID = "_id";
+    public static final String KEY_TRANSPOSE = "transpose";
+    public static final String KEY_CAPO = "capo";
+    public static final String KEY_SETLIST = "setlist_id";
+    public static final String KEY_NAME = "name";
+    public static final String KEY_SNIPPET = "snippet";
+    public static final String KEY_SAVED = "saved";
+    public static final String KEY_SORT_KEY = "sort_key";
+    public static final String KEY_SECTION = "section";
+    public static final String KEY_SECTION_COUNT = "song_count";
     
     public static final int DEFAULT_SCROLLSPEED = 2;
+
+    /** Number of rows returned by each call to fetchSongTitles */
+    public static final int TITLE_PAGE_SIZE = 50;
+
+    /** Markers placed around matched terms in search snippets */
+    public static final char SNIPPET_START = '\u0001';
+    public static final char SNIPPET_END = '\u0002';
+
+    /** Rank weights of the title, body and chords columns in searchSongs */
+    private static final double[] SEARCH_WEIGHTS = {10.0, 1.0, 2.0};
     
 
     private static final String TAG = "SongScribblerDbAdapter";
-    private DatabaseHelper mDbHelper;
     private SQLiteDatabase mDb;
+    private boolean mOpen = false;
+
+    /*
+     * One database connection is shared by every adapter in the process.
+     * Each open() takes a reference and each close() gives one back; the
+     * database and the statements compiled against it are closed along with
+     * the last reference. All of these are guarded by the class lock, and
+     * the statements, which hold their bindings between calls, are only
+     * bound and run while holding sStatementLock.
+     */
+    private static DatabaseHelper sDbHelper;
+    private static SQLiteDatabase sDb;
+    private static int sOpenCount = 0;
+    private static final Object sStatementLock = new Object();
+    private static SQLiteStatement sInsertStatement;
+    private static SQLiteStatement sUpdateStatement;
+    private static SQLiteStatement sDeleteStatement;
+    private static SQLiteStatement sChangesStatement;
+    private static SQLiteStatement sSearchInsertStatement;
+    private static SQLiteStatement sSearchUpdateStatement;
+    /** Set while songs from SongSync are written, which aren't logged */
+    private static boolean sApplyingSync = false;
+    /** The newest revision of the songs edited most recently */
+    private static final int REVISION_HEADS = 8;
+    private static final LinkedHashMap<Long, RevisionHead> sRevisionHeads =
+            new LinkedHashMap<Long, RevisionHead>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, RevisionHead> eldest) {
+            return size() > REVISION_HEADS;
+        }
+    };
+    /** Songs with SongRevisions.COMPACT_AT revisions, for compactNextRevisions */
+    private static final LinkedHashSet<Long> sRevisionsToCompact = new LinkedHashSet<Long>();
+
+    private static final String ROWID_SELECTION = KEY_ROWID + " = ?";
 
     /**
-     * Database creation sql statement
+     * Database creation sql statement. Long bodies and chords are stored
+     * compressed, as blobs, despite the declared type; see SongCompression
+     * and SongCursor. The sort key and section are made from the title by
+     * TitleKey.
      */
     private static final String DATABASE_CREATE =
             "create table songs (_id integer primary key autoincrement, "
                     + KEY_TITLE +" text not null, " + KEY_BODY + " text not null,"
                     + KEY_CHORDS +" text not null,"
-                    + KEY_SCROLLSPEED +" integer not null);";
+                    + KEY_SCROLLSPEED +" integer not null,"
+                    + KEY_TRANSPOSE + " integer not null default 0,"
+                    + KEY_CAPO + " integer not null default 0,"
+                    + KEY_SORT_KEY + " text not null,"
+                    + KEY_SECTION + " text not null);";
+
+    /**
+     * Index the title list was paged through before it was sorted by
+     * sort key, brought in by version 4 and dropped by version 12
+     */
+    private static final String TITLE_INDEX_CREATE =
+            "create index songs_title on songs (" + KEY_TITLE + ", " + KEY_ROWID + ");";
+
+    /**
+     * Index backing the keyset paged title list, see fetchSongTitles
+     */
+    private static final String SORT_INDEX_CREATE =
+            "create index songs_sort on songs (" + KEY_SORT_KEY + ", " + KEY_ROWID + ");";
+
+    private static final String TITLE_ORDER = KEY_SORT_KEY + ", " + KEY_ROWID;
+    private static final String TITLE_ORDER_DESCENDING =
+            KEY_SORT_KEY + " desc, " + KEY_ROWID + " desc";
+
+    /**
+     * How many songs there are in each section, for the list's fast
+     * scroller, kept by triggers as songs come, go and are renamed so it
+     * never has to be counted. Sections without songs are taken out.
+     */
+    private static final String SECTION_TABLE = "song_sections";
+    private static final String[] SECTION_CREATE = {
+            "create table " + SECTION_TABLE + " (" + KEY_SECTION + " text primary key, "
+                    + KEY_SECTION_COUNT + " integer not null);",
+            "create trigger song_sections_insert after insert on songs begin "
+                    + sectionAdd("new") + " end;",
+            "create trigger song_sections_delete after delete on songs begin "
+                    + sectionRemove("old") + " end;",
+            "create trigger song_sections_update after update of " + KEY_SECTION
+                    + " on songs when new." + KEY_SECTION + " != old." + KEY_SECTION
+                    + " begin " + sectionAdd("new") + " " + sectionRemove("old") + " end;"
+    };
+
+    /**
+     * The locale the sort keys were made for, in the table's only row
+     */
+    private static final String SORT_LOCALE_TABLE = "sort_locale";
+    private static final String KEY_LOCALE = "locale";
+    private static final String SORT_LOCALE_CREATE =
+            "create table " + SORT_LOCALE_TABLE + " (" + KEY_LOCALE + " text not null);";
+
+    private static String sectionAdd(String row) {
+        return "insert or ignore into " + SECTION_TABLE + " values (" + row + "."
+                + KEY_SECTION + ", 0); update " + SECTION_TABLE + " set " + KEY_SECTION_COUNT
+                + " = " + KEY_SECTION_COUNT + " + 1 where " + KEY_SECTION + " = " + row + "."
+                + KEY_SECTION + ";";
+    }
+
+    private static String sectionRemove(String row) {
+        return "update " + SECTION_TABLE + " set " + KEY_SECTION_COUNT + " = "
+                + KEY_SECTION_COUNT + " - 1 where " + KEY_SECTION + " = " + row + "."
+                + KEY_SECTION + "; delete from " + SECTION_TABLE + " where " + KEY_SECTION
+                + " = " + row + "." + KEY_SECTION + " and " + KEY_SECTION_COUNT + " <= 0;";
+    }
+
+    /**
+     * Full text index over the searchable columns. Its docid is the rowId of
+     * the song. Since the songs table may hold the text compressed, the
+     * index is written by the adapter alongside each song rather than by
+     * triggers; only deletes, which need no text, are left to a trigger.
+     *
+     * Being a plain fts3 table it keeps its own uncompressed copy of every
+     * title, body and chords, which searchSongs needs for snippet(). That
+     * copy is the limit on what SongCompression saves: on 2000 synthetic
+     * charts of 0.6 to 12K chars (9.4M chars in all) the file went from
+     * 26.6MB to 20.1MB after the version 10 pass and a vacuum, of which the
+     * index is about 8MB. Neither way round it fits here: an external
+     * content table would read the compressed blobs, and a contentless
+     * one can't make snippets and needs the old text to delete a row.
+     */
+    private static final String SEARCH_TABLE = "songs_fts";
+    private static final String SEARCH_CREATE =
+            "create virtual table " + SEARCH_TABLE + " using fts3 ("
+                    + KEY_TITLE + ", " + KEY_BODY + ", " + KEY_CHORDS + ");";
+    private static final String SEARCH_TRIGGER_CREATE =
+            "create trigger songs_fts_delete after delete on songs begin "
+                    + "delete from " + SEARCH_TABLE + " where docid = old." + KEY_ROWID
+                    + "; end;";
+    private static final String SEARCH_COLUMNS =
+            "docid, " + KEY_TITLE + ", " + KEY_BODY + ", " + KEY_CHORDS;
+
+    /**
+     * Each song's ParsedSong, stored by SongRepository.prepareSong the first
+     * time the song is shown. The hash is of the text it was parsed from,
+     * so a parse left over from before an edit is never used; the triggers
+     * throw such parses away, and the parses of deleted songs.
+     */
+    private static final String PARSE_TABLE = "song_parses";
+    private static final String KEY_PARSE_SONG = "song_id";
+    private static final String KEY_PARSE_HASH = "hash";
+    private static final String KEY_PARSE_DATA = "data";
+    private static final String PARSE_CREATE =
+            "create table " + PARSE_TABLE + " (" + KEY_PARSE_SONG + " integer primary key, "
+                    + KEY_PARSE_HASH + " integer not null, " + KEY_PARSE_DATA
+                    + " blob not null);";
+    private static final String[] PARSE_TRIGGERS_CREATE = {
+            "create trigger song_parses_update after update of " + KEY_BODY + ", "
+                    + KEY_CHORDS + " on songs begin delete from " + PARSE_TABLE
+                    + " where " + KEY_PARSE_SONG + " = old." + KEY_ROWID + "; end;",
+            "create trigger song_parses_delete after delete on songs begin "
+                    + "delete from " + PARSE_TABLE + " where " + KEY_PARSE_SONG
+                    + " = old." + KEY_ROWID + "; end;"
+    };
+
+    /**
+     * Setlists, and the songs in each in the order they are played. A song
+     * can be in a setlist more than once; deleting a song takes it out of
+     * every setlist, and deleting a setlist takes its entries with it.
+     */
+    private static final String SETLIST_TABLE = "setlists";
+    private static final String SETLIST_SONGS_TABLE = "setlist_songs";
+    private static final String KEY_POSITION = "position";
+    private static final String KEY_SONG = "song_id";
+    private static final String[] SETLIST_CREATE = {
+            "create table " + SETLIST_TABLE + " (" + KEY_ROWID
+                    + " integer primary key autoincrement, " + KEY_NAME + " text not null);",
+            "create table " + SETLIST_SONGS_TABLE + " (" + KEY_SETLIST + " integer not null, "
+                    + KEY_POSITION + " integer not null, " + KEY_SONG + " integer not null, "
+                    + "primary key (" + KEY_SETLIST + ", " + KEY_POSITION + "));",
+            "create trigger setlist_songs_song_delete after delete on songs begin "
+                    + "delete from " + SETLIST_SONGS_TABLE + " where " + KEY_SONG + " = old."
+                    + KEY_ROWID + "; end;",
+            "create trigger setlist_songs_setlist_delete after delete on " + SETLIST_TABLE
+                    + " begin delete from " + SETLIST_SONGS_TABLE + " where " + KEY_SETLIST
+                    + " = old." + KEY_ROWID + "; end;"
+    };
+
+    /**
+     * Songs and setlists from a backup, held until the whole backup has been
+     * read and then put in the library in one transaction, so a restore that
+     * fails part way leaves the library as it was. A held setlist's songs
+     * are their positions among the held songs, as the songs only get their
+     * rowIds once restored. Only there during a restore; any left by a
+     * restore that never finished are dropped on opening.
+     */
+    private static final String RESTORE_TABLE = "restore_songs";
+    private static final String RESTORE_SETLIST_TABLE = "restore_setlists";
+    private static final String RESTORE_SETLIST_SONGS_TABLE = "restore_setlist_songs";
+    private static final String[] RESTORE_CREATE = {
+            "create table " + RESTORE_TABLE + " (" + KEY_ROWID
+                    + " integer primary key autoincrement, " + KEY_TITLE + " text not null, "
+                    + KEY_BODY + " text not null, " + KEY_CHORDS + " text not null, "
+                    + KEY_SCROLLSPEED + " integer not null, " + KEY_TRANSPOSE
+                    + " integer not null, " + KEY_CAPO + " integer not null);",
+            "create table " + RESTORE_SETLIST_TABLE + " (" + KEY_ROWID
+                    + " integer primary key autoincrement, " + KEY_NAME + " text not null);",
+            "create table " + RESTORE_SETLIST_SONGS_TABLE + " (" + KEY_SETLIST
+                    + " integer not null, " + KEY_POSITION + " integer not null, " + KEY_SONG
+                    + " integer not null, primary key (" + KEY_SETLIST + ", " + KEY_POSITION
+                    + "));"
+    };
+    private static final String[] RESTORE_DROP = {
+            "drop table if exists " + RESTORE_TABLE,
+            "drop table if exists " + RESTORE_SETLIST_TABLE,
+            "drop table if exists " + RESTORE_SETLIST_SONGS_TABLE
+    };
+
+    /**
+     * What SongSync needs to keep the library in step with a server. Every
+     * song has a sync id, the same on each device that has it, and a clock
+     * per field: when it last changed, which decides between two edits of
+     * it. While sync is on, each song changed or deleted since it was last
+     * sent has a row in the log, holding the fields changed and, for a
+     * deleted song, when. Each change moves the row to the end of the log.
+     * The log and clocks are written by the adapter in the transaction
+     * that changes the song, apart from songs given to it by SongSync.
+     * Deleting a song drops its sync row and conflicts by trigger.
+     *
+     * Edits from elsewhere that clash with one not yet sent can be kept in
+     * the conflicts table rather than applied, for the user to decide.
+     */
+    private static final String SYNC_SONGS_TABLE = "sync_songs";
+    private static final String SYNC_LOG_TABLE = "sync_log";
+    private static final String SYNC_STATE_TABLE = "sync_state";
+    private static final String SYNC_CONFLICTS_TABLE = "sync_conflicts";
+    public static final String KEY_SYNC_ID = "sync_id";
+    public static final String KEY_SEQ = "seq";
+    public static final String KEY_FIELDS = "fields";
+    public static final String KEY_DELETED = "deleted";
+    public static final String KEY_FIELD = "field";
+    public static final String KEY_VALUE = "value";
+    private static final String KEY_ENABLED = "enabled";
+    private static final String KEY_CURSOR = "cursor";
+    private static final String KEY_CLOCK = "clock";
+    /** The fields synced, in the order of the SongSync.FIELD_ bits */
+    static final String[] SYNC_FIELDS = {KEY_TITLE, KEY_BODY, KEY_CHORDS};
+    private static final String[] SYNC_CLOCKS = {"title_clock", "body_clock", "chords_clock"};
+    /** A new sync id, unique to the song on every device */
+    private static final String NEW_SYNC_ID = "lower(hex(randomblob(16)))";
+    private static final String[] SYNC_CREATE = {
+            "create table " + SYNC_SONGS_TABLE + " (" + KEY_SONG + " integer primary key, "
+                    + KEY_SYNC_ID + " text not null unique, " + SYNC_CLOCKS[0]
+                    + " integer not null, " + SYNC_CLOCKS[1] + " integer not null, "
+                    + SYNC_CLOCKS[2] + " integer not null);",
+            "create table " + SYNC_LOG_TABLE + " (" + KEY_SEQ
+                    + " integer primary key autoincrement, " + KEY_SYNC_ID
+                    + " text not null unique, " + KEY_FIELDS + " integer not null, "
+                    + KEY_DELETED + " integer not null);",
+            "create table " + SYNC_STATE_TABLE + " (" + KEY_ENABLED + " integer not null, "
+                    + KEY_CURSOR + " text);",
+            "insert into " + SYNC_STATE_TABLE + " values (0, null);",
+            "create table " + SYNC_CONFLICTS_TABLE + " (" + KEY_SONG + " integer not null, "
+                    + KEY_FIELD + " text not null, " + KEY_VALUE + " text not null, "
+                    + KEY_CLOCK + " integer not null, primary key (" + KEY_SONG + ", "
+                    + KEY_FIELD + "));",
+            "create trigger sync_songs_delete after delete on songs begin "
+                    + "delete from " + SYNC_SONGS_TABLE + " where " + KEY_SONG + " = old."
+                    + KEY_ROWID + "; delete from " + SYNC_CONFLICTS_TABLE + " where "
+                    + KEY_SONG + " = old." + KEY_ROWID + "; end;"
+    };
+    /**
+     * Log a change to the fields given by the first argument of a song. A
+     * song whose clocks are all 0 has never been sent, so goes whole.
+     */
+    private static final String SYNC_LOG_CHANGE =
+            "insert or replace into " + SYNC_LOG_TABLE + " (" + KEY_SYNC_ID + ", "
+                    + KEY_FIELDS + ", " + KEY_DELETED + ") select s." + KEY_SYNC_ID
+                    + ", ? | ifnull((select " + KEY_FIELDS + " from " + SYNC_LOG_TABLE
+                    + " where " + KEY_SYNC_ID + " = s." + KEY_SYNC_ID + "), 0) | (case when s."
+                    + SYNC_CLOCKS[0] + " = 0 and s." + SYNC_CLOCKS[1] + " = 0 and s."
+                    + SYNC_CLOCKS[2] + " = 0 then " + SongSync.ALL_FIELDS + " else 0 end), 0 from "
+                    + SYNC_SONGS_TABLE + " s, " + SYNC_STATE_TABLE + " where s." + KEY_SONG
+                    + " = ? and " + KEY_ENABLED + " = 1";
+    /** Log songs as deleted at the first argument, those matching the where */
+    private static final String SYNC_LOG_DELETE =
+            "insert or replace into " + SYNC_LOG_TABLE + " (" + KEY_SYNC_ID + ", "
+                    + KEY_FIELDS + ", " + KEY_DELETED + ") select " + KEY_SYNC_ID + ", 0, ? from "
+                    + SYNC_SONGS_TABLE + ", " + SYNC_STATE_TABLE + " where " + KEY_ENABLED
+                    + " = 1";
+
+    /**
+     * Earlier versions of each song's title, body and chords, see
+     * SongRevisions. History starts the first time a song is edited, with a
+     * snapshot of the song as it was, and each later edit adds a revision
+     * in the same transaction as it updates the song, so the newest
+     * revision is always the song as it stands.
+     */
+    private static final String REVISION_TABLE = "song_revisions";
+    private static final String KEY_REVISION_SNAPSHOT = "snapshot";
+    private static final String KEY_REVISION_DATA = "data";
+    private static final String[] REVISION_CREATE = {
+            "create table " + REVISION_TABLE + " (" + KEY_ROWID
+                    + " integer primary key autoincrement, " + KEY_SONG + " integer not null, "
+                    + KEY_SAVED + " integer not null, " + KEY_REVISION_SNAPSHOT
+                    + " integer not null, " + KEY_REVISION_DATA + " blob not null);",
+            "create index song_revisions_song on " + REVISION_TABLE + " (" + KEY_SONG + ", "
+                    + KEY_ROWID + ");",
+            "create trigger song_revisions_delete after delete on songs begin "
+                    + "delete from " + REVISION_TABLE + " where " + KEY_SONG + " = old."
+                    + KEY_ROWID + "; end;"
+    };
+
+    /**
+     * What recording the next revision of a song needs to know about the
+     * ones already stored
+     */
+    private static final class RevisionHead {
+        SongRevisions.Version version;
+        int count;
+        int deltas;
+        long deltaBytes;
+    }
 
     private static final String DATABASE_NAME = "song_scribbler";
+    /** The database file opened, DATABASE_NAME but for a scratch database */
+    private static String sDatabaseName = DATABASE_NAME;
     private static final String DATABASE_TABLE = "songs";
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 13;
+    /** The version whose row migration makes the sort keys */
+    private static final int SORT_KEY_VERSION = 12;
+    /** The version whose row migration compresses long songs */
+    private static final int COMPRESSION_VERSION = 10;
+
+    /** Rows migrated per transaction by migrateNextBatch */
+    private static final int MIGRATION_BATCH_SIZE = 500;
+
+    /**
+     * Every schema change since version 3, oldest first. Versions before 3
+     * are too old to migrate and are rebuilt from scratch.
+     */
+    private static final Migration[] MIGRATIONS = {
+        new Migration(4) {
+            @Override
+            void upgradeSchema(SQLiteDatabase db) {
+                db.execSQL(TITLE_INDEX_CREATE);
+            }
+        },
+        new Migration(5) {
+            @Override
+            void upgradeSchema(SQLiteDatabase db) {
+                createSearchIndex(db);
+            }
+
+            @Override
+            String rowTable() {
+                return DATABASE_TABLE;
+            }
+
+            @Override
+            long migrateRows(SQLiteDatabase db, long afterRowId, long endRowId, int limit) {
+                // Read through SongCursor, as songs edited since the upgrade
+                // may already have been compressed
+                Cursor rows = new SongCursor(db.rawQuery("select " + KEY_ROWID + ", "
+                        + KEY_TITLE + ", " + KEY_BODY + ", " + KEY_CHORDS + rowBatch(),
+                        rowRange(afterRowId, endRowId, limit)));
+                long last = afterRowId;
+                try {
+                    while (rows.moveToNext()) {
+                        last = rows.getLong(0);
+                        db.execSQL("insert into " + SEARCH_TABLE + " (" + SEARCH_COLUMNS
+                                + ") values (?, ?, ?, ?)", new Object[] {last,
+                                rows.getString(1), rows.getString(2), rows.getString(3)});
+                    }
+                } finally {
+                    rows.close();
+                }
+                return last;
+            }
+        },
+        new Migration(6) {
+            @Override
+            void upgradeSchema(SQLiteDatabase db) {
+                // Only brought in the migrations table itself, which
+                // Migration.upgrade creates before running any step
+            }
+        },
+        new Migration(7) {
+            @Override
+            void upgradeSchema(SQLiteDatabase db) {
+                // Starts empty; songs are parsed as they are opened
+                createParseTable(db);
+            }
+        },
+        new Migration(8) {
+            @Override
+            void upgradeSchema(SQLiteDatabase db) {
+                // The defaults fill in existing rows without visiting them
+                db.execSQL("alter table " + DATABASE_TABLE + " add column " + KEY_TRANSPOSE
+                        + " integer not null default 0");
+                db.execSQL("alter table " + DATABASE_TABLE + " add column " + KEY_CAPO
+                        + " integer not null default 0");
+            }
+        },
+        new Migration(9) {
+            @Override
+            void upgradeSchema(SQLiteDatabase db) {
+                createSetlistTables(db);
+            }
+        },
+        new Migration(COMPRESSION_VERSION) {
+            @Override
+            void upgradeSchema(SQLiteDatabase db) {
+                // The adapter writes the search index itself from here on
+                db.execSQL("drop trigger if exists songs_fts_insert");
+                db.execSQL("drop trigger if exists songs_fts_update");
+            }
+
+            @Override
+            String rowTable() {
+                return DATABASE_TABLE;
+            }
+
+            @Override
+            long migrateRows(SQLiteDatabase db, long afterRowId, long endRowId, int limit) {
+                // Only long plain text is read; anything short or already
+                // compressed comes back null
+                String longText = " when typeof(%1$s) = 'text' and length(%1$s) >= "
+                        + SongCompression.MIN_CHARS + " then %1$s end";
+                Cursor rows = db.rawQuery("select " + KEY_ROWID + ", case"
+                        + String.format(Locale.US, longText, KEY_BODY) + ", case"
+                        + String.format(Locale.US, longText, KEY_CHORDS) + rowBatch(),
+                        rowRange(afterRowId, endRowId, limit));
+                long start = System.currentTimeMillis();
+                long last = afterRowId;
+                int compressed = 0;
+                long before = 0;
+                long after = 0;
+                try {
+                    ContentValues values = new ContentValues();
+                    while (rows.moveToNext()) {
+                        last = rows.getLong(0);
+                        values.clear();
+                        for (int column = 1; column <= 2; column++) {
+                            String text = rows.getString(column);
+                            byte[] value = SongCompression.compress(text);
+                            if (value != null) {
+                                values.put(column == 1 ? KEY_BODY : KEY_CHORDS, value);
+                                before += text.length();
+                                after += value.length;
+                            }
+                        }
+                        if (values.size() > 0) {
+                            db.update(DATABASE_TABLE, values, ROWID_SELECTION,
+                                    new String[] {Long.toString(last)});
+                            compressed++;
+                        }
+                    }
+                } finally {
+                    rows.close();
+                }
+                if (compressed > 0) {
+                    Log.i(TAG, "Compressed " + compressed + " songs up to row " + last
+                            + ", " + before + " chars to " + after + " bytes, in "
+                            + (System.currentTimeMillis() - start) + "ms");
+                }
+                return last;
+            }
+        },
+        new Migration(11) {
+            @Override
+            void upgradeSchema(SQLiteDatabase db) {
+                createRevisionTable(db);
+            }
+        },
+        new Migration(SORT_KEY_VERSION) {
+            @Override
+            void upgradeSchema(SQLiteDatabase db) {
+                // Rows not yet given a key sort first, in OTHER_SECTION
+                db.execSQL("alter table " + DATABASE_TABLE + " add column " + KEY_SORT_KEY
+                        + " text not null default ''");
+                db.execSQL("alter table " + DATABASE_TABLE + " add column " + KEY_SECTION
+                        + " text not null default '" + TitleKey.OTHER_SECTION + "'");
+                db.execSQL("drop index if exists songs_title");
+                db.execSQL(SORT_INDEX_CREATE);
+                createSectionTable(db);
+                db.execSQL("insert into " + SECTION_TABLE + " select " + KEY_SECTION
+                        + ", count(*) from " + DATABASE_TABLE + " group by " + KEY_SECTION);
+                createSortLocaleTable(db);
+            }
+
+            @Override
+            String rowTable() {
+                return DATABASE_TABLE;
+            }
+
+            @Override
+            long migrateRows(SQLiteDatabase db, long afterRowId, long endRowId, int limit) {
+                // Also run again whenever the locale changes, see
+                // checkSortLocale
+                TitleKey titleKey = TitleKey.get();
+                Cursor rows = db.rawQuery("select " + KEY_ROWID + ", " + KEY_TITLE
+                        + rowBatch(), rowRange(afterRowId, endRowId, limit));
+                SQLiteStatement update = db.compileStatement("update " + DATABASE_TABLE
+                        + " set " + KEY_SORT_KEY + " = ?, " + KEY_SECTION + " = ? where "
+                        + ROWID_SELECTION);
+                long last = afterRowId;
+                try {
+                    while (rows.moveToNext()) {
+                        last = rows.getLong(0);
+                        String title = rows.getString(1);
+                        update.bindString(1, titleKey.sortKey(title));
+                        update.bindString(2, titleKey.section(title));
+                        update.bindLong(3, last);
+                        update.execute();
+                    }
+                } finally {
+                    rows.close();
+                    update.close();
+                }
+                return last;
+            }
+        },
+        new Migration(13) {
+            @Override
+            void upgradeSchema(SQLiteDatabase db) {
+                createSyncTables(db);
+            }
+
+            @Override
+            String rowTable() {
+                return DATABASE_TABLE;
+            }
+
+            @Override
+            long migrateRows(SQLiteDatabase db, long afterRowId, long endRowId, int limit) {
+                // Songs already here have never changed, as far as sync
+                // is concerned, so anything from elsewhere wins
+                String[] range = rowRange(afterRowId, endRowId, limit);
+                long last = DatabaseUtils.longForQuery(db, "select ifnull(max(" + KEY_ROWID
+                        + "), 0) from (select " + KEY_ROWID + rowBatch() + ")", range);
+                if (last == 0) {
+                    return afterRowId;
+                }
+                db.execSQL("insert or ignore into " + SYNC_SONGS_TABLE + " select "
+                        + KEY_ROWID + ", " + NEW_SYNC_ID + ", 0, 0, 0" + rowBatch(), range);
+                // Sync may have been turned on before they had sync ids
+                db.execSQL("insert or ignore into " + SYNC_LOG_TABLE + " (" + KEY_SYNC_ID
+                        + ", " + KEY_FIELDS + ", " + KEY_DELETED + ") select " + KEY_SYNC_ID
+                        + ", " + SongSync.ALL_FIELDS + ", 0 from " + SYNC_SONGS_TABLE + ", "
+                        + SYNC_STATE_TABLE + " where " + KEY_ENABLED + " = 1 and " + KEY_SONG
+                        + " > ? and " + KEY_SONG + " <= ?", new Object[] {afterRowId, last});
+                return last;
+            }
+        }
+    };
+
+    /**
+     * Rows of the songs table for Migration.migrateRows, with rowRange as
+     * the arguments
+     */
+    private static String rowBatch() {
+        return " from " + DATABASE_TABLE + " where " + KEY_ROWID + " > ? and " + KEY_ROWID
+                + " <= ? order by " + KEY_ROWID + " limit ?";
+    }
+
+    private static String[] rowRange(long afterRowId, long endRowId, int limit) {
+        return new String[] {Long.toString(afterRowId), Long.toString(endRowId),
+                Integer.toString(limit)};
+    }
+
+    private static void createSearchIndex(SQLiteDatabase db) {
+        db.execSQL(SEARCH_CREATE);
+        db.execSQL(SEARCH_TRIGGER_CREATE);
+    }
+
+    private static void createParseTable(SQLiteDatabase db) {
+        db.execSQL(PARSE_CREATE);
+        for (String trigger : PARSE_TRIGGERS_CREATE) {
+            db.execSQL(trigger);
+        }
+    }
+
+    private static void createSetlistTables(SQLiteDatabase db) {
+        for (String sql : SETLIST_CREATE) {
+            db.execSQL(sql);
+        }
+    }
+
+    private static void createRevisionTable(SQLiteDatabase db) {
+        for (String sql : REVISION_CREATE) {
+            db.execSQL(sql);
+        }
+    }
+
+    private static void createSyncTables(SQLiteDatabase db) {
+        for (String sql : SYNC_CREATE) {
+            db.execSQL(sql);
+        }
+    }
+
+    private static void createSectionTable(SQLiteDatabase db) {
+        for (String sql : SECTION_CREATE) {
+            db.execSQL(sql);
+        }
+    }
+
+    private static void createSortLocaleTable(SQLiteDatabase db) {
+        db.execSQL(SORT_LOCALE_CREATE);
+        db.execSQL("insert into " + SORT_LOCALE_TABLE + " values (?)",
+                new Object[] {TitleKey.get().locale.toString()});
+    }
+
+    /**
+     * Make the sort keys again, as a row migration, if they were made for
+     * another locale than the one TitleKey has. Until it is done the songs
+     * not yet done are out of order.
+     */
+    private static void checkSortLocale(SQLiteDatabase db) {
+        String locale = TitleKey.get().locale.toString();
+        if (locale.equals(DatabaseUtils.stringForQuery(db,
+                "select " + KEY_LOCALE + " from " + SORT_LOCALE_TABLE, null))) {
+            return;
+        }
+        Log.i(TAG, "Sorting titles for " + locale);
+        db.beginTransaction();
+        try {
+            Migration.rerunRows(db, MIGRATIONS, SORT_KEY_VERSION);
+            db.execSQL("update " + SORT_LOCALE_TABLE + " set " + KEY_LOCALE + " = ?",
+                    new Object[] {locale});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
 
     private final Context mCtx;
 
     private static class DatabaseHelper extends SQLiteOpenHelper {
 
         DatabaseHelper(Context context) {
-            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            super(context, sDatabaseName, null, DATABASE_VERSION);
         }
 
         @Override
         public void onCreate(SQLiteDatabase db) {
 
             db.execSQL(DATABASE_CREATE);
+            db.execSQL(SORT_INDEX_CREATE);
+            createSearchIndex(db);
+            createParseTable(db);
+            createSetlistTables(db);
+            createRevisionTable(db);
+            createSectionTable(db);
+            createSortLocaleTable(db);
+            createSyncTables(db);
+            db.execSQL(Migration.STATE_CREATE);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE);
-            onCreate(db);
+            if (oldVersion < 3) {
+                Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                        + newVersion + ", which will destroy all old data");
+                db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE);
+                onCreate(db);
+                return;
+            }
+            Log.i(TAG, "Upgrading database from version " + oldVersion + " to "
+                    + newVersion);
+            // Only the schema changes happen here, the rows are migrated
+            // afterwards by migrateNextBatch
+            Migration.upgrade(db, MIGRATIONS, oldVersion, newVersion);
+        }
+    }
+
+    /**
+     * Have every adapter in the process open the named database in place of
+     * the library, as BenchmarkActivity does to work on a scratch one
+     *
+     * @throws IllegalStateException if the database is already open
+     */
+    static void useDatabase(String name) {
+        synchronized (SongScribblerDbAdapter.class) {
+            if (sOpenCount > 0) {
+                throw new IllegalStateException("Database " + sDatabaseName + " is open");
+            }
+            sDatabaseName = name;
         }
     }
 
@@ -79,13 +759,165 @@ public class SongScribblerDbAdapter {
      * @throws SQLException if the database could be neither opened or created
      */
     public SongScribblerDbAdapter open() throws SQLException {
-        mDbHelper = new DatabaseHelper(mCtx);
-        mDb = mDbHelper.getWritableDatabase();
+        synchronized (SongScribblerDbAdapter.class) {
+            if (mOpen) {
+                return this;
+            }
+            if (sOpenCount == 0) {
+                sDbHelper = new DatabaseHelper(mCtx.getApplicationContext());
+                sDb = sDbHelper.getWritableDatabase();
+                // Write ahead logging lets readers carry on while the writer
+                // commits; before Honeycomb there is no pool to read from
+                if (Build.VERSION.SDK_INT >= 11) {
+                    sDb.enableWriteAheadLogging();
+                }
+                checkSortLocale(sDb);
+                execAll(sDb, RESTORE_DROP);
+                sInsertStatement = sDb.compileStatement("insert into " + DATABASE_TABLE
+                        + " (" + KEY_TITLE + ", " + KEY_BODY + ", " + KEY_CHORDS + ", "
+                        + KEY_SCROLLSPEED + ", " + KEY_SORT_KEY + ", " + KEY_SECTION + ", "
+                        + KEY_TRANSPOSE + ", " + KEY_CAPO + ") values (?, ?, ?, ?, ?, ?, ?, ?)");
+                sUpdateStatement = sDb.compileStatement("update " + DATABASE_TABLE
+                        + " set " + KEY_TITLE + " = ?, " + KEY_BODY + " = ?, " + KEY_CHORDS
+                        + " = ?, " + KEY_SCROLLSPEED + " = ?, " + KEY_SORT_KEY + " = ?, "
+                        + KEY_SECTION + " = ? where " + ROWID_SELECTION);
+                sDeleteStatement = sDb.compileStatement("delete from " + DATABASE_TABLE
+                        + " where " + ROWID_SELECTION);
+                sChangesStatement = sDb.compileStatement("select changes()");
+                sSearchInsertStatement = sDb.compileStatement("insert into " + SEARCH_TABLE
+                        + " (" + SEARCH_COLUMNS + ") values (?, ?, ?, ?)");
+                sSearchUpdateStatement = sDb.compileStatement("update " + SEARCH_TABLE
+                        + " set " + KEY_TITLE + " = ?, " + KEY_BODY + " = ?, " + KEY_CHORDS
+                        + " = ? where docid = ?");
+            }
+            sOpenCount++;
+            mDb = sDb;
+            mOpen = true;
+        }
         return this;
     }
 
+    /**
+     * Give back this adapter's reference to the shared database, which is
+     * closed once no adapter is using it
+     */
     public void close() {
-        mDbHelper.close();
+        synchronized (SongScribblerDbAdapter.class) {
+            if (!mOpen) {
+                return;
+            }
+            mOpen = false;
+            mDb = null;
+            if (--sOpenCount == 0) {
+                synchronized (sStatementLock) {
+                    sInsertStatement.close();
+                    sUpdateStatement.close();
+                    sDeleteStatement.close();
+                    sChangesStatement.close();
+                    sSearchInsertStatement.close();
+                    sSearchUpdateStatement.close();
+                    sInsertStatement = null;
+                    sUpdateStatement = null;
+                    sDeleteStatement = null;
+                    sChangesStatement = null;
+                    sSearchInsertStatement = null;
+                    sSearchUpdateStatement = null;
+                    // They belong to this database, not whichever is opened next
+                    sRevisionHeads.clear();
+                    sRevisionsToCompact.clear();
+                }
+                sDbHelper.close();
+                sDbHelper = null;
+                sDb = null;
+            }
+        }
+    }
+
+    /**
+     * Start a transaction on the calling thread, for bulk work such as an
+     * import where committing each row separately would cost a journal sync
+     * per row. Must be paired with endTransaction.
+     */
+    public void beginTransaction() {
+        mDb.beginTransaction();
+    }
+
+    /**
+     * Mark the current transaction to be committed rather than rolled back
+     * by endTransaction
+     */
+    public void setTransactionSuccessful() {
+        mDb.setTransactionSuccessful();
+    }
+
+    public void endTransaction() {
+        mDb.endTransaction();
+        // Revisions recorded inside may have been rolled back with it
+        synchronized (sStatementLock) {
+            sRevisionHeads.clear();
+        }
+    }
+
+    /**
+     * Carry on with any row migrations left by a schema upgrade, one batch in
+     * one transaction. Call repeatedly, off the UI thread, until it returns
+     * false; it is safe to stop at any point and pick up again later, even in
+     * another process.
+     *
+     * @param listener told how far the migration has got, may be null
+     * @return true if there may be more to migrate
+     */
+    public boolean migrateNextBatch(Migration.ProgressListener listener) {
+        synchronized (sStatementLock) {
+            boolean compressing = Migration.pending(mDb, COMPRESSION_VERSION);
+            boolean more = Migration.migrateBatch(mDb, MIGRATIONS, MIGRATION_BATCH_SIZE,
+                    listener);
+            if (compressing && !Migration.pending(mDb, COMPRESSION_VERSION)) {
+                vacuum();
+            }
+            return more;
+        }
+    }
+
+    /**
+     * Give the pages freed by compressing the library back to the file
+     * system. Without it the file stays as big as it was and the space is
+     * only reused by later writes; see SEARCH_TABLE for how much it is.
+     */
+    private void vacuum() {
+        long start = System.currentTimeMillis();
+        try {
+            mDb.execSQL("vacuum");
+            Log.i(TAG, "Vacuumed in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (SQLException e) {
+            // Only space; the next write will reuse it anyway
+            Log.w(TAG, "Couldn't vacuum: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Run a compiled update or delete, returning the number of rows changed.
+     * Must be called holding sStatementLock so that nothing else runs on the
+     * connection between the statement and the changes() query.
+     */
+    private static int executeUpdateDelete(SQLiteStatement statement) {
+        if (Build.VERSION.SDK_INT >= 11) {
+            return statement.executeUpdateDelete();
+        }
+        statement.execute();
+        return (int) sChangesStatement.simpleQueryForLong();
+    }
+
+    /**
+     * Bind a body or chords value, compressed if it is long enough
+     */
+    private static void bindText(SQLiteStatement statement, int index, String text) {
+        byte[] compressed = SongCompression.compress(text);
+        if (compressed != null) {
+            statement.bindBlob(index, compressed);
+        } else {
+            statement.bindString(index, text);
+        }
     }
 
 
@@ -99,13 +931,58 @@ public class SongScribblerDbAdapter {
      * @return rowId or -1 if failed
      */
     public long createSong(String title, String body, String chords, int scrollspeed  ) {
-        ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_TITLE, title);
-        initialValues.put(KEY_BODY, body);
-        initialValues.put(KEY_CHORDS, chords);
-        initialValues.put(KEY_SCROLLSPEED, scrollspeed);
+        return insertSong(title, body, chords, scrollspeed, 0, 0, true);
+    }
 
-        return mDb.insert(DATABASE_TABLE, null, initialValues);
+    /**
+     * Add a song from a backup. Unlike createSong it isn't logged for sync,
+     * as the server may well have it already; it is sent whole the first
+     * time it is changed.
+     *
+     * @return rowId or -1 if failed
+     */
+    long restoreSong(String title, String body, String chords, int scrollspeed,
+            int transpose, int capo) {
+        return insertSong(title, body, chords, scrollspeed, transpose, capo, false);
+    }
+
+    private long insertSong(String title, String body, String chords, int scrollspeed,
+            int transpose, int capo, boolean logSync) {
+        synchronized (sStatementLock) {
+            sInsertStatement.bindString(1, title);
+            bindText(sInsertStatement, 2, body);
+            bindText(sInsertStatement, 3, chords);
+            sInsertStatement.bindLong(4, scrollspeed);
+            sInsertStatement.bindString(5, TitleKey.get().sortKey(title));
+            sInsertStatement.bindString(6, TitleKey.get().section(title));
+            sInsertStatement.bindLong(7, transpose);
+            sInsertStatement.bindLong(8, capo);
+            mDb.beginTransaction();
+            try {
+                long rowId = sInsertStatement.executeInsert();
+                sSearchInsertStatement.bindLong(1, rowId);
+                sSearchInsertStatement.bindString(2, title);
+                sSearchInsertStatement.bindString(3, body);
+                sSearchInsertStatement.bindString(4, chords);
+                sSearchInsertStatement.executeInsert();
+                if (!sApplyingSync) {
+                    mDb.execSQL("insert into " + SYNC_SONGS_TABLE + " values (?, "
+                            + NEW_SYNC_ID + ", 0, 0, 0)", new Object[] {rowId});
+                    if (logSync) {
+                        logSyncChange(rowId, SongSync.ALL_FIELDS);
+                    }
+                }
+                mDb.setTransactionSuccessful();
+                return rowId;
+            } catch (SQLException e) {
+                Log.e(TAG, "Error inserting song", e);
+                return -1;
+            } finally {
+                sInsertStatement.clearBindings();
+                sSearchInsertStatement.clearBindings();
+                mDb.endTransaction();
+            }
+        }
     }
 
     /**
@@ -116,17 +993,467 @@ public class SongScribblerDbAdapter {
      */
     public boolean deleteSong(long rowId) {
 
-        return mDb.delete(DATABASE_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+        synchronized (sStatementLock) {
+            sRevisionHeads.remove(rowId);
+            mDb.beginTransaction();
+            try {
+                logSyncDelete(rowId);
+                sDeleteStatement.bindLong(1, rowId);
+                boolean deleted = executeUpdateDelete(sDeleteStatement) > 0;
+                mDb.setTransactionSuccessful();
+                return deleted;
+            } finally {
+                sDeleteStatement.clearBindings();
+                mDb.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Delete several songs in one transaction, so they all go or none do
+     *
+     * @return the number of songs deleted
+     */
+    public int deleteSongs(long[] rowIds) {
+        synchronized (sStatementLock) {
+            int deleted = 0;
+            mDb.beginTransaction();
+            try {
+                for (long rowId : rowIds) {
+                    logSyncDelete(rowId);
+                    sDeleteStatement.bindLong(1, rowId);
+                    deleted += executeUpdateDelete(sDeleteStatement);
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                sDeleteStatement.clearBindings();
+                mDb.endTransaction();
+            }
+            for (long rowId : rowIds) {
+                sRevisionHeads.remove(rowId);
+            }
+            return deleted;
+        }
+    }
+
+    /**
+     * Delete every song in the library
+     *
+     * @return the number of songs deleted
+     */
+    public int deleteAllSongs() {
+        return deleteAllSongs(true);
+    }
+
+    /**
+     * @param logSync whether the deletes are logged for sync; not when the
+     *        library is being replaced from a backup, which is no reason
+     *        to delete the songs everywhere else
+     */
+    int deleteAllSongs(boolean logSync) {
+        synchronized (sStatementLock) {
+            sRevisionHeads.clear();
+            mDb.beginTransaction();
+            try {
+                if (logSync && !sApplyingSync) {
+                    mDb.execSQL(SYNC_LOG_DELETE, new Object[] {System.currentTimeMillis()});
+                }
+                // A where clause of "1" makes sqlite count the rows it deletes
+                int deleted = mDb.delete(DATABASE_TABLE, "1", null);
+                mDb.setTransactionSuccessful();
+                return deleted;
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Start holding songs from a backup for finishRestore, dropping any
+     * held by a restore that didn't finish
+     */
+    void beginRestore() {
+        synchronized (sStatementLock) {
+            execAll(mDb, RESTORE_DROP);
+            execAll(mDb, RESTORE_CREATE);
+        }
+    }
+
+    private static void execAll(SQLiteDatabase db, String[] sql) {
+        for (String statement : sql) {
+            db.execSQL(statement);
+        }
+    }
+
+    /**
+     * Hold a song from a backup until finishRestore
+     */
+    void stageRestoredSong(String title, String body, String chords, int scrollspeed,
+            int transpose, int capo) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_TITLE, title);
+        values.put(KEY_BODY, body);
+        values.put(KEY_CHORDS, chords);
+        values.put(KEY_SCROLLSPEED, scrollspeed);
+        values.put(KEY_TRANSPOSE, transpose);
+        values.put(KEY_CAPO, capo);
+        synchronized (sStatementLock) {
+            if (mDb.insert(RESTORE_TABLE, null, values) < 0) {
+                throw new SQLException("Holding a restored song failed");
+            }
+        }
+    }
+
+    /**
+     * Hold a setlist from a backup until finishRestore
+     *
+     * @param songs the positions of its songs among those held
+     */
+    void stageRestoredSetlist(String name, int[] songs) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_NAME, name);
+        synchronized (sStatementLock) {
+            long setlistId = mDb.insert(RESTORE_SETLIST_TABLE, null, values);
+            if (setlistId < 0) {
+                throw new SQLException("Holding a restored setlist failed");
+            }
+            for (int i = 0; i < songs.length; i++) {
+                mDb.execSQL("insert into " + RESTORE_SETLIST_SONGS_TABLE + " values (?, ?, ?)",
+                        new Object[] {setlistId, i, songs[i]});
+            }
+        }
+    }
+
+    /**
+     * Put the songs and setlists held since beginRestore in the library, in
+     * the order they were held, all in one transaction
+     *
+     * @param replace whether the songs and setlists already in the library
+     *        are deleted, which isn't logged for sync
+     * @return the number of songs restored
+     */
+    int finishRestore(boolean replace) {
+        synchronized (sStatementLock) {
+            mDb.beginTransaction();
+            try {
+                if (replace) {
+                    deleteAllSongs(false);
+                    mDb.delete(SETLIST_TABLE, null, null);
+                }
+                // The rowId each held song is restored as, by its position
+                long[] rowIds = new long[64];
+                int restored = 0;
+                Cursor songs = mDb.query(RESTORE_TABLE, new String[] {KEY_TITLE, KEY_BODY,
+                        KEY_CHORDS, KEY_SCROLLSPEED, KEY_TRANSPOSE, KEY_CAPO}, null, null, null,
+                        null, KEY_ROWID);
+                try {
+                    while (songs.moveToNext()) {
+                        long rowId = restoreSong(songs.getString(0), songs.getString(1),
+                                songs.getString(2), songs.getInt(3), songs.getInt(4),
+                                songs.getInt(5));
+                        if (rowId < 0) {
+                            throw new SQLException("Restoring a song failed");
+                        }
+                        if (restored == rowIds.length) {
+                            long[] grown = new long[rowIds.length * 2];
+                            System.arraycopy(rowIds, 0, grown, 0, restored);
+                            rowIds = grown;
+                        }
+                        rowIds[restored++] = rowId;
+                    }
+                } finally {
+                    songs.close();
+                }
+                finishRestoreSetlists(rowIds, restored);
+                execAll(mDb, RESTORE_DROP);
+                mDb.setTransactionSuccessful();
+                return restored;
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Add the setlists held, in finishRestore's transaction
+     *
+     * @param rowIds the restored songs, by their position among those held
+     */
+    private void finishRestoreSetlists(long[] rowIds, int count) {
+        long setlistId = -1;
+        long heldId = -1;
+        Cursor entries = mDb.rawQuery("select s." + KEY_ROWID + ", s." + KEY_NAME + ", e."
+                + KEY_SONG + " from " + RESTORE_SETLIST_TABLE + " s left join "
+                + RESTORE_SETLIST_SONGS_TABLE + " e on e." + KEY_SETLIST + " = s." + KEY_ROWID
+                + " order by s." + KEY_ROWID + ", e." + KEY_POSITION, null);
+        try {
+            while (entries.moveToNext()) {
+                if (entries.getLong(0) != heldId) {
+                    heldId = entries.getLong(0);
+                    ContentValues values = new ContentValues();
+                    values.put(KEY_NAME, entries.getString(1));
+                    setlistId = mDb.insert(SETLIST_TABLE, null, values);
+                    if (setlistId < 0) {
+                        throw new SQLException("Restoring a setlist failed");
+                    }
+                }
+                // An empty setlist has the one row, with no song
+                if (entries.isNull(2)) {
+                    continue;
+                }
+                int song = entries.getInt(2);
+                if (song < 0 || song >= count) {
+                    throw new SQLException("Restored setlist has a song that wasn't held");
+                }
+                addToSetlist(setlistId, rowIds[song]);
+            }
+        } finally {
+            entries.close();
+        }
+    }
+
+    /**
+     * Drop the songs and setlists held for a restore that has failed
+     */
+    void abandonRestore() {
+        synchronized (sStatementLock) {
+            execAll(mDb, RESTORE_DROP);
+        }
     }
 
     /**
      * Return a Cursor over the list of all songs in the database
      *
-     * @return Cursor over all songs
+     * @return Cursor over all songs, in the order of the title list
      */
     public Cursor fetchAllSongs() {
-        return mDb.query(DATABASE_TABLE, new String[] {KEY_ROWID, KEY_TITLE,
-                KEY_BODY, KEY_CHORDS, KEY_SCROLLSPEED}, null, null, null, null, null);
+        return new SongCursor(mDb.query(DATABASE_TABLE, new String[] {KEY_ROWID, KEY_TITLE,
+                KEY_BODY, KEY_CHORDS, KEY_SCROLLSPEED, KEY_TRANSPOSE, KEY_CAPO}, null, null,
+                null, null, TITLE_ORDER));
+    }
+
+    /**
+     * Return a Cursor over one page of song titles, ordered by sort key and
+     * then rowId, see TitleKey. Only the rowId, title and sort key columns
+     * are selected so that the list never pulls song bodies into its cursor
+     * window.
+     *
+     * Pages are keyed on the last row already seen rather than on an offset,
+     * so fetching a later page costs the same as fetching the first one.
+     *
+     * @param afterKey sort key of the last row of the previous page, or null
+     *        for the first page. A key from TitleKey.sectionStart with an
+     *        afterRowId of 0 starts the page at that section.
+     * @param afterRowId rowId of the last row of the previous page
+     * @param limit maximum number of rows to return
+     * @return Cursor over at most limit songs, with KEY_ROWID, KEY_TITLE and
+     *         KEY_SORT_KEY
+     */
+    public Cursor fetchSongTitles(String afterKey, long afterRowId, int limit) {
+        String[] columns = new String[] {KEY_ROWID, KEY_TITLE, KEY_SORT_KEY};
+        if (afterKey == null) {
+            return mDb.query(DATABASE_TABLE, columns, null, null, null, null,
+                    TITLE_ORDER, Integer.toString(limit));
+        }
+        // The leading range term lets sqlite seek straight into the index,
+        // the second one skips the rows of the previous page sharing its key
+        String selection = KEY_SORT_KEY + " >= ? AND (" + KEY_SORT_KEY + " > ? OR "
+                + KEY_ROWID + " > ?)";
+        return mDb.query(DATABASE_TABLE, columns, selection,
+                new String[] {afterKey, afterKey, Long.toString(afterRowId)},
+                null, null, TITLE_ORDER, Integer.toString(limit));
+    }
+
+    /**
+     * Return a Cursor over the page of song titles before a row, for paging
+     * back up the list, nearest row first
+     *
+     * @see #fetchSongTitles(String, long, int)
+     */
+    public Cursor fetchSongTitlesBefore(String beforeKey, long beforeRowId, int limit) {
+        String selection = KEY_SORT_KEY + " <= ? AND (" + KEY_SORT_KEY + " < ? OR "
+                + KEY_ROWID + " < ?)";
+        return mDb.query(DATABASE_TABLE, new String[] {KEY_ROWID, KEY_TITLE, KEY_SORT_KEY},
+                selection, new String[] {beforeKey, beforeKey, Long.toString(beforeRowId)},
+                null, null, TITLE_ORDER_DESCENDING, Integer.toString(limit));
+    }
+
+    /**
+     * @return the number of songs before a row in the title list, counted
+     *         along the sort key index
+     */
+    public int countSongsBefore(String key, long rowId) {
+        return (int) DatabaseUtils.longForQuery(mDb, "select count(*) from "
+                + DATABASE_TABLE + " where " + KEY_SORT_KEY + " < ? or (" + KEY_SORT_KEY
+                + " = ? and " + KEY_ROWID + " < ?)",
+                new String[] {key, key, Long.toString(rowId)});
+    }
+
+    /**
+     * @return Cursor over KEY_SECTION and KEY_SECTION_COUNT of every section
+     *         with songs in it, in no particular order
+     */
+    public Cursor fetchSongSections() {
+        return mDb.query(SECTION_TABLE, new String[] {KEY_SECTION, KEY_SECTION_COUNT},
+                null, null, null, null, null);
+    }
+
+    /**
+     * Search titles, lyrics and chords for the given text. Every word typed
+     * must appear in the song, and the last one is treated as a prefix so
+     * results can follow the user as they type.
+     *
+     * Matches are ranked by how often each word occurs in the song relative
+     * to the whole library, with title hits weighted highest. Only the best
+     * limit matches have snippets generated for them.
+     *
+     * @param text words to search for, as typed by the user
+     * @param limit maximum number of results
+     * @return Cursor over KEY_ROWID, KEY_TITLE and KEY_SNIPPET, best match
+     *         first. Matched terms in the snippet are wrapped in
+     *         SNIPPET_START and SNIPPET_END.
+     */
+    public Cursor searchSongs(String text, int limit) {
+        MatrixCursor results = new MatrixCursor(
+                new String[] {KEY_ROWID, KEY_TITLE, KEY_SNIPPET});
+        String match = buildMatchQuery(text);
+        if (match == null || limit <= 0) {
+            return results;
+        }
+
+        // First pass ranks every match from its matchinfo alone, keeping the
+        // best few in score order without touching any stored text
+        long[] ids = new long[limit];
+        double[] scores = new double[limit];
+        int found = 0;
+        Cursor matches = mDb.rawQuery("select docid, matchinfo(" + SEARCH_TABLE
+                + ") from " + SEARCH_TABLE + " where " + SEARCH_TABLE + " match ?",
+                new String[] {match});
+        try {
+            while (matches.moveToNext()) {
+                double score = rank(matches.getBlob(1));
+                if (found == limit && score <= scores[limit - 1]) {
+                    continue;
+                }
+                int i = found < limit ? found++ : limit - 1;
+                while (i > 0 && scores[i - 1] < score) {
+                    ids[i] = ids[i - 1];
+                    scores[i] = scores[i - 1];
+                    i--;
+                }
+                ids[i] = matches.getLong(0);
+                scores[i] = score;
+            }
+        } finally {
+            matches.close();
+        }
+        if (found == 0) {
+            return results;
+        }
+
+        // Second pass builds snippets for the survivors only
+        StringBuilder in = new StringBuilder();
+        for (int i = 0; i < found; i++) {
+            if (i > 0) {
+                in.append(',');
+            }
+            in.append(ids[i]);
+        }
+        String[] titles = new String[found];
+        String[] snippets = new String[found];
+        Cursor rows = mDb.rawQuery("select docid, " + KEY_TITLE + ", snippet("
+                + SEARCH_TABLE + ", '" + SNIPPET_START + "', '" + SNIPPET_END
+                + "', '\u2026') from " + SEARCH_TABLE + " where " + SEARCH_TABLE
+                + " match ? and docid in (" + in + ")", new String[] {match});
+        try {
+            while (rows.moveToNext()) {
+                long id = rows.getLong(0);
+                for (int i = 0; i < found; i++) {
+                    if (ids[i] == id) {
+                        titles[i] = rows.getString(1);
+                        snippets[i] = rows.getString(2);
+                        break;
+                    }
+                }
+            }
+        } finally {
+            rows.close();
+        }
+        for (int i = 0; i < found; i++) {
+            if (titles[i] != null) {
+                results.addRow(new Object[] {ids[i], titles[i], snippets[i]});
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Turn user input into an fts MATCH expression: each word is quoted so
+     * no operators can be injected, and the last word gets a prefix star
+     * once it is long enough not to expand to half the index.
+     *
+     * @return the expression, or null if the text has no searchable words
+     */
+    static String buildMatchQuery(String text) {
+        if (text == null) {
+            return null;
+        }
+        StringBuilder query = new StringBuilder();
+        int length = text.length();
+        int lastStart = 0;
+        int lastEnd = 0;
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && (Character.isLetterOrDigit(text.charAt(i))
+                    || text.charAt(i) == '\'')) {
+                i++;
+            }
+            if (i > start) {
+                if (query.length() > 0) {
+                    query.append(' ');
+                }
+                lastStart = start;
+                lastEnd = i;
+                query.append('"').append(text, start, i).append('"');
+            }
+        }
+        if (query.length() == 0) {
+            return null;
+        }
+        // Only a word still being typed is a prefix; "word*" is how fts3
+        // spells a prefix inside quotes
+        boolean typing = Character.isLetterOrDigit(text.charAt(length - 1));
+        if (typing && lastEnd - lastStart >= 2) {
+            query.insert(query.length() - 1, '*');
+        }
+        return query.toString();
+    }
+
+    /**
+     * Score one match from the default ("pcx") matchinfo blob: for every
+     * phrase and column, the hits in this song divided by the hits across
+     * all songs, weighted by column.
+     */
+    private static double rank(byte[] matchinfo) {
+        ByteBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+        int phrases = info.getInt(0);
+        int columns = info.getInt(4);
+        double score = 0;
+        for (int p = 0; p < phrases; p++) {
+            for (int c = 0; c < columns && c < SEARCH_WEIGHTS.length; c++) {
+                int base = 8 + (p * columns + c) * 12;
+                int hitsHere = info.getInt(base);
+                int hitsEverywhere = info.getInt(base + 4);
+                if (hitsHere > 0) {
+                    score += SEARCH_WEIGHTS[c] * hitsHere / hitsEverywhere;
+                }
+            }
+        }
+        return score;
     }
 
     /**
@@ -140,9 +1467,11 @@ public class SongScribblerDbAdapter {
 
         Cursor mCursor =
 
-                mDb.query(true, DATABASE_TABLE, new String[] {KEY_ROWID,
-                        KEY_TITLE, KEY_BODY, KEY_CHORDS, KEY_SCROLLSPEED}, KEY_ROWID + "=" + rowId, null,
-                        null, null, null, null);
+                new SongCursor(mDb.query(true, DATABASE_TABLE, new String[] {KEY_ROWID,
+                        KEY_TITLE, KEY_BODY, KEY_CHORDS, KEY_SCROLLSPEED, KEY_TRANSPOSE,
+                        KEY_CAPO}, ROWID_SELECTION,
+                        new String[] {Long.toString(rowId)},
+                        null, null, null, null));
         if (mCursor != null) {
             mCursor.moveToFirst();
         }
@@ -161,12 +1490,754 @@ public class SongScribblerDbAdapter {
      * @return true if the song was successfully updated, false otherwise
      */
     public boolean updateSong(long rowId, String title, String body, String chords, int scrollspeed) {
-        ContentValues args = new ContentValues();
-        args.put(KEY_TITLE, title);
-        args.put(KEY_BODY, body);
-        args.put(KEY_CHORDS, chords);
-        args.put(KEY_SCROLLSPEED, scrollspeed);
+        synchronized (sStatementLock) {
+            sUpdateStatement.bindString(1, title);
+            bindText(sUpdateStatement, 2, body);
+            bindText(sUpdateStatement, 3, chords);
+            sUpdateStatement.bindLong(4, scrollspeed);
+            sUpdateStatement.bindString(5, TitleKey.get().sortKey(title));
+            sUpdateStatement.bindString(6, TitleKey.get().section(title));
+            sUpdateStatement.bindLong(7, rowId);
+            mDb.beginTransaction();
+            try {
+                RevisionHead head = revisionHead(rowId);
+                if (executeUpdateDelete(sUpdateStatement) == 0) {
+                    return false;
+                }
+                sSearchUpdateStatement.bindString(1, title);
+                sSearchUpdateStatement.bindString(2, body);
+                sSearchUpdateStatement.bindString(3, chords);
+                sSearchUpdateStatement.bindLong(4, rowId);
+                sSearchUpdateStatement.execute();
+                SongRevisions.Version next = new SongRevisions.Version(title, body, chords);
+                logSyncChange(rowId, changedFields(head.version, next));
+                recordRevision(rowId, head, next);
+                mDb.setTransactionSuccessful();
+                return true;
+            } finally {
+                sUpdateStatement.clearBindings();
+                sSearchUpdateStatement.clearBindings();
+                mDb.endTransaction();
+            }
+        }
+    }
 
-        return mDb.update(DATABASE_TABLE, args, KEY_ROWID + "=" + rowId, null) > 0;
+    /**
+     * Update only the given columns of a song, leaving the rest of the row
+     * alone. Changing just the scroll speed then doesn't rewrite the lyrics.
+     *
+     * @param rowId id of song to update
+     * @param values new values keyed by column, e.g. KEY_SCROLLSPEED
+     * @return true if the song was successfully updated, false otherwise
+     */
+    public boolean updateSongFields(long rowId, ContentValues values) {
+        if (values.size() == 0) {
+            return true;
+        }
+        // The search index gets the text as given, the songs table the text
+        // compressed where it is worth it
+        ContentValues stored = values;
+        ContentValues search = null;
+        for (String key : new String[] {KEY_TITLE, KEY_BODY, KEY_CHORDS}) {
+            if (!values.containsKey(key)) {
+                continue;
+            }
+            String text = values.getAsString(key);
+            if (search == null) {
+                search = new ContentValues();
+            }
+            search.put(key, text);
+            if (KEY_TITLE.equals(key)) {
+                if (stored == values) {
+                    stored = new ContentValues(values);
+                }
+                stored.put(KEY_SORT_KEY, TitleKey.get().sortKey(text));
+                stored.put(KEY_SECTION, TitleKey.get().section(text));
+                continue;
+            }
+            byte[] compressed = SongCompression.compress(text);
+            if (compressed != null) {
+                if (stored == values) {
+                    stored = new ContentValues(values);
+                }
+                stored.put(key, compressed);
+            }
+        }
+        String[] selectionArgs = new String[] {Long.toString(rowId)};
+        // The column list varies, but the sql for each combination is still
+        // only compiled once by the connection's statement cache
+        synchronized (sStatementLock) {
+            if (search == null) {
+                return mDb.update(DATABASE_TABLE, stored, ROWID_SELECTION, selectionArgs) > 0;
+            }
+            mDb.beginTransaction();
+            try {
+                RevisionHead head = revisionHead(rowId);
+                if (mDb.update(DATABASE_TABLE, stored, ROWID_SELECTION, selectionArgs) == 0) {
+                    return false;
+                }
+                mDb.update(SEARCH_TABLE, search, "docid = ?", selectionArgs);
+                SongRevisions.Version was = head.version;
+                SongRevisions.Version next = new SongRevisions.Version(
+                        search.containsKey(KEY_TITLE) ? search.getAsString(KEY_TITLE)
+                                : was.title,
+                        search.containsKey(KEY_BODY) ? search.getAsString(KEY_BODY)
+                                : was.body,
+                        search.containsKey(KEY_CHORDS) ? search.getAsString(KEY_CHORDS)
+                                : was.chords);
+                logSyncChange(rowId, changedFields(was, next));
+                recordRevision(rowId, head, next);
+                mDb.setTransactionSuccessful();
+                return true;
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Find what recording a revision of a song has to go on: the song as it
+     * stands, and the revisions stored since the last snapshot. Recently
+     * edited songs have this to hand, so saving them reads nothing back.
+     * Must be called holding sStatementLock, before the song is changed.
+     *
+     * @return the head, or null if there is no such song
+     */
+    private RevisionHead revisionHead(long rowId) {
+        RevisionHead head = sRevisionHeads.get(rowId);
+        if (head != null) {
+            return head;
+        }
+        String[] song = new String[] {Long.toString(rowId)};
+        Cursor row = new SongCursor(mDb.query(DATABASE_TABLE, new String[] {KEY_TITLE,
+                KEY_BODY, KEY_CHORDS}, ROWID_SELECTION, song, null, null, null));
+        try {
+            if (!row.moveToFirst()) {
+                return null;
+            }
+            head = new RevisionHead();
+            head.version = new SongRevisions.Version(row.getString(0), row.getString(1),
+                    row.getString(2));
+        } finally {
+            row.close();
+        }
+        Cursor since = mDb.rawQuery("select count(*), ifnull(sum(" + KEY_REVISION_SNAPSHOT
+                + " = 0 and " + KEY_ROWID + " > last), 0), ifnull(sum(case when "
+                + KEY_REVISION_SNAPSHOT + " = 0 and " + KEY_ROWID + " > last then length("
+                + KEY_REVISION_DATA + ") end), 0) from " + REVISION_TABLE + ", (select ifnull(max("
+                + KEY_ROWID + "), 0) as last from " + REVISION_TABLE + " where " + KEY_SONG
+                + " = ?1 and " + KEY_REVISION_SNAPSHOT + " = 1) where " + KEY_SONG + " = ?1",
+                song);
+        try {
+            since.moveToFirst();
+            head.count = since.getInt(0);
+            head.deltas = since.getInt(1);
+            head.deltaBytes = since.getLong(2);
+        } finally {
+            since.close();
+        }
+        sRevisionHeads.put(rowId, head);
+        return head;
+    }
+
+    /**
+     * Store next as the newest revision of a song, after head. Must be the
+     * last thing done holding sStatementLock in the transaction that changed
+     * the song, since head is only cached again once it has all succeeded.
+     */
+    private void recordRevision(long rowId, RevisionHead head, SongRevisions.Version next) {
+        sRevisionHeads.remove(rowId);
+        long now = System.currentTimeMillis();
+        if (head.count == 0) {
+            // The song as it was before its first edit
+            insertRevision(rowId, now, true, SongRevisions.snapshot(head.version));
+            head.count++;
+        }
+        byte[] delta = SongRevisions.delta(head.version, next);
+        if (delta != null) {
+            if (head.deltas + 1 >= SongRevisions.SNAPSHOT_INTERVAL
+                    || head.deltaBytes + delta.length > next.length()) {
+                insertRevision(rowId, now, true, SongRevisions.snapshot(next));
+                head.deltas = 0;
+                head.deltaBytes = 0;
+            } else {
+                insertRevision(rowId, now, false, delta);
+                head.deltas++;
+                head.deltaBytes += delta.length;
+            }
+            head.version = next;
+            head.count++;
+        }
+        if (head.count >= SongRevisions.COMPACT_AT) {
+            // Left to compactNextRevisions, as it rewrites the whole history
+            sRevisionsToCompact.add(rowId);
+        }
+        sRevisionHeads.put(rowId, head);
+    }
+
+    /**
+     * @return whether any song has built up enough revisions to be thinned
+     *         out by compactNextRevisions
+     */
+    public boolean hasRevisionsToCompact() {
+        synchronized (sStatementLock) {
+            return !sRevisionsToCompact.isEmpty();
+        }
+    }
+
+    /**
+     * Thin out the revisions of one song that has built up too many, in a
+     * transaction of its own rather than the one that saved the song. Call
+     * repeatedly, off the UI thread, until it returns false; a song not
+     * compacted before the process ends is picked up again when it is next
+     * saved.
+     *
+     * @return true if there may be more to compact
+     */
+    public boolean compactNextRevisions() {
+        synchronized (sStatementLock) {
+            Iterator<Long> next = sRevisionsToCompact.iterator();
+            if (!next.hasNext()) {
+                return false;
+            }
+            long rowId = next.next();
+            next.remove();
+            // Counted again from the new chain next time
+            sRevisionHeads.remove(rowId);
+            mDb.beginTransaction();
+            try {
+                compactRevisions(rowId, System.currentTimeMillis());
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+            return !sRevisionsToCompact.isEmpty();
+        }
+    }
+
+    private void insertRevision(long rowId, long saved, boolean snapshot, byte[] data) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_SONG, rowId);
+        values.put(KEY_SAVED, saved);
+        values.put(KEY_REVISION_SNAPSHOT, snapshot ? 1 : 0);
+        values.put(KEY_REVISION_DATA, data);
+        if (mDb.insert(REVISION_TABLE, null, values) < 0) {
+            throw new SQLException("Couldn't store revision of song " + rowId);
+        }
+    }
+
+    /**
+     * Thin out a song's revisions to those SongRevisions.keep picks, written
+     * again as a new chain of snapshots and deltas. Must be called holding
+     * sStatementLock, in a transaction.
+     */
+    private void compactRevisions(long rowId, long now) {
+        Cursor rows = mDb.query(REVISION_TABLE, new String[] {KEY_SAVED,
+                KEY_REVISION_SNAPSHOT, KEY_REVISION_DATA}, KEY_SONG + " = ?",
+                new String[] {Long.toString(rowId)}, null, null, KEY_ROWID);
+        ArrayList<ContentValues> kept = new ArrayList<ContentValues>();
+        try {
+            long[] saved = new long[rows.getCount()];
+            for (int i = 0; rows.moveToNext(); i++) {
+                saved[i] = rows.getLong(0);
+            }
+            boolean[] keep = SongRevisions.keep(saved, now);
+            SongRevisions.Version version = null;
+            SongRevisions.Version previous = null;
+            int deltas = 0;
+            long deltaBytes = 0;
+            rows.moveToPosition(-1);
+            for (int i = 0; rows.moveToNext(); i++) {
+                byte[] data = rows.getBlob(2);
+                version = rows.getInt(1) != 0 ? SongRevisions.readSnapshot(data)
+                        : SongRevisions.apply(version, data);
+                if (!keep[i]) {
+                    continue;
+                }
+                // Same rules as recordRevision, between the revisions kept
+                byte[] delta = null;
+                if (previous != null) {
+                    delta = SongRevisions.delta(previous, version);
+                    if (delta == null) {
+                        continue;
+                    }
+                    if (deltas + 1 >= SongRevisions.SNAPSHOT_INTERVAL
+                            || deltaBytes + delta.length > version.length()) {
+                        delta = null;
+                    }
+                }
+                if (delta == null) {
+                    deltas = 0;
+                    deltaBytes = 0;
+                } else {
+                    deltas++;
+                    deltaBytes += delta.length;
+                }
+                ContentValues values = new ContentValues();
+                values.put(KEY_SONG, rowId);
+                values.put(KEY_SAVED, saved[i]);
+                values.put(KEY_REVISION_SNAPSHOT, delta == null ? 1 : 0);
+                values.put(KEY_REVISION_DATA,
+                        delta == null ? SongRevisions.snapshot(version) : delta);
+                kept.add(values);
+                previous = version;
+            }
+        } catch (IOException e) {
+            // Leave them be; every revision up to the broken one can still
+            // be read, and the newest is a copy of the song anyway
+            Log.w(TAG, "Not compacting revisions of song " + rowId + ": " + e.getMessage());
+            return;
+        } finally {
+            rows.close();
+        }
+        mDb.delete(REVISION_TABLE, KEY_SONG + " = ?", new String[] {Long.toString(rowId)});
+        for (ContentValues values : kept) {
+            mDb.insert(REVISION_TABLE, null, values);
+        }
+    }
+
+    /**
+     * @return Cursor over KEY_ROWID and KEY_SAVED of each revision of a
+     *         song, newest first
+     */
+    public Cursor fetchRevisions(long rowId) {
+        return mDb.query(REVISION_TABLE, new String[] {KEY_ROWID, KEY_SAVED},
+                KEY_SONG + " = ?", new String[] {Long.toString(rowId)}, null, null,
+                KEY_ROWID + " desc");
+    }
+
+    /**
+     * Rebuild a song as it was at one revision, from the snapshot at or
+     * before it and the deltas from there on
+     *
+     * @return the song's text at that revision, or null if there is no such
+     *         revision or it can't be read
+     */
+    public SongRevisions.Version fetchRevision(long revisionId) {
+        String[] revision = new String[] {Long.toString(revisionId)};
+        Cursor rows = mDb.rawQuery("select " + KEY_REVISION_SNAPSHOT + ", "
+                + KEY_REVISION_DATA + " from " + REVISION_TABLE + " where " + KEY_SONG
+                + " = (select " + KEY_SONG + " from " + REVISION_TABLE + " where " + KEY_ROWID
+                + " = ?1) and " + KEY_ROWID + " <= ?1 and " + KEY_ROWID + " >= (select max("
+                + KEY_ROWID + ") from " + REVISION_TABLE + " where " + KEY_SONG + " = (select "
+                + KEY_SONG + " from " + REVISION_TABLE + " where " + KEY_ROWID + " = ?1) and "
+                + KEY_ROWID + " <= ?1 and " + KEY_REVISION_SNAPSHOT + " = 1) order by "
+                + KEY_ROWID, revision);
+        try {
+            SongRevisions.Version version = null;
+            while (rows.moveToNext()) {
+                byte[] data = rows.getBlob(1);
+                version = rows.getInt(0) != 0 ? SongRevisions.readSnapshot(data)
+                        : SongRevisions.apply(version, data);
+            }
+            return version;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read revision " + revisionId + ": " + e.getMessage());
+            return null;
+        } finally {
+            rows.close();
+        }
+    }
+
+    /**
+     * Return the stored parse of a song, if there is one and it was parsed
+     * from the song's current text
+     *
+     * @param rowId id of the song
+     * @param hash SongParser.hash of the song's body and chords
+     * @return the parse, or null if the song has to be parsed
+     */
+    public ParsedSong fetchParse(long rowId, long hash) {
+        Cursor parse = mDb.query(PARSE_TABLE, new String[] {KEY_PARSE_DATA},
+                KEY_PARSE_SONG + " = ? and " + KEY_PARSE_HASH + " = ?",
+                new String[] {Long.toString(rowId), Long.toString(hash)},
+                null, null, null);
+        try {
+            if (!parse.moveToFirst()) {
+                return null;
+            }
+            return ParsedSong.fromBytes(hash, parse.getBlob(0));
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding stored parse of song " + rowId + ": " + e.getMessage());
+            return null;
+        } finally {
+            parse.close();
+        }
+    }
+
+    /**
+     * Store the parse of a song, replacing any older one. Nothing is stored
+     * if the song has been deleted.
+     */
+    public void saveParse(long rowId, ParsedSong parsed) {
+        synchronized (sStatementLock) {
+            mDb.execSQL("insert or replace into " + PARSE_TABLE + " (" + KEY_PARSE_SONG
+                    + ", " + KEY_PARSE_HASH + ", " + KEY_PARSE_DATA + ") select "
+                    + KEY_ROWID + ", ?, ? from " + DATABASE_TABLE + " where "
+                    + ROWID_SELECTION, new Object[] {parsed.hash, parsed.toBytes(), rowId});
+        }
+    }
+
+    /**
+     * Create a new, empty setlist
+     *
+     * @return rowId or -1 if failed
+     */
+    public long createSetlist(String name) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_NAME, name);
+        synchronized (sStatementLock) {
+            return mDb.insert(SETLIST_TABLE, null, values);
+        }
+    }
+
+    /**
+     * @return Cursor over KEY_ROWID and KEY_NAME of every setlist, by name
+     */
+    public Cursor fetchSetlists() {
+        return mDb.query(SETLIST_TABLE, new String[] {KEY_ROWID, KEY_NAME}, null, null,
+                null, null, KEY_NAME);
+    }
+
+    /**
+     * Add a song to the end of a setlist
+     */
+    public void addToSetlist(long setlistId, long rowId) {
+        synchronized (sStatementLock) {
+            mDb.execSQL("insert into " + SETLIST_SONGS_TABLE + " (" + KEY_SETLIST + ", "
+                    + KEY_POSITION + ", " + KEY_SONG + ") select ?, ifnull(max(" + KEY_POSITION
+                    + ") + 1, 0), ? from " + SETLIST_SONGS_TABLE + " where " + KEY_SETLIST
+                    + " = ?", new Object[] {setlistId, rowId, setlistId});
+        }
+    }
+
+    /**
+     * @return the rowIds of the songs in a setlist, in the order they are
+     *         played
+     */
+    public long[] fetchSetlistSongs(long setlistId) {
+        Cursor songs = mDb.query(SETLIST_SONGS_TABLE, new String[] {KEY_SONG},
+                KEY_SETLIST + " = ?", new String[] {Long.toString(setlistId)},
+                null, null, KEY_POSITION);
+        try {
+            long[] ids = new long[songs.getCount()];
+            for (int i = 0; songs.moveToNext(); i++) {
+                ids[i] = songs.getLong(0);
+            }
+            return ids;
+        } finally {
+            songs.close();
+        }
+    }
+
+    /**
+     * Note for SongSync that fields of a song have changed, setting their
+     * clocks to now and logging them if sync is on. Must be called holding
+     * sStatementLock, in the transaction that changes the song.
+     *
+     * @param fields SongSync.FIELD_ bits
+     */
+    private void logSyncChange(long rowId, int fields) {
+        if (sApplyingSync || fields == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        StringBuilder clocks = new StringBuilder();
+        for (int i = 0; i < SYNC_FIELDS.length; i++) {
+            if ((fields & (1 << i)) != 0) {
+                clocks.append(clocks.length() > 0 ? ", " : "").append(SYNC_CLOCKS[i])
+                        .append(" = ").append(now);
+            }
+        }
+        // Logged before the clocks are set, which tell whether it was ever sent
+        mDb.execSQL(SYNC_LOG_CHANGE, new Object[] {fields, rowId});
+        mDb.execSQL("update " + SYNC_SONGS_TABLE + " set " + clocks + " where " + KEY_SONG
+                + " = ?", new Object[] {rowId});
+    }
+
+    /**
+     * Log a song as deleted now, if sync is on. Must be called holding
+     * sStatementLock, in the transaction deleting the song, before it goes.
+     */
+    private void logSyncDelete(long rowId) {
+        if (!sApplyingSync) {
+            mDb.execSQL(SYNC_LOG_DELETE + " and " + KEY_SONG + " = ?",
+                    new Object[] {System.currentTimeMillis(), rowId});
+        }
+    }
+
+    /**
+     * @return the SongSync.FIELD_ bits of the fields that differ
+     */
+    private static int changedFields(SongRevisions.Version was, SongRevisions.Version next) {
+        int fields = 0;
+        if (!was.title.equals(next.title)) {
+            fields |= SongSync.FIELD_TITLE;
+        }
+        if (!was.body.equals(next.body)) {
+            fields |= SongSync.FIELD_BODY;
+        }
+        if (!was.chords.equals(next.chords)) {
+            fields |= SongSync.FIELD_CHORDS;
+        }
+        return fields;
+    }
+
+    public boolean isSyncEnabled() {
+        return DatabaseUtils.longForQuery(mDb, "select " + KEY_ENABLED + " from "
+                + SYNC_STATE_TABLE, null) == 1;
+    }
+
+    /**
+     * Turn the log of changes for SongSync on or off. Turning it on logs
+     * every song, as none of them have been sent; turning it off forgets
+     * whatever was logged.
+     */
+    public void setSyncEnabled(boolean enabled) {
+        synchronized (sStatementLock) {
+            mDb.beginTransaction();
+            try {
+                mDb.execSQL("delete from " + SYNC_LOG_TABLE);
+                mDb.execSQL("update " + SYNC_STATE_TABLE + " set " + KEY_ENABLED + " = ?",
+                        new Object[] {enabled ? 1 : 0});
+                if (enabled) {
+                    mDb.execSQL("insert into " + SYNC_LOG_TABLE + " (" + KEY_SYNC_ID + ", "
+                            + KEY_FIELDS + ", " + KEY_DELETED + ") select " + KEY_SYNC_ID
+                            + ", " + SongSync.ALL_FIELDS + ", 0 from " + SYNC_SONGS_TABLE);
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * @return how far the changes from the server have been applied, as the
+     *         server gave it, or null if none have been
+     */
+    public String getSyncCursor() {
+        Cursor state = mDb.rawQuery("select " + KEY_CURSOR + " from " + SYNC_STATE_TABLE,
+                null);
+        try {
+            return state.moveToFirst() ? state.getString(0) : null;
+        } finally {
+            state.close();
+        }
+    }
+
+    /**
+     * Return a Cursor over the oldest entries in the sync log, with the
+     * fields of their songs as they stand
+     *
+     * @return Cursor over KEY_SEQ, KEY_SYNC_ID, KEY_FIELDS and KEY_DELETED,
+     *         then each of SYNC_FIELDS and each of their clocks, which are
+     *         null for a deleted song
+     */
+    public Cursor fetchSyncChanges(int limit) {
+        return new SongCursor(mDb.rawQuery("select l." + KEY_SEQ + ", l." + KEY_SYNC_ID
+                + ", l." + KEY_FIELDS + ", l." + KEY_DELETED + ", d." + KEY_TITLE + ", d."
+                + KEY_BODY + ", d." + KEY_CHORDS + ", s." + SYNC_CLOCKS[0] + ", s."
+                + SYNC_CLOCKS[1] + ", s." + SYNC_CLOCKS[2] + " from " + SYNC_LOG_TABLE
+                + " l left join " + SYNC_SONGS_TABLE + " s on s." + KEY_SYNC_ID + " = l."
+                + KEY_SYNC_ID + " left join " + DATABASE_TABLE + " d on d." + KEY_ROWID
+                + " = s." + KEY_SONG + " order by l." + KEY_SEQ + " limit ?",
+                new String[] {Integer.toString(limit)}));
+    }
+
+    /**
+     * Take entries off the sync log once the server has them. An entry
+     * logged again since it was fetched has a new seq, so stays.
+     */
+    public void clearSyncChanges(long[] seqs) {
+        synchronized (sStatementLock) {
+            mDb.beginTransaction();
+            try {
+                for (long seq : seqs) {
+                    mDb.execSQL("delete from " + SYNC_LOG_TABLE + " where " + KEY_SEQ + " = ?",
+                            new Object[] {seq});
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Apply a page of changes from the server, along with how far through
+     * the server's changes it goes, in one transaction, so an interrupted
+     * download carries on after the last page applied.
+     *
+     * Each field is taken if it changed later than it did here. An edit
+     * here that hasn't been sent yet is a conflict; if flagConflicts is
+     * set, the field from the server is kept aside for fetchSyncConflicts
+     * instead. A delete is taken if it is later than any change here.
+     *
+     * @param result counts the songs changed and the conflicts kept aside
+     */
+    public void applySyncChanges(List<SongSync.Change> changes, String cursor,
+            boolean flagConflicts, SongSync.Result result) {
+        synchronized (sStatementLock) {
+            mDb.beginTransaction();
+            sApplyingSync = true;
+            try {
+                for (SongSync.Change change : changes) {
+                    applySyncChange(change, flagConflicts, result);
+                }
+                mDb.execSQL("update " + SYNC_STATE_TABLE + " set " + KEY_CURSOR + " = ?",
+                        new Object[] {cursor});
+                mDb.setTransactionSuccessful();
+            } finally {
+                sApplyingSync = false;
+                endTransaction();
+            }
+        }
+    }
+
+    private void applySyncChange(SongSync.Change change, boolean flagConflicts,
+            SongSync.Result result) {
+        String[] syncId = new String[] {change.syncId};
+        int pending = 0;
+        long deletedHere = 0;
+        Cursor log = mDb.rawQuery("select " + KEY_FIELDS + ", " + KEY_DELETED + " from "
+                + SYNC_LOG_TABLE + " where " + KEY_SYNC_ID + " = ?", syncId);
+        try {
+            if (log.moveToFirst()) {
+                pending = log.getInt(0);
+                deletedHere = log.getLong(1);
+            }
+        } finally {
+            log.close();
+        }
+        long rowId = -1;
+        long[] clocks = new long[SYNC_FIELDS.length];
+        Cursor song = mDb.rawQuery("select " + KEY_SONG + ", " + SYNC_CLOCKS[0] + ", "
+                + SYNC_CLOCKS[1] + ", " + SYNC_CLOCKS[2] + " from " + SYNC_SONGS_TABLE
+                + " where " + KEY_SYNC_ID + " = ?", syncId);
+        try {
+            if (song.moveToFirst()) {
+                rowId = song.getLong(0);
+                for (int i = 0; i < clocks.length; i++) {
+                    clocks[i] = song.getLong(1 + i);
+                }
+            }
+        } finally {
+            song.close();
+        }
+
+        if (change.deleted > 0) {
+            if (rowId >= 0 && change.deleted >= SongSync.latest(clocks)) {
+                deleteSong(rowId);
+                mDb.execSQL("delete from " + SYNC_LOG_TABLE + " where " + KEY_SYNC_ID
+                        + " = ?", syncId);
+                result.received++;
+            }
+            return;
+        }
+        if (rowId < 0) {
+            if (deletedHere >= SongSync.latest(change.clocks)) {
+                // Deleted here after it was last changed there
+                return;
+            }
+            rowId = createSong(SongSync.valueOrEmpty(change, 0),
+                    SongSync.valueOrEmpty(change, 1), SongSync.valueOrEmpty(change, 2),
+                    DEFAULT_SCROLLSPEED);
+            if (rowId < 0) {
+                throw new SQLException("Adding synced song " + change.syncId + " failed");
+            }
+            mDb.execSQL("insert into " + SYNC_SONGS_TABLE + " values (?, ?, ?, ?, ?)",
+                    new Object[] {rowId, change.syncId, change.clocks[0], change.clocks[1],
+                            change.clocks[2]});
+            mDb.execSQL("delete from " + SYNC_LOG_TABLE + " where " + KEY_SYNC_ID + " = ?",
+                    syncId);
+            result.received++;
+            return;
+        }
+
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < SYNC_FIELDS.length; i++) {
+            if (change.values[i] == null || change.clocks[i] <= clocks[i]) {
+                continue;
+            }
+            int field = 1 << i;
+            if (flagConflicts && (pending & field) != 0) {
+                mDb.execSQL("insert or replace into " + SYNC_CONFLICTS_TABLE
+                        + " values (?, ?, ?, ?)", new Object[] {rowId, SYNC_FIELDS[i],
+                                change.values[i], change.clocks[i]});
+                result.conflicts++;
+                continue;
+            }
+            values.put(SYNC_FIELDS[i], change.values[i]);
+            clocks[i] = change.clocks[i];
+            pending &= ~field;
+        }
+        if (values.size() == 0) {
+            return;
+        }
+        updateSongFields(rowId, values);
+        mDb.execSQL("update " + SYNC_SONGS_TABLE + " set " + SYNC_CLOCKS[0] + " = ?, "
+                + SYNC_CLOCKS[1] + " = ?, " + SYNC_CLOCKS[2] + " = ? where " + KEY_SONG
+                + " = ?", new Object[] {clocks[0], clocks[1], clocks[2], rowId});
+        // What it overwrote no longer needs sending
+        if (pending == 0) {
+            mDb.execSQL("delete from " + SYNC_LOG_TABLE + " where " + KEY_SYNC_ID + " = ?",
+                    syncId);
+        } else {
+            mDb.execSQL("update " + SYNC_LOG_TABLE + " set " + KEY_FIELDS + " = ? where "
+                    + KEY_SYNC_ID + " = ?", new Object[] {pending, change.syncId});
+        }
+        result.received++;
+    }
+
+    /**
+     * @return Cursor over KEY_FIELD and KEY_VALUE of each edit from
+     *         elsewhere kept aside from a song by applySyncChanges
+     */
+    public Cursor fetchSyncConflicts(long rowId) {
+        return mDb.query(SYNC_CONFLICTS_TABLE, new String[] {KEY_FIELD, KEY_VALUE},
+                KEY_SONG + " = ?", new String[] {Long.toString(rowId)}, null, null, null);
+    }
+
+    /**
+     * Settle the conflicts on a song, either taking the edits kept aside or
+     * keeping the song as it is. Either way the song is logged as changed
+     * now, so it wins over the edits that clashed wherever they are.
+     *
+     * @return the fields changed, if the edits were taken, otherwise empty
+     */
+    public ContentValues resolveSyncConflicts(long rowId, boolean keepMine) {
+        synchronized (sStatementLock) {
+            mDb.beginTransaction();
+            try {
+                ContentValues theirs = new ContentValues();
+                int fields = 0;
+                Cursor conflicts = fetchSyncConflicts(rowId);
+                try {
+                    while (conflicts.moveToNext()) {
+                        for (int i = 0; i < SYNC_FIELDS.length; i++) {
+                            if (SYNC_FIELDS[i].equals(conflicts.getString(0))) {
+                                fields |= 1 << i;
+                                theirs.put(SYNC_FIELDS[i], conflicts.getString(1));
+                            }
+                        }
+                    }
+                } finally {
+                    conflicts.close();
+                }
+                mDb.execSQL("delete from " + SYNC_CONFLICTS_TABLE + " where " + KEY_SONG
+                        + " = ?", new Object[] {rowId});
+                if (keepMine) {
+                    logSyncChange(rowId, fields);
+                    theirs.clear();
+                } else {
+                    updateSongFields(rowId, theirs);
+                }
+                mDb.setTransactionSuccessful();
+                return theirs;
+            } finally {
+                endTransaction();
+            }
+        }
     }
 }
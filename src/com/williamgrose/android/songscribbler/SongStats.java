@@ -0,0 +1,210 @@
+package com.williamgrose.android.songscribbler;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Environment;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Shows what Metrics has recorded, and turns recording on and off. There
+ * is no menu entry for it; typing STATS_QUERY into the search box of the
+ * song list opens it.
+ *
+ * Export writes everything, buckets included, as JSON to
+ * EXPORT_DIRECTORY on external storage.
+ */
+public class SongStats extends Activity {
+
+    private static final String TAG = "SongStats";
+
+    /** Searched for in the song list to open this screen */
+    public static final String STATS_QUERY = ":stats";
+    /** Where exports are written, on external storage */
+    private static final String EXPORT_DIRECTORY = "SongScribbler/stats";
+
+    private static final int RECORD_ID = Menu.FIRST;
+    private static final int RESET_ID = Menu.FIRST + 1;
+    private static final int EXPORT_ID = Menu.FIRST + 2;
+
+    private TextView mStats;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        Metrics.init(this);
+        setContentView(R.layout.stats);
+        mStats = (TextView) findViewById(R.id.stats);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        showStats();
+    }
+
+    private void showStats() {
+        StringBuilder text = new StringBuilder();
+        if (!Metrics.isEnabled()) {
+            text.append(getString(R.string.stats_disabled)).append("\n\n");
+        }
+        text.append("Times in ms\n\n");
+        for (Metrics.Histogram histogram : Metrics.HISTOGRAMS) {
+            long count = histogram.getCount();
+            text.append(histogram.name).append("  n=").append(count).append('\n');
+            if (count > 0) {
+                text.append(String.format(Locale.US,
+                        "  mean %s  p50 %s  p90 %s  p99 %s  max %s\n",
+                        millis(histogram.getMeanMicros()),
+                        millis(histogram.getPercentileMicros(0.5)),
+                        millis(histogram.getPercentileMicros(0.9)),
+                        millis(histogram.getPercentileMicros(0.99)),
+                        millis(histogram.getMaxMicros())));
+            }
+        }
+        text.append('\n');
+        for (Metrics.Counter counter : Metrics.COUNTERS) {
+            text.append(counter.name).append("  ").append(counter.get()).append('\n');
+        }
+        mStats.setText(text);
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.US, "%.2f", micros / 1000.0);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        super.onCreateOptionsMenu(menu);
+        menu.add(0, RECORD_ID, 0, R.string.menu_stats_enable);
+        menu.add(0, RESET_ID, 0, R.string.menu_stats_reset);
+        menu.add(0, EXPORT_ID, 0, R.string.menu_stats_export);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        menu.findItem(RECORD_ID).setTitle(Metrics.isEnabled()
+                ? R.string.menu_stats_disable : R.string.menu_stats_enable);
+        return true;
+    }
+
+    @Override
+    public boolean onMenuItemSelected(int featureId, MenuItem item) {
+        switch (item.getItemId()) {
+        case RECORD_ID:
+            Metrics.setEnabled(this, !Metrics.isEnabled());
+            showStats();
+            return true;
+        case RESET_ID:
+            Metrics.reset();
+            showStats();
+            return true;
+        case EXPORT_ID:
+            export();
+            return true;
+        }
+        return super.onMenuItemSelected(featureId, item);
+    }
+
+    /**
+     * Write the stats out on a thread of its own, so the UI thread never
+     * waits on storage
+     */
+    private void export() {
+        File directory = new File(Environment.getExternalStorageDirectory(), EXPORT_DIRECTORY);
+        String name = "stats-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())
+                + ".json";
+        final File file = new File(directory, name);
+        final String json = toJson();
+        new Thread(new Runnable() {
+            public void run() {
+                boolean written = false;
+                try {
+                    file.getParentFile().mkdirs();
+                    Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+                    try {
+                        out.write(json);
+                    } finally {
+                        out.close();
+                    }
+                    written = true;
+                } catch (IOException e) {
+                    Log.e(TAG, "Writing " + file + " failed", e);
+                }
+                final boolean done = written;
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        if (done) {
+                            Toast.makeText(SongStats.this, getString(R.string.stats_exported,
+                                    file.getPath()), Toast.LENGTH_LONG).show();
+                        } else {
+                            Toast.makeText(SongStats.this, R.string.stats_export_failed,
+                                    Toast.LENGTH_LONG).show();
+                        }
+                    }
+                });
+            }
+        }, "SongScribbler stats export").start();
+    }
+
+    /**
+     * Everything recorded, with the non-empty buckets of each histogram as
+     * [lowest time in the bucket, count] pairs, times in microseconds
+     */
+    private static String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"device\": \"").append(escape(Build.MODEL))
+                .append("\", \"sdk\": ").append(Build.VERSION.SDK_INT)
+                .append(", \"recording\": ").append(Metrics.isEnabled())
+                .append(", \"histograms\": [\n");
+        for (int i = 0; i < Metrics.HISTOGRAMS.length; i++) {
+            Metrics.Histogram histogram = Metrics.HISTOGRAMS[i];
+            json.append(i > 0 ? ",\n" : "").append("  {\"name\": \"").append(histogram.name)
+                    .append("\", \"unit\": \"us\", \"count\": ").append(histogram.getCount())
+                    .append(", \"mean\": ").append(histogram.getMeanMicros())
+                    .append(", \"p50\": ").append(histogram.getPercentileMicros(0.5))
+                    .append(", \"p90\": ").append(histogram.getPercentileMicros(0.9))
+                    .append(", \"p99\": ").append(histogram.getPercentileMicros(0.99))
+                    .append(", \"max\": ").append(histogram.getMaxMicros())
+                    .append(", \"buckets\": [");
+            long[] buckets = histogram.getBuckets();
+            boolean first = true;
+            for (int b = 0; b < buckets.length; b++) {
+                if (buckets[b] > 0) {
+                    json.append(first ? "" : ", ").append('[')
+                            .append(Metrics.Histogram.lowerBound(b)).append(", ")
+                            .append(buckets[b]).append(']');
+                    first = false;
+                }
+            }
+            json.append("]}");
+        }
+        json.append("\n], \"counters\": [\n");
+        for (int i = 0; i < Metrics.COUNTERS.length; i++) {
+            Metrics.Counter counter = Metrics.COUNTERS[i];
+            json.append(i > 0 ? ",\n" : "").append("  {\"name\": \"").append(counter.name)
+                    .append("\", \"count\": ").append(counter.get()).append('}');
+        }
+        json.append("\n]}\n");
+        return json.toString();
+    }
+
+    private static String escape(String value) {
+        return value == null ? "" : value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
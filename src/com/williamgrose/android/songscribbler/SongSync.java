@@ -0,0 +1,431 @@
+package com.williamgrose.android.songscribbler;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the library in step with a server that several devices share, so
+ * a band can work from one set of songs. Only what has changed goes each
+ * way: the songs in the adapter's sync log go up, and the songs the server
+ * has been given since the last sync come down.
+ *
+ * The server is anything that answers two requests with JSON, gzipped if
+ * it says so in Content-Encoding. What is sent to it always is.
+ *
+ *   POST server/push {"device": id, "changes": [change, ...]}
+ *     stores the changes, answering {} once it has them all
+ *   GET server/pull?limit=n&since=cursor
+ *     answers {"changes": [change, ...], "cursor": c, "more": true|false}
+ *     with the songs changed since the cursor, from the start if there is
+ *     none. Each song comes whole, as the server has it after merging.
+ *
+ * A change is {"id": syncId, "device": id, "deleted": millis} for a song
+ * that was deleted, otherwise {"id": syncId, "device": id, "title": field,
+ * "body": field, "chords": field} with each field {"value": text,
+ * "clock": millis}, leaving out fields that haven't changed. The server
+ * merges them the way applySyncChanges in SongScribblerDbAdapter does: the
+ * later clock wins, field by field, and a delete wins over anything that
+ * changed before it.
+ *
+ * Each page up or down is its own transaction, taken off the log or
+ * recorded as applied once it has got through, so a sync that is cut off
+ * carries on from there the next time. Changes are pulled before the log
+ * is pushed, so that edits not yet sent can be told apart from ones the
+ * server already has when looking for conflicts.
+ *
+ * The network is only used from the thread calling sync; the database is
+ * only used through the writer given, so no write waits on the server.
+ */
+public class SongSync {
+
+    /**
+     * What a sync did
+     */
+    public static class Result {
+        /** Songs sent, and songs changed here from the server */
+        public int sent;
+        public int received;
+        /** Fields kept aside rather than overwriting an edit not yet sent */
+        public int conflicts;
+        public long elapsedMillis;
+        /** Why the sync stopped short, or null if it didn't */
+        public String error;
+    }
+
+    /**
+     * A song as the server sent it
+     */
+    static final class Change {
+        String syncId;
+        /** When the song was deleted, or 0 */
+        long deleted;
+        /** Indexed like SongScribblerDbAdapter.SYNC_FIELDS, null if not sent */
+        final String[] values = new String[SongScribblerDbAdapter.SYNC_FIELDS.length];
+        final long[] clocks = new long[SongScribblerDbAdapter.SYNC_FIELDS.length];
+    }
+
+    /** Bits for the fields of a song, in the order of SYNC_FIELDS */
+    static final int FIELD_TITLE = 1;
+    static final int FIELD_BODY = 2;
+    static final int FIELD_CHORDS = 4;
+    static final int ALL_FIELDS = FIELD_TITLE | FIELD_BODY | FIELD_CHORDS;
+
+    private static final String TAG = "SongSync";
+    private static final String PREFS = "sync";
+    private static final String PREF_SERVER = "server";
+    private static final String PREF_FLAG_CONFLICTS = "flag_conflicts";
+    private static final String PREF_DEVICE = "device";
+
+    /** Songs per request each way */
+    private static final int PAGE_SIZE = 100;
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    private final SongScribblerDbAdapter mDb;
+    private final ExecutorService mWriter;
+    /** Null if sync has never been set up */
+    private final String mServer;
+    private final String mDevice;
+    private final boolean mFlagConflicts;
+    private final Runnable mSongsChanged;
+
+    /**
+     * @param db an open adapter, only used on writer
+     * @param songsChanged run on writer after songs are changed from the
+     *        server
+     */
+    public SongSync(SongScribblerDbAdapter db, ExecutorService writer, Context context,
+            Runnable songsChanged) {
+        mDb = db;
+        mWriter = writer;
+        String server = getServer(context);
+        mServer = server == null || server.length() == 0 ? null
+                : server.endsWith("/") ? server.substring(0, server.length() - 1) : server;
+        mDevice = deviceId(context);
+        mFlagConflicts = getFlagConflicts(context);
+        mSongsChanged = songsChanged;
+    }
+
+    /**
+     * Pull the changes from the server, then push the ones made here. Turns
+     * the sync log on if it wasn't. Never throws; a failure is reported in
+     * the result, and the next sync carries on from it.
+     */
+    public Result sync() {
+        Result result = new Result();
+        if (mServer == null) {
+            result.error = "No server set";
+            return result;
+        }
+        long start = SystemClock.elapsedRealtime();
+        try {
+            onWriter(new Callable<Void>() {
+                public Void call() {
+                    if (!mDb.isSyncEnabled()) {
+                        mDb.setSyncEnabled(true);
+                    }
+                    return null;
+                }
+            });
+            pull(result);
+            push(result);
+        } catch (IOException e) {
+            Log.w(TAG, "Syncing with " + mServer + " failed", e);
+            result.error = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+        result.elapsedMillis = SystemClock.elapsedRealtime() - start;
+        return result;
+    }
+
+    private void pull(final Result result) throws IOException {
+        String cursor = onWriter(new Callable<String>() {
+            public String call() {
+                return mDb.getSyncCursor();
+            }
+        });
+        boolean more = true;
+        while (more) {
+            JSONObject page = request("/pull?limit=" + PAGE_SIZE + (cursor != null
+                    ? "&since=" + URLEncoder.encode(cursor, "UTF-8") : ""), null);
+            final List<Change> changes = new ArrayList<Change>();
+            final String next;
+            try {
+                JSONArray array = page.getJSONArray("changes");
+                for (int i = 0; i < array.length(); i++) {
+                    changes.add(parseChange(array.getJSONObject(i)));
+                }
+                next = page.getString("cursor");
+            } catch (JSONException e) {
+                throw new IOException("Unreadable answer from " + mServer + ": "
+                        + e.getMessage());
+            }
+            onWriter(new Callable<Void>() {
+                public Void call() {
+                    int before = result.received;
+                    mDb.applySyncChanges(changes, next, mFlagConflicts, result);
+                    if (result.received > before) {
+                        mSongsChanged.run();
+                    }
+                    return null;
+                }
+            });
+            cursor = next;
+            more = page.optBoolean("more") && !changes.isEmpty();
+        }
+    }
+
+    private static Change parseChange(JSONObject json) throws JSONException {
+        Change change = new Change();
+        change.syncId = json.getString("id");
+        change.deleted = json.optLong("deleted");
+        for (int i = 0; i < SongScribblerDbAdapter.SYNC_FIELDS.length; i++) {
+            JSONObject field = json.optJSONObject(SongScribblerDbAdapter.SYNC_FIELDS[i]);
+            if (field != null) {
+                change.values[i] = field.getString("value");
+                change.clocks[i] = field.getLong("clock");
+            }
+        }
+        return change;
+    }
+
+    /**
+     * A page of the log ready to send
+     */
+    private static final class Batch {
+        final long[] seqs;
+        final JSONArray changes = new JSONArray();
+
+        Batch(int size) {
+            seqs = new long[size];
+        }
+    }
+
+    private void push(Result result) throws IOException {
+        while (true) {
+            final Batch batch = onWriter(new Callable<Batch>() {
+                public Batch call() throws JSONException {
+                    return readLog();
+                }
+            });
+            if (batch.seqs.length == 0) {
+                return;
+            }
+            JSONObject body = new JSONObject();
+            try {
+                body.put("device", mDevice);
+                body.put("changes", batch.changes);
+            } catch (JSONException e) {
+                throw new IOException(e.getMessage());
+            }
+            request("/push", body);
+            onWriter(new Callable<Void>() {
+                public Void call() {
+                    mDb.clearSyncChanges(batch.seqs);
+                    return null;
+                }
+            });
+            result.sent += batch.changes.length();
+            if (batch.seqs.length < PAGE_SIZE) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Only run on the writer
+     */
+    private Batch readLog() throws JSONException {
+        Cursor log = mDb.fetchSyncChanges(PAGE_SIZE);
+        try {
+            Batch batch = new Batch(log.getCount());
+            for (int i = 0; log.moveToNext(); i++) {
+                batch.seqs[i] = log.getLong(0);
+                JSONObject change = new JSONObject();
+                change.put("id", log.getString(1));
+                change.put("device", mDevice);
+                long deleted = log.getLong(3);
+                if (deleted > 0) {
+                    change.put("deleted", deleted);
+                } else if (log.isNull(4)) {
+                    // Gone without being logged as deleted, nothing to send
+                    continue;
+                } else {
+                    int fields = log.getInt(2);
+                    for (int f = 0; f < SongScribblerDbAdapter.SYNC_FIELDS.length; f++) {
+                        if ((fields & (1 << f)) != 0) {
+                            JSONObject field = new JSONObject();
+                            field.put("value", log.getString(4 + f));
+                            field.put("clock", log.getLong(7 + f));
+                            change.put(SongScribblerDbAdapter.SYNC_FIELDS[f], field);
+                        }
+                    }
+                }
+                batch.changes.put(change);
+            }
+            return batch;
+        } finally {
+            log.close();
+        }
+    }
+
+    /**
+     * @param body sent gzipped as a POST, or null to GET
+     */
+    private JSONObject request(String path, JSONObject body) throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(mServer + path).openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            // Asked for by hand, so the answer is unzipped by hand below
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            if (body != null) {
+                byte[] data = gzip(body.toString().getBytes("UTF-8"));
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                connection.setFixedLengthStreamingMode(data.length);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(data);
+                } finally {
+                    out.close();
+                }
+            }
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException(mServer + path + " answered " + status);
+            }
+            InputStream in = connection.getInputStream();
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                in = new GZIPInputStream(in);
+            }
+            try {
+                return new JSONObject(new String(readAll(in), "UTF-8"));
+            } catch (JSONException e) {
+                throw new IOException("Unreadable answer from " + mServer + path + ": "
+                        + e.getMessage());
+            } finally {
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    private <T> T onWriter(Callable<T> step) throws IOException {
+        try {
+            return mWriter.submit(step).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Sync interrupted");
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Sync database step failed", e.getCause());
+            throw new IOException("Database: " + e.getCause());
+        }
+    }
+
+    /**
+     * @return the latest of the clocks
+     */
+    static long latest(long[] clocks) {
+        long latest = 0;
+        for (long clock : clocks) {
+            latest = Math.max(latest, clock);
+        }
+        return latest;
+    }
+
+    static String valueOrEmpty(Change change, int field) {
+        return change.values[field] != null ? change.values[field] : "";
+    }
+
+    /**
+     * @return the server's address, or null if sync has never been set up
+     */
+    public static String getServer(Context context) {
+        return prefs(context).getString(PREF_SERVER, null);
+    }
+
+    /**
+     * @return whether edits from elsewhere that clash with edits here not
+     *         yet sent are kept aside, rather than the later one winning
+     */
+    public static boolean getFlagConflicts(Context context) {
+        return prefs(context).getBoolean(PREF_FLAG_CONFLICTS, false);
+    }
+
+    public static void setSettings(Context context, String server, boolean flagConflicts) {
+        prefs(context).edit().putString(PREF_SERVER, server)
+                .putBoolean(PREF_FLAG_CONFLICTS, flagConflicts).commit();
+    }
+
+    /**
+     * Forget the server, after sync has been turned off
+     */
+    public static void clearSettings(Context context) {
+        prefs(context).edit().remove(PREF_SERVER).commit();
+    }
+
+    /**
+     * @return an id for this install, made the first time it is asked for
+     */
+    private static synchronized String deviceId(Context context) {
+        SharedPreferences prefs = prefs(context);
+        String device = prefs.getString(PREF_DEVICE, null);
+        if (device == null) {
+            device = UUID.randomUUID().toString();
+            prefs.edit().putString(PREF_DEVICE, device).commit();
+        }
+        return device;
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS,
+                Context.MODE_PRIVATE);
+    }
+}
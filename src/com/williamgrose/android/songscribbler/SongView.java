@@ -2,75 +2,30 @@ package com.williamgrose.android.songscribbler;
 
 
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.ContentValues;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.database.Cursor;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.os.PowerManager;
-import android.text.Layout;
+import android.view.GestureDetector;
+import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.TextView;
+import android.widget.Toast;
 
-public class SongView extends Activity {
-	class SongThread extends Thread {
-		/** Time to sleep before invoking next message **/
-		private int mUpdateInterval = 1000;
+import java.util.ArrayList;
 
-        /** Message handler used by thread to interact with TextView */
-        private Handler mHandler;
-        
-        public Boolean mRun = false;
-        
-		
-        public SongThread(int updateInterval, Handler handler) {
-        	mUpdateInterval = updateInterval;
-        	mHandler = handler;
-        }
-        
-        @Override
-        public void run() {
-        	//Log.i(this.getClass().getName(), "Running Thread mRun:"+mRun);
-        	while(mRun){
-        		doSleep();
-        		tick();
-        	}
-        }
-        
-        public void setRunning(boolean b) {
-        	if(b != mRun){
-        		mRun = b;
-        		if(b){
-        			start();
-        		}else{
-        			stop();
-        		}
-        	}
-        }
-        
-        /** Broadcasts empty message for the handler to receive
-         * notifications of the updates **/
-        private void tick(){
-        	if(mRun){
-        		Message msg = mHandler.obtainMessage();
-        		mHandler.sendMessage(msg);
-        	}
-        }
-        
-        private void doSleep(){
-            try {
-                sleep(mUpdateInterval);
-            } catch (InterruptedException e) {
-            }
-        }
-	}
-	
-    private TextView mBodyText;
+public class SongView extends Activity {
+    private SongBodyView mBodyText;
     private TextView mChordsText;
     private Long mRowId;
     
@@ -79,14 +34,40 @@ public class SongView extends Activity {
     private String chords;
     
     private int mScrollspeed;
-    private SongScribblerDbAdapter mDbHelper;
-    private SongThread thread;
+    private SongRepository mRepository;
+    private AutoScroller mScroller;
+    private Spinner mSpeedSpinner;
     private int MAX_SPEED = 10;
     private boolean mIgnoreFirstSelection = true;
+
+    private TextView mTransposeLabel;
+    private ParsedSong mParsed;
+    private final Transposer mTransposer = new Transposer();
+    private int mTranspose = 0;
+    private int mCapo = 0;
+    /** Set once the song in mRowId is shown, so taps can't save stale settings */
+    private boolean mLoaded = false;
+    /** Reused for every render, so tapping +/- doesn't churn through builders */
+    private final StringBuilder mRendered = new StringBuilder();
+    private final ArrayList<String> mBlocks = new ArrayList<String>();
+    /** Lyric lines per block of the body view */
+    private static final int BLOCK_LINES = 8;
     
     private static final int START_ID = Menu.FIRST;
     private static final int STOP_ID = Menu.FIRST+1;
     private static final int RESET_ID = Menu.FIRST+2;
+    private static final int CAPO_ID = Menu.FIRST+3;
+    private static final int SETLIST_ID = Menu.FIRST+4;
+
+    /** The setlist being played in performance mode, or null */
+    private long[] mSetlist;
+    private int mSetlistPosition;
+    private SongPrefetcher mPrefetcher;
+    /** From Metrics.start in onCreate, until the first song is shown */
+    private long mStartNanos;
+    private GestureDetector mGestures;
+    /** Slowest horizontal fling, in pixels a second, that changes song */
+    private static final float MIN_FLING_VELOCITY = 500;
     
 	private PowerManager pm;
 	private PowerManager.WakeLock wl; 
@@ -96,13 +77,39 @@ public class SongView extends Activity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        mDbHelper = new SongScribblerDbAdapter(this);
-        mDbHelper.open();
+        Metrics.init(this);
+        mStartNanos = Metrics.start();
+        mRepository = SongRepository.getInstance(this);
         setContentView(R.layout.song_view);
 
-        mBodyText = (TextView) findViewById(R.id.scroll_body);
+        mBodyText = (SongBodyView) findViewById(R.id.scroll_body);
         mChordsText = (TextView) findViewById(R.id.scroll_chords);
+        mScroller = new AutoScroller(mBodyText);
+        mTransposeLabel = (TextView) findViewById(R.id.transpose_label);
+        findViewById(R.id.transpose_down).setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                transpose(-1);
+            }
+        });
+        findViewById(R.id.transpose_up).setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                transpose(1);
+            }
+        });
         
+        mPrefetcher = new SongPrefetcher(mRepository, mBodyText, BLOCK_LINES);
+        mGestures = new GestureDetector(this, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onFling(MotionEvent e1, MotionEvent e2, float vx, float vy) {
+                if (mSetlist == null || Math.abs(vx) < MIN_FLING_VELOCITY
+                        || Math.abs(vx) < Math.abs(vy)) {
+                    return false;
+                }
+                advance(vx < 0 ? 1 : -1);
+                return true;
+            }
+        });
+
         mRowId = savedInstanceState != null ? savedInstanceState.getLong(SongScribblerDbAdapter.KEY_ROWID)
                                                                         : null;
         if (mRowId == null) {
@@ -111,9 +118,12 @@ public class SongView extends Activity {
                                                                 : null;
         }
 
-        populateFields();
+        Bundle extras = getIntent().getExtras();
+        if (extras != null && extras.containsKey(SongScribblerDbAdapter.KEY_SETLIST)) {
+            loadSetlist(extras.getLong(SongScribblerDbAdapter.KEY_SETLIST));
+        }
         
-        Spinner scrollSpeedSpinner = (Spinner) findViewById(R.id.scroll_speed);
+        mSpeedSpinner = (Spinner) findViewById(R.id.scroll_speed);
         
         ArrayAdapter<CharSequence> speedListAdapter = new ArrayAdapter<CharSequence>(
                       this, android.R.layout.simple_spinner_item);
@@ -122,10 +132,9 @@ public class SongView extends Activity {
         	speedListAdapter.add(Integer.toString(i));
         
         speedListAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-        scrollSpeedSpinner.setAdapter(speedListAdapter);
-        li("Initialising with saved Scrollspeed: "+ mScrollspeed);
-        scrollSpeedSpinner.setSelection(mScrollspeed-1);
-        scrollSpeedSpinner.setOnItemSelectedListener(scrollSpinnerListener);
+        mSpeedSpinner.setAdapter(speedListAdapter);
+        // The saved speed is selected once the song has been read
+        mSpeedSpinner.setOnItemSelectedListener(scrollSpinnerListener);
 
     }
     
@@ -134,8 +143,9 @@ public class SongView extends Activity {
     	@SuppressWarnings("unchecked")
         public void onItemSelected(AdapterView parent, View v, int position, long id) {
     		//TODO: Figure out why this gets called on construct...
-    		if(!mIgnoreFirstSelection){
-    			setSpeed(Integer.parseInt((parent.getSelectedItem().toString())));
+    		int speed = Integer.parseInt((parent.getSelectedItem().toString()));
+    		if(!mIgnoreFirstSelection && speed != mScrollspeed){
+    			setSpeed(speed);
     		}
 			mIgnoreFirstSelection=false;
         }
@@ -146,53 +156,276 @@ public class SongView extends Activity {
     private void setSpeed(int speed){
     	li("Setting Speed to: "+ speed);
     	mScrollspeed = speed;
-    	saveState();
-    }
-    
-    private void autoScroll(){
-    	Layout layout = mBodyText.getLayout();
-    	if(layout.getHeight()-mBodyText.getScrollY()>mBodyText.getHeight()){
-    		mBodyText.scrollTo(0, mBodyText.getScrollY()+mScrollspeed);
-    	}else{
-    		li("Scrolled to End");
-    		stopThread();
-    	}
+    	mScroller.setVelocity(mScrollspeed);
+    	saveSpeed();
     }
     
     private void startScrolling(){
     	li("Start Scrolling");
-        startThread();
+    	mScroller.start();
         aquireWakeLock();
     }
     
     private void stopScrolling(){
     	li("Stop Scrolling");
-    	stopThread();
+    	mScroller.stop();
     	releaseWakeLock();
     }
     
     private void resetScrolling(){
     	li("Reset Scrolling");
-    	stopThread();
-    	mBodyText.scrollTo(0, 0);
+    	mScroller.reset();
     }    
 
     private void populateFields() {
-        if (mRowId != null) {
-            Cursor song = mDbHelper.fetchSong(mRowId);
-            startManagingCursor(song);
-            title = song.getString(
-                    song.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_TITLE));
-            body = song.getString(
-                    song.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_BODY));
-            chords = song.getString(
-                    song.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_CHORDS));
-            mScrollspeed = song.getInt(
-                    song.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_SCROLLSPEED));
-            
-            mBodyText.setText(body);
-            mChordsText.setText(chords);
+        if (mRowId == null) {
+            return;
+        }
+        final long rowId = mRowId;
+        mRepository.prepareSong(rowId, BLOCK_LINES, new SongRepository.Callback<PreparedSong>() {
+            public void onResult(PreparedSong song) {
+                // Drop a song that has been moved on from in the meantime
+                if (song != null && !isFinishing() && mRowId == rowId) {
+                    showSong(song);
+                }
+            }
+        });
+    }
+
+    private void showSong(PreparedSong prepared) {
+        Song song = prepared.song;
+        title = song.title;
+        body = song.body;
+        chords = song.chords;
+        mScrollspeed = song.scrollspeed;
+        mTranspose = song.transpose;
+        mCapo = song.capo;
+        mLoaded = true;
+        mParsed = prepared.parsed;
+        mTransposer.set(mTranspose, mCapo, mParsed);
+
+        // Already rendered; measured in the background, or taken from the
+        // layout cache if this song has been shown like this before
+        mBodyText.setText(song.rowId, prepared.renderedHash, prepared.blocks);
+        mChordsText.setText(prepared.chordLine);
+        showTransposition();
+        // Speed is in pixels per second, as it was when the thread
+        // moved the view mScrollspeed pixels once a second
+        mScroller.setVelocity(mScrollspeed);
+        li("Initialising with saved Scrollspeed: "+ mScrollspeed);
+        mSpeedSpinner.setSelection(mScrollspeed-1);
+        // A song with timing in it scrolls to that rather than the speed
+        mScroller.setTimeline(prepared.timeline);
+        mSpeedSpinner.setEnabled(prepared.timeline == null);
+
+        if (mSetlist != null) {
+            mPrefetcher.prefetch(mSetlist, mSetlistPosition);
+        }
+        Metrics.STARTUP_VIEW.end(mStartNanos);
+        mStartNanos = 0;
+    }
+
+    /**
+     * Performance mode: play through a setlist, starting at mRowId if it is
+     * in it and at the top if not
+     */
+    private void loadSetlist(long setlistId) {
+        mRepository.fetchSetlistSongs(setlistId, new SongRepository.Callback<long[]>() {
+            public void onResult(long[] songs) {
+                if (songs.length == 0 || isFinishing()) {
+                    return;
+                }
+                mSetlist = songs;
+                mSetlistPosition = 0;
+                for (int i = 0; i < songs.length; i++) {
+                    if (mRowId != null && songs[i] == mRowId) {
+                        mSetlistPosition = i;
+                        break;
+                    }
+                }
+                if (mRowId == null || songs[mSetlistPosition] != mRowId) {
+                    mRowId = songs[mSetlistPosition];
+                    populateFields();
+                } else {
+                    mPrefetcher.prefetch(mSetlist, mSetlistPosition);
+                }
+            }
+        });
+    }
+
+    /**
+     * Move delta songs along the setlist. A prefetched song is shown
+     * straight away, without waiting on the database.
+     */
+    private void advance(int delta) {
+        if (mSetlist == null) {
+            return;
+        }
+        int position = mSetlistPosition + delta;
+        if (position < 0 || position >= mSetlist.length) {
+            return;
         }
+        if (mScroller.isRunning()) {
+            stopScrolling();
+        }
+        mScroller.reset();
+        mLoaded = false;
+        mSetlistPosition = position;
+        mRowId = mSetlist[position];
+        PreparedSong song = mPrefetcher.get(mRowId);
+        if (song != null) {
+            showSong(song);
+        } else {
+            populateFields();
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        return mGestures.onTouchEvent(event) || super.onTouchEvent(event);
+    }
+
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        if (mSetlist != null) {
+            // Page turner pedals send page or arrow keys
+            switch (keyCode) {
+            case KeyEvent.KEYCODE_DPAD_RIGHT:
+            case KeyEvent.KEYCODE_PAGE_DOWN:
+                advance(1);
+                return true;
+            case KeyEvent.KEYCODE_DPAD_LEFT:
+            case KeyEvent.KEYCODE_PAGE_UP:
+                advance(-1);
+                return true;
+            }
+        }
+        return super.onKeyDown(keyCode, event);
+    }
+
+    private void chooseSetlist() {
+        mRepository.fetchSetlists(new SongRepository.Callback<Cursor>() {
+            public void onResult(Cursor setlists) {
+                final long[] ids = new long[setlists.getCount()];
+                CharSequence[] names = new CharSequence[ids.length + 1];
+                try {
+                    for (int i = 0; setlists.moveToNext(); i++) {
+                        ids[i] = setlists.getLong(0);
+                        names[i] = setlists.getString(1);
+                    }
+                } finally {
+                    setlists.close();
+                }
+                names[ids.length] = getString(R.string.setlist_new);
+                new AlertDialog.Builder(SongView.this)
+                        .setTitle(R.string.menu_add_to_setlist)
+                        .setItems(names, new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                if (which < ids.length) {
+                                    addToSetlist(ids[which]);
+                                } else {
+                                    createSetlist();
+                                }
+                            }
+                        })
+                        .show();
+            }
+        });
+    }
+
+    private void createSetlist() {
+        final EditText name = new EditText(this);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.setlist_new)
+                .setView(name)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        String text = name.getText().toString().trim();
+                        if (text.length() == 0) {
+                            return;
+                        }
+                        mRepository.createSetlist(text, new SongRepository.Callback<Long>() {
+                            public void onResult(Long setlistId) {
+                                if (setlistId >= 0) {
+                                    addToSetlist(setlistId);
+                                }
+                            }
+                        });
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void addToSetlist(long setlistId) {
+        mRepository.addToSetlist(setlistId, mRowId, new SongRepository.Callback<Void>() {
+            public void onResult(Void result) {
+                Toast.makeText(SongView.this, R.string.setlist_added, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    private void showTransposition() {
+        if (mCapo > 0) {
+            mTransposeLabel.setText(getString(R.string.transpose_capo_label, mTranspose, mCapo));
+        } else {
+            mTransposeLabel.setText(getString(R.string.transpose_label, mTranspose));
+        }
+    }
+
+    /**
+     * Lay the song out again with the current transposition
+     */
+    private void render() {
+        if (mParsed == null) {
+            return;
+        }
+        mTransposer.set(mTranspose, mCapo, mParsed);
+        mBlocks.clear();
+        SongRenderer.renderBlocks(mParsed, mTransposer, BLOCK_LINES, mBlocks, mRendered);
+        // Measured in the background, or taken from the layout cache if this
+        // song has been shown like this before
+        mBodyText.setText(mRowId, mTransposer.renderedHash(mParsed.hash),
+                mBlocks.toArray(new String[mBlocks.size()]));
+        mChordsText.setText(SongRenderer.renderChordLine(mParsed, mTransposer));
+        showTransposition();
+    }
+
+    /**
+     * Move the song by delta semitones; twelve either way comes back to 0
+     */
+    private void transpose(int delta) {
+        if (!mLoaded) {
+            return;
+        }
+        mTranspose = (mTranspose + delta) % 12;
+        render();
+        saveTransposition();
+    }
+
+    private void chooseCapo() {
+        if (!mLoaded) {
+            return;
+        }
+        CharSequence[] frets = new CharSequence[Transposer.MAX_CAPO + 1];
+        frets[0] = getString(R.string.capo_none);
+        for (int i = 1; i < frets.length; i++) {
+            frets[i] = getString(R.string.capo_fret, i);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_capo)
+                .setItems(frets, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        // Moved on to another song while the dialog was up
+                        if (!mLoaded) {
+                            return;
+                        }
+                        mCapo = which;
+                        render();
+                        saveTransposition();
+                    }
+                })
+                .show();
     }
 
     @Override
@@ -201,33 +434,11 @@ public class SongView extends Activity {
         outState.putLong(SongScribblerDbAdapter.KEY_ROWID, mRowId);
     }
     
-    private void stopThread(){
-    	if(thread != null){
-    		thread.setRunning(false);
-    	}
-    }
-    
-    private void startThread(){
-    	li("Starting Thread");
-    	if((thread == null) || (!thread.isAlive())){
-    		li("Thread was null so creating ");
-    		thread = null;
-	        thread = new SongThread(1000, new Handler() {
-	            @Override
-	            public void handleMessage(Message m) {
-	                autoScroll();
-	            }
-	        });
-    	}
-        thread.setRunning(true);
-    }
-
     @Override
     protected void onPause() {
         super.onPause();
-        saveState();
         li("onPause Called");
-        stopThread();
+        mScroller.stop();
         releaseWakeLock();
     }
     
@@ -236,10 +447,10 @@ public class SongView extends Activity {
         super.onResume();
         li("onResume called");
         populateFields();
-        //Not sure where we should start the thread on
+        //Not sure where we should start scrolling on
         //resume.  Probably better to just leave it to the user
         //to start it up again...
-        //startThread();
+        //mScroller.start();
     }
     
     @Override
@@ -248,6 +459,8 @@ public class SongView extends Activity {
         menu.add(0, START_ID, 0, R.string.menu_scroll_start);
         menu.add(0, STOP_ID, 0,  R.string.menu_scroll_stop);
         menu.add(0, RESET_ID, 0,  R.string.menu_scroll_reset);
+        menu.add(0, CAPO_ID, 0,  R.string.menu_capo);
+        menu.add(0, SETLIST_ID, 0,  R.string.menu_add_to_setlist);
         return true;
     }
     
@@ -263,12 +476,34 @@ public class SongView extends Activity {
         case RESET_ID:
         	resetScrolling();
         	return true;
+        case CAPO_ID:
+        	chooseCapo();
+        	return true;
+        case SETLIST_ID:
+        	chooseSetlist();
+        	return true;
         }
         return super.onMenuItemSelected(featureId, item);
     }
     
-    private void saveState() {
-    	mDbHelper.updateSong(mRowId, title, body, chords, mScrollspeed);
+    /**
+     * The speed is the only thing that changes here, so it is all that gets
+     * written back
+     */
+    private void saveSpeed() {
+    	ContentValues values = new ContentValues();
+    	values.put(SongScribblerDbAdapter.KEY_SCROLLSPEED, mScrollspeed);
+    	mRepository.updateSongFields(mRowId, values);
+    }
+    
+    /**
+     * Taps on +/- come in bursts; the repository merges them into one write
+     */
+    private void saveTransposition() {
+    	ContentValues values = new ContentValues();
+    	values.put(SongScribblerDbAdapter.KEY_TRANSPOSE, mTranspose);
+    	values.put(SongScribblerDbAdapter.KEY_CAPO, mCapo);
+    	mRepository.updateSongFields(mRowId, values);
     }
     
     private void li(String mesg){
@@ -284,13 +519,14 @@ public class SongView extends Activity {
     
     private void aquireWakeLock(){
     	createWakeLock();
-    	if(wl != null){
+    	// Reference counted, so only taken once however often start is hit
+    	if(wl != null && !wl.isHeld()){
     		wl.acquire();
     	}
     }
     
     private void releaseWakeLock(){
-    	if(wl != null){
+    	if(wl != null && wl.isHeld()){
     		wl.release();	
     	}
     }
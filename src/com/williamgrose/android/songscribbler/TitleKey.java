@@ -0,0 +1,124 @@
+package com.williamgrose.android.songscribbler;
+
+import java.text.Collator;
+import java.util.Locale;
+
+/**
+ * How song titles are put in order for the list: by the title with any
+ * leading punctuation and English article ("The", "A", "An") taken off,
+ * compared the way the device's language sorts them, as by Collator.
+ *
+ * The order is stored in the database as a sort key per song, the collation
+ * key written out in hex so that sqlite comparing the text as it always does
+ * gives the collator's order. Keys only compare with keys made for the same
+ * locale, so the locale is stored beside them and the keys made again when
+ * it changes, see SongScribblerDbAdapter. A process keeps the locale it
+ * started with.
+ *
+ * Each title also has a section for the list's fast scroller: OTHER_SECTION
+ * for titles starting with anything but a letter, otherwise the letter of
+ * the alphabet its first letter sorts as, so an E with an accent is under E.
+ */
+final class TitleKey {
+
+    /** The section of titles that don't start with a letter, sorted first */
+    static final String OTHER_SECTION = "#";
+
+    private static final String[] ARTICLES = {"the ", "a ", "an "};
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static TitleKey sInstance;
+
+    final Locale locale;
+    /** Collators aren't thread safe, so both are only used holding this */
+    private final Collator mCollator;
+    /** Compares letters ignoring accents and case */
+    private final Collator mLetterCollator;
+
+    private TitleKey(Locale locale) {
+        this.locale = locale;
+        mCollator = Collator.getInstance(locale);
+        mLetterCollator = Collator.getInstance(locale);
+        mLetterCollator.setStrength(Collator.PRIMARY);
+    }
+
+    static synchronized TitleKey get() {
+        if (sInstance == null) {
+            sInstance = new TitleKey(Locale.getDefault());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the part of the title it is sorted by
+     */
+    static String sortTitle(String title) {
+        int length = title.length();
+        int start = skipPunctuation(title, 0);
+        if (start == length) {
+            // Nothing but punctuation, sorted as it is
+            return title;
+        }
+        for (String article : ARTICLES) {
+            if (title.regionMatches(true, start, article, 0, article.length())) {
+                int next = skipPunctuation(title, start + article.length());
+                if (next < length) {
+                    return title.substring(next);
+                }
+            }
+        }
+        return title.substring(start);
+    }
+
+    private static int skipPunctuation(String title, int start) {
+        while (start < title.length() && !Character.isLetterOrDigit(title.charAt(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * @return the key the title is sorted by, compared as plain text
+     */
+    synchronized String sortKey(String title) {
+        return hex(mCollator.getCollationKey(sortTitle(title)).toByteArray());
+    }
+
+    synchronized String section(String title) {
+        String sorted = sortTitle(title);
+        if (sorted.length() == 0 || !Character.isLetter(sorted.charAt(0))) {
+            return OTHER_SECTION;
+        }
+        String letter = sorted.substring(0, 1).toUpperCase(locale);
+        for (int i = 0; i < ALPHABET.length(); i++) {
+            String candidate = ALPHABET.substring(i, i + 1);
+            if (mLetterCollator.compare(letter, candidate) == 0) {
+                return candidate;
+            }
+        }
+        return letter;
+    }
+
+    /**
+     * @return a sort key no greater than that of any title in the section,
+     *         and greater than that of any title in the sections before it,
+     *         or null for OTHER_SECTION, which comes first
+     */
+    synchronized String sectionStart(String section) {
+        if (OTHER_SECTION.equals(section)) {
+            return null;
+        }
+        // A title of just the letter, in lower case as that sorts first
+        return hex(mCollator.getCollationKey(section.toLowerCase(locale)).toByteArray());
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] text = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            text[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            text[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(text);
+    }
+}
@@ -0,0 +1,157 @@
+package com.williamgrose.android.songscribbler;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The first screenful of the song list, kept in a small file so the list
+ * can be drawn from it at launch, before the database has been opened. It
+ * is saved whenever the first page of titles loads, or a change is applied
+ * to the rows loaded from the top of the list, and differs from what was
+ * saved last, so it is at worst one change behind.
+ *
+ * Reading it is a single small file read, done on the UI thread as it has
+ * to be ready for the first frame. Saving is done on a thread of its own.
+ */
+final class TitleSnapshot {
+
+    private static final String TAG = "TitleSnapshot";
+    private static final String FILE = "title_snapshot";
+    private static final int FORMAT = 1;
+    /** More rows than fit on any screen */
+    static final int ROWS = 40;
+
+    private static final ExecutorService sWriter = Executors.newSingleThreadExecutor();
+    /** What is in the file, as far as this process knows; UI thread only */
+    private static TitleSnapshot sLast;
+
+    final long[] ids;
+    final String[] titles;
+
+    private TitleSnapshot(long[] ids, String[] titles) {
+        this.ids = ids;
+        this.titles = titles;
+    }
+
+    /**
+     * @return the snapshot, or null if there isn't one or it can't be read
+     */
+    static TitleSnapshot load(Context ctx) {
+        if (sLast != null) {
+            return sLast;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file(ctx))));
+            if (in.readByte() != FORMAT) {
+                return null;
+            }
+            int count = in.readInt();
+            if (count < 0 || count > ROWS) {
+                return null;
+            }
+            long[] ids = new long[count];
+            String[] titles = new String[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = in.readLong();
+                titles[i] = in.readUTF();
+            }
+            sLast = new TitleSnapshot(ids, titles);
+            return sLast;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Reading title snapshot failed", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing was written
+                }
+            }
+        }
+    }
+
+    /**
+     * Save the first rows of the list, if they have changed. Must be called
+     * on the UI thread.
+     */
+    static void save(Context ctx, long[] ids, String[] titles, int count) {
+        count = Math.min(count, ROWS);
+        final TitleSnapshot snapshot = new TitleSnapshot(new long[count], new String[count]);
+        System.arraycopy(ids, 0, snapshot.ids, 0, count);
+        System.arraycopy(titles, 0, snapshot.titles, 0, count);
+        if (snapshot.equals(sLast)) {
+            return;
+        }
+        sLast = snapshot;
+        final File file = file(ctx);
+        sWriter.execute(new Runnable() {
+            public void run() {
+                snapshot.write(file);
+            }
+        });
+    }
+
+    /**
+     * Written to a new file that then replaces the old one, so a launch
+     * never sees half a snapshot
+     */
+    private void write(File file) {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            try {
+                out.writeByte(FORMAT);
+                out.writeInt(ids.length);
+                for (int i = 0; i < ids.length; i++) {
+                    out.writeLong(ids[i]);
+                    out.writeUTF(titles[i]);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Renaming " + temp + " failed");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Saving title snapshot failed", e);
+            temp.delete();
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TitleSnapshot)) {
+            return false;
+        }
+        TitleSnapshot other = (TitleSnapshot) o;
+        return Arrays.equals(ids, other.ids) && Arrays.equals(titles, other.titles);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(ids);
+    }
+
+    private static File file(Context ctx) {
+        return new File(ctx.getFilesDir(), FILE);
+    }
+}
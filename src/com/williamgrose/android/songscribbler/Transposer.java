@@ -0,0 +1,112 @@
+package com.williamgrose.android.songscribbler;
+
+/**
+ * Writes chords moved by a number of semitones, less any capo.
+ *
+ * A transposed chord is spelled with sharps or flats to suit the key the
+ * song ends up in, taken to be the key of its first chord, so a song in G
+ * moved up three semitones reads Bb, Eb, F rather than A#, D#, F. Left
+ * untransposed, chords are written exactly as they were.
+ *
+ * Everything is table driven: appending a chord only appends strings that
+ * already exist, so a song can be redrawn on every tap of the +/- buttons
+ * without making garbage for each of its chords.
+ */
+public class Transposer {
+
+    public static final int MAX_CAPO = 11;
+
+    /**
+     * Whether the major key with each tonic is written with flats. F# is
+     * written with sharps, its twin Gb with flats, so sharps win the tie.
+     */
+    private static final boolean[] FLAT_KEYS = {
+            false, true, false, true, false, true, false, false, true, false, true, false};
+
+    private int mTranspose = 0;
+    private int mCapo = 0;
+    /** Semitones to move each chord by, 0 to 11 */
+    private int mShift = 0;
+    private String[] mNames = Chord.SHARP_NAMES;
+
+    /**
+     * @param transpose semitones to move the song by, up or down
+     * @param capo fret the capo is on; chords are written as shapes played
+     *        relative to it, so they move down by as much
+     * @param song the song, which decides how the new key is spelled
+     */
+    public void set(int transpose, int capo, ParsedSong song) {
+        mTranspose = transpose;
+        mCapo = capo;
+        mShift = (((transpose - capo) % 12) + 12) % 12;
+        Chord first = firstChord(song);
+        int key = 0;
+        if (first != null) {
+            key = first.root;
+            if (isMinor(first)) {
+                // Spelled like its relative major
+                key += 3;
+            }
+        }
+        mNames = FLAT_KEYS[(key + mShift) % 12] ? Chord.FLAT_NAMES : Chord.SHARP_NAMES;
+    }
+
+    public int getTranspose() {
+        return mTranspose;
+    }
+
+    public int getCapo() {
+        return mCapo;
+    }
+
+    /**
+     * @return whether chords come out any different from how they were
+     *         written
+     */
+    public boolean isShifted() {
+        return mShift != 0;
+    }
+
+    /**
+     * @param sourceHash the ParsedSong hash of the song
+     * @return a hash of the song as this transposer writes it, which is the
+     *         same for every transposition and capo that come out the same
+     */
+    public long renderedHash(long sourceHash) {
+        return (sourceHash ^ mShift) * 0x100000001b3L;
+    }
+
+    /**
+     * Append a chord, transposed
+     */
+    public void appendTo(Chord chord, StringBuilder out) {
+        if (mShift == 0) {
+            chord.appendTo(out);
+            return;
+        }
+        out.append(mNames[(chord.root + mShift) % 12]);
+        out.append(chord.suffix);
+        if (chord.bass != Chord.NO_BASS) {
+            out.append('/').append(mNames[(chord.bass + mShift) % 12]);
+        }
+    }
+
+    private static Chord firstChord(ParsedSong song) {
+        if (song.chordLine.chords.length > 0) {
+            return song.chordLine.chords[0];
+        }
+        for (ParsedSong.Section section : song.sections) {
+            for (ParsedSong.Line line : section.lines) {
+                if (line.chords.length > 0) {
+                    return line.chords[0];
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isMinor(Chord chord) {
+        String suffix = chord.suffix;
+        return suffix.startsWith("m") && !suffix.startsWith("maj");
+    }
+}
@@ -0,0 +1,121 @@
+package android.content;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stand-in for android.content.ContentValues on the JVM
+ */
+public final class ContentValues {
+
+    private final LinkedHashMap<String, Object> mValues;
+
+    public ContentValues() {
+        mValues = new LinkedHashMap<String, Object>();
+    }
+
+    public ContentValues(ContentValues from) {
+        mValues = new LinkedHashMap<String, Object>(from.mValues);
+    }
+
+    public void put(String key, String value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Byte value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Short value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Integer value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Long value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Float value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Double value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Boolean value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, byte[] value) {
+        mValues.put(key, value);
+    }
+
+    public void putNull(String key) {
+        mValues.put(key, null);
+    }
+
+    public void putAll(ContentValues other) {
+        mValues.putAll(other.mValues);
+    }
+
+    public int size() {
+        return mValues.size();
+    }
+
+    public void remove(String key) {
+        mValues.remove(key);
+    }
+
+    public void clear() {
+        mValues.clear();
+    }
+
+    public boolean containsKey(String key) {
+        return mValues.containsKey(key);
+    }
+
+    public Object get(String key) {
+        return mValues.get(key);
+    }
+
+    public String getAsString(String key) {
+        Object value = mValues.get(key);
+        return value != null ? value.toString() : null;
+    }
+
+    public Long getAsLong(String key) {
+        Object value = mValues.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return value != null ? Long.valueOf(value.toString()) : null;
+    }
+
+    public Integer getAsInteger(String key) {
+        Long value = getAsLong(key);
+        return value != null ? value.intValue() : null;
+    }
+
+    public byte[] getAsByteArray(String key) {
+        Object value = mValues.get(key);
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    public Set<String> keySet() {
+        return mValues.keySet();
+    }
+
+    public Set<Map.Entry<String, Object>> valueSet() {
+        return mValues.entrySet();
+    }
+
+    @Override
+    public String toString() {
+        return mValues.toString();
+    }
+}
@@ -0,0 +1,149 @@
+package android.content;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stand-in for android.content.Context on the JVM: databases and private
+ * files live in the directory it is made with, and shared preferences are
+ * kept in memory for the life of the Context.
+ */
+public class Context {
+
+    public static final int MODE_PRIVATE = 0;
+
+    private final File mDirectory;
+    private final Map<String, Preferences> mPreferences = new HashMap<String, Preferences>();
+
+    public Context(File directory) {
+        mDirectory = directory;
+        mDirectory.mkdirs();
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public File getFilesDir() {
+        File files = new File(mDirectory, "files");
+        files.mkdirs();
+        return files;
+    }
+
+    public File getDir(String name, int mode) {
+        File dir = new File(mDirectory, "app_" + name);
+        dir.mkdirs();
+        return dir;
+    }
+
+    public File getDatabasePath(String name) {
+        File databases = new File(mDirectory, "databases");
+        databases.mkdirs();
+        return new File(databases, name);
+    }
+
+    public boolean deleteDatabase(String name) {
+        File file = getDatabasePath(name);
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+        new File(file.getPath() + "-journal").delete();
+        return file.delete();
+    }
+
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        Preferences preferences = mPreferences.get(name);
+        if (preferences == null) {
+            preferences = new Preferences();
+            mPreferences.put(name, preferences);
+        }
+        return preferences;
+    }
+
+    private static final class Preferences implements SharedPreferences {
+        private final Map<String, Object> mValues = new HashMap<String, Object>();
+
+        public synchronized String getString(String key, String defValue) {
+            Object value = mValues.get(key);
+            return value != null ? (String) value : defValue;
+        }
+
+        public synchronized long getLong(String key, long defValue) {
+            Object value = mValues.get(key);
+            return value != null ? (Long) value : defValue;
+        }
+
+        public synchronized int getInt(String key, int defValue) {
+            Object value = mValues.get(key);
+            return value != null ? (Integer) value : defValue;
+        }
+
+        public synchronized boolean getBoolean(String key, boolean defValue) {
+            Object value = mValues.get(key);
+            return value != null ? (Boolean) value : defValue;
+        }
+
+        public synchronized boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        public Editor edit() {
+            return new Changes();
+        }
+
+        private final class Changes implements Editor {
+            private final Map<String, Object> mChanges = new HashMap<String, Object>();
+            private boolean mClear = false;
+
+            public Editor putString(String key, String value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            public Editor putLong(String key, long value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            public Editor putInt(String key, int value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            public Editor putBoolean(String key, boolean value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            public Editor remove(String key) {
+                mChanges.put(key, null);
+                return this;
+            }
+
+            public Editor clear() {
+                mClear = true;
+                return this;
+            }
+
+            public boolean commit() {
+                synchronized (Preferences.this) {
+                    if (mClear) {
+                        mValues.clear();
+                    }
+                    for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+                        if (change.getValue() == null) {
+                            mValues.remove(change.getKey());
+                        } else {
+                            mValues.put(change.getKey(), change.getValue());
+                        }
+                    }
+                }
+                return true;
+            }
+
+            public void apply() {
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package android.content;
+
+/**
+ * Stand-in for android.content.SharedPreferences on the JVM
+ */
+public interface SharedPreferences {
+
+    interface Editor {
+        Editor putString(String key, String value);
+        Editor putLong(String key, long value);
+        Editor putInt(String key, int value);
+        Editor putBoolean(String key, boolean value);
+        Editor remove(String key);
+        Editor clear();
+        boolean commit();
+        void apply();
+    }
+
+    String getString(String key, String defValue);
+    long getLong(String key, long defValue);
+    int getInt(String key, int defValue);
+    boolean getBoolean(String key, boolean defValue);
+    boolean contains(String key);
+    Editor edit();
+}
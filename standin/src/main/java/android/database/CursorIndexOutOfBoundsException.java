@@ -0,0 +1,11 @@
+package android.database;
+
+/**
+ * Stand-in for android.database.CursorIndexOutOfBoundsException on the JVM
+ */
+public class CursorIndexOutOfBoundsException extends IndexOutOfBoundsException {
+
+    public CursorIndexOutOfBoundsException(int index, int size) {
+        super("Index " + index + " requested, with a size of " + size);
+    }
+}
@@ -0,0 +1,46 @@
+package android.database;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Stand-in for the parts of android.database.DatabaseUtils the app uses
+ */
+public final class DatabaseUtils {
+
+    private DatabaseUtils() {
+    }
+
+    public static long longForQuery(SQLiteDatabase db, String query, String[] selectionArgs) {
+        SQLiteStatement statement = db.compileStatement(query);
+        try {
+            bind(statement, selectionArgs);
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+
+    public static String stringForQuery(SQLiteDatabase db, String query,
+            String[] selectionArgs) {
+        SQLiteStatement statement = db.compileStatement(query);
+        try {
+            bind(statement, selectionArgs);
+            return statement.simpleQueryForString();
+        } finally {
+            statement.close();
+        }
+    }
+
+    public static long queryNumEntries(SQLiteDatabase db, String table) {
+        return longForQuery(db, "select count(*) from " + table, null);
+    }
+
+    private static void bind(SQLiteStatement statement, String[] args) {
+        if (args != null) {
+            for (int i = 0; i < args.length; i++) {
+                statement.bindString(i + 1, args[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package android.database;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Stand-in for android.database.MatrixCursor on the JVM, also what every
+ * query of the stand-in SQLiteDatabase returns, with the rows read in
+ * full as a CursorWindow would hold them. Values convert between types the
+ * way sqlite does.
+ */
+public class MatrixCursor implements Cursor {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String[] mColumns;
+    private final ArrayList<Object[]> mRows = new ArrayList<Object[]>();
+    private int mPosition = -1;
+    private boolean mClosed = false;
+
+    public MatrixCursor(String[] columnNames) {
+        mColumns = columnNames;
+    }
+
+    public void addRow(Object[] columnValues) {
+        if (columnValues.length != mColumns.length) {
+            throw new IllegalArgumentException("Expected " + mColumns.length + " values, got "
+                    + columnValues.length);
+        }
+        mRows.add(columnValues.clone());
+    }
+
+    public int getCount() {
+        return mRows.size();
+    }
+
+    public int getPosition() {
+        return mPosition;
+    }
+
+    public boolean move(int offset) {
+        return moveToPosition(mPosition + offset);
+    }
+
+    public boolean moveToPosition(int position) {
+        if (position >= mRows.size()) {
+            mPosition = mRows.size();
+            return false;
+        }
+        if (position < 0) {
+            mPosition = -1;
+            return false;
+        }
+        mPosition = position;
+        return true;
+    }
+
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    public boolean moveToLast() {
+        return moveToPosition(mRows.size() - 1);
+    }
+
+    public boolean moveToNext() {
+        return moveToPosition(mPosition + 1);
+    }
+
+    public boolean moveToPrevious() {
+        return moveToPosition(mPosition - 1);
+    }
+
+    public boolean isFirst() {
+        return mPosition == 0 && !mRows.isEmpty();
+    }
+
+    public boolean isLast() {
+        return mPosition == mRows.size() - 1 && !mRows.isEmpty();
+    }
+
+    public boolean isBeforeFirst() {
+        return mRows.isEmpty() || mPosition == -1;
+    }
+
+    public boolean isAfterLast() {
+        return mRows.isEmpty() || mPosition == mRows.size();
+    }
+
+    public int getColumnIndex(String columnName) {
+        // Like Android, "table.column" matches "column"
+        int dot = columnName.lastIndexOf('.');
+        String name = dot >= 0 ? columnName.substring(dot + 1) : columnName;
+        for (int i = 0; i < mColumns.length; i++) {
+            if (mColumns[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getColumnIndexOrThrow(String columnName) {
+        int index = getColumnIndex(columnName);
+        if (index < 0) {
+            throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+        }
+        return index;
+    }
+
+    public String getColumnName(int columnIndex) {
+        return mColumns[columnIndex];
+    }
+
+    public String[] getColumnNames() {
+        return mColumns.clone();
+    }
+
+    public int getColumnCount() {
+        return mColumns.length;
+    }
+
+    private Object get(int columnIndex) {
+        if (mClosed) {
+            throw new IllegalStateException("Cursor is closed");
+        }
+        if (mPosition < 0 || mPosition >= mRows.size()) {
+            throw new CursorIndexOutOfBoundsException(mPosition, mRows.size());
+        }
+        return mRows.get(mPosition)[columnIndex];
+    }
+
+    public byte[] getBlob(int columnIndex) {
+        Object value = get(columnIndex);
+        if (value == null || value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        return value.toString().getBytes(UTF_8);
+    }
+
+    public String getString(int columnIndex) {
+        Object value = get(columnIndex);
+        if (value instanceof byte[]) {
+            return new String((byte[]) value, UTF_8);
+        }
+        return value != null ? value.toString() : null;
+    }
+
+    public short getShort(int columnIndex) {
+        return (short) getLong(columnIndex);
+    }
+
+    public int getInt(int columnIndex) {
+        return (int) getLong(columnIndex);
+    }
+
+    public long getLong(int columnIndex) {
+        Object value = get(columnIndex);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return (long) Double.parseDouble(getString(columnIndex).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public float getFloat(int columnIndex) {
+        return (float) getDouble(columnIndex);
+    }
+
+    public double getDouble(int columnIndex) {
+        Object value = get(columnIndex);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Double.parseDouble(getString(columnIndex).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public int getType(int columnIndex) {
+        Object value = get(columnIndex);
+        if (value == null) {
+            return FIELD_TYPE_NULL;
+        } else if (value instanceof byte[]) {
+            return FIELD_TYPE_BLOB;
+        } else if (value instanceof Double || value instanceof Float) {
+            return FIELD_TYPE_FLOAT;
+        } else if (value instanceof Number) {
+            return FIELD_TYPE_INTEGER;
+        }
+        return FIELD_TYPE_STRING;
+    }
+
+    public boolean isNull(int columnIndex) {
+        return get(columnIndex) == null;
+    }
+
+    public void close() {
+        mClosed = true;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+}
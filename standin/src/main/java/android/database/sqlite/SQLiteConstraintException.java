@@ -0,0 +1,11 @@
+package android.database.sqlite;
+
+/**
+ * Stand-in for android.database.sqlite.SQLiteConstraintException on the JVM
+ */
+public class SQLiteConstraintException extends SQLiteException {
+
+    public SQLiteConstraintException(String error, Throwable cause) {
+        super(error, cause);
+    }
+}
@@ -0,0 +1,448 @@
+package android.database.sqlite;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import org.sqlite.SQLiteConfig;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stand-in for android.database.sqlite.SQLiteDatabase on the JVM, over a
+ * single sqlite-jdbc connection.
+ *
+ * Transactions nest and are exclusive as on Android: the outermost one
+ * commits only if every level was marked successful, and the thread that
+ * began it holds the database until it ends, so other threads wait. Queries
+ * read their rows in full before returning, as a CursorWindow would.
+ */
+public final class SQLiteDatabase implements Closeable {
+
+    /**
+     * Only here so SQLiteOpenHelper has the signature it has on Android
+     */
+    public interface CursorFactory {
+    }
+
+    private static final String TAG = "SQLiteDatabase";
+
+    private final String mPath;
+    private final Connection mConnection;
+    private final ReentrantLock mLock = new ReentrantLock(true);
+    /** Whether each open level of transaction was marked successful */
+    private final ArrayList<Boolean> mTransactions = new ArrayList<Boolean>();
+    private boolean mTransactionFailed = false;
+
+    private SQLiteDatabase(String path, Connection connection) {
+        mPath = path;
+        mConnection = connection;
+    }
+
+    /**
+     * @param path the database file, or null for a database in memory
+     */
+    public static SQLiteDatabase openOrCreateDatabase(String path, CursorFactory factory) {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setTransactionMode(SQLiteConfig.TransactionMode.EXCLUSIVE);
+        config.enforceForeignKeys(false);
+        try {
+            Connection connection = config.createConnection(
+                    "jdbc:sqlite:" + (path != null ? path : ":memory:"));
+            return new SQLiteDatabase(path != null ? path : ":memory:", connection);
+        } catch (java.sql.SQLException e) {
+            throw translate(e, "open " + path);
+        }
+    }
+
+    static SQLiteException translate(java.sql.SQLException e, String sql) {
+        String message = e.getMessage() + " (" + sql + ")";
+        if (e.getMessage() != null && e.getMessage().contains("SQLITE_CONSTRAINT")) {
+            return new SQLiteConstraintException(message, e);
+        }
+        return new SQLiteException(message, e);
+    }
+
+    void lock() {
+        mLock.lock();
+    }
+
+    void unlock() {
+        mLock.unlock();
+    }
+
+    PreparedStatement prepare(String sql) {
+        lock();
+        try {
+            return mConnection.prepareStatement(sql);
+        } catch (java.sql.SQLException e) {
+            throw translate(e, sql);
+        } finally {
+            unlock();
+        }
+    }
+
+    long lastInsertRowId() throws java.sql.SQLException {
+        Statement statement = mConnection.createStatement();
+        try {
+            ResultSet result = statement.executeQuery("select last_insert_rowid()");
+            try {
+                result.next();
+                return result.getLong(1);
+            } finally {
+                result.close();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public boolean isOpen() {
+        try {
+            return !mConnection.isClosed();
+        } catch (java.sql.SQLException e) {
+            return false;
+        }
+    }
+
+    public void close() {
+        lock();
+        try {
+            mConnection.close();
+        } catch (java.sql.SQLException e) {
+            throw translate(e, "close");
+        } finally {
+            unlock();
+        }
+    }
+
+    public int getVersion() {
+        Cursor version = rawQuery("pragma user_version", null);
+        try {
+            return version.moveToFirst() ? version.getInt(0) : 0;
+        } finally {
+            version.close();
+        }
+    }
+
+    public void setVersion(int version) {
+        execSQL("pragma user_version = " + version);
+    }
+
+    public boolean enableWriteAheadLogging() {
+        if (":memory:".equals(mPath)) {
+            return false;
+        }
+        Cursor mode = rawQuery("pragma journal_mode = wal", null);
+        try {
+            return mode.moveToFirst() && "wal".equalsIgnoreCase(mode.getString(0));
+        } finally {
+            mode.close();
+        }
+    }
+
+    public void beginTransaction() {
+        lock();
+        boolean begun = false;
+        try {
+            if (mTransactions.isEmpty()) {
+                mConnection.setAutoCommit(false);
+                mTransactionFailed = false;
+            }
+            mTransactions.add(Boolean.FALSE);
+            begun = true;
+        } catch (java.sql.SQLException e) {
+            throw translate(e, "begin");
+        } finally {
+            // Held until the matching endTransaction
+            if (!begun) {
+                unlock();
+            }
+        }
+    }
+
+    public void setTransactionSuccessful() {
+        checkTransaction();
+        mTransactions.set(mTransactions.size() - 1, Boolean.TRUE);
+    }
+
+    public boolean inTransaction() {
+        return mLock.isHeldByCurrentThread() && !mTransactions.isEmpty();
+    }
+
+    public void endTransaction() {
+        checkTransaction();
+        try {
+            if (!mTransactions.remove(mTransactions.size() - 1)) {
+                mTransactionFailed = true;
+            }
+            if (mTransactions.isEmpty()) {
+                try {
+                    if (mTransactionFailed) {
+                        mConnection.rollback();
+                    } else {
+                        mConnection.commit();
+                    }
+                } finally {
+                    mConnection.setAutoCommit(true);
+                }
+            }
+        } catch (java.sql.SQLException e) {
+            throw translate(e, mTransactionFailed ? "rollback" : "commit");
+        } finally {
+            unlock();
+        }
+    }
+
+    private void checkTransaction() {
+        if (!mLock.isHeldByCurrentThread() || mTransactions.isEmpty()) {
+            throw new IllegalStateException("no transaction pending");
+        }
+    }
+
+    public void execSQL(String sql) {
+        lock();
+        try {
+            Statement statement = mConnection.createStatement();
+            try {
+                statement.execute(sql);
+            } finally {
+                statement.close();
+            }
+        } catch (java.sql.SQLException e) {
+            throw translate(e, sql);
+        } finally {
+            unlock();
+        }
+    }
+
+    public void execSQL(String sql, Object[] bindArgs) {
+        lock();
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql);
+            try {
+                bind(statement, bindArgs);
+                statement.execute();
+            } finally {
+                statement.close();
+            }
+        } catch (java.sql.SQLException e) {
+            throw translate(e, sql);
+        } finally {
+            unlock();
+        }
+    }
+
+    public Cursor rawQuery(String sql, String[] selectionArgs) {
+        lock();
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql);
+            try {
+                bind(statement, selectionArgs);
+                ResultSet result = statement.executeQuery();
+                try {
+                    return read(result);
+                } finally {
+                    result.close();
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (java.sql.SQLException e) {
+            throw translate(e, sql);
+        } finally {
+            unlock();
+        }
+    }
+
+    private static MatrixCursor read(ResultSet result) throws java.sql.SQLException {
+        ResultSetMetaData meta = result.getMetaData();
+        String[] columns = new String[meta.getColumnCount()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = meta.getColumnLabel(i + 1);
+        }
+        MatrixCursor cursor = new MatrixCursor(columns);
+        Object[] row = new Object[columns.length];
+        while (result.next()) {
+            for (int i = 0; i < columns.length; i++) {
+                Object value = result.getObject(i + 1);
+                row[i] = value instanceof Integer ? Long.valueOf((Integer) value) : value;
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private static void bind(PreparedStatement statement, Object[] args)
+            throws java.sql.SQLException {
+        if (args == null) {
+            return;
+        }
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            if (arg == null) {
+                statement.setNull(i + 1, java.sql.Types.NULL);
+            } else if (arg instanceof byte[]) {
+                statement.setBytes(i + 1, (byte[]) arg);
+            } else if (arg instanceof Double || arg instanceof Float) {
+                statement.setDouble(i + 1, ((Number) arg).doubleValue());
+            } else if (arg instanceof Number) {
+                statement.setLong(i + 1, ((Number) arg).longValue());
+            } else if (arg instanceof Boolean) {
+                statement.setLong(i + 1, ((Boolean) arg) ? 1 : 0);
+            } else {
+                statement.setString(i + 1, arg.toString());
+            }
+        }
+    }
+
+    public Cursor query(String table, String[] columns, String selection,
+            String[] selectionArgs, String groupBy, String having, String orderBy) {
+        return query(false, table, columns, selection, selectionArgs, groupBy, having, orderBy,
+                null);
+    }
+
+    public Cursor query(String table, String[] columns, String selection,
+            String[] selectionArgs, String groupBy, String having, String orderBy,
+            String limit) {
+        return query(false, table, columns, selection, selectionArgs, groupBy, having, orderBy,
+                limit);
+    }
+
+    public Cursor query(boolean distinct, String table, String[] columns, String selection,
+            String[] selectionArgs, String groupBy, String having, String orderBy,
+            String limit) {
+        StringBuilder sql = new StringBuilder("select ");
+        if (distinct) {
+            sql.append("distinct ");
+        }
+        if (columns == null || columns.length == 0) {
+            sql.append('*');
+        } else {
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i > 0 ? ", " : "").append(columns[i]);
+            }
+        }
+        sql.append(" from ").append(table);
+        appendClause(sql, " where ", selection);
+        appendClause(sql, " group by ", groupBy);
+        appendClause(sql, " having ", having);
+        appendClause(sql, " order by ", orderBy);
+        appendClause(sql, " limit ", limit);
+        return rawQuery(sql.toString(), selectionArgs);
+    }
+
+    private static void appendClause(StringBuilder sql, String name, String clause) {
+        if (clause != null && clause.length() > 0) {
+            sql.append(name).append(clause);
+        }
+    }
+
+    /**
+     * @return the rowId of the new row, or -1 if it couldn't be inserted
+     */
+    public long insert(String table, String nullColumnHack, ContentValues values) {
+        try {
+            return insertOrThrow(table, nullColumnHack, values);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Error inserting " + values, e);
+            return -1;
+        }
+    }
+
+    public long insertOrThrow(String table, String nullColumnHack, ContentValues values) {
+        StringBuilder sql = new StringBuilder("insert into ").append(table).append(" (");
+        Object[] args;
+        if (values == null || values.size() == 0) {
+            sql.append(nullColumnHack).append(") values (null)");
+            args = null;
+        } else {
+            args = new Object[values.size()];
+            int i = 0;
+            for (Map.Entry<String, Object> value : values.valueSet()) {
+                sql.append(i > 0 ? ", " : "").append(value.getKey());
+                args[i++] = value.getValue();
+            }
+            sql.append(") values (");
+            for (i = 0; i < args.length; i++) {
+                sql.append(i > 0 ? ", ?" : "?");
+            }
+            sql.append(')');
+        }
+        lock();
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql.toString());
+            try {
+                bind(statement, args);
+                statement.executeUpdate();
+                return lastInsertRowId();
+            } finally {
+                statement.close();
+            }
+        } catch (java.sql.SQLException e) {
+            throw translate(e, sql.toString());
+        } finally {
+            unlock();
+        }
+    }
+
+    public int update(String table, ContentValues values, String whereClause,
+            String[] whereArgs) {
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+        StringBuilder sql = new StringBuilder("update ").append(table).append(" set ");
+        int count = values.size() + (whereArgs != null ? whereArgs.length : 0);
+        Object[] args = new Object[count];
+        int i = 0;
+        for (Map.Entry<String, Object> value : values.valueSet()) {
+            sql.append(i > 0 ? ", " : "").append(value.getKey()).append(" = ?");
+            args[i++] = value.getValue();
+        }
+        if (whereArgs != null) {
+            System.arraycopy(whereArgs, 0, args, i, whereArgs.length);
+        }
+        appendClause(sql, " where ", whereClause);
+        return executeUpdateDelete(sql.toString(), args);
+    }
+
+    public int delete(String table, String whereClause, String[] whereArgs) {
+        StringBuilder sql = new StringBuilder("delete from ").append(table);
+        appendClause(sql, " where ", whereClause);
+        return executeUpdateDelete(sql.toString(), whereArgs);
+    }
+
+    private int executeUpdateDelete(String sql, Object[] args) {
+        lock();
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql);
+            try {
+                bind(statement, args);
+                return statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+        } catch (java.sql.SQLException e) {
+            throw translate(e, sql);
+        } finally {
+            unlock();
+        }
+    }
+
+    public SQLiteStatement compileStatement(String sql) {
+        return new SQLiteStatement(this, sql);
+    }
+}
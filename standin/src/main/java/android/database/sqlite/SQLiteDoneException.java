@@ -0,0 +1,11 @@
+package android.database.sqlite;
+
+/**
+ * Stand-in for android.database.sqlite.SQLiteDoneException on the JVM,
+ * thrown when a simple query has no rows
+ */
+public class SQLiteDoneException extends SQLiteException {
+
+    public SQLiteDoneException() {
+    }
+}
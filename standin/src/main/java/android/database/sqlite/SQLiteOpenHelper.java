@@ -0,0 +1,91 @@
+package android.database.sqlite;
+
+import android.content.Context;
+
+/**
+ * Stand-in for android.database.sqlite.SQLiteOpenHelper on the JVM: opens
+ * the database under the Context's directory, a null name being an in
+ * memory database, and creates or upgrades it in a transaction by
+ * user_version, as Android does.
+ */
+public abstract class SQLiteOpenHelper {
+
+    private final Context mContext;
+    private final String mName;
+    private final int mVersion;
+    private SQLiteDatabase mDatabase;
+
+    public SQLiteOpenHelper(Context context, String name, SQLiteDatabase.CursorFactory factory,
+            int version) {
+        if (version < 1) {
+            throw new IllegalArgumentException("Version must be >= 1, was " + version);
+        }
+        mContext = context;
+        mName = name;
+        mVersion = version;
+    }
+
+    public String getDatabaseName() {
+        return mName;
+    }
+
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        if (mDatabase != null && mDatabase.isOpen()) {
+            return mDatabase;
+        }
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(
+                mName != null ? mContext.getDatabasePath(mName).getPath() : null, null);
+        try {
+            onConfigure(db);
+            int version = db.getVersion();
+            if (version != mVersion) {
+                db.beginTransaction();
+                try {
+                    if (version == 0) {
+                        onCreate(db);
+                    } else if (version > mVersion) {
+                        onDowngrade(db, version, mVersion);
+                    } else {
+                        onUpgrade(db, version, mVersion);
+                    }
+                    db.setVersion(mVersion);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            onOpen(db);
+        } catch (RuntimeException e) {
+            db.close();
+            throw e;
+        }
+        mDatabase = db;
+        return db;
+    }
+
+    public SQLiteDatabase getReadableDatabase() {
+        return getWritableDatabase();
+    }
+
+    public synchronized void close() {
+        if (mDatabase != null) {
+            mDatabase.close();
+            mDatabase = null;
+        }
+    }
+
+    public void onConfigure(SQLiteDatabase db) {
+    }
+
+    public abstract void onCreate(SQLiteDatabase db);
+
+    public abstract void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion);
+
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        throw new SQLiteException("Can't downgrade database from version " + oldVersion
+                + " to " + newVersion);
+    }
+
+    public void onOpen(SQLiteDatabase db) {
+    }
+}
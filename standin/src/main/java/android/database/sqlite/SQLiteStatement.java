@@ -0,0 +1,175 @@
+package android.database.sqlite;
+
+import java.io.Closeable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+/**
+ * Stand-in for android.database.sqlite.SQLiteStatement on the JVM, a
+ * prepared statement on the database's connection. Bindings are kept
+ * between executions, as on Android.
+ */
+public final class SQLiteStatement implements Closeable {
+
+    private final SQLiteDatabase mDb;
+    private final String mSql;
+    private final PreparedStatement mStatement;
+
+    SQLiteStatement(SQLiteDatabase db, String sql) {
+        mDb = db;
+        mSql = sql;
+        mStatement = db.prepare(sql);
+    }
+
+    public void bindNull(int index) {
+        try {
+            mStatement.setNull(index, java.sql.Types.NULL);
+        } catch (java.sql.SQLException e) {
+            throw SQLiteDatabase.translate(e, mSql);
+        }
+    }
+
+    public void bindLong(int index, long value) {
+        try {
+            mStatement.setLong(index, value);
+        } catch (java.sql.SQLException e) {
+            throw SQLiteDatabase.translate(e, mSql);
+        }
+    }
+
+    public void bindDouble(int index, double value) {
+        try {
+            mStatement.setDouble(index, value);
+        } catch (java.sql.SQLException e) {
+            throw SQLiteDatabase.translate(e, mSql);
+        }
+    }
+
+    public void bindString(int index, String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("the bind value at index " + index + " is null");
+        }
+        try {
+            mStatement.setString(index, value);
+        } catch (java.sql.SQLException e) {
+            throw SQLiteDatabase.translate(e, mSql);
+        }
+    }
+
+    public void bindBlob(int index, byte[] value) {
+        if (value == null) {
+            throw new IllegalArgumentException("the bind value at index " + index + " is null");
+        }
+        try {
+            mStatement.setBytes(index, value);
+        } catch (java.sql.SQLException e) {
+            throw SQLiteDatabase.translate(e, mSql);
+        }
+    }
+
+    public void bindAllArgsAsStrings(String[] args) {
+        if (args != null) {
+            for (int i = 0; i < args.length; i++) {
+                bindString(i + 1, args[i]);
+            }
+        }
+    }
+
+    public void clearBindings() {
+        try {
+            mStatement.clearParameters();
+        } catch (java.sql.SQLException e) {
+            throw SQLiteDatabase.translate(e, mSql);
+        }
+    }
+
+    public void execute() {
+        mDb.lock();
+        try {
+            mStatement.execute();
+        } catch (java.sql.SQLException e) {
+            throw SQLiteDatabase.translate(e, mSql);
+        } finally {
+            mDb.unlock();
+        }
+    }
+
+    public int executeUpdateDelete() {
+        mDb.lock();
+        try {
+            return mStatement.executeUpdate();
+        } catch (java.sql.SQLException e) {
+            throw SQLiteDatabase.translate(e, mSql);
+        } finally {
+            mDb.unlock();
+        }
+    }
+
+    /**
+     * @return the rowId of the row inserted, or -1 if none was
+     */
+    public long executeInsert() {
+        mDb.lock();
+        try {
+            if (mStatement.executeUpdate() == 0) {
+                return -1;
+            }
+            return mDb.lastInsertRowId();
+        } catch (java.sql.SQLException e) {
+            throw SQLiteDatabase.translate(e, mSql);
+        } finally {
+            mDb.unlock();
+        }
+    }
+
+    public long simpleQueryForLong() {
+        mDb.lock();
+        try {
+            ResultSet result = mStatement.executeQuery();
+            try {
+                if (!result.next()) {
+                    throw new SQLiteDoneException();
+                }
+                return result.getLong(1);
+            } finally {
+                result.close();
+            }
+        } catch (java.sql.SQLException e) {
+            throw SQLiteDatabase.translate(e, mSql);
+        } finally {
+            mDb.unlock();
+        }
+    }
+
+    public String simpleQueryForString() {
+        mDb.lock();
+        try {
+            ResultSet result = mStatement.executeQuery();
+            try {
+                if (!result.next()) {
+                    throw new SQLiteDoneException();
+                }
+                return result.getString(1);
+            } finally {
+                result.close();
+            }
+        } catch (java.sql.SQLException e) {
+            throw SQLiteDatabase.translate(e, mSql);
+        } finally {
+            mDb.unlock();
+        }
+    }
+
+    public void close() {
+        try {
+            mStatement.close();
+        } catch (java.sql.SQLException e) {
+            throw SQLiteDatabase.translate(e, mSql);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SQLiteStatement: " + mSql;
+    }
+}
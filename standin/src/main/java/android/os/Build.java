@@ -0,0 +1,20 @@
+package android.os;
+
+/**
+ * Stand-in for android.os.Build on the JVM, claiming a device with write
+ * ahead logging and executeUpdateDelete, as every device since Honeycomb has
+ */
+public final class Build {
+
+    public static final String MODEL = "JVM " + System.getProperty("java.version");
+
+    public static final class VERSION {
+        public static final int SDK_INT = 16;
+
+        private VERSION() {
+        }
+    }
+
+    private Build() {
+    }
+}
@@ -0,0 +1,23 @@
+package android.os;
+
+/**
+ * Stand-in for android.os.Handler on the JVM, posting to its Looper's
+ * thread
+ */
+public class Handler {
+
+    private final Looper mLooper;
+
+    public Handler() {
+        this(Looper.getMainLooper());
+    }
+
+    public Handler(Looper looper) {
+        mLooper = looper;
+    }
+
+    public final boolean post(Runnable r) {
+        mLooper.mThread.execute(r);
+        return true;
+    }
+}
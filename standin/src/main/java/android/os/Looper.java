@@ -0,0 +1,29 @@
+package android.os;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Stand-in for android.os.Looper on the JVM: the main looper is a single
+ * daemon thread that runs whatever is posted to it in turn
+ */
+public final class Looper {
+
+    private static final Looper sMainLooper = new Looper();
+
+    final ExecutorService mThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "main");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private Looper() {
+    }
+
+    public static Looper getMainLooper() {
+        return sMainLooper;
+    }
+}
@@ -0,0 +1,13 @@
+package android.os;
+
+/**
+ * Stand-in for android.os.Process on the JVM, where thread priorities are
+ * left alone
+ */
+public class Process {
+
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    public static final void setThreadPriority(int priority) {
+    }
+}
@@ -0,0 +1,45 @@
+package android.util;
+
+/**
+ * Stand-in for android.util.Log on the JVM: warnings and errors go to
+ * stderr, the rest only with -Dsongscribbler.log=verbose.
+ */
+public final class Log {
+
+    private static final boolean VERBOSE = "verbose".equals(System.getProperty("songscribbler.log"));
+
+    private Log() {
+    }
+
+    public static int d(String tag, String msg) {
+        return VERBOSE ? print("D", tag, msg, null) : 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return VERBOSE ? print("I", tag, msg, null) : 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return print("W", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return print("W", tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return print("E", tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return print("E", tag, msg, tr);
+    }
+
+    private static int print(String level, String tag, String msg, Throwable tr) {
+        System.err.println(level + "/" + tag + ": " + msg);
+        if (tr != null) {
+            tr.printStackTrace();
+        }
+        return 0;
+    }
+}
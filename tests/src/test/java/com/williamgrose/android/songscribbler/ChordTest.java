@@ -0,0 +1,46 @@
+package com.williamgrose.android.songscribbler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class ChordTest {
+
+    private static Chord parse(String text) {
+        return Chord.parse(text, 0, text.length());
+    }
+
+    @Test
+    public void parsesChords() {
+        String[] chords = {"C", "Am", "F#m7", "Bb", "Ebmaj7", "Dsus4", "Dsus", "Cadd9",
+                "Bm7b5", "G7#9", "E7(b9)", "Co7", "Cdim", "Caug", "C+", "C-7", "Cmin",
+                "CM7", "C^7", "G13", "D/F#", "Am7/G", "C(add9)/E", "A7alt"};
+        for (String chord : chords) {
+            Chord parsed = parse(chord);
+            assertNotNull(chord, parsed);
+            assertEquals(chord, parsed.toString());
+        }
+    }
+
+    @Test
+    public void rejectsWords() {
+        String[] words = {"Bad", "Dad", "Go", "Add", "Cab", "Ebb", "Fade", "Gosh", "As",
+                "Am7x", "C1999", "Cadd", "C#b", "D/Fun", "Hm", "a"};
+        for (String word : words) {
+            assertNull(word, parse(word));
+        }
+    }
+
+    @Test
+    public void keepsLyricsThatLookLikeChords() {
+        SongParser parser = new SongParser();
+        ParsedSong song = parser.parse("Bad Dad\nGo\nAm   G", "");
+        Transposer transposer = new Transposer();
+        transposer.set(2, 0, song);
+        StringBuilder out = new StringBuilder();
+        SongRenderer.render(song, transposer, out);
+        assertEquals("Bad Dad\nGo\nBm   A", out.toString());
+    }
+}
@@ -0,0 +1,201 @@
+package com.williamgrose.android.songscribbler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Upgrading a large library from version 3, the oldest one migrated
+ */
+public class MigrationTest {
+
+    /** Enough for several batches of every row migration */
+    private static final int SONGS = 2600;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private Context mContext;
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = new Context(mFolder.newFolder("device"));
+        createVersion3();
+    }
+
+    /**
+     * The library as version 3 made it, every third song long enough to be
+     * compressed by version 10
+     */
+    private void createVersion3() {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath("song_scribbler").getPath(), null);
+        try {
+            db.execSQL("create table songs (_id integer primary key autoincrement, "
+                    + "title text not null, body text not null, chords text not null, "
+                    + "scrollspeed integer not null);");
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < SONGS; i++) {
+                    db.execSQL("insert into songs (title, body, chords, scrollspeed) "
+                            + "values (?, ?, ?, ?)", new Object[] {title(i), body(i), "",
+                                    i % 5});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            db.setVersion(3);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static String title(int i) {
+        return (i % 2 == 0 ? "The " : "") + "Song " + (SONGS - i);
+    }
+
+    private static String body(int i) {
+        StringBuilder body = new StringBuilder("[G]verse ").append(i).append('\n');
+        while (i % 3 == 0 && body.length() < SongCompression.MIN_CHARS * 2) {
+            body.append("[C]and the chorus goes round again\n");
+        }
+        return body.toString();
+    }
+
+    @Test
+    public void upgradesEverySong() {
+        SongScribblerDbAdapter db = new SongScribblerDbAdapter(mContext).open();
+        try {
+            int batches = 0;
+            while (db.migrateNextBatch(null)) {
+                batches++;
+            }
+            // Versions 5, 10, 12 and 13 each go over every song
+            assertTrue("Only " + batches + " batches", batches >= 4 * (SONGS / 500));
+            checkUpgraded(db);
+        } finally {
+            db.close();
+        }
+        SQLiteDatabase raw = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath("song_scribbler").getPath(), null);
+        try {
+            assertEquals((SONGS + 2) / 3, DatabaseUtils.longForQuery(raw,
+                    "select count(*) from songs where typeof(body) = 'blob'", null));
+            // And the space that freed given back by a vacuum
+            assertEquals(0, DatabaseUtils.longForQuery(raw, "pragma freelist_count", null));
+        } finally {
+            raw.close();
+        }
+    }
+
+    @Test
+    public void resumesAnInterruptedMigration() {
+        final long[] progress = new long[2];
+        Migration.ProgressListener listener = new Migration.ProgressListener() {
+            public void onProgress(int version, long done, long total) {
+                progress[0] = version;
+                progress[1] = done;
+            }
+        };
+        SongScribblerDbAdapter db = new SongScribblerDbAdapter(mContext).open();
+        try {
+            // Partway through indexing for search, the first row migration
+            assertTrue(db.migrateNextBatch(listener));
+            assertTrue(db.migrateNextBatch(listener));
+            assertEquals(5, progress[0]);
+        } finally {
+            db.close();
+        }
+        long done = progress[1];
+        assertTrue(done > 0 && done < SONGS);
+
+        // What a process killed here leaves behind
+        SQLiteDatabase raw = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath("song_scribbler").getPath(), null);
+        try {
+            assertEquals(done, DatabaseUtils.longForQuery(raw,
+                    "select last_rowid from migrations where version = 5", null));
+            assertEquals(done, DatabaseUtils.longForQuery(raw,
+                    "select count(*) from songs_fts", null));
+            assertEquals(4, DatabaseUtils.longForQuery(raw,
+                    "select count(*) from migrations", null));
+        } finally {
+            raw.close();
+        }
+
+        db = new SongScribblerDbAdapter(mContext).open();
+        try {
+            assertTrue(db.migrateNextBatch(listener));
+            assertEquals(5, progress[0]);
+            assertTrue(progress[1] > done);
+            while (db.migrateNextBatch(listener)) {
+            }
+            assertFalse(db.migrateNextBatch(listener));
+            checkUpgraded(db);
+        } finally {
+            db.close();
+        }
+    }
+
+    private void checkUpgraded(SongScribblerDbAdapter db) {
+        // Every song there, in sort key order, with its text intact
+        Cursor titles = db.fetchSongTitles(null, 0, Integer.MAX_VALUE);
+        try {
+            assertEquals(SONGS, titles.getCount());
+        } finally {
+            titles.close();
+        }
+        Cursor songs = db.fetchAllSongs();
+        try {
+            assertEquals(SONGS, songs.getCount());
+            String last = "";
+            while (songs.moveToNext()) {
+                int i = (int) songs.getLong(0) - 1;
+                assertEquals(title(i), songs.getString(1));
+                assertEquals(body(i), songs.getString(2));
+                String key = TitleKey.get().sortKey(songs.getString(1));
+                assertTrue(key + " after " + last, key.compareTo(last) >= 0);
+                last = key;
+            }
+        } finally {
+            songs.close();
+        }
+
+        // Each song indexed for search once
+        Cursor found = db.searchSongs("verse", SONGS * 2);
+        try {
+            assertEquals(SONGS, found.getCount());
+        } finally {
+            found.close();
+        }
+        found = db.searchSongs(String.format(Locale.US, "verse %d", SONGS - 1), 10);
+        try {
+            assertTrue(found.getCount() >= 1);
+        } finally {
+            found.close();
+        }
+
+        // And given a sync id, so turning sync on logs them all
+        db.setSyncEnabled(true);
+        Cursor log = db.fetchSyncChanges(SONGS * 2);
+        try {
+            assertEquals(SONGS, log.getCount());
+        } finally {
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.williamgrose.android.songscribbler;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ScrollMotionTest {
+
+    @Test
+    public void freeSpeedTreatsAStallAsAPause() {
+        ScrollMotion motion = new ScrollMotion();
+        motion.setVelocity(100);
+        motion.start(1000);
+        motion.step(1016);
+        motion.step(6016);
+        assertEquals(16 + ScrollMotion.MAX_STEP_MILLIS, motion.getElapsedMillis());
+        assertEquals((16 + ScrollMotion.MAX_STEP_MILLIS) / 10f, motion.getPosition(), 0.01f);
+    }
+
+    @Test
+    public void keepingTimeLosesNothingToAStall() {
+        ScrollMotion motion = new ScrollMotion();
+        motion.setKeepingTime(true);
+        motion.setElapsedMillis(2000);
+        motion.start(1000);
+        motion.step(1016);
+        motion.step(6016);
+        assertEquals(7016, motion.getElapsedMillis());
+        // Time paused still isn't counted
+        motion.pause();
+        motion.start(10000);
+        motion.step(10100);
+        assertEquals(7116, motion.getElapsedMillis());
+    }
+
+    @Test
+    public void keepingTimeFromAMovedPosition() {
+        ScrollMotion motion = new ScrollMotion();
+        motion.setKeepingTime(true);
+        motion.start(0);
+        motion.step(500);
+        motion.setElapsedMillis(30000);
+        motion.step(800);
+        assertEquals(30300, motion.getElapsedMillis());
+    }
+}
@@ -0,0 +1,145 @@
+package com.williamgrose.android.songscribbler;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+public class SongBackupTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SongScribblerDbAdapter mDb;
+    private ExecutorService mWriter;
+
+    @Before
+    public void setUp() throws IOException {
+        mDb = new SongScribblerDbAdapter(new Context(mFolder.newFolder("device"))).open();
+        mWriter = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mWriter.shutdown();
+        mDb.close();
+    }
+
+    @Test
+    public void keepsTransposeAndCapo() throws IOException {
+        long rowId = mDb.createSong("One", "[G]first", "", 3);
+        ContentValues values = new ContentValues();
+        values.put(SongScribblerDbAdapter.KEY_TRANSPOSE, -2);
+        values.put(SongScribblerDbAdapter.KEY_CAPO, 5);
+        mDb.updateSongFields(rowId, values);
+
+        File backup = mFolder.newFile("songs" + SongBackup.EXTENSION);
+        assertEquals(1, new SongBackup().backup(mDb, backup, true));
+        assertEquals(1, new SongBackup().restore(mDb, mWriter, backup, true));
+        assertEquals("One [G]first  3 -2 5", onlySong());
+    }
+
+    @Test
+    public void keepsSetlists() throws IOException {
+        long one = mDb.createSong("One", "[G]first", "", 0);
+        long two = mDb.createSong("Two", "[C]second", "", 0);
+        long gig = mDb.createSetlist("Gig");
+        mDb.addToSetlist(gig, two);
+        mDb.addToSetlist(gig, one);
+        mDb.addToSetlist(gig, two);
+        mDb.createSetlist("Empty");
+
+        File backup = mFolder.newFile("songs" + SongBackup.EXTENSION);
+        new SongBackup().backup(mDb, backup, true);
+        assertEquals(2, new SongBackup().restore(mDb, mWriter, backup, true));
+
+        Cursor setlists = mDb.fetchSetlists();
+        try {
+            assertEquals(2, setlists.getCount());
+            setlists.moveToFirst();
+            assertEquals("Empty", setlists.getString(1));
+            assertEquals(0, mDb.fetchSetlistSongs(setlists.getLong(0)).length);
+            setlists.moveToNext();
+            assertEquals("Gig", setlists.getString(1));
+            StringBuilder titles = new StringBuilder();
+            for (long rowId : mDb.fetchSetlistSongs(setlists.getLong(0))) {
+                Cursor song = mDb.fetchSong(rowId);
+                try {
+                    song.moveToFirst();
+                    titles.append(song.getString(
+                            song.getColumnIndexOrThrow(SongScribblerDbAdapter.KEY_TITLE)));
+                    titles.append(' ');
+                } finally {
+                    song.close();
+                }
+            }
+            assertEquals("Two One Two ", titles.toString());
+        } finally {
+            setlists.close();
+        }
+    }
+
+    @Test
+    public void readsVersionOne() throws IOException {
+        File backup = mFolder.newFile("old" + SongBackup.EXTENSION);
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(raw);
+        for (String text : new String[] {"Old", "[C]older", ""}) {
+            byte[] bytes = text.getBytes("UTF-8");
+            record.writeInt(bytes.length);
+            record.write(bytes);
+        }
+        record.writeInt(4);
+        CRC32 crc = new CRC32();
+        crc.update(raw.toByteArray());
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(backup));
+        try {
+            out.write(new byte[] {'S', 'S', 'B', 'K'});
+            out.writeInt(1);
+            out.writeInt(0);
+            out.writeInt(raw.size());
+            out.writeInt(raw.size());
+            out.writeInt((int) crc.getValue());
+            out.write(raw.toByteArray());
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeLong(1);
+        } finally {
+            out.close();
+        }
+        assertEquals(1, new SongBackup().restore(mDb, mWriter, backup, true));
+        assertEquals("Old [C]older  4 0 0", onlySong());
+    }
+
+    /**
+     * @return the library's only song, as its fields separated by spaces
+     */
+    private String onlySong() {
+        Cursor songs = mDb.fetchAllSongs();
+        try {
+            assertEquals(1, songs.getCount());
+            songs.moveToFirst();
+            return songs.getString(1) + " " + songs.getString(2) + " " + songs.getString(3)
+                    + " " + songs.getInt(4) + " " + songs.getInt(5) + " " + songs.getInt(6);
+        } finally {
+            songs.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.williamgrose.android.songscribbler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.TimeZone;
+
+public class SongRevisionsTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long DAY = 24 * HOUR;
+    /** Noon, so the hours either side stay on the same day */
+    private static final long NOON = 20000 * DAY + 12 * HOUR;
+    /** A guitar and a violin, each a surrogate pair */
+    private static final String GUITAR = "\uD83C\uDFB8";
+    private static final String VIOLIN = "\uD83C\uDFBB";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private TimeZone mZone;
+    private SongScribblerDbAdapter mDb;
+
+    @Before
+    public void setUp() throws IOException {
+        mZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        mDb = new SongScribblerDbAdapter(new Context(mFolder.newFolder("device"))).open();
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+        TimeZone.setDefault(mZone);
+    }
+
+    @Test
+    public void deltasRoundTrip() throws IOException {
+        String[][] edits = {
+                {"", "new"},
+                {"old", ""},
+                {"the same", "the same"},
+                {"[G]verse one", "[G]verse [C]one"},
+                {"abcabc", "abc"},
+                {"aaaa", "aaaaa"},
+                {"play " + GUITAR, "play " + VIOLIN},
+                {GUITAR + " intro", VIOLIN + " intro"},
+                {GUITAR + GUITAR, GUITAR + VIOLIN + GUITAR},
+                {"x" + GUITAR + "y", "x" + VIOLIN + GUITAR + "y"},
+        };
+        for (String[] edit : edits) {
+            SongRevisions.Version from = new SongRevisions.Version("Title", edit[0], "c");
+            SongRevisions.Version to = new SongRevisions.Version("Title", edit[1], "c");
+            byte[] delta = SongRevisions.delta(from, to);
+            if (edit[0].equals(edit[1])) {
+                assertNull(delta);
+                continue;
+            }
+            SongRevisions.Version applied = SongRevisions.apply(from, delta);
+            assertEquals(edit[1], applied.body);
+            assertEquals("Title", applied.title);
+            assertEquals("c", applied.chords);
+        }
+    }
+
+    @Test
+    public void deltasCarryEachField() throws IOException {
+        SongRevisions.Version from = new SongRevisions.Version("One", "body", "[C]");
+        SongRevisions.Version to = new SongRevisions.Version("Two " + GUITAR, "body", "[D]");
+        SongRevisions.Version applied = SongRevisions.apply(from, SongRevisions.delta(from, to));
+        assertEquals(to.title, applied.title);
+        assertEquals(to.body, applied.body);
+        assertEquals(to.chords, applied.chords);
+    }
+
+    @Test
+    public void snapshotsRoundTrip() throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            body.append("[G]line ").append(i).append(' ').append(GUITAR).append('\n');
+        }
+        SongRevisions.Version version = new SongRevisions.Version("Long", body.toString(), "");
+        SongRevisions.Version read = SongRevisions.readSnapshot(
+                SongRevisions.snapshot(version));
+        assertEquals(version.title, read.title);
+        assertEquals(version.body, read.body);
+        assertEquals(version.chords, read.chords);
+    }
+
+    @Test
+    public void keepsEverythingFromTheLastDay() {
+        long[] saved = new long[10];
+        for (int i = 0; i < saved.length; i++) {
+            saved[i] = NOON - DAY + HOUR + i * HOUR;
+        }
+        for (boolean kept : SongRevisions.keep(saved, NOON)) {
+            assertTrue(kept);
+        }
+    }
+
+    @Test
+    public void keepsTheLastOfEachEarlierDay() {
+        long[] saved = {NOON - 5 * DAY - 11 * HOUR, NOON - 5 * DAY, NOON - 5 * DAY + 11 * HOUR,
+                NOON - 3 * DAY, NOON - 2 * HOUR, NOON - HOUR};
+        boolean[] keep = SongRevisions.keep(saved, NOON);
+        assertFalse(keep[0]);
+        assertFalse(keep[1]);
+        assertTrue(keep[2]);
+        assertTrue(keep[3]);
+        assertTrue(keep[4]);
+        assertTrue(keep[5]);
+    }
+
+    @Test
+    public void keepsTheNewestAtMost() {
+        long[] saved = new long[SongRevisions.MAX_REVISIONS + 50];
+        for (int i = 0; i < saved.length; i++) {
+            saved[i] = NOON - (saved.length + 1 - i) * DAY;
+        }
+        boolean[] keep = SongRevisions.keep(saved, NOON);
+        int kept = 0;
+        for (int i = 0; i < keep.length; i++) {
+            assertEquals(i >= 50, keep[i]);
+            kept += keep[i] ? 1 : 0;
+        }
+        assertEquals(SongRevisions.MAX_REVISIONS, kept);
+        assertTrue(SongRevisions.keep(new long[] {NOON - 1000 * DAY}, NOON)[0]);
+    }
+
+    @Test
+    public void fetchesRevisionsAcrossSnapshots() {
+        ArrayList<String> bodies = new ArrayList<String>();
+        bodies.add("[G]verse " + GUITAR);
+        long rowId = mDb.createSong("Song", bodies.get(0), "", 0);
+        for (int i = 1; i <= 2 * SongRevisions.SNAPSHOT_INTERVAL + 3; i++) {
+            bodies.add(bodies.get(i - 1) + "\n[C]line " + i);
+            assertTrue(mDb.updateSong(rowId, "Song", bodies.get(i), "", 0));
+        }
+        assertEquals(bodies, revisionBodies(rowId));
+    }
+
+    @Test
+    public void compactsAfterTheSave() {
+        long rowId = mDb.createSong("Song", "0", "", 0);
+        ArrayList<String> bodies = new ArrayList<String>();
+        bodies.add("0");
+        for (int i = 1; i < SongRevisions.COMPACT_AT; i++) {
+            bodies.add(Integer.toString(i));
+            mDb.updateSong(rowId, "Song", bodies.get(i), "", 0);
+        }
+        // Left for later by the save
+        assertTrue(mDb.hasRevisionsToCompact());
+        assertEquals(bodies, revisionBodies(rowId));
+
+        assertFalse(mDb.compactNextRevisions());
+        assertFalse(mDb.hasRevisionsToCompact());
+        bodies.subList(0, bodies.size() - SongRevisions.MAX_REVISIONS).clear();
+        assertEquals(bodies, revisionBodies(rowId));
+
+        bodies.add("next");
+        mDb.updateSong(rowId, "Song", "next", "", 0);
+        assertEquals(bodies, revisionBodies(rowId));
+    }
+
+    /**
+     * @return the body at each revision of a song, oldest first
+     */
+    private ArrayList<String> revisionBodies(long rowId) {
+        ArrayList<String> bodies = new ArrayList<String>();
+        Cursor revisions = mDb.fetchRevisions(rowId);
+        try {
+            while (revisions.moveToNext()) {
+                bodies.add(0, mDb.fetchRevision(revisions.getLong(0)).body);
+            }
+        } finally {
+            revisions.close();
+        }
+        return bodies;
+    }
+}
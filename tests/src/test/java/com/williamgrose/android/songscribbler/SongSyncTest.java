@@ -0,0 +1,285 @@
+package com.williamgrose.android.songscribbler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Two devices syncing their libraries through SyncServer. Only one
+ * database can be open in a process, so each device opens its own in turn.
+ */
+public class SongSyncTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SyncServer mServer;
+    private Context mPhone;
+    private Context mTablet;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new SyncServer();
+        mPhone = new Context(mFolder.newFolder("phone"));
+        mTablet = new Context(mFolder.newFolder("tablet"));
+        SongSync.setSettings(mPhone, mServer.getAddress(), false);
+        SongSync.setSettings(mTablet, mServer.getAddress(), false);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void changesGoBothWays() throws Exception {
+        long one = createSong(mPhone, "One", "[G]first");
+        createSong(mPhone, "Two", "[C]second");
+        SongSync.Result result = sync(mPhone);
+        assertNull(result.error);
+        assertEquals(2, result.sent);
+
+        result = sync(mTablet);
+        assertNull(result.error);
+        assertEquals(2, result.received);
+        Map<String, String> tablet = songs(mTablet);
+        assertEquals("[G]first", tablet.get("One"));
+        assertEquals("[C]second", tablet.get("Two"));
+
+        // Edit one, delete another and add a third on the tablet
+        SongScribblerDbAdapter db = new SongScribblerDbAdapter(mTablet).open();
+        try {
+            Cursor songs = db.fetchAllSongs();
+            try {
+                while (songs.moveToNext()) {
+                    if (songs.getString(1).equals("One")) {
+                        db.updateSong(songs.getLong(0), "One", "[G]first, again", "",
+                                SongScribblerDbAdapter.DEFAULT_SCROLLSPEED);
+                    } else {
+                        db.deleteSong(songs.getLong(0));
+                    }
+                }
+            } finally {
+                songs.close();
+            }
+            db.createSong("Three", "[D]third", "", SongScribblerDbAdapter.DEFAULT_SCROLLSPEED);
+        } finally {
+            db.close();
+        }
+        result = sync(mTablet);
+        assertNull(result.error);
+        assertEquals(3, result.sent);
+
+        result = sync(mPhone);
+        assertNull(result.error);
+        assertEquals(3, result.received);
+        Map<String, String> phone = songs(mPhone);
+        assertEquals(2, phone.size());
+        assertEquals("[G]first, again", phone.get("One"));
+        assertEquals("[D]third", phone.get("Three"));
+        assertEquals(one, rowIdOf(mPhone, "One"));
+
+        // Nothing left to send or take either way
+        result = sync(mPhone);
+        assertEquals(0, result.sent);
+        assertEquals(0, result.received);
+        result = sync(mTablet);
+        assertEquals(0, result.sent);
+        assertEquals(0, result.received);
+        assertEquals(phone, songs(mTablet));
+    }
+
+    @Test
+    public void largeLibrariesGoInPages() throws Exception {
+        SongScribblerDbAdapter db = new SongScribblerDbAdapter(mPhone).open();
+        try {
+            for (int i = 0; i < 250; i++) {
+                db.createSong("Song " + i, "[G]words " + i, "",
+                        SongScribblerDbAdapter.DEFAULT_SCROLLSPEED);
+            }
+        } finally {
+            db.close();
+        }
+        assertEquals(250, sync(mPhone).sent);
+        assertEquals(3, mServer.getPushes());
+
+        SongSync.Result result = sync(mTablet);
+        assertNull(result.error);
+        assertEquals(250, result.received);
+        Map<String, String> tablet = songs(mTablet);
+        assertEquals(250, tablet.size());
+        assertEquals("[G]words 249", tablet.get("Song 249"));
+    }
+
+    @Test
+    public void restoringIsNotSynced() throws Exception {
+        createSong(mPhone, "One", "[G]first");
+        createSong(mPhone, "Two", "[C]second");
+        assertEquals(2, sync(mPhone).sent);
+        assertEquals(2, sync(mTablet).received);
+
+        File backup = mFolder.newFile("songs" + SongBackup.EXTENSION);
+        SongScribblerDbAdapter db = new SongScribblerDbAdapter(mPhone).open();
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            new SongBackup().backup(db, backup, true);
+            assertEquals(2, new SongBackup().restore(db, writer, backup, true));
+        } finally {
+            writer.shutdown();
+            db.close();
+        }
+        int pushes = mServer.getPushes();
+        SongSync.Result result = sync(mPhone);
+        assertNull(result.error);
+        assertEquals(0, result.sent);
+        assertEquals(pushes, mServer.getPushes());
+        assertEquals(0, sync(mTablet).received);
+        assertEquals(2, songs(mTablet).size());
+
+        // Changing a restored song sends it whole, not just the field
+        db = new SongScribblerDbAdapter(mPhone).open();
+        try {
+            ContentValues values = new ContentValues();
+            values.put(SongScribblerDbAdapter.KEY_BODY, "[G]first, restored");
+            db.updateSongFields(rowIdOf(mPhone, "One"), values);
+            Cursor log = db.fetchSyncChanges(10);
+            try {
+                assertEquals(1, log.getCount());
+                log.moveToFirst();
+                assertEquals(SongSync.ALL_FIELDS, log.getInt(2));
+            } finally {
+                log.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void noServerIsAnError() throws Exception {
+        SongSync.clearSettings(mPhone);
+        createSong(mPhone, "One", "[G]first");
+        SongSync.Result result = sync(mPhone);
+        assertNotNull(result.error);
+        assertEquals(0, result.sent);
+        assertEquals(0, mServer.getPushes());
+    }
+
+    @Test
+    public void stoppingDuringASyncWaitsForIt() throws Exception {
+        long one = createSong(mPhone, "One", "[G]first");
+        SongRepository repository = new SongRepository(mPhone);
+        try {
+            mServer.hold();
+            Future<SongSync.Result> sync = repository.syncSongs(null);
+            mServer.awaitHeld();
+            Future<Void> stopped = repository.stopSync(null);
+            // The writer is still free while the sync is held
+            assertEquals(Boolean.TRUE, repository.updateSong(one, "One",
+                    "[G]first, again", "", SongScribblerDbAdapter.DEFAULT_SCROLLSPEED, null)
+                    .get(1, TimeUnit.MINUTES));
+            mServer.release();
+            assertNull(sync.get(1, TimeUnit.MINUTES).error);
+            stopped.get(1, TimeUnit.MINUTES);
+            assertEquals(1, mServer.getPushes());
+        } finally {
+            mServer.release();
+            repository.close();
+        }
+        assertEquals("[G]first, again", songs(mPhone).get("One"));
+        // Nothing logged once sync was stopped
+        SongScribblerDbAdapter db = new SongScribblerDbAdapter(mPhone).open();
+        try {
+            Cursor log = db.fetchSyncChanges(10);
+            try {
+                assertEquals(0, log.getCount());
+            } finally {
+                log.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    private static SongSync.Result sync(Context device) {
+        SongScribblerDbAdapter db = new SongScribblerDbAdapter(device).open();
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            return new SongSync(db, writer, device, new Runnable() {
+                public void run() {
+                }
+            }).sync();
+        } finally {
+            writer.shutdown();
+            db.close();
+        }
+    }
+
+    private static long createSong(Context device, String title, String body) {
+        SongScribblerDbAdapter db = new SongScribblerDbAdapter(device).open();
+        try {
+            return db.createSong(title, body, "", SongScribblerDbAdapter.DEFAULT_SCROLLSPEED);
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * @return the body of each song by its title
+     */
+    private static Map<String, String> songs(Context device) {
+        Map<String, String> bodies = new TreeMap<String, String>();
+        SongScribblerDbAdapter db = new SongScribblerDbAdapter(device).open();
+        try {
+            Cursor songs = db.fetchAllSongs();
+            try {
+                while (songs.moveToNext()) {
+                    bodies.put(songs.getString(1), songs.getString(2));
+                }
+            } finally {
+                songs.close();
+            }
+        } finally {
+            db.close();
+        }
+        return bodies;
+    }
+
+    private static long rowIdOf(Context device, String title) {
+        SongScribblerDbAdapter db = new SongScribblerDbAdapter(device).open();
+        try {
+            Cursor songs = db.fetchAllSongs();
+            try {
+                while (songs.moveToNext()) {
+                    if (songs.getString(1).equals(title)) {
+                        return songs.getLong(0);
+                    }
+                }
+                return -1;
+            } finally {
+                songs.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+}
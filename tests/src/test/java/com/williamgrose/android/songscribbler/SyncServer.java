@@ -0,0 +1,268 @@
+package com.williamgrose.android.songscribbler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A server for SongSync to talk to in tests, on a local port, keeping the
+ * songs in memory. It answers push and pull as SongSync describes them and
+ * merges changes the same way: field by field, the later clock winning, and
+ * a delete winning over anything that changed before it.
+ */
+class SyncServer {
+
+    /**
+     * A song as the server has it
+     */
+    private static final class Song {
+        String device;
+        long deleted;
+        final String[] values = new String[SongScribblerDbAdapter.SYNC_FIELDS.length];
+        final long[] clocks = new long[SongScribblerDbAdapter.SYNC_FIELDS.length];
+        /** Where it is in the order of changes, which pull's cursor counts */
+        long seq;
+    }
+
+    private final HttpServer mServer;
+    private final Map<String, Song> mSongs = new HashMap<String, Song>();
+    private final TreeMap<Long, Song> mBySeq = new TreeMap<Long, Song>();
+    private long mSeq = 0;
+    private int mPushes = 0;
+    /** Pulls wait on this while it is set, see hold */
+    private volatile CountDownLatch mRelease;
+    private volatile CountDownLatch mHeld;
+
+    SyncServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/push", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    JSONObject body = new JSONObject(new String(readBody(exchange), "UTF-8"));
+                    push(body.getJSONArray("changes"));
+                    answer(exchange, new JSONObject());
+                } catch (JSONException e) {
+                    fail(exchange, e);
+                }
+            }
+        });
+        mServer.createContext("/pull", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    awaitRelease();
+                    Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+                    String since = query.get("since");
+                    answer(exchange, pull(since != null ? Long.parseLong(since) : 0,
+                            Integer.parseInt(query.get("limit"))));
+                } catch (JSONException e) {
+                    fail(exchange, e);
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    /**
+     * @return the address to give SongSync
+     */
+    String getAddress() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/";
+    }
+
+    synchronized int getPushes() {
+        return mPushes;
+    }
+
+    void stop() {
+        release();
+        mServer.stop(0);
+    }
+
+    /**
+     * Keep the next pulls waiting until release, so a sync can be caught
+     * part way through
+     */
+    void hold() {
+        mHeld = new CountDownLatch(1);
+        mRelease = new CountDownLatch(1);
+    }
+
+    /**
+     * Wait until a pull is being held
+     */
+    void awaitHeld() throws InterruptedException {
+        if (!mHeld.await(1, TimeUnit.MINUTES)) {
+            throw new AssertionError("Nothing pulled");
+        }
+    }
+
+    void release() {
+        if (mRelease != null) {
+            mRelease.countDown();
+        }
+    }
+
+    private void awaitRelease() {
+        CountDownLatch release = mRelease;
+        if (release == null) {
+            return;
+        }
+        mHeld.countDown();
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void push(JSONArray changes) throws JSONException {
+        mPushes++;
+        for (int i = 0; i < changes.length(); i++) {
+            JSONObject change = changes.getJSONObject(i);
+            String id = change.getString("id");
+            Song song = mSongs.get(id);
+            if (song == null) {
+                song = new Song();
+                mSongs.put(id, song);
+            }
+            boolean changed = false;
+            long deleted = change.optLong("deleted");
+            if (deleted > 0) {
+                if (song.deleted == 0 && deleted >= SongSync.latest(song.clocks)) {
+                    song.deleted = deleted;
+                    changed = true;
+                }
+            } else {
+                for (int f = 0; f < SongScribblerDbAdapter.SYNC_FIELDS.length; f++) {
+                    JSONObject field = change.optJSONObject(SongScribblerDbAdapter.SYNC_FIELDS[f]);
+                    if (field != null && field.getLong("clock") > song.clocks[f]
+                            && field.getLong("clock") > song.deleted) {
+                        song.values[f] = field.getString("value");
+                        song.clocks[f] = field.getLong("clock");
+                        changed = true;
+                    }
+                }
+            }
+            if (changed) {
+                song.device = change.getString("device");
+                mBySeq.remove(song.seq);
+                song.seq = ++mSeq;
+                mBySeq.put(song.seq, song);
+            }
+        }
+    }
+
+    private synchronized JSONObject pull(long since, int limit) throws JSONException {
+        JSONArray changes = new JSONArray();
+        long cursor = since;
+        for (Map.Entry<Long, Song> entry : mBySeq.tailMap(since, false).entrySet()) {
+            if (changes.length() == limit) {
+                break;
+            }
+            changes.put(toJson(idOf(entry.getValue()), entry.getValue()));
+            cursor = entry.getKey();
+        }
+        JSONObject page = new JSONObject();
+        page.put("changes", changes);
+        page.put("cursor", Long.toString(cursor));
+        page.put("more", mBySeq.higherKey(cursor) != null);
+        return page;
+    }
+
+    private String idOf(Song song) {
+        for (Map.Entry<String, Song> entry : mSongs.entrySet()) {
+            if (entry.getValue() == song) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private static JSONObject toJson(String id, Song song) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("id", id);
+        json.put("device", song.device);
+        if (song.deleted > 0) {
+            json.put("deleted", song.deleted);
+            return json;
+        }
+        for (int f = 0; f < SongScribblerDbAdapter.SYNC_FIELDS.length; f++) {
+            if (song.values[f] != null) {
+                JSONObject field = new JSONObject();
+                field.put("value", song.values[f]);
+                field.put("clock", song.clocks[f]);
+                json.put(SongScribblerDbAdapter.SYNC_FIELDS[f], field);
+            }
+        }
+        return json;
+    }
+
+    private static Map<String, String> query(String query) throws IOException {
+        Map<String, String> values = new HashMap<String, String>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                values.put(pair.substring(0, equals),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return values;
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        in.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Answered gzipped, as SongSync asks for
+     */
+    private static void answer(HttpExchange exchange, JSONObject json) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(json.toString().getBytes("UTF-8"));
+        gzip.close();
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        exchange.sendResponseHeaders(200, bytes.size());
+        OutputStream out = exchange.getResponseBody();
+        bytes.writeTo(out);
+        out.close();
+    }
+
+    private static void fail(HttpExchange exchange, Exception e) throws IOException {
+        byte[] message = String.valueOf(e.getMessage()).getBytes("UTF-8");
+        exchange.sendResponseHeaders(400, message.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(message);
+        out.close();
+    }
+}
@@ -0,0 +1,145 @@
+package com.williamgrose.android.songscribbler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Imports and restores hand their songs to the writer a batch per task, so
+ * that other writes get a turn between batches
+ */
+public class WriterBatchesTest {
+
+    private static final int SONGS = 1000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SongScribblerDbAdapter mDb;
+    /** Tasks the writer has run */
+    private final AtomicInteger mTasks = new AtomicInteger();
+    private ThreadPoolExecutor mWriter;
+    /** The writer task to fail, counting from 1, or 0 for none */
+    private int mFailTask = 0;
+    private int mSubmitted = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        mDb = new SongScribblerDbAdapter(new Context(mFolder.newFolder("device"))).open();
+        mWriter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>()) {
+            @Override
+            protected void beforeExecute(Thread thread, Runnable task) {
+                mTasks.incrementAndGet();
+            }
+
+            @Override
+            protected <T> RunnableFuture<T> newTaskFor(final Callable<T> task) {
+                if (++mSubmitted != mFailTask) {
+                    return super.newTaskFor(task);
+                }
+                return super.newTaskFor(new Callable<T>() {
+                    public T call() {
+                        throw new SQLException("disk is full");
+                    }
+                });
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        mWriter.shutdown();
+        mDb.close();
+    }
+
+    @Test
+    public void importsInBatches() throws IOException {
+        File songs = mFolder.newFolder("songs");
+        for (int i = 0; i < SONGS; i++) {
+            Writer out = new OutputStreamWriter(new FileOutputStream(
+                    new File(songs, "song_" + i + ".cho")), "UTF-8");
+            try {
+                out.write("{title: Song " + i + "}\n[G]words " + i + "\n");
+            } finally {
+                out.close();
+            }
+        }
+        SongImporter.Result result = new SongImporter(mDb, mWriter).importFrom(songs);
+        assertEquals(SONGS, result.imported);
+        assertEquals(0, result.skipped);
+        assertTrue(mTasks.get() + " writer tasks", mTasks.get() >= 5);
+        assertEquals(SONGS, countSongs());
+    }
+
+    @Test
+    public void restoresInBatches() throws IOException {
+        for (int i = 0; i < SONGS; i++) {
+            mDb.createSong("Song " + i, "[G]words " + i, "", i % 5);
+        }
+        File backup = mFolder.newFile("songs" + SongBackup.EXTENSION);
+        assertEquals(SONGS, new SongBackup().backup(mDb, backup, true));
+        mDb.createSong("Not in the backup", "", "", 0);
+
+        assertEquals(SONGS, new SongBackup().restore(mDb, mWriter, backup, true));
+        // The songs held a batch at a time, then swapped in
+        assertTrue(mTasks.get() + " writer tasks", mTasks.get() >= 6);
+        assertEquals(SONGS, countSongs());
+    }
+
+    @Test
+    public void failedRestoreLeavesTheLibrary() throws IOException {
+        for (int i = 0; i < SONGS; i++) {
+            mDb.createSong("Song " + i, "[G]words " + i, "", 0);
+        }
+        File backup = mFolder.newFile("songs" + SongBackup.EXTENSION);
+        new SongBackup().backup(mDb, backup, true);
+        mDb.createSong("Not in the backup", "", "", 0);
+
+        // Part way through holding the songs
+        mFailTask = 4;
+        try {
+            new SongBackup().restore(mDb, mWriter, backup, true);
+            fail("Restore should have failed");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(SONGS + 1, countSongs());
+
+        // Nothing left over to get into the next restore
+        mFailTask = 0;
+        assertEquals(SONGS, new SongBackup().restore(mDb, mWriter, backup, false));
+        assertEquals(2 * SONGS + 1, countSongs());
+    }
+
+    private int countSongs() {
+        Cursor songs = mDb.fetchAllSongs();
+        try {
+            return songs.getCount();
+        } finally {
+            songs.close();
+        }
+    }
+}